@@ -83,6 +83,68 @@ testing {
     }
 }
 
+// Classes replacing their Java 8 counterparts on Java 11 and later, shipped in the multi-release JAR
+val java11 by sourceSets.creating {
+    java {
+        setSrcDirs(listOf("src/main/java11"))
+    }
+    compileClasspath += sourceSets.main.get().output + sourceSets.main.get().compileClasspath
+}
+
+tasks.named<JavaCompile>(java11.compileJavaTaskName) {
+    options.release = 11
+}
+
+tasks.jar {
+    into("META-INF/versions/11") {
+        from(java11.output)
+    }
+    manifest {
+        attributes("Multi-Release" to "true")
+    }
+}
+
+// Test what consumers on Java 11 and later get from the multi-release JAR
+sourceSets.test {
+    runtimeClasspath = java11.output + runtimeClasspath
+}
+
+// JMH benchmarks, run them with `./gradlew jmh`
+// Pass a pattern to select benchmarks, e.g. `./gradlew jmh -Pjmh.includes=Dispatch`
+val jmh by sourceSets.creating {
+    compileClasspath += sourceSets.main.get().output
+    runtimeClasspath += sourceSets.main.get().output
+}
+
+configurations.named(jmh.implementationConfigurationName) {
+    extendsFrom(configurations.implementation.get())
+}
+
+dependencies {
+    val jmhVersion = "1.37"
+    jmh.compileOnlyConfigurationName("com.google.code.findbugs:jsr305:3.0.2")
+    jmh.implementationConfigurationName("org.openjdk.jmh:jmh-core:$jmhVersion")
+    jmh.annotationProcessorConfigurationName("org.openjdk.jmh:jmh-generator-annprocess:$jmhVersion")
+}
+
+tasks.register<JavaExec>("jmh") {
+    description = "Runs the JMH benchmarks, writing the results as JSON"
+    group = "verification"
+    val resultsFile = layout.buildDirectory.file("reports/jmh/results.json")
+    classpath = jmh.runtimeClasspath
+    mainClass = "org.openjdk.jmh.Main"
+    args("-rf", "json", "-rff", resultsFile.get().asFile.absolutePath)
+    // Report the allocation rate next to the timings
+    args("-prof", "gc")
+    providers.gradleProperty("jmh.includes").orNull?.let { args(it) }
+    outputs.file(resultsFile)
+    // Benchmarks measure the machine, not the inputs
+    outputs.upToDateWhen { false }
+    doFirst {
+        resultsFile.get().asFile.parentFile.mkdirs()
+    }
+}
+
 tasks.javadoc {
     exclude("**/internal/**")
     (options as StandardJavadocDocletOptions).addBooleanOption("html5", true)
@@ -43,12 +43,17 @@ pub fn build(b: *std.Build) void {
     lib.addCSourceFiles(.{
         .files = &.{
             "src/main/cpp/apple_fsnotifier.cpp",
+            "src/main/cpp/event_corpus.cpp",
+            "src/main/cpp/event_ring.cpp",
+            "src/main/cpp/fanotify_fsnotifier.cpp",
             "src/main/cpp/fileevents_version.cpp",
             "src/main/cpp/generic_fsnotifier.cpp",
             "src/main/cpp/jni_support.cpp",
             "src/main/cpp/linux_fsnotifier.cpp",
             "src/main/cpp/logging.cpp",
             "src/main/cpp/services.cpp",
+            "src/main/cpp/transcoding.cpp",
+            "src/main/cpp/watch_table.cpp",
             "src/main/cpp/win_fsnotifier.cpp",
         },
         .flags = cpp_args,
@@ -74,4 +79,21 @@ pub fn build(b: *std.Build) void {
     // Ensure the library is built
     const build_step = b.step("build", "Build the file events shared library");
     build_step.dependOn(&install.step);
+
+    // Native microbenchmarks, they don't need the JNI headers
+    const benchmark = b.addExecutable(.{ .name = "transcoding-benchmark", .target = target, .optimize = optimize });
+    benchmark.addIncludePath(b.path("src/main/headers"));
+    benchmark.addCSourceFiles(.{
+        .files = &.{
+            "src/benchmark/cpp/transcoding_benchmark.cpp",
+            "src/main/cpp/transcoding.cpp",
+        },
+        .flags = base_cpp_args,
+    });
+    benchmark.linkLibC();
+    benchmark.linkLibCpp();
+
+    const run_benchmark = b.addRunArtifact(benchmark);
+    const benchmark_step = b.step("benchmark", "Run the native microbenchmarks");
+    benchmark_step.dependOn(&run_benchmark.step);
 }
@@ -0,0 +1,112 @@
+// Compares the transcoding used by the file watchers with the codecvt based conversion it replaced.
+//
+// Build and run with:
+//     zig build benchmark -Doptimize=ReleaseFast
+
+#include <chrono>
+#include <codecvt>
+#include <cstdio>
+#include <cstdlib>
+#include <cstring>
+#include <locale>
+#include <string>
+#include <vector>
+
+#include "transcoding.h"
+
+using namespace std;
+
+#define ITERATIONS 1000000
+
+template <class Facet>
+struct deletable_facet : Facet {
+    template <class... Args>
+    deletable_facet(Args&&... args)
+        : Facet(forward<Args>(args)...) {
+    }
+    ~deletable_facet() {
+    }
+};
+
+#if defined(__GNUC__) || defined(__clang__)
+#pragma GCC diagnostic push
+#pragma GCC diagnostic ignored "-Wdeprecated-declarations"
+#endif
+
+static u16string codecvtUtf8ToUtf16(const char* string) {
+    wstring_convert<deletable_facet<codecvt<char16_t, char, mbstate_t>>, char16_t> conv16;
+    return conv16.from_bytes(string);
+}
+
+static string codecvtUtf16ToUtf8(const u16string& string) {
+    wstring_convert<deletable_facet<codecvt<char16_t, char, mbstate_t>>, char16_t> conv16;
+    return conv16.to_bytes(string);
+}
+
+#if defined(__GNUC__) || defined(__clang__)
+#pragma GCC diagnostic pop
+#endif
+
+struct Sample {
+    const char* description;
+    string utf8;
+};
+
+// Keeps the compiler from optimizing the conversions away
+static volatile size_t sink;
+
+template <typename Conversion>
+static double measure(Conversion conversion) {
+    auto start = chrono::steady_clock::now();
+    for (int i = 0; i < ITERATIONS; i++) {
+        sink = sink + conversion();
+    }
+    auto elapsed = chrono::steady_clock::now() - start;
+    return (double) chrono::duration_cast<chrono::nanoseconds>(elapsed).count() / ITERATIONS;
+}
+
+int main() {
+    vector<Sample> samples = {
+        { "short ASCII name", "Main.java" },
+        { "ASCII path", "/home/user/projects/gradle/subprojects/core/src/main/java/org/gradle/api/Project.java" },
+        { "non-ASCII name", "r\xC3\xA9sum\xC3\xA9-\xE6\x96\x87\xE4\xBB\xB6.txt" },
+        { "supplementary name", "emoji-\xF0\x9F\x98\x80.txt" },
+    };
+
+    u16string utf16Buffer;
+    string utf8Buffer;
+    for (const Sample& sample : samples) {
+        u16string expected = codecvtUtf8ToUtf16(sample.utf8.c_str());
+        utf8ToUtf16(sample.utf8.data(), sample.utf8.length(), utf16Buffer);
+        utf16ToUtf8(expected, utf8Buffer);
+        if (utf16Buffer != expected || utf8Buffer != sample.utf8) {
+            fprintf(stderr, "Conversion mismatch for %s\n", sample.description);
+            return EXIT_FAILURE;
+        }
+    }
+
+    printf("%-20s %-8s %12s %12s\n", "sample", "to", "codecvt", "transcoder");
+    for (const Sample& sample : samples) {
+        const string& utf8 = sample.utf8;
+        u16string utf16 = codecvtUtf8ToUtf16(utf8.c_str());
+
+        double codecvtToUtf16 = measure([&]() {
+            return codecvtUtf8ToUtf16(utf8.c_str()).length();
+        });
+        double transcoderToUtf16 = measure([&]() {
+            utf8ToUtf16(utf8.data(), utf8.length(), utf16Buffer);
+            return utf16Buffer.length();
+        });
+        printf("%-20s %-8s %9.1f ns %9.1f ns\n", sample.description, "UTF-16", codecvtToUtf16, transcoderToUtf16);
+
+        double codecvtToUtf8 = measure([&]() {
+            return codecvtUtf16ToUtf8(utf16).length();
+        });
+        double transcoderToUtf8 = measure([&]() {
+            utf16ToUtf8(utf16, utf8Buffer);
+            return utf8Buffer.length();
+        });
+        printf("%-20s %-8s %9.1f ns %9.1f ns\n", sample.description, "UTF-8", codecvtToUtf8, transcoderToUtf8);
+    }
+    return EXIT_SUCCESS;
+}
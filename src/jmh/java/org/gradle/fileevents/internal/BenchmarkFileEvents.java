@@ -0,0 +1,158 @@
+package org.gradle.fileevents.internal;
+
+import net.rubygrapefruit.platform.internal.Platform;
+import org.gradle.fileevents.FileEvents;
+import org.gradle.fileevents.FileWatchEvent;
+import org.gradle.fileevents.FileWatchEvent.ChangeType;
+import org.gradle.fileevents.FileWatchEvent.OverflowType;
+import org.gradle.fileevents.FileWatcher;
+import org.openjdk.jmh.infra.Blackhole;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shared setup for the benchmarks.
+ */
+class BenchmarkFileEvents {
+    private static final int STORM_DIRECTORY_COUNT = 10;
+    private static final int STORM_FILES_PER_DIRECTORY = 1000;
+
+    private static FileEvents fileEvents;
+
+    /**
+     * Loads the native library once per benchmark JVM.
+     */
+    static synchronized FileEvents get() throws IOException {
+        if (fileEvents == null) {
+            File extractDir = Files.createTempDirectory("file-events-jmh").toFile();
+            fileEvents = FileEvents.init(extractDir);
+        }
+        return fileEvents;
+    }
+
+    /**
+     * Returns the default file event functions of the current platform.
+     */
+    static AbstractFileEventFunctions<?> getPlatformFunctions() throws IOException {
+        Platform platform = Platform.current();
+        if (platform.isLinux()) {
+            return get().get(LinuxFileEventFunctions.class);
+        }
+        if (platform.isMacOs()) {
+            return get().get(OsxFileEventFunctions.class);
+        }
+        if (platform.isWindows()) {
+            return get().get(WindowsFileEventFunctions.class);
+        }
+        throw new IllegalStateException("File events are not supported on " + platform);
+    }
+
+    /**
+     * Creates a fresh directory for the benchmark, preferring tmpfs on Linux
+     * so that the file system itself doesn't dominate the measurements.
+     */
+    static File createBenchmarkDirectory(String prefix) throws IOException {
+        File shm = new File("/dev/shm");
+        File directory = shm.isDirectory() && shm.canWrite()
+            ? Files.createTempDirectory(shm.toPath(), prefix).toFile()
+            : Files.createTempDirectory(prefix).toFile();
+        return directory.getCanonicalFile();
+    }
+
+    static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Records a storm of file creations in the given new directory, watched recursively, to the given corpus.
+     */
+    static void recordEventStorm(LinuxFileEventFunctions functions, File corpusFile, File rootDir, Blackhole blackhole) throws Exception {
+        if (!rootDir.mkdir()) {
+            throw new IllegalStateException("Couldn't create " + rootDir);
+        }
+        final Semaphore receivedCreations = new Semaphore(0);
+        FileWatcher watcher = functions
+            .newWatcher(new ConsumingHandler(blackhole) {
+                @Override
+                public void handleChangeEvent(ChangeType type, String absolutePath) {
+                    if (type == ChangeType.CREATED) {
+                        receivedCreations.release();
+                    }
+                }
+            })
+            .withRecursiveWatching()
+            .withEventRecording(corpusFile)
+            .start();
+        try {
+            watcher.startWatching(Collections.singletonList(rootDir));
+            for (int i = 0; i < STORM_DIRECTORY_COUNT; i++) {
+                File directory = new File(rootDir, "dir-" + i);
+                if (!directory.mkdir()) {
+                    throw new IllegalStateException("Couldn't create " + directory);
+                }
+                for (int j = 0; j < STORM_FILES_PER_DIRECTORY; j++) {
+                    if (!new File(directory, "file-" + j + ".txt").createNewFile()) {
+                        throw new IllegalStateException("Couldn't create file in " + directory);
+                    }
+                }
+            }
+            if (!receivedCreations.tryAcquire(STORM_DIRECTORY_COUNT * (STORM_FILES_PER_DIRECTORY + 1), 30, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("Didn't receive all events in time");
+            }
+        } finally {
+            watcher.shutdown();
+            if (!watcher.awaitTermination(5, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("Watcher did not terminate");
+            }
+        }
+    }
+
+    /**
+     * A handler that consumes everything it receives, so the JIT can't eliminate the dispatch.
+     */
+    static class ConsumingHandler implements FileWatchEvent.Handler {
+        private final Blackhole blackhole;
+
+        ConsumingHandler(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void handleChangeEvent(ChangeType type, String absolutePath) {
+            blackhole.consume(type);
+            blackhole.consume(absolutePath);
+        }
+
+        @Override
+        public void handleUnknownEvent(String absolutePath) {
+            blackhole.consume(absolutePath);
+        }
+
+        @Override
+        public void handleOverflow(OverflowType type, @Nullable String absolutePath) {
+            blackhole.consume(type);
+            blackhole.consume(absolutePath);
+        }
+
+        @Override
+        public void handleFailure(Throwable failure) {
+            blackhole.consume(failure);
+        }
+
+        @Override
+        public void handleTerminated() {
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package org.gradle.fileevents.internal;
+
+import org.gradle.fileevents.FileWatchEvent;
+import org.gradle.fileevents.internal.AbstractFileEventFunctions.NativeFileWatcherCallback;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Measures the cost of dispatching queued events to a handler, including building the absolute path of relative events.
+ */
+@BenchmarkMode(Mode.Throughput)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@State(Scope.Thread)
+public class FileWatchEventDispatchBenchmark {
+    private static final int EVENT_COUNT = 1024;
+
+    private List<FileWatchEvent> absoluteEvents;
+    private List<FileWatchEvent> relativeEvents;
+    private FileWatchEvent.Handler handler;
+
+    @Setup
+    public void setup(Blackhole blackhole) {
+        int[] typeIndices = new int[EVENT_COUNT];
+        int[] rootIds = new int[EVENT_COUNT];
+        String[] absolutePaths = new String[EVENT_COUNT];
+        String[] names = new String[EVENT_COUNT];
+        for (int i = 0; i < EVENT_COUNT; i++) {
+            typeIndices[i] = i % 3;
+            names[i] = "subprojects/core/src/main/java/File" + i + ".java";
+            absolutePaths[i] = "/home/user/projects/gradle/" + names[i];
+        }
+        absoluteEvents = new ArrayList<FileWatchEvent>();
+        LinkedBlockingQueue<FileWatchEvent> queue = new LinkedBlockingQueue<FileWatchEvent>();
+        NativeFileWatcherCallback callback = new NativeFileWatcherCallback(queue);
+        callback.reportChangeEvents(typeIndices, absolutePaths);
+        queue.drainTo(absoluteEvents);
+
+        relativeEvents = new ArrayList<FileWatchEvent>();
+        callback.reportRoot(0, "/home/user/projects/gradle");
+        callback.reportRelativeChangeEvents(typeIndices, rootIds, names);
+        queue.drainTo(relativeEvents);
+
+        handler = new BenchmarkFileEvents.ConsumingHandler(blackhole);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EVENT_COUNT)
+    public void absoluteChangeEvents() {
+        for (FileWatchEvent event : absoluteEvents) {
+            event.handleEvent(handler);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EVENT_COUNT)
+    public void relativeChangeEvents() {
+        for (FileWatchEvent event : relativeEvents) {
+            event.handleEvent(handler);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package org.gradle.fileevents.internal;
+
+import net.rubygrapefruit.platform.internal.Platform;
+import org.gradle.fileevents.FileWatchEvent.ChangeType;
+import org.gradle.fileevents.FileWatcher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures events per second from creating files (on tmpfs when available) until the consumer receives the events.
+ */
+@BenchmarkMode(Mode.Throughput)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@State(Scope.Thread)
+public class LinuxEndToEndBenchmark {
+    private static final int FILES_PER_INVOCATION = 1000;
+
+    private final Semaphore receivedCreations = new Semaphore(0);
+    private FileWatcher watcher;
+    private File rootDir;
+    private int fileCounter;
+
+    @Setup
+    public void setup(final Blackhole blackhole) throws Exception {
+        if (!Platform.current().isLinux()) {
+            throw new IllegalStateException("This benchmark requires Linux");
+        }
+        watcher = BenchmarkFileEvents.get().get(LinuxFileEventFunctions.class)
+            .newWatcher(new BenchmarkFileEvents.ConsumingHandler(blackhole) {
+                @Override
+                public void handleChangeEvent(ChangeType type, String absolutePath) {
+                    super.handleChangeEvent(type, absolutePath);
+                    if (type == ChangeType.CREATED) {
+                        receivedCreations.release();
+                    }
+                }
+            })
+            .start();
+    }
+
+    @Setup(Level.Iteration)
+    public void startWatching() throws IOException {
+        rootDir = BenchmarkFileEvents.createBenchmarkDirectory("end-to-end");
+        watcher.startWatching(Collections.singletonList(rootDir));
+        receivedCreations.drainPermits();
+    }
+
+    @TearDown(Level.Iteration)
+    public void stopWatching() {
+        if (!watcher.stopWatching(Collections.singletonList(rootDir))) {
+            throw new IllegalStateException("Wasn't watching " + rootDir);
+        }
+        BenchmarkFileEvents.deleteRecursively(rootDir);
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        watcher.shutdown();
+        if (!watcher.awaitTermination(5, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Watcher did not terminate");
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FILES_PER_INVOCATION)
+    public void createFiles() throws IOException, InterruptedException {
+        for (int i = 0; i < FILES_PER_INVOCATION; i++) {
+            File file = new File(rootDir, "file-" + fileCounter++);
+            if (!file.createNewFile()) {
+                throw new IllegalStateException("Couldn't create " + file);
+            }
+        }
+        if (!receivedCreations.tryAcquire(FILES_PER_INVOCATION, 10, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Didn't receive all events in time");
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package org.gradle.fileevents.internal;
+
+import net.rubygrapefruit.platform.internal.Platform;
+import org.gradle.fileevents.FileWatchEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the native decoding and dispatching of inotify events by replaying a recorded event corpus.
+ *
+ * By default a storm of file creations is recorded first. Pass {@code -p corpus=<path>} to replay
+ * a corpus recorded elsewhere via {@link LinuxFileEventFunctions.WatcherBuilder#withEventRecording(File)}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@State(Scope.Thread)
+public class LinuxEventReplayBenchmark {
+    @Param({""})
+    public String corpus;
+
+    private LinuxFileEventFunctions functions;
+    private File corpusFile;
+    private File recordingDir;
+    private FileWatchEvent.Handler handler;
+
+    @Setup
+    public void setup(Blackhole blackhole) throws Exception {
+        if (!Platform.current().isLinux()) {
+            throw new IllegalStateException("This benchmark requires Linux");
+        }
+        functions = BenchmarkFileEvents.get().get(LinuxFileEventFunctions.class);
+        handler = new BenchmarkFileEvents.ConsumingHandler(blackhole);
+        if (corpus.isEmpty()) {
+            recordingDir = BenchmarkFileEvents.createBenchmarkDirectory("event-replay");
+            corpusFile = new File(recordingDir, "storm.corpus");
+            BenchmarkFileEvents.recordEventStorm(functions, corpusFile, new File(recordingDir, "root"), blackhole);
+        } else {
+            corpusFile = new File(corpus);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (recordingDir != null) {
+            BenchmarkFileEvents.deleteRecursively(recordingDir);
+        }
+    }
+
+    @Benchmark
+    public long replay() {
+        return functions.replayRecordedEvents(corpusFile, handler);
+    }
+}
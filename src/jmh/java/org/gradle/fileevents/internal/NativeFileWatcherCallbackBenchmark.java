@@ -0,0 +1,204 @@
+package org.gradle.fileevents.internal;
+
+import net.rubygrapefruit.platform.internal.Platform;
+import org.gradle.fileevents.FileWatchEvent;
+import org.gradle.fileevents.internal.AbstractFileEventFunctions.NativeFileWatcherCallback;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how fast the callback turns batches reported by the native side into queued events,
+ * and how many calls from the native side it takes to report the events of a storm.
+ */
+@BenchmarkMode(Mode.Throughput)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@State(Scope.Thread)
+public class NativeFileWatcherCallbackBenchmark {
+    // Same as MAX_CHANGE_EVENT_BATCH_SIZE on the native side
+    private static final int BATCH_SIZE = 1024;
+
+    private NativeFileWatcherCallback callback;
+    private int[] typeIndices;
+    private int[] rootIds;
+    private String[] absolutePaths;
+    private String[] names;
+
+    @Setup
+    public void setup(Blackhole blackhole) {
+        callback = new NativeFileWatcherCallback(new ConsumingQueue(blackhole));
+        callback.reportRoot(0, "/home/user/projects/gradle");
+        typeIndices = new int[BATCH_SIZE];
+        rootIds = new int[BATCH_SIZE];
+        absolutePaths = new String[BATCH_SIZE];
+        names = new String[BATCH_SIZE];
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            typeIndices[i] = i % 3;
+            names[i] = "subprojects/core/src/main/java/File" + i + ".java";
+            absolutePaths[i] = "/home/user/projects/gradle/" + names[i];
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void absoluteChangeEvents() {
+        callback.reportChangeEvents(typeIndices, absolutePaths);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void relativeChangeEvents() {
+        callback.reportRelativeChangeEvents(typeIndices, rootIds, names);
+    }
+
+    /**
+     * Replays a recorded storm of file creations through the native decoding and dispatching on Linux,
+     * counting the upcalls from the native side into the callback.
+     * The JNI transitions per event are the upcalls divided by the events,
+     * the time per operation is the cost of reporting the whole storm.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public long nativeReplay(ReplayState replay, JniTransitions transitions) {
+        return replay.functions.replayRecordedEvents(replay.corpusFile, new CountingCallback(replay.handler, transitions));
+    }
+
+    @State(Scope.Thread)
+    public static class ReplayState {
+        private LinuxFileEventFunctions functions;
+        private File recordingDir;
+        private File corpusFile;
+        private FileWatchEvent.Handler handler;
+
+        @Setup
+        public void setup(Blackhole blackhole) throws Exception {
+            if (!Platform.current().isLinux()) {
+                throw new IllegalStateException("This benchmark requires Linux");
+            }
+            functions = BenchmarkFileEvents.get().get(LinuxFileEventFunctions.class);
+            handler = new BenchmarkFileEvents.ConsumingHandler(blackhole);
+            recordingDir = BenchmarkFileEvents.createBenchmarkDirectory("callback-replay");
+            corpusFile = new File(recordingDir, "storm.corpus");
+            BenchmarkFileEvents.recordEventStorm(functions, corpusFile, new File(recordingDir, "root"), blackhole);
+        }
+
+        @TearDown
+        public void tearDown() {
+            BenchmarkFileEvents.deleteRecursively(recordingDir);
+        }
+    }
+
+    /**
+     * The upcalls the native side made, and the events it reported with them, summed up over each iteration.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class JniTransitions {
+        public long upcalls;
+        public long events;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            upcalls = 0;
+            events = 0;
+        }
+    }
+
+    /**
+     * Hands the queued events to the blackhole right away, so the queue never fills up,
+     * and doesn't need to be drained in between invocations.
+     */
+    private static class ConsumingQueue extends ArrayBlockingQueue<FileWatchEvent> {
+        private final Blackhole blackhole;
+
+        public ConsumingQueue(Blackhole blackhole) {
+            super(1);
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public boolean offer(FileWatchEvent event) {
+            blackhole.consume(event);
+            return true;
+        }
+    }
+
+    private static class CountingCallback extends NativeFileWatcherCallback {
+        private final JniTransitions transitions;
+        // Batches are reported to Java one event at a time
+        private boolean reportingBatch;
+
+        public CountingCallback(FileWatchEvent.Handler handler, JniTransitions transitions) {
+            super(handler);
+            this.transitions = transitions;
+        }
+
+        @Override
+        public void reportChangeEvent(int typeIndex, String path) {
+            if (!reportingBatch) {
+                transitions.upcalls++;
+                transitions.events++;
+            }
+            super.reportChangeEvent(typeIndex, path);
+        }
+
+        @Override
+        public void reportChangeEvents(int[] typeIndices, String[] paths) {
+            transitions.upcalls++;
+            transitions.events += paths.length;
+            reportingBatch = true;
+            try {
+                super.reportChangeEvents(typeIndices, paths);
+            } finally {
+                reportingBatch = false;
+            }
+        }
+
+        @Override
+        public void reportRoot(int rootId, String path) {
+            transitions.upcalls++;
+            super.reportRoot(rootId, path);
+        }
+
+        @Override
+        public void reportRelativeChangeEvents(int[] typeIndices, int[] rootIds, String[] names) {
+            transitions.upcalls++;
+            transitions.events += names.length;
+            super.reportRelativeChangeEvents(typeIndices, rootIds, names);
+        }
+
+        @Override
+        public void reportUnknownEvent(String path) {
+            transitions.upcalls++;
+            transitions.events++;
+            super.reportUnknownEvent(path);
+        }
+
+        @Override
+        public void reportOverflow(@Nullable String path) {
+            transitions.upcalls++;
+            transitions.events++;
+            super.reportOverflow(path);
+        }
+    }
+}
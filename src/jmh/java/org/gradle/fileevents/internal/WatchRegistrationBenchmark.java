@@ -0,0 +1,70 @@
+package org.gradle.fileevents.internal;
+
+import org.gradle.fileevents.FileWatcher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures starting and stopping to watch a number of directories with the default watcher of the current platform.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@State(Scope.Thread)
+public class WatchRegistrationBenchmark {
+    @Param({"1", "100", "1000"})
+    public int directoryCount;
+
+    private File rootDir;
+    private List<File> directories;
+    private FileWatcher watcher;
+
+    @Setup
+    public void setup(Blackhole blackhole) throws Exception {
+        rootDir = BenchmarkFileEvents.createBenchmarkDirectory("watch-registration");
+        directories = new ArrayList<File>();
+        for (int i = 0; i < directoryCount; i++) {
+            File directory = new File(rootDir, "dir-" + i);
+            if (!directory.mkdir()) {
+                throw new IllegalStateException("Couldn't create " + directory);
+            }
+            directories.add(directory);
+        }
+        watcher = BenchmarkFileEvents.getPlatformFunctions()
+            .newWatcher(new BenchmarkFileEvents.ConsumingHandler(blackhole))
+            .start();
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        watcher.shutdown();
+        if (!watcher.awaitTermination(5, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Watcher did not terminate");
+        }
+        BenchmarkFileEvents.deleteRecursively(rootDir);
+    }
+
+    @Benchmark
+    public boolean startAndStopWatching() {
+        watcher.startWatching(directories);
+        return watcher.stopWatching(directories);
+    }
+}
@@ -97,6 +97,7 @@ void Server::handleEvents(
     char** eventPaths,
     const FSEventStreamEventFlags eventFlags[],
     const FSEventStreamEventId eventIds[]) {
+    statistics.kernelEvents.fetch_add(numEvents, memory_order_relaxed);
     try {
         for (size_t i = 0; i < numEvents; i++) {
             // This code runs on an arbitrary thread, so we can't pass it back to Java from here,
@@ -125,7 +126,10 @@ void Server::runLoop() {
         }
         if (holds_alternative<FileEvent>(item)) {
             FileEvent event = get<FileEvent>(item);
+            auto startTime = chrono::steady_clock::now();
+            auto upcallTimeBefore = getUpcallTime();
             handleEvent(env, event.eventPath.c_str(), event.eventFlags, event.eventId);
+            statistics.decodeTimes.record(chrono::steady_clock::now() - startTime - (getUpcallTime() - upcallTimeBefore));
         } else if (holds_alternative<ErrorEvent>(item)) {
             ErrorEvent event = get<ErrorEvent>(item);
             reportFailure(env, event.message.c_str());
@@ -140,6 +144,7 @@ void doNothing(void*) {
 void Server::shutdownRunLoop() {
     // Make sure we stop watching before we stop the run loop
     watchPoints.clear();
+    recordActiveWatches(0);
     // This waits for the dispatch queue to empty completely; without it we might get events
     // after the server has been destroyed.
     dispatch_sync_f(dispatchQueue, nullptr, doNothing);
@@ -227,24 +232,46 @@ void Server::handleEvent(JNIEnv* env, const char* path, FSEventStreamEventFlags
 void Server::registerPaths(const vector<u16string>& paths) {
     unique_lock<recursive_mutex> lock(mutationMutex);
     for (auto& path : paths) {
-        if (watchPoints.find(path) != watchPoints.end()) {
-            throw FileWatcherException("Already watching path", path);
-        }
-        watchPoints.emplace(piecewise_construct,
-            forward_as_tuple(path),
-            forward_as_tuple(this, dispatchQueue, path, latencyInMillis));
+        registerPath(path);
+    }
+    recordActiveWatches(watchPoints.size());
+}
+
+void Server::registerPaths(const vector<u16string>& paths, vector<RegistrationStatus>& statuses) {
+    unique_lock<recursive_mutex> lock(mutationMutex);
+    for (auto& path : paths) {
+        statuses.push_back(tryRegisterPath(path, [this, &path]() {
+            return registerPath(path);
+        }));
+    }
+    recordActiveWatches(watchPoints.size());
+}
+
+bool Server::registerPath(const u16string& path) {
+    auto it = watchPoints.find(path);
+    if (it != watchPoints.end()) {
+        it->second.referenceCount++;
+        return false;
     }
+    watchPoints.emplace(piecewise_construct,
+        forward_as_tuple(path),
+        forward_as_tuple(this, dispatchQueue, path, latencyInMillis));
+    return true;
 }
 
 bool Server::unregisterPaths(const vector<u16string>& paths) {
     unique_lock<recursive_mutex> lock(mutationMutex);
     bool success = true;
     for (auto& path : paths) {
-        if (watchPoints.erase(path) == 0) {
+        auto it = watchPoints.find(path);
+        if (it == watchPoints.end()) {
             logToJava(LogLevel::INFO_LEVEL, "Path is not watched: %s", utf16ToUtf8String(path).c_str());
             success = false;
+        } else if (--it->second.referenceCount == 0) {
+            watchPoints.erase(it);
         }
     }
+    recordActiveWatches(watchPoints.size());
     return success;
 }
 
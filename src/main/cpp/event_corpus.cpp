@@ -0,0 +1,139 @@
+#include <cerrno>
+
+#include "event_corpus.h"
+#include "exception.h"
+
+struct CorpusHeader {
+    uint32_t magic;
+    uint32_t version;
+    uint32_t flags;
+    uint32_t latencyInMillis;
+};
+
+struct CorpusRecordHeader {
+    uint32_t type;
+    int32_t watchDescriptor;
+    int32_t value;
+    uint32_t length;
+};
+
+// Don't let a corrupt corpus make us allocate arbitrary amounts of memory
+#define MAX_CORPUS_PAYLOAD_SIZE (64 * 1024 * 1024)
+
+static FILE* openCorpus(const string& path, const char* mode) {
+    FILE* file = fopen(path.c_str(), mode);
+    if (file == nullptr) {
+        throw FileWatcherException("Couldn't open event corpus", utf8ToUtf16String(path.c_str()), errno);
+    }
+    return file;
+}
+
+EventCorpusWriter::EventCorpusWriter(const string& path, uint32_t flags, uint32_t latencyInMillis)
+    : path(path)
+    , file(openCorpus(path, "wb")) {
+    CorpusHeader header = { EVENT_CORPUS_MAGIC, EVENT_CORPUS_VERSION, flags, latencyInMillis };
+    write(&header, sizeof(header));
+}
+
+void EventCorpusWriter::writeWatch(int watchDescriptor, int rootId, const string& path, const string& relativePath) {
+    payload.assign(path);
+    payload.push_back('\0');
+    payload.append(relativePath);
+    payload.push_back('\0');
+    writeRecord(CorpusRecordType::WATCH, watchDescriptor, rootId, payload.data(), payload.length());
+}
+
+void EventCorpusWriter::writeUnwatch(int watchDescriptor, const string& path) {
+    payload.assign(path);
+    payload.push_back('\0');
+    writeRecord(CorpusRecordType::UNWATCH, watchDescriptor, 0, payload.data(), payload.length());
+}
+
+void EventCorpusWriter::writeEvents(const uint8_t* events, size_t length) {
+    if (length > 0) {
+        writeRecord(CorpusRecordType::EVENTS, 0, 0, events, length);
+    }
+}
+
+void EventCorpusWriter::writeChange(int watchDescriptor, int type, const char* name, size_t nameLength) {
+    payload.assign(name, nameLength);
+    payload.push_back('\0');
+    writeRecord(CorpusRecordType::CHANGE, watchDescriptor, type, payload.data(), payload.length());
+}
+
+void EventCorpusWriter::writeMarker(CorpusRecordType type) {
+    writeRecord(type, 0, 0, nullptr, 0);
+    // Keep what we have in case the process doesn't shut down cleanly
+    if (fflush(file.get()) != 0) {
+        throw FileWatcherException("Couldn't write event corpus", utf8ToUtf16String(path.c_str()), errno);
+    }
+}
+
+void EventCorpusWriter::writeRecord(CorpusRecordType type, int watchDescriptor, int value, const void* payload, size_t length) {
+    CorpusRecordHeader header = { static_cast<uint32_t>(type), watchDescriptor, value, (uint32_t) length };
+    write(&header, sizeof(header));
+    write(payload, length);
+}
+
+void EventCorpusWriter::write(const void* data, size_t length) {
+    if (length > 0 && fwrite(data, 1, length, file.get()) != length) {
+        throw FileWatcherException("Couldn't write event corpus", utf8ToUtf16String(path.c_str()), errno);
+    }
+}
+
+EventCorpusReader::EventCorpusReader(const string& path)
+    : path(path)
+    , file(openCorpus(path, "rb")) {
+    CorpusHeader header;
+    if (!read(&header, sizeof(header)) || header.magic != EVENT_CORPUS_MAGIC) {
+        throw FileWatcherException("Not an event corpus", utf8ToUtf16String(path.c_str()));
+    }
+    if (header.version != EVENT_CORPUS_VERSION) {
+        throw FileWatcherException("Unsupported event corpus version " + to_string(header.version), utf8ToUtf16String(path.c_str()));
+    }
+    flags = header.flags;
+    latencyInMillis = header.latencyInMillis;
+}
+
+bool EventCorpusReader::hasFlag(uint32_t flag) const {
+    return (flags & flag) != 0;
+}
+
+uint32_t EventCorpusReader::getLatencyInMillis() const {
+    return latencyInMillis;
+}
+
+bool EventCorpusReader::next(CorpusRecord& record) {
+    CorpusRecordHeader header;
+    if (!read(&header, sizeof(header))) {
+        return false;
+    }
+    if (header.length > MAX_CORPUS_PAYLOAD_SIZE) {
+        throw FileWatcherException("Corrupt event corpus", utf8ToUtf16String(path.c_str()));
+    }
+    record.type = static_cast<CorpusRecordType>(header.type);
+    record.watchDescriptor = header.watchDescriptor;
+    record.value = header.value;
+    record.payload.resize(header.length);
+    if (!read(record.payload.data(), header.length)) {
+        throw FileWatcherException("Truncated event corpus", utf8ToUtf16String(path.c_str()));
+    }
+    bool hasStrings = record.type == CorpusRecordType::WATCH
+        || record.type == CorpusRecordType::UNWATCH
+        || record.type == CorpusRecordType::CHANGE;
+    if (hasStrings && (record.payload.empty() || record.payload.back() != '\0')) {
+        throw FileWatcherException("Corrupt event corpus", utf8ToUtf16String(path.c_str()));
+    }
+    return true;
+}
+
+bool EventCorpusReader::read(void* data, size_t length) {
+    if (length == 0) {
+        return true;
+    }
+    size_t bytesRead = fread(data, 1, length, file.get());
+    if (bytesRead != length && ferror(file.get())) {
+        throw FileWatcherException("Couldn't read event corpus", utf8ToUtf16String(path.c_str()), errno);
+    }
+    return bytesRead == length;
+}
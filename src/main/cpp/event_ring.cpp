@@ -0,0 +1,127 @@
+#include <cstring>
+
+#include "event_ring.h"
+#include "exception.h"
+
+static inline size_t alignRecord(size_t length) {
+    return (length + RING_RECORD_ALIGNMENT - 1) & ~((size_t) RING_RECORD_ALIGNMENT - 1);
+}
+
+EventRing::EventRing(JNIEnv* env, jobject javaRing, jobject javaBuffer)
+    : javaRing(env, javaRing) {
+    jclass ringClass = env->GetObjectClass(javaRing);
+    publishMethod = env->GetMethodID(ringClass, "publish", "(J)J");
+    env->DeleteLocalRef(ringClass);
+    buffer = (uint8_t*) env->GetDirectBufferAddress(javaBuffer);
+    capacity = (size_t) env->GetDirectBufferCapacity(javaBuffer);
+    if (buffer == nullptr || capacity == 0 || (capacity & (capacity - 1)) != 0) {
+        throw FileWatcherException("Event ring must be backed by a direct buffer with a power of two capacity");
+    }
+}
+
+bool EventRing::write(JNIEnv* env, RingRecordType type, int rootId, const u16string& rootPath, const char* name, size_t nameLength) {
+    if (rootId >= 0 && ((size_t) rootId >= announcedRoots.size() || !announcedRoots[rootId])) {
+        if (!writeRootRecord(env, rootId, rootPath)) {
+            return drop(env);
+        }
+    }
+    if (!reserve(env, RING_RECORD_HEADER_SIZE + nameLength, RING_RECORD_HEADER_SIZE)) {
+        return drop(env);
+    }
+    writeRecord(type, rootId, name, nameLength);
+    lost = false;
+    return true;
+}
+
+bool EventRing::writeRootRecord(JNIEnv* env, int rootId, const u16string& rootPath) {
+    string rootPathNarrow = utf16ToUtf8String(rootPath);
+    if (!reserve(env, RING_RECORD_HEADER_SIZE + rootPathNarrow.length(), RING_RECORD_HEADER_SIZE)) {
+        return false;
+    }
+    writeRecord(RingRecordType::ROOT, rootId, rootPathNarrow.c_str(), rootPathNarrow.length());
+    if ((size_t) rootId >= announcedRoots.size()) {
+        announcedRoots.resize(rootId + 1, false);
+    }
+    announcedRoots[rootId] = true;
+    return true;
+}
+
+bool EventRing::drop(JNIEnv* env) {
+    if (lost) {
+        // The marker written for the previous loss covers this one, unless the consumer has read past it already
+        exchangePositions(env);
+        if (cachedReadPosition < lostMarkerEnd) {
+            return false;
+        }
+    }
+    // Records always leave room for the marker, so it is written right away
+    if (reserve(env, RING_RECORD_HEADER_SIZE, 0)) {
+        writeRecord(RingRecordType::LOST, -1, nullptr, 0);
+        lost = true;
+        lostMarkerEnd = writePosition;
+    }
+    return false;
+}
+
+bool EventRing::reserve(JNIEnv* env, size_t length, size_t keepFree) {
+    size_t recordLength = alignRecord(length);
+    if (recordLength > capacity / 2) {
+        // Too large to ever fit, together with the padding that might be needed in front of it
+        return false;
+    }
+    size_t offset = writePosition & (capacity - 1);
+    size_t tail = capacity - offset;
+    size_t required = recordLength > tail
+        ? tail + recordLength
+        : recordLength;
+    if (writePosition + required + keepFree - cachedReadPosition > capacity) {
+        // Let the consumer see what we have so far, and check how far it got with reading
+        exchangePositions(env);
+        if (writePosition + required + keepFree - cachedReadPosition > capacity) {
+            return false;
+        }
+    }
+    if (recordLength > tail) {
+        // Skip to the beginning of the buffer, records never wrap around
+        writeRecord(RingRecordType::PADDING, -1, nullptr, tail - RING_RECORD_HEADER_SIZE);
+    }
+    return true;
+}
+
+void EventRing::writeRecord(RingRecordType type, int rootId, const char* name, size_t nameLength) {
+    size_t offset = writePosition & (capacity - 1);
+    jint header[4] = {
+        (jint) (RING_RECORD_HEADER_SIZE + nameLength),
+        static_cast<jint>(type),
+        (jint) rootId,
+        0
+    };
+    memcpy(buffer + offset, header, RING_RECORD_HEADER_SIZE);
+    if (name != nullptr) {
+        memcpy(buffer + offset + RING_RECORD_HEADER_SIZE, name, nameLength);
+    }
+    writePosition += alignRecord(RING_RECORD_HEADER_SIZE + nameLength);
+}
+
+void EventRing::publish(JNIEnv* env) {
+    if (writePosition == publishedPosition) {
+        return;
+    }
+    exchangePositions(env);
+}
+
+void EventRing::forgetRoot(int rootId) {
+    if ((size_t) rootId < announcedRoots.size()) {
+        announcedRoots[rootId] = false;
+    }
+}
+
+void EventRing::exchangePositions(JNIEnv* env) {
+    jlong readPosition = env->CallLongMethod(javaRing.get(), publishMethod, (jlong) writePosition);
+    if (env->ExceptionCheck()) {
+        JniSupport::getJavaExceptionAndPrintStacktrace(env);
+        return;
+    }
+    publishedPosition = writePosition;
+    cachedReadPosition = (uint64_t) readPosition;
+}
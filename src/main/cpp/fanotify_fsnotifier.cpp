@@ -0,0 +1,502 @@
+#ifdef __linux__
+
+#include <climits>
+#include <cstring>
+#include <linux/capability.h>
+#include <sys/statfs.h>
+#include <sys/syscall.h>
+#include <unistd.h>
+
+#include "fanotify_fsnotifier.h"
+
+#define EVENT_BUFFER_SIZE (64 * 1024)
+
+#define EVENT_MASK (FAN_CREATE | FAN_DELETE | FAN_DELETE_SELF | FAN_MODIFY | FAN_MOVE_SELF | FAN_MOVED_FROM | FAN_MOVED_TO | FAN_ONDIR)
+
+#define INIT_FLAGS (FAN_CLASS_NOTIF | FAN_REPORT_DFID_NAME | FAN_CLOEXEC | FAN_NONBLOCK)
+
+// Limit the memory used for caching resolved directories
+#define MAX_CACHED_DIRECTORY_PATHS (16 * 1024)
+
+// Both statfs() and fanotify report the file system ID as two ints
+static uint64_t toFileSystemId(const void* fsid) {
+    uint64_t id;
+    memcpy(&id, fsid, sizeof(id));
+    return id;
+}
+
+static string toHandleKey(const file_handle* handle) {
+    string key((const char*) &handle->handle_type, sizeof(handle->handle_type));
+    key.append((const char*) handle->f_handle, handle->handle_bytes);
+    return key;
+}
+
+Fanotify::Fanotify()
+    : fd(fanotify_init(INIT_FLAGS, O_RDONLY | O_CLOEXEC)) {
+    if (fd == -1) {
+        throw FileWatcherException("Couldn't register fanotify handle", errno);
+    }
+}
+
+Fanotify::~Fanotify() {
+    close(fd);
+}
+
+MarkedFileSystem::MarkedFileSystem(int mountFd)
+    : mountFd(mountFd) {
+}
+
+MarkedFileSystem::~MarkedFileSystem() {
+    close(mountFd);
+}
+
+FanotifyWatchPoint::FanotifyWatchPoint(const string& path, const string& canonicalPath, uint64_t fileSystemId, const string& handle)
+    : path(path)
+    , canonicalPath(canonicalPath)
+    , fileSystemId(fileSystemId)
+    , handle(handle) {
+}
+
+FanotifyServer::FanotifyServer(JNIEnv* env, jobject watcherCallback)
+    : AbstractServer(env, watcherCallback) {
+    buffer.resize(EVENT_BUFFER_SIZE);
+}
+
+void FanotifyServer::initializeRunLoop() {
+}
+
+void FanotifyServer::shutdownRunLoop() {
+    shutdownEvent.trigger();
+}
+
+void FanotifyServer::runLoop() {
+    int forever = numeric_limits<int>::max();
+
+    while (!shouldTerminate) {
+        processQueues(forever);
+    }
+
+    // No need to remove the marks, they are removed when the fanotify group is closed
+}
+
+void FanotifyServer::processQueues(int timeout) {
+    struct pollfd fds[2];
+    fds[0].fd = shutdownEvent.fd;
+    fds[1].fd = fanotify.fd;
+    fds[0].events = POLLIN;
+    fds[1].events = POLLIN;
+
+    int ret = poll(fds, 2, timeout);
+    if (ret == -1) {
+        throw FileWatcherException("Couldn't poll for events", errno);
+    }
+
+    if (IS_SET(fds[0].revents, POLLIN)) {
+        shutdownEvent.consume();
+        // Ignore counter, we only care about the notification itself
+        shouldTerminate = true;
+        return;
+    }
+
+    if (IS_SET(fds[1].revents, POLLIN)) {
+        try {
+            handleEvents();
+        } catch (const exception& ex) {
+            reportFailure(getThreadEnv(), ex);
+        }
+    }
+}
+
+void FanotifyServer::handleEvents() {
+    while (true) {
+        auto readStartTime = chrono::steady_clock::now();
+        ssize_t bytesRead = read(fanotify.fd, buffer.data(), buffer.size());
+        statistics.readTimes.record(chrono::steady_clock::now() - readStartTime);
+        if (bytesRead == -1) {
+            if (errno == EAGAIN) {
+                // Nothing more to read
+                return;
+            }
+            throw FileWatcherException("Couldn't read from fanotify", errno);
+        }
+        if (bytesRead == 0) {
+            throw FileWatcherException("EOF reading from fanotify");
+        }
+
+        unique_lock<recursive_mutex> lock(mutationMutex);
+        JNIEnv* env = getThreadEnv();
+        logToJava(LogLevel::TRACE_LEVEL, "Processing %d bytes worth of events", bytesRead);
+        auto startTime = chrono::steady_clock::now();
+        auto upcallTimeBefore = getUpcallTime();
+        int count = 0;
+        const fanotify_event_metadata* event = (const fanotify_event_metadata*) buffer.data();
+        while (FAN_EVENT_OK(event, bytesRead)) {
+            if (event->vers != FANOTIFY_METADATA_VERSION) {
+                throw FileWatcherException("Unexpected fanotify metadata version", event->vers);
+            }
+            handleEvent(env, event);
+            event = FAN_EVENT_NEXT(event, bytesRead);
+            count++;
+        }
+        flushChangeEvents(env);
+        statistics.kernelEvents.fetch_add((uint64_t) count, memory_order_relaxed);
+        statistics.decodeTimes.record(chrono::steady_clock::now() - startTime - (getUpcallTime() - upcallTimeBefore));
+        logToJava(LogLevel::TRACE_LEVEL, "Processed %d events", count);
+    }
+}
+
+void FanotifyServer::handleEvent(JNIEnv* env, const fanotify_event_metadata* event) {
+    uint64_t mask = event->mask;
+
+    if (shouldTerminate) {
+        return;
+    }
+
+    // Overflow received, handle gracefully
+    if (IS_SET(mask, FAN_Q_OVERFLOW)) {
+        for (auto& it : watchPoints) {
+            reportOverflow(env, it.first);
+        }
+        return;
+    }
+
+    const fanotify_event_info_fid* info = (const fanotify_event_info_fid*) (event + 1);
+    if (event->event_len <= event->metadata_len) {
+        logToJava(LogLevel::DEBUG_LEVEL, "Ignoring event without file identifier (mask = 0x%llx)", (unsigned long long) mask);
+        return;
+    }
+    uint64_t fileSystemId = toFileSystemId(&info->fsid);
+    const file_handle* handle = (const file_handle*) info->handle;
+
+    if (IS_SET(mask, FAN_DELETE_SELF | FAN_MOVE_SELF)) {
+        // We only care about roots going away, the removal or move of anything else is reported in the parent directory
+        reportRootRemoved(env, fileSystemId, handle);
+        return;
+    }
+
+    if (info->hdr.info_type != FAN_EVENT_INFO_TYPE_DFID_NAME) {
+        logToJava(LogLevel::DEBUG_LEVEL, "Ignoring event with file identifier type %d (mask = 0x%llx)", info->hdr.info_type, (unsigned long long) mask);
+        return;
+    }
+    const char* name = (const char*) (handle->f_handle + handle->handle_bytes);
+
+    string path;
+    if (!resolveDirectory(fileSystemId, handle, path)) {
+        // The directory has been removed since, its removal is reported in its parent
+        logToJava(LogLevel::DEBUG_LEVEL, "Ignoring event in directory that cannot be resolved anymore (mask = 0x%llx, name = %s)", (unsigned long long) mask, name);
+        return;
+    }
+    if (strcmp(name, ".") != 0) {
+        path.append("/");
+        path.append(name);
+    }
+
+    if (IS_SET(mask, FAN_ONDIR) && IS_SET(mask, FAN_DELETE | FAN_MOVED_FROM)) {
+        // Cached paths in the directory are not valid anymore
+        invalidateDirectoryPaths(path);
+    }
+
+    // Changes to the roots themselves are reported via FAN_DELETE_SELF
+    auto roots = findWatchPoints(path);
+    if (roots.first == roots.second) {
+        return;
+    }
+
+    ChangeType type;
+    if (IS_SET(mask, FAN_CREATE | FAN_MOVED_TO)) {
+        type = ChangeType::CREATED;
+    } else if (IS_SET(mask, FAN_DELETE | FAN_MOVED_FROM)) {
+        type = ChangeType::REMOVED;
+    } else if (IS_SET(mask, FAN_MODIFY)) {
+        type = ChangeType::MODIFIED;
+    } else {
+        logToJava(LogLevel::WARN_LEVEL, "Unknown event 0x%llx for %s", (unsigned long long) mask, path.c_str());
+        type = ChangeType::INVALIDATED;
+    }
+
+    // Report the path under each root it is in, as the root has been registered
+    for (auto it = roots.first; it != roots.second; ++it) {
+        const FanotifyWatchPoint* watchPoint = it->second;
+        string rootedPath(watchPoint->path);
+        rootedPath.append(path, watchPoint->canonicalPath.length(), string::npos);
+        if (type == ChangeType::INVALIDATED) {
+            reportUnknownEvent(env, utf8ToUtf16String(rootedPath.c_str()));
+        } else {
+            queueChangeEvent(env, type, utf8ToUtf16String(rootedPath.c_str()));
+        }
+    }
+}
+
+void FanotifyServer::reportRootRemoved(JNIEnv* env, uint64_t fileSystemId, const file_handle* handle) {
+    auto roots = watchPointsByHandle.equal_range(toHandleKey(handle));
+    for (auto it = roots.first; it != roots.second; ++it) {
+        const FanotifyWatchPoint* watchPoint = it->second;
+        if (watchPoint->fileSystemId == fileSystemId) {
+            queueChangeEvent(env, ChangeType::REMOVED, utf8ToUtf16String(watchPoint->path.c_str()));
+        }
+    }
+}
+
+bool FanotifyServer::resolveDirectory(uint64_t fileSystemId, const file_handle* handle, string& path) {
+    string handleKey = toHandleKey(handle);
+    auto cached = directoryPaths.find(handleKey);
+    if (cached != directoryPaths.end()) {
+        path = cached->second;
+        return true;
+    }
+
+    auto fileSystem = fileSystems.find(fileSystemId);
+    if (fileSystem == fileSystems.end()) {
+        // Events on a file system we have stopped watching
+        return false;
+    }
+
+    // open_by_handle_at() wants a mutable handle
+    vector<uint8_t> handleCopy(sizeof(file_handle) + handle->handle_bytes);
+    memcpy(handleCopy.data(), handle, handleCopy.size());
+    int fd = open_by_handle_at(fileSystem->second.mountFd, (file_handle*) handleCopy.data(), O_PATH | O_CLOEXEC);
+    if (fd == -1) {
+        return false;
+    }
+    char procPath[64];
+    snprintf(procPath, sizeof(procPath), "/proc/self/fd/%d", fd);
+    char resolvedPath[PATH_MAX];
+    ssize_t length = readlink(procPath, resolvedPath, sizeof(resolvedPath) - 1);
+    close(fd);
+    if (length == -1) {
+        return false;
+    }
+    path.assign(resolvedPath, length);
+    cacheDirectoryPath(handleKey, path);
+    return true;
+}
+
+void FanotifyServer::cacheDirectoryPath(const string& handleKey, const string& path) {
+    if (directoryPaths.size() >= MAX_CACHED_DIRECTORY_PATHS) {
+        directoryPaths.clear();
+        directoryHandles.clear();
+    }
+    auto previous = directoryHandles.find(path);
+    if (previous != directoryHandles.end()) {
+        // Another directory has been at this path before
+        directoryPaths.erase(previous->second);
+        directoryHandles.erase(previous);
+    }
+    directoryPaths.emplace(handleKey, path);
+    directoryHandles.emplace(path, handleKey);
+}
+
+void FanotifyServer::invalidateDirectoryPaths(const string& path) {
+    auto directory = directoryHandles.find(path);
+    if (directory != directoryHandles.end()) {
+        directoryPaths.erase(directory->second);
+        directoryHandles.erase(directory);
+    }
+    // The descendants all share the same prefix, so they are next to each other
+    string prefix = path + "/";
+    auto it = directoryHandles.lower_bound(prefix);
+    while (it != directoryHandles.end() && it->first.compare(0, prefix.length(), prefix) == 0) {
+        directoryPaths.erase(it->second);
+        it = directoryHandles.erase(it);
+    }
+}
+
+FanotifyServer::WatchPointRange FanotifyServer::findWatchPoints(const string& path) {
+    // Look up the ancestors of the path, starting with the parent
+    size_t separator = path.find_last_of('/');
+    while (separator != string::npos && separator > 0) {
+        auto roots = watchPointsByCanonicalPath.equal_range(path.substr(0, separator));
+        if (roots.first != roots.second) {
+            return roots;
+        }
+        separator = path.find_last_of('/', separator - 1);
+    }
+    return { watchPointsByCanonicalPath.end(), watchPointsByCanonicalPath.end() };
+}
+
+void FanotifyServer::registerPaths(const vector<u16string>& paths) {
+    unique_lock<recursive_mutex> lock(mutationMutex);
+    for (auto& path : paths) {
+        registerPath(path);
+    }
+    recordActiveWatches(watchPoints.size());
+}
+
+void FanotifyServer::registerPaths(const vector<u16string>& paths, vector<RegistrationStatus>& statuses) {
+    unique_lock<recursive_mutex> lock(mutationMutex);
+    for (auto& path : paths) {
+        statuses.push_back(tryRegisterPath(path, [this, &path]() {
+            return registerPath(path);
+        }));
+    }
+    recordActiveWatches(watchPoints.size());
+}
+
+bool FanotifyServer::unregisterPaths(const vector<u16string>& paths) {
+    unique_lock<recursive_mutex> lock(mutationMutex);
+    bool success = true;
+    for (auto& path : paths) {
+        success &= unregisterPath(path);
+    }
+    recordActiveWatches(watchPoints.size());
+    return success;
+}
+
+/**
+ * Finds the topmost ancestor of the given canonical path on the same device.
+ */
+static string findMountPoint(const string& canonicalPath, dev_t device) {
+    string mountPoint = canonicalPath;
+    while (mountPoint.length() > 1) {
+        size_t separator = mountPoint.find_last_of('/');
+        string parent = separator == 0
+            ? "/"
+            : mountPoint.substr(0, separator);
+        struct stat st;
+        if (stat(parent.c_str(), &st) != 0 || st.st_dev != device) {
+            break;
+        }
+        mountPoint = parent;
+    }
+    return mountPoint;
+}
+
+bool FanotifyServer::registerPath(const u16string& path) {
+    auto it = watchPoints.find(path);
+    if (it != watchPoints.end()) {
+        // Registered again, keep watching until all registrations are gone
+        it->second.referenceCount++;
+        return false;
+    }
+    string pathNarrow = utf16ToUtf8String(path);
+    struct stat st;
+    if (stat(pathNarrow.c_str(), &st) != 0) {
+        throw FileWatcherException("Couldn't add watch, stat failed", path, errno);
+    }
+    if (!S_ISDIR(st.st_mode)) {
+        throw FileWatcherException("Couldn't add watch, not a directory", path, ENOTDIR);
+    }
+    struct statfs stfs;
+    if (statfs(pathNarrow.c_str(), &stfs) != 0) {
+        throw FileWatcherException("Couldn't add watch, statfs failed", path, errno);
+    }
+    uint64_t fileSystemId = toFileSystemId(&stfs.f_fsid);
+
+    vector<uint8_t> handleBuffer(sizeof(file_handle) + MAX_HANDLE_SZ);
+    file_handle* handle = (file_handle*) handleBuffer.data();
+    handle->handle_bytes = MAX_HANDLE_SZ;
+    int mountId;
+    if (name_to_handle_at(AT_FDCWD, pathNarrow.c_str(), handle, &mountId, AT_SYMLINK_FOLLOW) != 0) {
+        throw FileWatcherException("Couldn't add watch, file system does not support file handles", path, errno);
+    }
+
+    // File handles resolve to canonical paths
+    char canonicalPath[PATH_MAX];
+    if (realpath(pathNarrow.c_str(), canonicalPath) == nullptr) {
+        throw FileWatcherException("Couldn't add watch, realpath failed", path, errno);
+    }
+
+    auto fileSystem = fileSystems.find(fileSystemId);
+    if (fileSystem == fileSystems.end()) {
+        if (fanotify_mark(fanotify.fd, FAN_MARK_ADD | FAN_MARK_FILESYSTEM, EVENT_MASK, AT_FDCWD, pathNarrow.c_str()) != 0) {
+            throw FileWatcherException("Couldn't add watch, fanotify_mark failed", path, errno);
+        }
+        // Keep the mount point open instead of the root, so the root can still be removed
+        string mountPoint = findMountPoint(canonicalPath, st.st_dev);
+        int mountFd = open(mountPoint.c_str(), O_RDONLY | O_DIRECTORY | O_CLOEXEC);
+        if (mountFd == -1) {
+            int error = errno;
+            fanotify_mark(fanotify.fd, FAN_MARK_REMOVE | FAN_MARK_FILESYSTEM, EVENT_MASK, AT_FDCWD, pathNarrow.c_str());
+            throw FileWatcherException("Couldn't add watch, open failed", path, error);
+        }
+        fileSystems.emplace(piecewise_construct,
+            forward_as_tuple(fileSystemId),
+            forward_as_tuple(mountFd));
+    } else {
+        fileSystem->second.rootCount++;
+    }
+
+    auto inserted = watchPoints.emplace(piecewise_construct,
+        forward_as_tuple(path),
+        forward_as_tuple(pathNarrow, canonicalPath, fileSystemId, toHandleKey(handle)));
+    const FanotifyWatchPoint& watchPoint = inserted.first->second;
+    watchPointsByCanonicalPath.emplace(watchPoint.canonicalPath, &watchPoint);
+    watchPointsByHandle.emplace(watchPoint.handle, &watchPoint);
+    return true;
+}
+
+template <typename Map>
+static void eraseWatchPoint(Map& index, const string& key, const FanotifyWatchPoint* watchPoint) {
+    auto range = index.equal_range(key);
+    for (auto it = range.first; it != range.second; ++it) {
+        if (it->second == watchPoint) {
+            index.erase(it);
+            return;
+        }
+    }
+}
+
+bool FanotifyServer::unregisterPath(const u16string& path) {
+    auto it = watchPoints.find(path);
+    if (it == watchPoints.end()) {
+        logToJava(LogLevel::INFO_LEVEL, "Path is not watched: %s", utf16ToUtf8String(path).c_str());
+        return false;
+    }
+    if (--it->second.referenceCount > 0) {
+        // Still registered by someone else
+        return true;
+    }
+    uint64_t fileSystemId = it->second.fileSystemId;
+    eraseWatchPoint(watchPointsByCanonicalPath, it->second.canonicalPath, &it->second);
+    eraseWatchPoint(watchPointsByHandle, it->second.handle, &it->second);
+    watchPoints.erase(it);
+
+    auto fileSystem = fileSystems.find(fileSystemId);
+    if (fileSystem != fileSystems.end() && --fileSystem->second.rootCount == 0) {
+        if (fanotify_mark(fanotify.fd, FAN_MARK_REMOVE | FAN_MARK_FILESYSTEM, EVENT_MASK, fileSystem->second.mountFd, nullptr) != 0) {
+            logToJava(LogLevel::INFO_LEVEL, "Couldn't remove file system mark for %s (errno = %d)", utf16ToUtf8String(path).c_str(), errno);
+        }
+        fileSystems.erase(fileSystem);
+        directoryPaths.clear();
+        directoryHandles.clear();
+    }
+    return true;
+}
+
+static jstring getUnavailableReason(JNIEnv* env) {
+    int fd = fanotify_init(INIT_FLAGS, O_RDONLY | O_CLOEXEC);
+    if (fd == -1) {
+        string reason = "fanotify with directory file identifiers is not supported, error = " + to_string(errno);
+        return env->NewStringUTF(reason.c_str());
+    }
+    close(fd);
+
+    // Marking whole file systems requires CAP_SYS_ADMIN
+    __user_cap_header_struct header = { _LINUX_CAPABILITY_VERSION_3, 0 };
+    __user_cap_data_struct data[_LINUX_CAPABILITY_U32S_3];
+    if (syscall(SYS_capget, &header, data) != 0) {
+        string reason = "Couldn't query capabilities, error = " + to_string(errno);
+        return env->NewStringUTF(reason.c_str());
+    }
+    if (!IS_SET(data[CAP_TO_INDEX(CAP_SYS_ADMIN)].effective, CAP_TO_MASK(CAP_SYS_ADMIN))) {
+        return env->NewStringUTF("CAP_SYS_ADMIN is required to watch file systems with fanotify");
+    }
+    return nullptr;
+}
+
+JNIEXPORT jstring JNICALL
+Java_org_gradle_fileevents_internal_FanotifyFileEventFunctions_getUnavailableReason0(JNIEnv* env, jclass) {
+    return getUnavailableReason(env);
+}
+
+JNIEXPORT jobject JNICALL
+Java_org_gradle_fileevents_internal_FanotifyFileEventFunctions_startWatcher0(JNIEnv* env, jclass, jobject javaCallback) {
+    try {
+        return wrapServer(env, new FanotifyServer(env, javaCallback));
+    } catch (const exception& e) {
+        rethrowAsJavaException(env, e);
+        return NULL;
+    }
+}
+
+#endif
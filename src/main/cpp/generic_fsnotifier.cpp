@@ -1,16 +1,44 @@
+#include <cerrno>
 #include <sstream>
 
+#ifdef _WIN32
+#include <windows.h>
+#endif
+
 #include "generic_fsnotifier.h"
 
 InsufficientResourcesFileWatcherException::InsufficientResourcesFileWatcherException(const string& message)
     : FileWatcherException(message) {
 }
 
+void DurationHistogram::record(chrono::steady_clock::duration duration) {
+    uint64_t nanos = (uint64_t) max<int64_t>(chrono::duration_cast<chrono::nanoseconds>(duration).count(), 1);
+    int bucket = min(63 - __builtin_clzll(nanos), DURATION_HISTOGRAM_BUCKETS - 1);
+    buckets[bucket].fetch_add(1, memory_order_relaxed);
+}
+
+void DurationHistogram::copyTo(jlong* values) const {
+    for (int i = 0; i < DURATION_HISTOGRAM_BUCKETS; i++) {
+        values[i] = (jlong) buckets[i].load(memory_order_relaxed);
+    }
+}
+
+void WatcherStatistics::copyTo(jlong* values) const {
+    values[0] = (jlong) kernelEvents.load(memory_order_relaxed);
+    values[1] = (jlong) activeWatches.load(memory_order_relaxed);
+    readTimes.copyTo(values + 2);
+    decodeTimes.copyTo(values + 2 + DURATION_HISTOGRAM_BUCKETS);
+    upcallTimes.copyTo(values + 2 + 2 * DURATION_HISTOGRAM_BUCKETS);
+}
+
 AbstractServer::AbstractServer(JNIEnv* env, jobject watcherCallback)
     : JniSupport(env)
     , watcherCallback(env, watcherCallback) {
     jclass callbackClass = env->GetObjectClass(watcherCallback);
     this->watcherReportChangeEventMethod = env->GetMethodID(callbackClass, "reportChangeEvent", "(ILjava/lang/String;)V");
+    this->watcherReportChangeEventsMethod = env->GetMethodID(callbackClass, "reportChangeEvents", "([I[Ljava/lang/String;)V");
+    this->watcherReportRootMethod = env->GetMethodID(callbackClass, "reportRoot", "(ILjava/lang/String;)V");
+    this->watcherReportRelativeChangeEventsMethod = env->GetMethodID(callbackClass, "reportRelativeChangeEvents", "([I[I[Ljava/lang/String;)V");
     this->watcherReportUnknownEventMethod = env->GetMethodID(callbackClass, "reportUnknownEvent", "(Ljava/lang/String;)V");
     this->watcherReportOverflowMethod = env->GetMethodID(callbackClass, "reportOverflow", "(Ljava/lang/String;)V");
     this->watcherReportFailureMethod = env->GetMethodID(callbackClass, "reportFailure", "(Ljava/lang/Throwable;)V");
@@ -19,24 +47,221 @@ AbstractServer::AbstractServer(JNIEnv* env, jobject watcherCallback)
 AbstractServer::~AbstractServer() {
 }
 
+static RegistrationStatus toRegistrationStatus(int errorCode) {
+    switch (errorCode) {
+#ifdef _WIN32
+        case ERROR_FILE_NOT_FOUND:
+        case ERROR_PATH_NOT_FOUND:
+            return RegistrationStatus::MISSING;
+        case ERROR_DIRECTORY:
+            return RegistrationStatus::NOT_A_DIRECTORY;
+#else
+        case ENOENT:
+            return RegistrationStatus::MISSING;
+        case ENOTDIR:
+            return RegistrationStatus::NOT_A_DIRECTORY;
+        case ENOSPC:
+            return RegistrationStatus::LIMIT_REACHED;
+#endif
+        default:
+            return RegistrationStatus::FAILED;
+    }
+}
+
+RegistrationStatus AbstractServer::tryRegisterPath(const u16string& path, const function<bool()>& registerPath) {
+    try {
+        return registerPath()
+            ? RegistrationStatus::REGISTERED
+            : RegistrationStatus::ALREADY_WATCHED;
+    } catch (const InsufficientResourcesFileWatcherException& ex) {
+        logToJava(LogLevel::DEBUG_LEVEL, "Couldn't register %s: %s", utf16ToUtf8String(path).c_str(), ex.what());
+        return RegistrationStatus::LIMIT_REACHED;
+    } catch (const FileWatcherException& ex) {
+        logToJava(LogLevel::DEBUG_LEVEL, "Couldn't register %s: %s", utf16ToUtf8String(path).c_str(), ex.what());
+        return toRegistrationStatus(ex.errorCode);
+    }
+}
+
 void AbstractServer::reportChangeEvent(JNIEnv* env, ChangeType type, const u16string& path) {
+    flushChangeEvents(env);
     jstring javaPath = env->NewString((jchar*) path.c_str(), (jsize) path.length());
+    auto startTime = chrono::steady_clock::now();
     env->CallVoidMethod(watcherCallback.get(), watcherReportChangeEventMethod, type, javaPath);
+    recordUpcall(startTime);
     env->DeleteLocalRef(javaPath);
     getJavaExceptionAndPrintStacktrace(env);
 }
 
+void AbstractServer::queueChangeEvent(JNIEnv* env, ChangeType type, const u16string& path) {
+    if (!queuedChangeNames.empty()) {
+        // Keep the order with the relative events queued before
+        flushChangeEvents(env);
+    }
+    queuedChangeTypes.push_back(static_cast<jint>(type));
+    queuedChangePaths.push_back(path);
+    if (queuedChangePaths.size() >= MAX_CHANGE_EVENT_BATCH_SIZE) {
+        flushChangeEvents(env);
+    }
+}
+
+void AbstractServer::queueRelativeChangeEvent(JNIEnv* env, ChangeType type, int rootId, const u16string& rootPath, const char* name, size_t nameLength) {
+    if (!queuedChangePaths.empty()) {
+        // Keep the order with the absolute events queued before
+        flushChangeEvents(env);
+    }
+    if ((size_t) rootId >= announcedRoots.size() || !announcedRoots[rootId]) {
+        jstring javaRootPath = env->NewString((jchar*) rootPath.c_str(), (jsize) rootPath.length());
+        auto startTime = chrono::steady_clock::now();
+        env->CallVoidMethod(watcherCallback.get(), watcherReportRootMethod, (jint) rootId, javaRootPath);
+        recordUpcall(startTime);
+        env->DeleteLocalRef(javaRootPath);
+        getJavaExceptionAndPrintStacktrace(env);
+        if ((size_t) rootId >= announcedRoots.size()) {
+            announcedRoots.resize(rootId + 1, false);
+        }
+        announcedRoots[rootId] = true;
+    }
+    queuedChangeTypes.push_back(static_cast<jint>(type));
+    queuedChangeRootIds.push_back((jint) rootId);
+    queuedChangeNames.emplace_back(name, nameLength);
+    if (queuedChangeNames.size() >= MAX_CHANGE_EVENT_BATCH_SIZE) {
+        flushChangeEvents(env);
+    }
+}
+
+static bool isAscii(const string& name) {
+    for (char c : name) {
+        if ((unsigned char) c >= 0x80) {
+            return false;
+        }
+    }
+    return true;
+}
+
+void AbstractServer::flushRelativeChangeEvents(JNIEnv* env) {
+    jsize count = (jsize) queuedChangeNames.size();
+    // A failed allocation leaves an OutOfMemoryError pending, no more calls into the JVM are allowed then
+    jintArray javaTypes = env->NewIntArray(count);
+    jintArray javaRootIds = javaTypes == nullptr
+        ? nullptr
+        : env->NewIntArray(count);
+    jobjectArray javaNames = javaRootIds == nullptr
+        ? nullptr
+        : env->NewObjectArray(count, baseJniConstants->stringClass.get(), nullptr);
+    bool complete = javaNames != nullptr;
+    if (complete) {
+        env->SetIntArrayRegion(javaTypes, 0, count, queuedChangeTypes.data());
+        env->SetIntArrayRegion(javaRootIds, 0, count, queuedChangeRootIds.data());
+        for (jsize i = 0; i < count; i++) {
+            const string& name = queuedChangeNames[i];
+            jstring javaName;
+            if (isAscii(name)) {
+                // Modified UTF-8 is the same as ASCII, no need to convert
+                javaName = env->NewStringUTF(name.c_str());
+            } else {
+                utf8ToUtf16(name.data(), name.length(), nameBuffer);
+                javaName = env->NewString((jchar*) nameBuffer.data(), (jsize) nameBuffer.length());
+            }
+            if (javaName == nullptr) {
+                complete = false;
+                break;
+            }
+            env->SetObjectArrayElement(javaNames, i, javaName);
+            env->DeleteLocalRef(javaName);
+        }
+    }
+    queuedChangeTypes.clear();
+    queuedChangeRootIds.clear();
+    queuedChangeNames.clear();
+    if (complete) {
+        auto startTime = chrono::steady_clock::now();
+        env->CallVoidMethod(watcherCallback.get(), watcherReportRelativeChangeEventsMethod, javaTypes, javaRootIds, javaNames);
+        recordUpcall(startTime);
+    }
+    env->DeleteLocalRef(javaTypes);
+    env->DeleteLocalRef(javaRootIds);
+    env->DeleteLocalRef(javaNames);
+    getJavaExceptionAndPrintStacktrace(env);
+    if (!complete) {
+        reportDroppedChangeEvents(env, count);
+    }
+}
+
+void AbstractServer::flushChangeEvents(JNIEnv* env) {
+    if (!queuedChangeNames.empty()) {
+        flushRelativeChangeEvents(env);
+        return;
+    }
+    if (queuedChangePaths.empty()) {
+        return;
+    }
+    jsize count = (jsize) queuedChangePaths.size();
+    // A failed allocation leaves an OutOfMemoryError pending, no more calls into the JVM are allowed then
+    jintArray javaTypes = env->NewIntArray(count);
+    jobjectArray javaPaths = javaTypes == nullptr
+        ? nullptr
+        : env->NewObjectArray(count, baseJniConstants->stringClass.get(), nullptr);
+    bool complete = javaPaths != nullptr;
+    if (complete) {
+        env->SetIntArrayRegion(javaTypes, 0, count, queuedChangeTypes.data());
+        for (jsize i = 0; i < count; i++) {
+            const u16string& path = queuedChangePaths[i];
+            jstring javaPath = env->NewString((jchar*) path.c_str(), (jsize) path.length());
+            if (javaPath == nullptr) {
+                complete = false;
+                break;
+            }
+            env->SetObjectArrayElement(javaPaths, i, javaPath);
+            env->DeleteLocalRef(javaPath);
+        }
+    }
+    queuedChangeTypes.clear();
+    queuedChangePaths.clear();
+    if (complete) {
+        auto startTime = chrono::steady_clock::now();
+        env->CallVoidMethod(watcherCallback.get(), watcherReportChangeEventsMethod, javaTypes, javaPaths);
+        recordUpcall(startTime);
+    }
+    env->DeleteLocalRef(javaTypes);
+    env->DeleteLocalRef(javaPaths);
+    getJavaExceptionAndPrintStacktrace(env);
+    if (!complete) {
+        reportDroppedChangeEvents(env, count);
+    }
+}
+
+void AbstractServer::forgetRoot(int rootId) {
+    if ((size_t) rootId < announcedRoots.size()) {
+        announcedRoots[rootId] = false;
+    }
+}
+
+void AbstractServer::reportDroppedChangeEvents(JNIEnv* env, jsize count) {
+    // The events are lost, an overflow without a path tells the consumer to invalidate everything
+    logToJava(LogLevel::WARN_LEVEL, "Couldn't report %d change events to Java, reporting an overflow instead", (int) count);
+    auto startTime = chrono::steady_clock::now();
+    env->CallVoidMethod(watcherCallback.get(), watcherReportOverflowMethod, nullptr);
+    recordUpcall(startTime);
+    getJavaExceptionAndPrintStacktrace(env);
+}
+
 void AbstractServer::reportUnknownEvent(JNIEnv* env, const u16string& path) {
+    flushChangeEvents(env);
     jstring javaPath = env->NewString((jchar*) path.c_str(), (jsize) path.length());
+    auto startTime = chrono::steady_clock::now();
     env->CallVoidMethod(watcherCallback.get(), watcherReportUnknownEventMethod, javaPath);
+    recordUpcall(startTime);
     env->DeleteLocalRef(javaPath);
     getJavaExceptionAndPrintStacktrace(env);
 }
 
 void AbstractServer::reportOverflow(JNIEnv* env, const u16string& path) {
+    flushChangeEvents(env);
     logToJava(LogLevel::INFO_LEVEL, "Detected overflow for %s", utf16ToUtf8String(path).c_str());
     jstring javaPath = env->NewString((jchar*) path.c_str(), (jsize) path.length());
+    auto startTime = chrono::steady_clock::now();
     env->CallVoidMethod(watcherCallback.get(), watcherReportOverflowMethod, javaPath);
+    recordUpcall(startTime);
     env->DeleteLocalRef(javaPath);
     getJavaExceptionAndPrintStacktrace(env);
 }
@@ -46,16 +271,33 @@ void AbstractServer::reportFailure(JNIEnv* env, const exception& exception) {
 }
 
 void AbstractServer::reportFailure(JNIEnv* env, const char* message) {
+    flushChangeEvents(env);
     u16string utf16Message = utf8ToUtf16String(message);
     jstring javaMessage = env->NewString((jchar*) utf16Message.c_str(), (jsize) utf16Message.length());
     jmethodID constructor = env->GetMethodID(nativePlatformJniConstants->nativeExceptionClass.get(), "<init>", "(Ljava/lang/String;)V");
     jobject javaException = env->NewObject(nativePlatformJniConstants->nativeExceptionClass.get(), constructor, javaMessage);
+    auto startTime = chrono::steady_clock::now();
     env->CallVoidMethod(watcherCallback.get(), watcherReportFailureMethod, javaException);
+    recordUpcall(startTime);
     env->DeleteLocalRef(javaMessage);
     env->DeleteLocalRef(javaException);
     getJavaExceptionAndPrintStacktrace(env);
 }
 
+void AbstractServer::recordUpcall(chrono::steady_clock::time_point startTime) {
+    auto duration = chrono::steady_clock::now() - startTime;
+    upcallTime += duration;
+    statistics.upcallTimes.record(duration);
+}
+
+void AbstractServer::recordActiveWatches(size_t count) {
+    statistics.activeWatches.store(count, memory_order_relaxed);
+}
+
+void AbstractServer::getStatistics(jlong* values) const {
+    statistics.copyTo(values);
+}
+
 AbstractServer* getServer(JNIEnv* env, jobject javaServer) {
     AbstractServer* server = (AbstractServer*) env->GetDirectBufferAddress(javaServer);
     if (server == NULL) {
@@ -102,6 +344,11 @@ bool AbstractServer::awaitTermination(long timeoutInMillis) {
     return success;
 }
 
+JNIEXPORT void JNICALL
+Java_org_gradle_fileevents_internal_AbstractNativeFileEventFunctions_invalidateLogLevelCache0(JNIEnv*, jclass) {
+    logging->invalidateLogLevelCache();
+}
+
 JNIEXPORT void JNICALL
 Java_org_gradle_fileevents_internal_AbstractNativeFileEventFunctions_00024NativeFileWatcher_initializeRunLoop0(JNIEnv* env, jobject, jobject javaServer) {
     try {
@@ -136,6 +383,25 @@ Java_org_gradle_fileevents_internal_AbstractNativeFileEventFunctions_00024Native
     }
 }
 
+JNIEXPORT void JNICALL
+Java_org_gradle_fileevents_internal_AbstractNativeFileEventFunctions_00024NativeFileWatcher_tryStartWatching0(JNIEnv* env, jobject, jobject javaServer, jobjectArray javaPaths, jintArray javaStatuses) {
+    try {
+        AbstractServer* server = getServer(env, javaServer);
+        vector<u16string> paths;
+        javaToUtf16StringArray(env, javaPaths, paths);
+        vector<RegistrationStatus> statuses;
+        statuses.reserve(paths.size());
+        server->registerPaths(paths, statuses);
+        vector<jint> javaStatusValues(statuses.size());
+        for (size_t i = 0; i < statuses.size(); i++) {
+            javaStatusValues[i] = static_cast<jint>(statuses[i]);
+        }
+        env->SetIntArrayRegion(javaStatuses, 0, (jsize) javaStatusValues.size(), javaStatusValues.data());
+    } catch (const exception& e) {
+        rethrowAsJavaException(env, e);
+    }
+}
+
 JNIEXPORT jboolean JNICALL
 Java_org_gradle_fileevents_internal_AbstractNativeFileEventFunctions_00024NativeFileWatcher_stopWatching0(JNIEnv* env, jobject, jobject javaServer, jobjectArray javaPaths) {
     try {
@@ -174,6 +440,21 @@ Java_org_gradle_fileevents_internal_AbstractNativeFileEventFunctions_00024Native
     }
 }
 
+JNIEXPORT void JNICALL
+Java_org_gradle_fileevents_internal_AbstractNativeFileEventFunctions_00024NativeFileWatcher_getStatistics0(JNIEnv* env, jobject, jobject javaServer, jlongArray javaValues) {
+    try {
+        AbstractServer* server = getServer(env, javaServer);
+        if (env->GetArrayLength(javaValues) != WATCHER_STATISTICS_SIZE) {
+            throw FileWatcherException("Unexpected number of statistics values");
+        }
+        jlong values[WATCHER_STATISTICS_SIZE];
+        server->getStatistics(values);
+        env->SetLongArrayRegion(javaValues, 0, WATCHER_STATISTICS_SIZE, values);
+    } catch (const exception& e) {
+        rethrowAsJavaException(env, e);
+    }
+}
+
 NativePlatformJniConstants::NativePlatformJniConstants(JavaVM* jvm)
     : JniSupport(jvm)
     , nativeExceptionClass(getThreadEnv(), "net/rubygrapefruit/platform/NativeException") {
@@ -1,9 +1,9 @@
-#include <codecvt>
+#include <cstring>
 #include <iostream>
-#include <locale>
 #include <string>
 
 #include "jni_support.h"
+#include "transcoding.h"
 
 using namespace std;
 
@@ -92,7 +92,8 @@ void JniSupport::throwNativeExceptionWhenJavaExceptionOccurred(JNIEnv* env) {
 
 BaseJniConstants::BaseJniConstants(JavaVM* jvm)
     : JniSupport(jvm)
-    , classClass(getThreadEnv(), "java/lang/Class") {
+    , classClass(getThreadEnv(), "java/lang/Class")
+    , stringClass(getThreadEnv(), "java/lang/String") {
 }
 
 string javaToUtf8String(JNIEnv* env, jstring javaString) {
@@ -121,21 +122,14 @@ void javaToUtf16StringArray(JNIEnv* env, jobjectArray javaStrings, vector<u16str
     }
 }
 
-#if defined(__GNUC__) || defined(__clang__)
-#pragma GCC diagnostic push
-#pragma GCC diagnostic ignored "-Wdeprecated-declarations"
-#endif
-
 u16string utf8ToUtf16String(const char* string) {
-    wstring_convert<deletable_facet<codecvt<char16_t, char, mbstate_t>>, char16_t> conv16;
-    return conv16.from_bytes(string);
+    u16string result;
+    utf8ToUtf16(string, strlen(string), result);
+    return result;
 }
 
 string utf16ToUtf8String(const u16string& string) {
-    wstring_convert<deletable_facet<codecvt<char16_t, char, mbstate_t>>, char16_t> conv16;
-    return conv16.to_bytes(string);
+    std::string result;
+    utf16ToUtf8(string, result);
+    return result;
 }
-
-#if defined(__GNUC__) || defined(__clang__)
-#pragma GCC diagnostic pop
-#endif
@@ -1,15 +1,19 @@
 #ifdef __linux__
 
-#include <codecvt>
+#include <cstring>
+#include <dirent.h>
 #include <dlfcn.h>
-#include <locale>
 #include <string>
 #include <sys/ioctl.h>
 #include <unistd.h>
 
 #include "linux_fsnotifier.h"
 
-#define EVENT_BUFFER_SIZE (16 * 1024)
+// Shrink the adaptive buffer after this many drains in a row that used only a quarter of it
+#define IDLE_DRAINS_BEFORE_SHRINKING 64
+
+// Flush early when this many changes are waiting to be coalesced, so we don't grow indefinitely
+#define MAX_PENDING_CHANGES (64 * 1024)
 
 #define EVENT_MASK (IN_CREATE | IN_DELETE | IN_DELETE_SELF | IN_EXCL_UNLINK | IN_MODIFY | IN_MOVE_SELF | IN_MOVED_FROM | IN_MOVED_TO | IN_ONLYDIR)
 
@@ -21,32 +25,6 @@ InotifyWatchesLimitTooLowException::InotifyWatchesLimitTooLowException()
     : InsufficientResourcesFileWatcherException("Inotify watches limit too low") {
 }
 
-WatchPoint::WatchPoint(const u16string& path, shared_ptr<Inotify> inotify, int watchDescriptor, ino_t inode)
-    : status(WatchPointStatus::LISTENING)
-    , watchDescriptor(watchDescriptor)
-    , inotify(inotify)
-    , path(path)
-    , inode(inode) {
-}
-
-CancelResult WatchPoint::cancel() {
-    if (status == WatchPointStatus::CANCELLED) {
-        return CancelResult::ALREADY_CANCELLED;
-    }
-    status = WatchPointStatus::CANCELLED;
-    if (inotify_rm_watch(inotify->fd, watchDescriptor) != 0) {
-        switch (errno) {
-            case EINVAL:
-                logToJava(LogLevel::INFO_LEVEL, "Couldn't stop watching %s (probably because the directory was removed)", utf16ToUtf8String(path).c_str());
-                return CancelResult::NOT_CANCELLED;
-                break;
-            default:
-                throw FileWatcherException("Couldn't stop watching", path, errno);
-        }
-    }
-    return CancelResult::CANCELLED;
-}
-
 Inotify::Inotify()
     : fd(inotify_init1(IN_CLOEXEC | IN_NONBLOCK)) {
     if (fd == -1) {
@@ -61,69 +39,134 @@ Inotify::~Inotify() {
     close(fd);
 }
 
-ShutdownEvent::ShutdownEvent()
+WakeUpEvent::WakeUpEvent()
     : fd(eventfd(0, 0)) {
     if (fd == -1) {
         throw FileWatcherException("Couldn't register event source", errno);
     }
 }
-ShutdownEvent::~ShutdownEvent() {
+WakeUpEvent::~WakeUpEvent() {
     close(fd);
 }
 
-void ShutdownEvent::trigger() const {
+void WakeUpEvent::trigger() const {
     const uint64_t increment = 1;
     write(fd, &increment, sizeof(increment));
 }
 
-void ShutdownEvent::consume() const {
+void WakeUpEvent::consume() const {
     uint64_t counter;
     ssize_t bytesRead = read(fd, &counter, sizeof(counter));
     if (bytesRead == -1) {
-        throw FileWatcherException("Couldn't read from termination event notifier", errno);
+        throw FileWatcherException("Couldn't read from event notifier", errno);
+    }
+}
+
+CoalescingTimer::CoalescingTimer()
+    : fd(timerfd_create(CLOCK_MONOTONIC, TFD_CLOEXEC | TFD_NONBLOCK)) {
+    if (fd == -1) {
+        throw FileWatcherException("Couldn't register coalescing timer", errno);
+    }
+}
+
+CoalescingTimer::~CoalescingTimer() {
+    close(fd);
+}
+
+void CoalescingTimer::arm(long delayInMillis) const {
+    struct itimerspec spec = {};
+    spec.it_value.tv_sec = delayInMillis / 1000;
+    spec.it_value.tv_nsec = (delayInMillis % 1000) * 1000000L;
+    if (timerfd_settime(fd, 0, &spec, nullptr) == -1) {
+        throw FileWatcherException("Couldn't arm coalescing timer", errno);
     }
 }
 
-Server::Server(JNIEnv* env, jobject watcherCallback)
+void CoalescingTimer::consume() const {
+    uint64_t expirations;
+    ssize_t bytesRead = read(fd, &expirations, sizeof(expirations));
+    if (bytesRead == -1 && errno != EAGAIN) {
+        throw FileWatcherException("Couldn't read from coalescing timer", errno);
+    }
+}
+
+Server::Server(JNIEnv* env, jobject watcherCallback, jobject javaEventRing, jobject javaEventRingBuffer, bool recursive, long latencyInMillis, bool collapseRemovals, size_t bufferSize, size_t maxBufferSize, unique_ptr<EventCorpusWriter> corpusWriter)
     : AbstractServer(env, watcherCallback)
-    , inotify(new Inotify()) {
-    buffer.reserve(EVENT_BUFFER_SIZE);
+    , eventRing(javaEventRing == nullptr ? nullptr : new EventRing(env, javaEventRing, javaEventRingBuffer))
+    , kernel(new KernelResources())
+    , recursive(recursive)
+    , latencyInMillis(latencyInMillis)
+    , collapseRemovals(collapseRemovals)
+    , minBufferSize(bufferSize)
+    , maxBufferSize(maxBufferSize)
+    , corpusWriter(move(corpusWriter))
+    , replaying(false) {
+    buffer.resize(bufferSize);
     jclass listClass = env->FindClass("java/util/List");
     this->listAddMethod = env->GetMethodID(listClass, "add", "(Ljava/lang/Object;)Z");
+    jclass watcherClass = linuxJniConstants->linuxFileWatcherClass.get();
+    this->completeRegistrationMethod = env->GetStaticMethodID(watcherClass, "completeRegistration", "(Ljava/util/concurrent/CompletableFuture;[I)V");
+    this->completeUnregistrationMethod = env->GetStaticMethodID(watcherClass, "completeUnregistration", "(Ljava/util/concurrent/CompletableFuture;Z)V");
+    this->failCommandMethod = env->GetStaticMethodID(watcherClass, "failCommand", "(Ljava/util/concurrent/CompletableFuture;Ljava/lang/String;)V");
+}
+
+Server::Server(JNIEnv* env, jobject watcherCallback, const EventCorpusReader& reader)
+    : AbstractServer(env, watcherCallback)
+    , recursive(reader.hasFlag(EVENT_CORPUS_RECURSIVE))
+    , latencyInMillis((long) reader.getLatencyInMillis())
+    , collapseRemovals(reader.hasFlag(EVENT_CORPUS_COLLAPSE_REMOVALS))
+    , minBufferSize(0)
+    , maxBufferSize(0)
+    , replaying(true) {
 }
 
 void Server::initializeRunLoop() {
 }
 
 void Server::shutdownRunLoop() {
-    shutdownEvent.trigger();
+    kernel->shutdownEvent.trigger();
 }
 
 void Server::runLoop() {
     int forever = numeric_limits<int>::max();
 
-    while (!shouldTerminate) {
-        processQueues(forever);
+    try {
+        while (!shouldTerminate) {
+            processQueues(forever);
+        }
+    } catch (const exception&) {
+        closeCommands(getThreadEnv());
+        throw;
     }
+    closeCommands(getThreadEnv());
+
+    // Don't lose changes that are still waiting for the coalescing window to pass
+    JNIEnv* env = getThreadEnv();
+    flushPendingChanges(env);
+    publishEvents(env);
 
     // No need to clean up watch points, they will be cancelled
     // and closed when the Inotify destructs
 }
 
 void Server::processQueues(int timeout) {
-    struct pollfd fds[2];
-    fds[0].fd = shutdownEvent.fd;
-    fds[1].fd = inotify->fd;
+    struct pollfd fds[4];
+    fds[0].fd = kernel->shutdownEvent.fd;
+    fds[1].fd = kernel->inotify.fd;
+    fds[2].fd = kernel->coalescingTimer.fd;
+    fds[3].fd = kernel->commandEvent.fd;
     fds[0].events = POLLIN;
     fds[1].events = POLLIN;
+    fds[2].events = POLLIN;
+    fds[3].events = POLLIN;
 
-    int ret = poll(fds, 2, timeout);
+    int ret = poll(fds, 4, timeout);
     if (ret == -1) {
         throw FileWatcherException("Couldn't poll for events", errno);
     }
 
     if (IS_SET(fds[0].revents, POLLIN)) {
-        shutdownEvent.consume();
+        kernel->shutdownEvent.consume();
         // Ignore counter, we only care about the notification itself
         shouldTerminate = true;
         return;
@@ -136,49 +179,263 @@ void Server::processQueues(int timeout) {
             reportFailure(getThreadEnv(), ex);
         }
     }
+
+    if (IS_SET(fds[2].revents, POLLIN)) {
+        try {
+            kernel->coalescingTimer.consume();
+            handleCoalescingTimeout(getThreadEnv());
+        } catch (const exception& ex) {
+            reportFailure(getThreadEnv(), ex);
+        }
+    }
+
+    // Commands are only executed in between batches of events
+    if (IS_SET(fds[3].revents, POLLIN)) {
+        kernel->commandEvent.consume();
+        executeCommands(getThreadEnv());
+    }
+}
+
+bool Server::submitCommand(JNIEnv* env, bool registering, const vector<u16string>& paths, jobject future) {
+    unique_lock<mutex> lock(commandMutex);
+    if (commandsClosed) {
+        return false;
+    }
+    commands.push_back(Command { registering, paths, unique_ptr<JniGlobalRef<jobject>>(new JniGlobalRef<jobject>(env, future)) });
+    kernel->commandEvent.trigger();
+    return true;
+}
+
+void Server::executeCommands(JNIEnv* env) {
+    vector<Command> pendingCommands;
+    {
+        unique_lock<mutex> lock(commandMutex);
+        pendingCommands.swap(commands);
+    }
+    logToJava(LogLevel::DEBUG_LEVEL, "Executing %d commands", (int) pendingCommands.size());
+    for (auto& command : pendingCommands) {
+        try {
+            executeCommand(env, command);
+        } catch (const exception& ex) {
+            failCommand(env, command, ex.what());
+        }
+    }
+}
+
+void Server::executeCommand(JNIEnv* env, const Command& command) {
+    // Registering takes the mutation mutex by itself, the future is completed without holding it
+    if (command.registering) {
+        vector<RegistrationStatus> statuses;
+        statuses.reserve(command.paths.size());
+        registerPaths(command.paths, statuses);
+        vector<jint> statusValues(statuses.size());
+        for (size_t i = 0; i < statuses.size(); i++) {
+            statusValues[i] = static_cast<jint>(statuses[i]);
+        }
+        jintArray javaStatuses = env->NewIntArray((jsize) statusValues.size());
+        env->SetIntArrayRegion(javaStatuses, 0, (jsize) statusValues.size(), statusValues.data());
+        // Completing the future doesn't report events, so it isn't recorded as an upcall
+        env->CallStaticVoidMethod(linuxJniConstants->linuxFileWatcherClass.get(), completeRegistrationMethod, command.future->get(), javaStatuses);
+        env->DeleteLocalRef(javaStatuses);
+    } else {
+        bool success = unregisterPaths(command.paths);
+        env->CallStaticVoidMethod(linuxJniConstants->linuxFileWatcherClass.get(), completeUnregistrationMethod, command.future->get(), (jboolean) success);
+    }
+    getJavaExceptionAndPrintStacktrace(env);
+}
+
+void Server::closeCommands(JNIEnv* env) {
+    vector<Command> pendingCommands;
+    {
+        unique_lock<mutex> lock(commandMutex);
+        commandsClosed = true;
+        pendingCommands.swap(commands);
+    }
+    for (auto& command : pendingCommands) {
+        failCommand(env, command, "Watcher has been shut down");
+    }
+}
+
+void Server::failCommand(JNIEnv* env, const Command& command, const char* message) {
+    jstring javaMessage = env->NewStringUTF(message);
+    env->CallStaticVoidMethod(linuxJniConstants->linuxFileWatcherClass.get(), failCommandMethod, command.future->get(), javaMessage);
+    env->DeleteLocalRef(javaMessage);
+    getJavaExceptionAndPrintStacktrace(env);
 }
 
 void Server::handleEvents() {
-    unsigned int available;
-    ioctl(inotify->fd, FIONREAD, &available);
+    int available;
+    if (ioctl(kernel->inotify.fd, FIONREAD, &available) == -1) {
+        throw FileWatcherException("Couldn't query inotify backlog", errno);
+    }
+    adaptBufferSize((size_t) available);
 
+    // Drain the backlog we've seen, new events are picked up by the next poll
+    JNIEnv* env = getThreadEnv();
+    int reads = 0;
     while (available > 0) {
-        ssize_t bytesRead = read(inotify->fd, &buffer[0], buffer.capacity());
-
-        switch (bytesRead) {
-            case -1:
-                if (errno == EAGAIN) {
-                    // For a non-blocking read, we receive EAGAIN here if there is nothing to read.
-                    // This may happen when the inotify is already closed.
-                    return;
-                } else {
-                    throw FileWatcherException("Couldn't read from inotify", errno);
-                }
-                break;
-            case 0:
-                throw FileWatcherException("EOF reading from inotify", errno);
-                break;
-            default:
-                // Handle events
-                unique_lock<recursive_mutex> lock(mutationMutex);
-                JNIEnv* env = getThreadEnv();
-                logToJava(LogLevel::TRACE_LEVEL, "Processing %d bytes worth of events", bytesRead);
-                int index = 0;
-                int count = 0;
-                while (index < bytesRead) {
-                    const struct inotify_event* event = (struct inotify_event*) &buffer[index];
-                    handleEvent(env, event);
-                    index += sizeof(struct inotify_event) + event->len;
-                    count++;
-                }
-                logToJava(LogLevel::TRACE_LEVEL, "Processed %d events", count);
+        auto readStartTime = chrono::steady_clock::now();
+        ssize_t bytesRead = read(kernel->inotify.fd, buffer.data(), buffer.size());
+        statistics.readTimes.record(chrono::steady_clock::now() - readStartTime);
+
+        if (bytesRead == -1) {
+            if (errno == EAGAIN) {
+                // For a non-blocking read, we receive EAGAIN here if there is nothing to read.
+                // This may happen when the inotify is already closed.
                 break;
+            }
+            throw FileWatcherException("Couldn't read from inotify", errno);
+        }
+        if (bytesRead == 0) {
+            throw FileWatcherException("EOF reading from inotify", errno);
         }
-        available -= bytesRead;
+        handleEventBuffer(env, buffer.data(), (size_t) bytesRead);
+        available -= (int) bytesRead;
+        reads++;
+    }
+    finishDrain(env);
+    logToJava(LogLevel::TRACE_LEVEL, "Drained inotify backlog in %d reads", reads);
+}
+
+int Server::handleEventBuffer(JNIEnv* env, const uint8_t* events, size_t length) {
+    logToJava(LogLevel::TRACE_LEVEL, "Processing %d bytes worth of events", (int) length);
+    auto startTime = chrono::steady_clock::now();
+    auto upcallTimeBefore = getUpcallTime();
+    int count;
+    {
+        // Registering and unregistering paths only waits for the events to be decoded, not for them to be reported
+        unique_lock<recursive_mutex> lock(mutationMutex);
+        count = decodeEventBuffer(events, length);
     }
+    reportDecodedEvents(env);
+    statistics.kernelEvents.fetch_add((uint64_t) count, memory_order_relaxed);
+    statistics.decodeTimes.record(chrono::steady_clock::now() - startTime - (getUpcallTime() - upcallTimeBefore));
+    logToJava(LogLevel::TRACE_LEVEL, "Processed %d events", count);
+    return count;
 }
 
-void Server::handleEvent(JNIEnv* env, const inotify_event* event) {
+int Server::decodeEventBuffer(const uint8_t* events, size_t length) {
+    handledEvents = events;
+    recordedEventsLength = 0;
+    size_t index = 0;
+    int count = 0;
+    while (index < length) {
+        const struct inotify_event* event = (const struct inotify_event*) &events[index];
+        index += sizeof(struct inotify_event) + event->len;
+        handledEventsLength = index;
+        decodeEvent(event);
+        count++;
+    }
+    recordHandledEvents();
+    handledEvents = nullptr;
+    // Watching recursively adds and removes watches while handling events
+    finishWatchPointChanges();
+    return count;
+}
+
+void Server::recordHandledEvents() {
+    if (corpusWriter && handledEvents != nullptr && handledEventsLength > recordedEventsLength) {
+        corpusWriter->writeEvents(handledEvents + recordedEventsLength, handledEventsLength - recordedEventsLength);
+        recordedEventsLength = handledEventsLength;
+    }
+}
+
+void Server::finishDrain(JNIEnv* env) {
+    writeMarker(CorpusRecordType::DRAIN);
+    if (latencyInMillis == 0) {
+        // Changes are only held back for the current drain when collapsing removals
+        flushPendingChanges(env);
+    }
+    publishEvents(env);
+    recycleRootIds();
+}
+
+void Server::handleCoalescingTimeout(JNIEnv* env) {
+    writeMarker(CorpusRecordType::TIMEOUT);
+    flushPendingChanges(env);
+    publishEvents(env);
+    recycleRootIds();
+}
+
+void Server::writeMarker(CorpusRecordType type) {
+    if (corpusWriter) {
+        // Keep the order with the watches recorded when registering paths
+        unique_lock<recursive_mutex> lock(mutationMutex);
+        corpusWriter->writeMarker(type);
+    }
+}
+
+void Server::adaptBufferSize(size_t backlog) {
+    if (minBufferSize == maxBufferSize) {
+        return;
+    }
+    size_t size = buffer.size();
+    if (backlog > size && size < maxBufferSize) {
+        // Grow towards the backlog, so we can drain it with fewer reads
+        while (size < backlog && size < maxBufferSize) {
+            size *= 2;
+        }
+        size = min(size, maxBufferSize);
+        logToJava(LogLevel::DEBUG_LEVEL, "Growing inotify buffer to %d bytes for a backlog of %d bytes", (int) size, (int) backlog);
+        buffer.resize(size);
+        idleDrains = 0;
+    } else if (backlog <= size / 4 && size > minBufferSize) {
+        if (++idleDrains >= IDLE_DRAINS_BEFORE_SHRINKING) {
+            size = max(size / 2, minBufferSize);
+            logToJava(LogLevel::DEBUG_LEVEL, "Shrinking inotify buffer to %d bytes", (int) size);
+            buffer.resize(size);
+            buffer.shrink_to_fit();
+            idleDrains = 0;
+        }
+    } else {
+        idleDrains = 0;
+    }
+}
+
+const u16string& Server::resolvePath(const u16string& rootPath, const char* name, size_t nameLength) {
+    pathBuffer.assign(rootPath);
+    if (nameLength > 0) {
+        pathBuffer.push_back(u'/');
+        appendUtf8AsUtf16(name, nameLength, pathBuffer);
+    }
+    return pathBuffer;
+}
+
+const u16string& Server::watchPointPath(const WatchPoint& watchPoint, const char* name, size_t nameLength) {
+    watchPointPathBuffer.assign(*rootPaths[watchPoint.rootId]);
+    if (!watchPoint.isRoot()) {
+        watchPointPathBuffer.push_back(u'/');
+        appendUtf8AsUtf16(relativePaths.get(watchPoint.relativePathOffset), watchPoint.relativePathLength, watchPointPathBuffer);
+    }
+    if (nameLength > 0) {
+        watchPointPathBuffer.push_back(u'/');
+        appendUtf8AsUtf16(name, nameLength, watchPointPathBuffer);
+    }
+    return watchPointPathBuffer;
+}
+
+const string& Server::watchPointPathNarrow(const WatchPoint& watchPoint) {
+    utf16ToUtf8(*rootPaths[watchPoint.rootId], watchPointPathNarrowBuffer);
+    if (!watchPoint.isRoot()) {
+        watchPointPathNarrowBuffer.push_back('/');
+        watchPointPathNarrowBuffer.append(relativePaths.get(watchPoint.relativePathOffset), watchPoint.relativePathLength);
+    }
+    return watchPointPathNarrowBuffer;
+}
+
+bool Server::isWithin(const WatchPoint& watchPoint, const u16string& path) {
+    // Compare the root first, so that the relative path only needs to be decoded for candidates
+    const u16string& rootPath = *rootPaths[watchPoint.rootId];
+    size_t prefixLength = min(rootPath.length(), path.length());
+    if (rootPath.compare(0, prefixLength, path, 0, prefixLength) != 0) {
+        return false;
+    }
+    const u16string& watchPointPath = this->watchPointPath(watchPoint);
+    return watchPointPath.compare(0, path.length(), path) == 0
+        && (watchPointPath.length() == path.length() || watchPointPath[path.length()] == u'/');
+}
+
+void Server::decodeEvent(const inotify_event* event) {
     uint32_t mask = event->mask;
     const char* eventName = (event->len == 0)
         ? ""
@@ -190,64 +447,74 @@ void Server::handleEvent(JNIEnv* env, const inotify_event* event) {
 
     // Overflow received, handle gracefully
     if (IS_SET(mask, IN_Q_OVERFLOW)) {
-        for (auto it : watchPoints) {
-            auto path = it.first;
-            reportOverflow(env, path);
+        vector<int> rootIndexes;
+        for (size_t index = 0; index < watchPoints.size(); index++) {
+            const WatchPoint& watchPoint = watchPoints[index];
+            // Overflows for roots cover their descendants, too
+            if (watchPoint.status != WatchPointStatus::FREE && watchPoint.isRoot()) {
+                decodeOverflow(watchPoint);
+                rootIndexes.push_back((int) index);
+            }
+        }
+        // The lost events might have announced new subdirectories, watch the ones we have missed
+        // When replaying, the watches that resulted from the overflow come from the corpus
+        if (recursive && !replaying) {
+            for (int rootIndex : rootIndexes) {
+                try {
+                    watchDescendants(rootIndex, false, true);
+                } catch (const exception& ex) {
+                    decodeFailure(ex);
+                }
+            }
         }
         return;
     }
 
-    auto iWatchRoot = watchRoots.find(event->wd);
-    if (iWatchRoot == watchRoots.end()) {
-        auto iRecentlyUnregisteredWatchPoint = recentlyUnregisteredWatchRoots.find(event->wd);
-        if (iRecentlyUnregisteredWatchPoint == recentlyUnregisteredWatchRoots.end()) {
+    int index = watchPointsByDescriptor.find(event->wd);
+    if (index == OpenAddressingIndex::NOT_FOUND) {
+        if (recentlyUnregisteredWatchDescriptors.find(event->wd) == OpenAddressingIndex::NOT_FOUND) {
             logToJava(LogLevel::INFO_LEVEL, "Received event for unknown watch descriptor %d", event->wd);
         } else {
             // We've removed this via unregisterPath() not long ago
-            auto& path = iRecentlyUnregisteredWatchPoint->second;
             if (IS_SET(mask, IN_IGNORED)) {
-                logToJava(LogLevel::TRACE_LEVEL, "Finished watching recently unregistered watch point '%s' (wd = %d)",
-                    utf16ToUtf8String(path).c_str(), event->wd);
-                recentlyUnregisteredWatchRoots.erase(iRecentlyUnregisteredWatchPoint);
+                logToJava(LogLevel::TRACE_LEVEL, "Finished watching recently unregistered watch point (wd = %d)", event->wd);
+                recentlyUnregisteredWatchDescriptors.erase(event->wd, event->wd);
             } else {
-                logToJava(LogLevel::TRACE_LEVEL, "Ignoring incoming events for recently removed watch descriptor for '%s' (wd = %d)",
-                    utf16ToUtf8String(path).c_str(), event->wd);
+                logToJava(LogLevel::TRACE_LEVEL, "Ignoring incoming events for recently removed watch descriptor (wd = %d)", event->wd);
             }
         }
         return;
     }
 
-    auto path = iWatchRoot->second;
-    auto& watchPoint = watchPoints.at(path);
+    auto& watchPoint = watchPoints[index];
 
     if (IS_SET(mask, IN_IGNORED)) {
         // Finished with watch point
         logToJava(LogLevel::TRACE_LEVEL, "Finished watching still registered '%s' (wd = %d)",
-            utf16ToUtf8String(path).c_str(), event->wd);
-        watchRoots.erase(event->wd);
-        watchPoints.erase(path);
+            watchPointPathNarrow(watchPoint).c_str(), event->wd);
+        removeWatchPoint(index);
+        return;
+    }
+
+    if (!watchPoint.isRoot() && IS_SET(mask, IN_DELETE_SELF | IN_MOVE_SELF)) {
+        // The parent directory reports these already
         return;
     }
 
     if (watchPoint.status != WatchPointStatus::LISTENING) {
         logToJava(LogLevel::TRACE_LEVEL, "Ignoring incoming events for %s as watch-point is not listening (status = %d)",
-            utf16ToUtf8String(path).c_str(), watchPoint.status);
+            watchPointPathNarrow(watchPoint).c_str(), watchPoint.status);
         return;
     }
 
     if (shouldTerminate) {
         logToJava(LogLevel::TRACE_LEVEL, "Ignoring incoming events for %s because server is terminating (status = %d)",
-            utf16ToUtf8String(path).c_str(), watchPoint.status);
+            watchPointPathNarrow(watchPoint).c_str(), watchPoint.status);
         return;
     }
 
     ChangeType type;
-    const u16string name = utf8ToUtf16String(eventName);
-
-    if (!name.empty()) {
-        path.append(u"/");
-        path.append(name);
-    }
+    size_t nameLength = strlen(eventName);
 
     if (IS_SET(mask, IN_CREATE | IN_MOVED_TO)) {
         type = ChangeType::CREATED;
@@ -256,19 +523,263 @@ void Server::handleEvent(JNIEnv* env, const inotify_event* event) {
     } else if (IS_SET(mask, IN_MODIFY)) {
         type = ChangeType::MODIFIED;
     } else {
-        logToJava(LogLevel::WARN_LEVEL, "Unknown event 0x%x for %s", mask, utf16ToUtf8String(path).c_str());
-        reportUnknownEvent(env, path);
+        logToJava(LogLevel::WARN_LEVEL, "Unknown event 0x%x for %s%s%s", mask, watchPointPathNarrow(watchPoint).c_str(), nameLength == 0 ? "" : "/", eventName);
+        decodeUnknown(watchPoint, eventName, nameLength);
         return;
     }
 
-    reportChangeEvent(env, type, path);
+    decodeChange(type, watchPoint, eventName, nameLength);
+
+    if (recursive && IS_SET(mask, IN_ISDIR) && nameLength > 0) {
+        // When replaying, the watches and changes that resulted from the new directory come from the corpus
+        if (type == ChangeType::CREATED && !replaying) {
+            try {
+                int directoryIndex = addDescendantWatchPoint(index, watchPointPathNarrow(watchPoint), eventName);
+                if (directoryIndex != OpenAddressingIndex::NOT_FOUND) {
+                    // Report anything that has been added to the directory before we started watching it
+                    watchDescendants(directoryIndex, true, false);
+                }
+            } catch (const exception& ex) {
+                decodeFailure(ex);
+            }
+        } else if (IS_SET(mask, IN_MOVED_FROM)) {
+            // Stop watching the hierarchy that has been moved away
+            u16string directoryPath = watchPointPath(watchPoint, eventName, nameLength);
+            cancelDescendantWatchPoints([&](const WatchPoint& descendant) {
+                return isWithin(descendant, directoryPath);
+            });
+        }
+    }
+}
+
+void Server::decodeChange(ChangeType type, const WatchPoint& watchPoint, const char* name, size_t nameLength) {
+    addDecodedEvent(DecodedEventType::CHANGE, type, watchPoint, name, nameLength);
+}
+
+void Server::decodeUnknown(const WatchPoint& watchPoint, const char* name, size_t nameLength) {
+    addDecodedEvent(DecodedEventType::UNKNOWN, ChangeType::INVALIDATED, watchPoint, name, nameLength);
+}
+
+void Server::decodeOverflow(const WatchPoint& watchPoint) {
+    addDecodedEvent(DecodedEventType::OVERFLOW, ChangeType::INVALIDATED, watchPoint, "", 0);
+}
+
+void Server::decodeFailure(const exception& ex) {
+    size_t offset = decodedNames.size();
+    decodedNames.append(ex.what());
+    decodedEvents.push_back({ DecodedEventType::FAILURE, ChangeType::INVALIDATED, -1, nullptr, offset, decodedNames.size() - offset });
+}
+
+void Server::addDecodedEvent(DecodedEventType type, ChangeType changeType, const WatchPoint& watchPoint, const char* name, size_t nameLength) {
+    // Names reported to Java are relative to the root, so we don't need to build the absolute path
+    size_t offset = decodedNames.size();
+    decodedNames.append(relativePaths.get(watchPoint.relativePathOffset), watchPoint.relativePathLength);
+    if (nameLength > 0) {
+        if (!watchPoint.isRoot()) {
+            decodedNames.push_back('/');
+        }
+        decodedNames.append(name, nameLength);
+    }
+    decodedEvents.push_back({ type, changeType, watchPoint.rootId, rootPaths[watchPoint.rootId], offset, decodedNames.size() - offset });
+}
+
+void Server::reportDecodedEvents(JNIEnv* env) {
+    for (auto& event : decodedEvents) {
+        const char* name = decodedNames.data() + event.nameOffset;
+        switch (event.type) {
+            case DecodedEventType::CHANGE:
+                reportChange(env, event.changeType, event.rootId, event.rootPath, name, event.nameLength);
+                break;
+            case DecodedEventType::UNKNOWN:
+                reportUnknown(env, event.rootId, *event.rootPath, name, event.nameLength);
+                break;
+            case DecodedEventType::OVERFLOW:
+                reportOverflow(env, event.rootId, *event.rootPath);
+                break;
+            case DecodedEventType::FAILURE:
+                flushPendingChanges(env);
+                reportFailure(env, string(name, event.nameLength).c_str());
+                break;
+        }
+    }
+    decodedEvents.clear();
+    decodedNames.clear();
+}
+
+void Server::publishEvents(JNIEnv* env) {
+    if (eventRing) {
+        auto startTime = chrono::steady_clock::now();
+        eventRing->publish(env);
+        recordUpcall(startTime);
+    } else {
+        flushChangeEvents(env);
+    }
+}
+
+void Server::reportChange(JNIEnv* env, ChangeType type, int rootId, const shared_ptr<const u16string>& rootPath, const char* name, size_t nameLength) {
+    if (latencyInMillis > 0 || collapseRemovals) {
+        coalesceChange(type, rootId, rootPath, name, nameLength);
+        if (pendingChanges.size() >= MAX_PENDING_CHANGES) {
+            flushPendingChanges(env);
+        }
+    } else if (eventRing) {
+        eventRing->write(env, static_cast<RingRecordType>(type), rootId, *rootPath, name, nameLength);
+    } else {
+        queueRelativeChangeEvent(env, type, rootId, *rootPath, name, nameLength);
+    }
+}
+
+void Server::coalesceChange(ChangeType type, int rootId, const shared_ptr<const u16string>& rootPath, const char* name, size_t nameLength) {
+    const u16string& path = resolvePath(*rootPath, name, nameLength);
+    if (collapseRemovals && type == ChangeType::REMOVED) {
+        collapseDescendantChanges(path);
+    }
+    auto it = pendingChangeIndices.find(path);
+    if (it != pendingChangeIndices.end()) {
+        PendingChange& pending = pendingChanges[it->second];
+        if (pending.type == ChangeType::CREATED && type == ChangeType::MODIFIED) {
+            // Still a new entry as far as the consumer is concerned
+            return;
+        }
+        if (pending.type == ChangeType::CREATED && type == ChangeType::REMOVED) {
+            // The entry came and went within the window, the consumer never needs to know
+            pending.dropped = true;
+            pendingChangeIndices.erase(it);
+            return;
+        }
+        pending.type = type;
+        return;
+    }
+    if (pendingChanges.empty() && latencyInMillis > 0 && !replaying) {
+        kernel->coalescingTimer.arm(latencyInMillis);
+    }
+    pendingChangeIndices.emplace(path, pendingChanges.size());
+    pendingChanges.push_back({ type, false, rootId, rootPath, string(name, nameLength) });
+}
+
+void Server::collapseDescendantChanges(const u16string& path) {
+    // The removal of the directory covers everything that has been removed below it
+    u16string prefix = path + u"/";
+    int collapsed = 0;
+    auto it = pendingChangeIndices.lower_bound(prefix);
+    while (it != pendingChangeIndices.end() && it->first.compare(0, prefix.length(), prefix) == 0) {
+        pendingChanges[it->second].dropped = true;
+        it = pendingChangeIndices.erase(it);
+        collapsed++;
+    }
+    if (collapsed > 0) {
+        logToJava(LogLevel::TRACE_LEVEL, "Collapsed %d changes into removal of %s", collapsed, utf16ToUtf8String(path).c_str());
+    }
+}
+
+void Server::flushPendingChanges(JNIEnv* env) {
+    if (pendingChanges.empty()) {
+        return;
+    }
+    logToJava(LogLevel::TRACE_LEVEL, "Flushing %d coalesced changes", (int) pendingChanges.size());
+    for (auto& pending : pendingChanges) {
+        if (pending.dropped) {
+            continue;
+        }
+        if (eventRing) {
+            eventRing->write(env, static_cast<RingRecordType>(pending.type), pending.rootId, *pending.rootPath, pending.relativeName.c_str(), pending.relativeName.length());
+        } else {
+            queueRelativeChangeEvent(env, pending.type, pending.rootId, *pending.rootPath, pending.relativeName.c_str(), pending.relativeName.length());
+        }
+    }
+    pendingChanges.clear();
+    pendingChangeIndices.clear();
+    if (latencyInMillis > 0 && !replaying) {
+        // Disarm the timer in case we are flushing early
+        kernel->coalescingTimer.arm(0);
+    }
+}
+
+void Server::reportUnknown(JNIEnv* env, int rootId, const u16string& rootPath, const char* name, size_t nameLength) {
+    // Keep the order of events, the consumer needs to see the changes that happened before
+    flushPendingChanges(env);
+    if (eventRing) {
+        eventRing->write(env, RingRecordType::UNKNOWN, rootId, rootPath, name, nameLength);
+    } else {
+        reportUnknownEvent(env, resolvePath(rootPath, name, nameLength));
+    }
+}
+
+void Server::reportOverflow(JNIEnv* env, int rootId, const u16string& rootPath) {
+    flushPendingChanges(env);
+    if (eventRing) {
+        logToJava(LogLevel::INFO_LEVEL, "Detected overflow for %s", utf16ToUtf8String(rootPath).c_str());
+        eventRing->write(env, RingRecordType::OVERFLOW, rootId, rootPath, "", 0);
+    } else {
+        reportOverflow(env, rootPath);
+    }
+}
+
+int Server::getRootId(const u16string& path) {
+    uint32_t pathHash = hashPath(path);
+    int rootId = rootIdsByPath.find(pathHash, [this, &path](int candidate) {
+        return *rootPaths[candidate] == path;
+    });
+    if (rootId != OpenAddressingIndex::NOT_FOUND) {
+        return rootId;
+    }
+    if (freeRootIds.empty()) {
+        rootId = (int) rootPaths.size();
+        rootPaths.push_back(make_shared<const u16string>(path));
+        rootReferenceCounts.push_back(0);
+    } else {
+        rootId = freeRootIds.back();
+        freeRootIds.pop_back();
+        rootPaths[rootId] = make_shared<const u16string>(path);
+    }
+    rootIdsByPath.insert(pathHash, rootId);
+    return rootId;
+}
+
+void Server::releaseRootId(int rootId) {
+    rootIdsByPath.erase(hashPath(*rootPaths[rootId]), rootId);
+    // Events waiting to be reported keep the path alive by themselves
+    rootPaths[rootId].reset();
+    releasedRootIds.push_back(rootId);
+}
+
+void Server::recycleRootIds() {
+    if (!pendingChanges.empty()) {
+        // Held back changes still refer to the roots they have been decoded for
+        return;
+    }
+    unique_lock<recursive_mutex> lock(mutationMutex);
+    for (int rootId : releasedRootIds) {
+        forgetRoot(rootId);
+        if (eventRing) {
+            eventRing->forgetRoot(rootId);
+        }
+        freeRootIds.push_back(rootId);
+    }
+    releasedRootIds.clear();
 }
 
 void Server::registerPaths(const vector<u16string>& paths) {
+    unique_lock<recursive_mutex> lock(mutationMutex);
+    try {
+        for (auto& path : paths) {
+            registerPath(path);
+        }
+    } catch (const InotifyWatchesLimitTooLowException& ex) {
+        rethrowAsJavaException(getThreadEnv(), ex, linuxJniConstants->inotifyWatchesLimitTooLowExceptionClass.get());
+        throw JavaExceptionThrownException();
+    }
+    finishWatchPointChanges();
+}
+
+void Server::registerPaths(const vector<u16string>& paths, vector<RegistrationStatus>& statuses) {
     unique_lock<recursive_mutex> lock(mutationMutex);
     for (auto& path : paths) {
-        registerPath(path);
+        statuses.push_back(tryRegisterPath(path, [this, &path]() {
+            return registerPath(path);
+        }));
     }
+    finishWatchPointChanges();
 }
 
 bool Server::unregisterPaths(const vector<u16string>& paths) {
@@ -277,12 +788,19 @@ bool Server::unregisterPaths(const vector<u16string>& paths) {
     for (auto& path : paths) {
         success &= unregisterPath(path);
     }
+    finishWatchPointChanges();
     return success;
 }
 
-void Server::registerPath(const u16string& path) {
-    auto it = watchPoints.find(path);
-    if (it != watchPoints.end()) {
+bool Server::registerPath(const u16string& path) {
+    int existingIndex = findWatchPoint(path);
+    if (existingIndex != OpenAddressingIndex::NOT_FOUND) {
+        auto& existingWatchPoint = watchPoints[existingIndex];
+        if (existingWatchPoint.isRoot() && existingWatchPoint.status == WatchPointStatus::LISTENING) {
+            // Registered again, keep the existing watch until all registrations are gone
+            existingWatchPoint.referenceCount++;
+            return false;
+        }
         throw FileWatcherException("Already watching path", path);
     }
     string pathNarrow = utf16ToUtf8String(path);
@@ -291,66 +809,300 @@ void Server::registerPath(const u16string& path) {
         throw FileWatcherException("Couldn't add watch, stat failed", path, errno);
     }
 
-    int watchDescriptor = inotify_add_watch(inotify->fd, pathNarrow.c_str(), EVENT_MASK);
+    int watchDescriptor = inotify_add_watch(kernel->inotify.fd, pathNarrow.c_str(), EVENT_MASK);
     if (watchDescriptor == -1) {
         if (errno == ENOSPC) {
-            rethrowAsJavaException(getThreadEnv(), InotifyWatchesLimitTooLowException(), linuxJniConstants->inotifyWatchesLimitTooLowExceptionClass.get());
-            throw JavaExceptionThrownException();
+            throw InotifyWatchesLimitTooLowException();
         }
         throw FileWatcherException("Couldn't add watch, inotify_add_watch failed", path, errno);
     }
-    if (watchRoots.find(watchDescriptor) != watchRoots.end()) {
+    if (watchPointsByDescriptor.find(watchDescriptor) != OpenAddressingIndex::NOT_FOUND) {
         throw FileWatcherException("Already watching path", path);
     }
 
-    watchPoints.emplace(piecewise_construct,
-        forward_as_tuple(path),
-        forward_as_tuple(path, inotify, watchDescriptor, st.st_ino));
-    watchRoots[watchDescriptor] = path;
+    int index = addWatchPoint(path, pathNarrow, watchDescriptor, st.st_ino, getRootId(path), "");
+
+    if (recursive) {
+        try {
+            watchDescendants(index, false, false);
+        } catch (const InotifyWatchesLimitTooLowException&) {
+            // Don't leave a partially watched hierarchy behind
+            unregisterPath(path);
+            throw;
+        }
+    }
+    return true;
+}
+
+struct DirectoryCloser {
+    void operator()(DIR* dir) const {
+        closedir(dir);
+    }
+};
+
+void Server::watchDescendants(int directoryIndex, bool reportExisting, bool includeWatched) {
+    vector<int> pendingDirectories { directoryIndex };
+    while (!pendingDirectories.empty()) {
+        int parentIndex = pendingDirectories.back();
+        pendingDirectories.pop_back();
+        const WatchPoint* parent = &watchPoints[parentIndex];
+        string parentPathNarrow = watchPointPathNarrow(*parent);
+        unique_ptr<DIR, DirectoryCloser> dir(opendir(parentPathNarrow.c_str()));
+        if (!dir) {
+            // The directory has probably been removed since, we'll receive events about that
+            logToJava(LogLevel::DEBUG_LEVEL, "Couldn't list '%s' (errno = %d)", parentPathNarrow.c_str(), errno);
+            continue;
+        }
+        struct dirent* entry;
+        while ((entry = readdir(dir.get())) != nullptr) {
+            const char* name = entry->d_name;
+            if (strcmp(name, ".") == 0 || strcmp(name, "..") == 0) {
+                continue;
+            }
+            if (reportExisting) {
+                if (corpusWriter) {
+                    recordHandledEvents();
+                    corpusWriter->writeChange(parent->watchDescriptor, static_cast<int>(ChangeType::CREATED), name, strlen(name));
+                }
+                decodeChange(ChangeType::CREATED, *parent, name, strlen(name));
+            }
+            bool isDirectory = entry->d_type == DT_DIR;
+            if (entry->d_type == DT_UNKNOWN) {
+                struct stat st;
+                string childPathNarrow = parentPathNarrow + "/" + name;
+                isDirectory = lstat(childPathNarrow.c_str(), &st) == 0 && S_ISDIR(st.st_mode);
+            }
+            if (!isDirectory) {
+                continue;
+            }
+            int childIndex = addDescendantWatchPoint(parentIndex, parentPathNarrow, name);
+            if (childIndex == OpenAddressingIndex::NOT_FOUND && includeWatched) {
+                // Look for missing watches below the subdirectories of the same hierarchy we are already watching
+                childIndex = findWatchPoint(utf8ToUtf16String((parentPathNarrow + "/" + name).c_str()));
+                if (childIndex != OpenAddressingIndex::NOT_FOUND && watchPoints[childIndex].isRoot()) {
+                    childIndex = OpenAddressingIndex::NOT_FOUND;
+                }
+            }
+            if (childIndex != OpenAddressingIndex::NOT_FOUND) {
+                pendingDirectories.push_back(childIndex);
+            }
+        }
+    }
+}
+
+int Server::addDescendantWatchPoint(int parentIndex, const string& parentPathNarrow, const char* name) {
+    string pathNarrow = parentPathNarrow + "/" + name;
+    int watchDescriptor = inotify_add_watch(kernel->inotify.fd, pathNarrow.c_str(), EVENT_MASK | IN_DONT_FOLLOW);
+    if (watchDescriptor == -1) {
+        if (errno == ENOSPC) {
+            throw InotifyWatchesLimitTooLowException();
+        }
+        // The directory has probably been removed or replaced since, we'll receive events about that
+        logToJava(LogLevel::DEBUG_LEVEL, "Couldn't watch descendant '%s' (errno = %d)", pathNarrow.c_str(), errno);
+        return OpenAddressingIndex::NOT_FOUND;
+    }
+    if (watchPointsByDescriptor.find(watchDescriptor) != OpenAddressingIndex::NOT_FOUND) {
+        // Already watching the directory, e.g. because it has been registered as a root, too
+        return OpenAddressingIndex::NOT_FOUND;
+    }
+
+    const WatchPoint& parent = watchPoints[parentIndex];
+    string relativePath = parent.isRoot()
+        ? string(name)
+        : string(relativePaths.get(parent.relativePathOffset), parent.relativePathLength) + "/" + name;
+    return addWatchPoint(utf8ToUtf16String(pathNarrow.c_str()), pathNarrow, watchDescriptor, 0, parent.rootId, relativePath);
+}
+
+int Server::findWatchPoint(const u16string& path) {
+    return watchPointsByPath.find(hashPath(path), [this, &path](int candidate) {
+        const WatchPoint& watchPoint = watchPoints[candidate];
+        return watchPoint.isRoot()
+            ? *rootPaths[watchPoint.rootId] == path
+            : watchPointPath(watchPoint) == path;
+    });
+}
+
+int Server::addWatchPoint(const u16string& path, const string& pathNarrow, int watchDescriptor, ino_t inode, int rootId, const string& relativePath) {
+    // Refer to the root before removing any left over watch point, so the root ID isn't released in between
+    rootReferenceCounts[rootId]++;
+    if (corpusWriter) {
+        recordHandledEvents();
+        corpusWriter->writeWatch(watchDescriptor, rootId, pathNarrow, relativePath);
+    }
+    int existingIndex = findWatchPoint(path);
+    if (existingIndex != OpenAddressingIndex::NOT_FOUND) {
+        // Left over from a directory with the same name that has been removed since
+        addRecentlyUnregistered(watchPoints[existingIndex].watchDescriptor);
+        removeWatchPoint(existingIndex);
+    }
+    int previousIndex = watchPointsByDescriptor.find(watchDescriptor);
+    if (previousIndex != OpenAddressingIndex::NOT_FOUND) {
+        // Events for the watch descriptor go to the new watch point from now on
+        watchPointsByDescriptor.erase(watchDescriptor, previousIndex);
+    }
+
+    int index;
+    if (freeWatchPoints.empty()) {
+        index = (int) watchPoints.size();
+        watchPoints.emplace_back();
+    } else {
+        index = freeWatchPoints.back();
+        freeWatchPoints.pop_back();
+    }
+    uint32_t relativePathOffset = relativePath.empty()
+        ? 0
+        : relativePaths.add(relativePath.data(), relativePath.length());
+    uint32_t pathHash = hashPath(path);
+    watchPoints[index] = WatchPoint {
+        WatchPointStatus::LISTENING,
+        watchDescriptor,
+        rootId,
+        1,
+        relativePathOffset,
+        (uint32_t) relativePath.length(),
+        pathHash,
+        inode
+    };
+    watchPointsByDescriptor.insert(watchDescriptor, index);
+    watchPointsByPath.insert(pathHash, index);
+    watchPointCount++;
+    return index;
+}
+
+void Server::removeWatchPoint(int index) {
+    WatchPoint& watchPoint = watchPoints[index];
+    watchPointsByDescriptor.erase(watchPoint.watchDescriptor, index);
+    watchPointsByPath.erase(watchPoint.pathHash, index);
+    relativePaths.remove(watchPoint.relativePathLength);
+    if (--rootReferenceCounts[watchPoint.rootId] == 0) {
+        releaseRootId(watchPoint.rootId);
+    }
+    watchPoint.status = WatchPointStatus::FREE;
+    freeWatchPoints.push_back(index);
+    watchPointCount--;
+}
+
+void Server::addRecentlyUnregistered(int watchDescriptor) {
+    if (recentlyUnregisteredWatchDescriptors.find(watchDescriptor) == OpenAddressingIndex::NOT_FOUND) {
+        recentlyUnregisteredWatchDescriptors.insert(watchDescriptor, watchDescriptor);
+    }
+}
+
+CancelResult Server::cancelWatchPoint(WatchPoint& watchPoint) {
+    if (watchPoint.status == WatchPointStatus::CANCELLED) {
+        return CancelResult::ALREADY_CANCELLED;
+    }
+    watchPoint.status = WatchPointStatus::CANCELLED;
+    if (replaying) {
+        // Replayed from a corpus, there is no actual watch
+        return CancelResult::CANCELLED;
+    }
+    if (inotify_rm_watch(kernel->inotify.fd, watchPoint.watchDescriptor) != 0) {
+        switch (errno) {
+            case EINVAL:
+                logToJava(LogLevel::INFO_LEVEL, "Couldn't stop watching %s (probably because the directory was removed)", watchPointPathNarrow(watchPoint).c_str());
+                return CancelResult::NOT_CANCELLED;
+                break;
+            default:
+                throw FileWatcherException("Couldn't stop watching", watchPointPath(watchPoint), errno);
+        }
+    }
+    return CancelResult::CANCELLED;
+}
+
+void Server::cancelDescendantWatchPoints(const function<bool(const WatchPoint&)>& predicate) {
+    for (size_t index = 0; index < watchPoints.size(); index++) {
+        auto& watchPoint = watchPoints[index];
+        if (watchPoint.status == WatchPointStatus::FREE || watchPoint.isRoot() || !predicate(watchPoint)) {
+            continue;
+        }
+        int wd = watchPoint.watchDescriptor;
+        if (watchPoint.status == WatchPointStatus::LISTENING) {
+            watchPoint.status = WatchPointStatus::CANCELLED;
+            if (!replaying) {
+                // Ignore failures, the directory might have been removed already
+                inotify_rm_watch(kernel->inotify.fd, wd);
+            }
+        }
+        addRecentlyUnregistered(wd);
+        removeWatchPoint((int) index);
+    }
+}
+
+void Server::finishWatchPointChanges() {
+    if (watchPointCount == 0 && !watchPoints.empty()) {
+        // Give back the memory used for watching a large hierarchy
+        deque<WatchPoint>().swap(watchPoints);
+        vector<int>().swap(freeWatchPoints);
+        relativePaths.clear();
+    } else if (relativePaths.needsCompaction()) {
+        size_t sizeBefore = relativePaths.size();
+        relativePaths.beginCompaction();
+        for (auto& watchPoint : watchPoints) {
+            if (watchPoint.status != WatchPointStatus::FREE && !watchPoint.isRoot()) {
+                watchPoint.relativePathOffset = relativePaths.keep(watchPoint.relativePathOffset, watchPoint.relativePathLength);
+            }
+        }
+        relativePaths.endCompaction();
+        logToJava(LogLevel::DEBUG_LEVEL, "Compacted relative paths of watch points from %d to %d bytes", (int) sizeBefore, (int) relativePaths.size());
+    }
+    recordActiveWatches(watchPointCount);
 }
 
 bool Server::unregisterPath(const u16string& path) {
-    auto it = watchPoints.find(path);
-    if (it == watchPoints.end()) {
+    int index = findWatchPoint(path);
+    if (index == OpenAddressingIndex::NOT_FOUND) {
         logToJava(LogLevel::INFO_LEVEL, "Path is not watched: %s", utf16ToUtf8String(path).c_str());
         return false;
     }
-    auto& watchPoint = it->second;
+    auto& watchPoint = watchPoints[index];
+    if (!watchPoint.isRoot()) {
+        logToJava(LogLevel::INFO_LEVEL, "Path is not watched directly: %s", utf16ToUtf8String(path).c_str());
+        return false;
+    }
+    if (watchPoint.status == WatchPointStatus::LISTENING && --watchPoint.referenceCount > 0) {
+        // Still registered by someone else
+        return true;
+    }
     int wd = watchPoint.watchDescriptor;
-    CancelResult ret = watchPoint.cancel();
+    int rootId = watchPoint.rootId;
+    cancelDescendantWatchPoints([rootId](const WatchPoint& descendant) {
+        return descendant.rootId == rootId;
+    });
+    CancelResult ret = cancelWatchPoint(watchPoint);
     if (ret == CancelResult::ALREADY_CANCELLED) {
         return false;
     }
-    recentlyUnregisteredWatchRoots.emplace(wd, path);
-    watchRoots.erase(wd);
-    // We use the path instead erase(it) here because on Alpine Linux we've seen crashes happen here
-    // when inside a Docker container a host-mapped directory is watched. There is no good theory as
-    // of this writing why the problem occurs, but not using the iterator here fixes it.
-    watchPoints.erase(path);
+    if (corpusWriter) {
+        corpusWriter->writeUnwatch(wd, utf16ToUtf8String(path));
+    }
+    addRecentlyUnregistered(wd);
+    removeWatchPoint(index);
     return ret == CancelResult::CANCELLED;
 }
 
 void Server::stopWatchingMovedPaths(jobjectArray absolutePathsToCheck, jobject droppedPaths) {
+    unique_lock<recursive_mutex> lock(mutationMutex);
     JNIEnv* env = getThreadEnv();
     int count = env->GetArrayLength(absolutePathsToCheck);
     for (int i = 0; i < count; i++) {
         jstring jPathToCheck = reinterpret_cast<jstring>(env->GetObjectArrayElement(absolutePathsToCheck, i));
         auto pathToCheck = javaToUtf16String(env, jPathToCheck);
 
-        auto it = watchPoints.find(pathToCheck);
-        if (it == watchPoints.end()) {
+        int index = findWatchPoint(pathToCheck);
+        if (index == OpenAddressingIndex::NOT_FOUND || !watchPoints[index].isRoot()) {
             addToList(env, droppedPaths, jPathToCheck);
             env->DeleteLocalRef(jPathToCheck);
             continue;
         }
-        auto& watchPoint = it->second;
+        auto& watchPoint = watchPoints[index];
         if (watchPoint.status != WatchPointStatus::LISTENING) {
             addToList(env, droppedPaths, jPathToCheck);
             env->DeleteLocalRef(jPathToCheck);
             continue;
         }
 
-        string pathNarrow = utf16ToUtf8String(watchPoint.path);
+        string pathNarrow = watchPointPathNarrow(watchPoint);
         struct stat st;
         if (lstat(pathNarrow.c_str(), &st) == 0 && st.st_ino == watchPoint.inode) {
             env->DeleteLocalRef(jPathToCheck);
@@ -360,8 +1112,99 @@ void Server::stopWatchingMovedPaths(jobjectArray absolutePathsToCheck, jobject d
         addToList(env, droppedPaths, jPathToCheck);
         env->DeleteLocalRef(jPathToCheck);
 
-        watchPoint.cancel();
+        int rootId = watchPoint.rootId;
+        cancelDescendantWatchPoints([rootId](const WatchPoint& descendant) {
+            return descendant.rootId == rootId;
+        });
+        cancelWatchPoint(watchPoint);
+        if (corpusWriter) {
+            // No further events are handled for the path, same as when it is unregistered
+            corpusWriter->writeUnwatch(watchPoint.watchDescriptor, pathNarrow);
+        }
+    }
+}
+
+// Only the kernel is trusted to produce whole events, a corpus has to be checked before decoding it
+static void checkRecordedEvents(const vector<uint8_t>& events) {
+    size_t length = events.size();
+    size_t index = 0;
+    while (index < length) {
+        if (length - index < sizeof(struct inotify_event)) {
+            throw FileWatcherException("Corrupt event corpus");
+        }
+        const struct inotify_event* event = (const struct inotify_event*) &events[index];
+        index += sizeof(struct inotify_event);
+        if (length - index < event->len || (event->len > 0 && event->name[event->len - 1] != '\0')) {
+            throw FileWatcherException("Corrupt event corpus");
+        }
+        index += event->len;
+    }
+}
+
+long Server::replay(JNIEnv* env, EventCorpusReader& reader) {
+    if (!replaying) {
+        throw FileWatcherException("Server has not been created for replaying");
+    }
+    unique_lock<recursive_mutex> lock(mutationMutex);
+    long eventCount = 0;
+    CorpusRecord record;
+    while (reader.next(record)) {
+        switch (record.type) {
+            case CorpusRecordType::WATCH:
+                replayWatch(record);
+                break;
+            case CorpusRecordType::UNWATCH:
+                unregisterPath(utf8ToUtf16String((const char*) record.payload.data()));
+                break;
+            case CorpusRecordType::EVENTS:
+                checkRecordedEvents(record.payload);
+                eventCount += handleEventBuffer(env, record.payload.data(), record.payload.size());
+                break;
+            case CorpusRecordType::CHANGE: {
+                int index = watchPointsByDescriptor.find(record.watchDescriptor);
+                if (index != OpenAddressingIndex::NOT_FOUND) {
+                    const char* name = (const char*) record.payload.data();
+                    decodeChange(static_cast<ChangeType>(record.value), watchPoints[index], name, strlen(name));
+                    reportDecodedEvents(env);
+                }
+                break;
+            }
+            case CorpusRecordType::DRAIN:
+                finishDrain(env);
+                break;
+            case CorpusRecordType::TIMEOUT:
+                handleCoalescingTimeout(env);
+                break;
+            default:
+                throw FileWatcherException("Unknown event corpus record " + to_string(static_cast<uint32_t>(record.type)));
+        }
+    }
+    flushPendingChanges(env);
+    publishEvents(env);
+    return eventCount;
+}
+
+void Server::replayWatch(const CorpusRecord& record) {
+    const char* pathNarrow = (const char*) record.payload.data();
+    size_t pathLength = strlen(pathNarrow);
+    if (pathLength + 1 >= record.payload.size()) {
+        throw FileWatcherException("Corrupt event corpus watch record");
+    }
+    string relativePath(pathNarrow + pathLength + 1);
+    u16string path = utf8ToUtf16String(pathNarrow);
+    // Root IDs are reused when roots are unregistered, maybe at different points than when recording
+    int rootId;
+    if (relativePath.empty()) {
+        rootId = getRootId(path);
+        replayedRootIds[record.value] = rootId;
+    } else {
+        auto it = replayedRootIds.find(record.value);
+        if (it == replayedRootIds.end() || !rootPaths[it->second]) {
+            throw FileWatcherException("Corrupt event corpus watch record");
+        }
+        rootId = it->second;
     }
+    addWatchPoint(path, pathNarrow, record.watchDescriptor, 0, rootId, relativePath);
 }
 
 void Server::addToList(JNIEnv* env, jobject jList, jstring jString) {
@@ -370,12 +1213,48 @@ void Server::addToList(JNIEnv* env, jobject jList, jstring jString) {
 }
 
 JNIEXPORT jobject JNICALL
-Java_org_gradle_fileevents_internal_LinuxFileEventFunctions_startWatcher0(JNIEnv* env, jclass, jobject javaCallback) {
+Java_org_gradle_fileevents_internal_LinuxFileEventFunctions_startWatcher0(JNIEnv* env, jclass, jobject javaCallback, jobject javaEventRing, jobject javaEventRingBuffer, jboolean recursive, jlong latencyInMillis, jboolean collapseRemovals, jint bufferSize, jint maxBufferSize, jstring javaCorpusPath) {
     try {
-        return wrapServer(env, new Server(env, javaCallback));
+        unique_ptr<EventCorpusWriter> corpusWriter;
+        if (javaCorpusPath != nullptr) {
+            uint32_t flags = (recursive ? EVENT_CORPUS_RECURSIVE : 0) | (collapseRemovals ? EVENT_CORPUS_COLLAPSE_REMOVALS : 0);
+            corpusWriter.reset(new EventCorpusWriter(javaToUtf8String(env, javaCorpusPath), flags, (uint32_t) latencyInMillis));
+        }
+        return wrapServer(env, new Server(env, javaCallback, javaEventRing, javaEventRingBuffer, recursive, (long) latencyInMillis, collapseRemovals, (size_t) bufferSize, (size_t) maxBufferSize, move(corpusWriter)));
     } catch (const InotifyInstanceLimitTooLowException& e) {
         rethrowAsJavaException(env, e, linuxJniConstants->inotifyInstanceLimitTooLowExceptionClass.get());
         return NULL;
+    } catch (const exception& e) {
+        rethrowAsJavaException(env, e);
+        return NULL;
+    }
+}
+
+JNIEXPORT jlong JNICALL
+Java_org_gradle_fileevents_internal_LinuxFileEventFunctions_replayEvents0(JNIEnv* env, jclass, jobject javaCallback, jstring javaCorpusPath) {
+    try {
+        EventCorpusReader reader(javaToUtf8String(env, javaCorpusPath));
+        Server server(env, javaCallback, reader);
+        return (jlong) server.replay(env, reader);
+    } catch (const JavaExceptionThrownException&) {
+        // Ignore, the Java exception has already been thrown.
+        return 0;
+    } catch (const exception& e) {
+        rethrowAsJavaException(env, e);
+        return 0;
+    }
+}
+
+JNIEXPORT jboolean JNICALL
+Java_org_gradle_fileevents_internal_LinuxFileEventFunctions_00024LinuxFileWatcher_submitCommand0(JNIEnv* env, jobject, jobject javaServer, jobject javaFuture, jboolean registering, jobjectArray javaPaths) {
+    try {
+        Server* server = (Server*) getServer(env, javaServer);
+        vector<u16string> paths;
+        javaToUtf16StringArray(env, javaPaths, paths);
+        return server->submitCommand(env, registering, paths, javaFuture);
+    } catch (const exception& e) {
+        rethrowAsJavaException(env, e);
+        return false;
     }
 }
 
@@ -394,6 +1273,7 @@ Java_org_gradle_fileevents_internal_LinuxFileEventFunctions_00024LinuxFileWatche
 LinuxJniConstants::LinuxJniConstants(JavaVM* jvm)
     : JniSupport(jvm)
     , inotifyWatchesLimitTooLowExceptionClass(getThreadEnv(), "org/gradle/fileevents/internal/InotifyWatchesLimitTooLowException")
-    , inotifyInstanceLimitTooLowExceptionClass(getThreadEnv(), "org/gradle/fileevents/internal/InotifyInstanceLimitTooLowException") {
+    , inotifyInstanceLimitTooLowExceptionClass(getThreadEnv(), "org/gradle/fileevents/internal/InotifyInstanceLimitTooLowException")
+    , linuxFileWatcherClass(getThreadEnv(), "org/gradle/fileevents/internal/LinuxFileEventFunctions$LinuxFileWatcher") {
 }
 #endif
@@ -1,11 +1,49 @@
+#include <chrono>
+#include <climits>
 #include <iostream>
 
 #include "logging.h"
 
+#define LOG_LEVEL_NEVER_CHECKED (LLONG_MIN / 2)
+
+static long long currentTimeInMillis() {
+    return chrono::duration_cast<chrono::milliseconds>(chrono::steady_clock::now().time_since_epoch()).count();
+}
+
 Logging::Logging(JavaVM* jvm)
     : JniSupport(jvm)
     , clsLogger(getThreadEnv(), "org/gradle/fileevents/internal/NativeLogger")
-    , logMethod(getThreadEnv()->GetStaticMethodID(clsLogger.get(), "log", "(ILjava/lang/String;)V")) {
+    , logMethod(getThreadEnv()->GetStaticMethodID(clsLogger.get(), "log", "(ILjava/lang/String;)V"))
+    , getLevelMethod(getThreadEnv()->GetStaticMethodID(clsLogger.get(), "getLogLevel", "()I"))
+    , minimumLogLevel(static_cast<int>(LogLevel::TRACE_LEVEL))
+    , lastLevelCheck(LOG_LEVEL_NEVER_CHECKED) {
+}
+
+bool Logging::enabled(LogLevel level) {
+    long long now = currentTimeInMillis();
+    if (now - lastLevelCheck.load(memory_order_relaxed) >= LOG_LEVEL_CHECK_INTERVAL_IN_MS) {
+        refreshLogLevel(now);
+    }
+    return static_cast<int>(level) >= minimumLogLevel.load(memory_order_relaxed);
+}
+
+void Logging::invalidateLogLevelCache() {
+    lastLevelCheck.store(LOG_LEVEL_NEVER_CHECKED, memory_order_relaxed);
+}
+
+void Logging::refreshLogLevel(long long now) {
+    JNIEnv* env = getThreadEnv();
+    // We cannot call into Java while an exception is pending; keep using the cached level
+    if (env->ExceptionCheck()) {
+        return;
+    }
+    jint level = env->CallStaticIntMethod(clsLogger.get(), getLevelMethod);
+    if (env->ExceptionCheck()) {
+        getJavaExceptionAndPrintStacktrace(env);
+        return;
+    }
+    minimumLogLevel.store(level, memory_order_relaxed);
+    lastLevelCheck.store(now, memory_order_relaxed);
 }
 
 void Logging::send(LogLevel level, const char* fmt, ...) {
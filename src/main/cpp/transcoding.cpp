@@ -0,0 +1,131 @@
+#include <cstdint>
+#include <cstring>
+
+#include "transcoding.h"
+
+#define REPLACEMENT_CHARACTER 0xFFFD
+
+// Returns the length of the ASCII prefix of the given bytes, checking a word at a time
+static size_t asciiPrefixLength(const unsigned char* bytes, size_t length) {
+    size_t i = 0;
+    for (; i + sizeof(uint64_t) <= length; i += sizeof(uint64_t)) {
+        uint64_t word;
+        memcpy(&word, bytes + i, sizeof(word));
+        if ((word & 0x8080808080808080ULL) != 0) {
+            break;
+        }
+    }
+    while (i < length && bytes[i] < 0x80) {
+        i++;
+    }
+    return i;
+}
+
+static inline bool isContinuation(unsigned char byte) {
+    return (byte & 0xC0) == 0x80;
+}
+
+// Decodes the multi-byte sequence starting at bytes[i], and advances i past it
+// Invalid sequences decode to the replacement character, consuming only the lead byte
+static char32_t decodeSequence(const unsigned char* bytes, size_t length, size_t& i) {
+    unsigned char lead = bytes[i];
+    size_t continuationBytes;
+    char32_t codePoint;
+    char32_t minimum;
+    if (lead >= 0xC2 && lead <= 0xDF) {
+        continuationBytes = 1;
+        codePoint = lead & 0x1F;
+        minimum = 0x80;
+    } else if (lead >= 0xE0 && lead <= 0xEF) {
+        continuationBytes = 2;
+        codePoint = lead & 0x0F;
+        minimum = 0x800;
+    } else if (lead >= 0xF0 && lead <= 0xF4) {
+        continuationBytes = 3;
+        codePoint = lead & 0x07;
+        minimum = 0x10000;
+    } else {
+        i++;
+        return REPLACEMENT_CHARACTER;
+    }
+    if (continuationBytes >= length - i) {
+        i++;
+        return REPLACEMENT_CHARACTER;
+    }
+    for (size_t j = 1; j <= continuationBytes; j++) {
+        unsigned char byte = bytes[i + j];
+        if (!isContinuation(byte)) {
+            i++;
+            return REPLACEMENT_CHARACTER;
+        }
+        codePoint = (codePoint << 6) | (byte & 0x3F);
+    }
+    if (codePoint < minimum || codePoint > 0x10FFFF || (codePoint >= 0xD800 && codePoint <= 0xDFFF)) {
+        i++;
+        return REPLACEMENT_CHARACTER;
+    }
+    i += continuationBytes + 1;
+    return codePoint;
+}
+
+void appendUtf8AsUtf16(const char* utf8, size_t length, u16string& utf16) {
+    const unsigned char* bytes = reinterpret_cast<const unsigned char*>(utf8);
+    size_t start = utf16.length();
+    // UTF-16 never needs more code units than UTF-8 needs bytes
+    utf16.resize(start + length);
+    char16_t* out = &utf16[start];
+    size_t i = 0;
+    while (i < length) {
+        size_t asciiLength = asciiPrefixLength(bytes + i, length - i);
+        for (size_t end = i + asciiLength; i < end; i++) {
+            *out++ = bytes[i];
+        }
+        if (i == length) {
+            break;
+        }
+        char32_t codePoint = decodeSequence(bytes, length, i);
+        if (codePoint >= 0x10000) {
+            codePoint -= 0x10000;
+            *out++ = static_cast<char16_t>(0xD800 + (codePoint >> 10));
+            *out++ = static_cast<char16_t>(0xDC00 + (codePoint & 0x3FF));
+        } else {
+            *out++ = static_cast<char16_t>(codePoint);
+        }
+    }
+    utf16.resize(out - utf16.data());
+}
+
+void appendUtf16AsUtf8(const char16_t* utf16, size_t length, string& utf8) {
+    size_t start = utf8.length();
+    // At most three bytes per code unit, surrogate pairs take four bytes for two units
+    utf8.resize(start + length * 3);
+    char* out = &utf8[start];
+    size_t i = 0;
+    while (i < length) {
+        char32_t unit = utf16[i++];
+        if (unit < 0x80) {
+            *out++ = static_cast<char>(unit);
+            continue;
+        }
+        char32_t codePoint = unit;
+        if (unit >= 0xD800 && unit <= 0xDBFF && i < length && utf16[i] >= 0xDC00 && utf16[i] <= 0xDFFF) {
+            codePoint = 0x10000 + ((unit - 0xD800) << 10) + (utf16[i++] - 0xDC00);
+        } else if (unit >= 0xD800 && unit <= 0xDFFF) {
+            codePoint = REPLACEMENT_CHARACTER;
+        }
+        if (codePoint < 0x800) {
+            *out++ = static_cast<char>(0xC0 | (codePoint >> 6));
+            *out++ = static_cast<char>(0x80 | (codePoint & 0x3F));
+        } else if (codePoint < 0x10000) {
+            *out++ = static_cast<char>(0xE0 | (codePoint >> 12));
+            *out++ = static_cast<char>(0x80 | ((codePoint >> 6) & 0x3F));
+            *out++ = static_cast<char>(0x80 | (codePoint & 0x3F));
+        } else {
+            *out++ = static_cast<char>(0xF0 | (codePoint >> 18));
+            *out++ = static_cast<char>(0x80 | ((codePoint >> 12) & 0x3F));
+            *out++ = static_cast<char>(0x80 | ((codePoint >> 6) & 0x3F));
+            *out++ = static_cast<char>(0x80 | (codePoint & 0x3F));
+        }
+    }
+    utf8.resize(out - utf8.data());
+}
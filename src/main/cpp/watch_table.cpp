@@ -0,0 +1,115 @@
+#include <limits>
+#include <stdexcept>
+
+#include "watch_table.h"
+
+#define MIN_INDEX_CAPACITY 16
+// Below this, the garbage in a path arena isn't worth compacting
+#define MIN_ARENA_GARBAGE (64 * 1024)
+
+uint32_t hashPath(const char16_t* path, size_t length) {
+    uint32_t hash = 2166136261u;
+    for (size_t i = 0; i < length; i++) {
+        hash = (hash ^ path[i]) * 16777619u;
+    }
+    return hash;
+}
+
+void OpenAddressingIndex::insert(uint32_t key, int value) {
+    if ((used + 1) * 4 > slots.size() * 3) {
+        rehash(count + 1);
+    }
+    for (size_t i = slotOf(key);; i = nextSlot(i)) {
+        Slot& slot = slots[i];
+        if (slot.value < 0) {
+            if (slot.value == EMPTY) {
+                used++;
+            }
+            slot = { key, value };
+            count++;
+            return;
+        }
+    }
+}
+
+bool OpenAddressingIndex::erase(uint32_t key, int value) {
+    if (slots.empty()) {
+        return false;
+    }
+    for (size_t i = slotOf(key);; i = nextSlot(i)) {
+        Slot& slot = slots[i];
+        if (slot.value == EMPTY) {
+            return false;
+        }
+        if (slot.key == key && slot.value == value) {
+            slot.value = DELETED;
+            count--;
+            if (count == 0) {
+                vector<Slot>().swap(slots);
+                shift = 32;
+                used = 0;
+            } else if (slots.size() > MIN_INDEX_CAPACITY && count * 8 < slots.size()) {
+                rehash(count);
+            }
+            return true;
+        }
+    }
+}
+
+void OpenAddressingIndex::rehash(size_t entries) {
+    size_t capacity = MIN_INDEX_CAPACITY;
+    int bits = 4;
+    while (capacity < entries * 2) {
+        capacity *= 2;
+        bits++;
+    }
+    vector<Slot> oldSlots(capacity, Slot { 0, EMPTY });
+    oldSlots.swap(slots);
+    shift = 32 - bits;
+    used = count;
+    for (auto& oldSlot : oldSlots) {
+        if (oldSlot.value < 0) {
+            continue;
+        }
+        size_t i = slotOf(oldSlot.key);
+        while (slots[i].value != EMPTY) {
+            i = nextSlot(i);
+        }
+        slots[i] = oldSlot;
+    }
+}
+
+uint32_t PathArena::add(const char* path, size_t length) {
+    if (storage.size() + length > numeric_limits<uint32_t>::max()) {
+        throw overflow_error("Too many paths to store");
+    }
+    uint32_t offset = (uint32_t) storage.size();
+    storage.append(path, length);
+    return offset;
+}
+
+bool PathArena::needsCompaction() const {
+    return garbage > MIN_ARENA_GARBAGE && garbage * 2 > storage.size();
+}
+
+void PathArena::beginCompaction() {
+    compacted.clear();
+    compacted.reserve(storage.size() - garbage);
+}
+
+uint32_t PathArena::keep(uint32_t offset, size_t length) {
+    uint32_t newOffset = (uint32_t) compacted.size();
+    compacted.append(storage, offset, length);
+    return newOffset;
+}
+
+void PathArena::endCompaction() {
+    storage.swap(compacted);
+    string().swap(compacted);
+    garbage = 0;
+}
+
+void PathArena::clear() {
+    string().swap(storage);
+    garbage = 0;
+}
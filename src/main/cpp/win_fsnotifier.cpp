@@ -132,7 +132,7 @@ WatchPoint::WatchPoint(Server* server, size_t eventBufferSize, const wstring& pa
         case ListenResult::SUCCESS:
             break;
         case ListenResult::DELETED:
-            throw FileWatcherException("Couldn't add watch, path is not a directory", wideToUtf16String(path));
+            throw FileWatcherException("Couldn't add watch, path is not a directory", wideToUtf16String(path), ERROR_DIRECTORY);
     }
 }
 
@@ -281,15 +281,22 @@ void Server::handleEvents(WatchPoint* watchPoint, DWORD errorCode, const vector<
             // We'll handle this as a simple overflow and report it as such.
             reportOverflow(env, wideToUtf16String(path));
         } else {
+            auto startTime = chrono::steady_clock::now();
+            auto upcallTimeBefore = getUpcallTime();
             int index = 0;
+            uint64_t count = 0;
             for (;;) {
                 FILE_NOTIFY_EXTENDED_INFORMATION* current = (FILE_NOTIFY_EXTENDED_INFORMATION*) &eventBuffer[index];
                 handleEvent(env, path, current);
+                count++;
                 if (current->NextEntryOffset == 0) {
                     break;
                 }
                 index += current->NextEntryOffset;
             }
+            flushChangeEvents(env);
+            statistics.kernelEvents.fetch_add(count, memory_order_relaxed);
+            statistics.decodeTimes.record(chrono::steady_clock::now() - startTime - (getUpcallTime() - upcallTimeBefore));
         }
 
         switch (watchPoint->listen()) {
@@ -332,7 +339,7 @@ void Server::handleEvent(JNIEnv* env, const wstring& watchedPathW, FILE_NOTIFY_E
         return;
     }
 
-    reportChangeEvent(env, type, wideToUtf16String(changedPathW));
+    queueChangeEvent(env, type, wideToUtf16String(changedPathW));
 }
 
 void Server::reportWatchPointDeleted(WatchPoint* watchPoint) {
@@ -426,41 +433,65 @@ void Server::registerPaths(const vector<u16string>& paths) {
         for (auto& path : paths) {
             registerPath(path);
         }
+        recordActiveWatches(watchPoints.size());
         return true;
     });
 }
 
+void Server::registerPaths(const vector<u16string>& paths, vector<RegistrationStatus>& statuses) {
+    // The command might still run after timing out, so it doesn't refer to anything on the stack
+    auto results = make_shared<vector<RegistrationStatus>>();
+    executeOnRunLoop([this, paths, results]() {
+        for (auto& path : paths) {
+            results->push_back(tryRegisterPath(path, [this, &path]() {
+                return registerPath(path);
+            }));
+        }
+        recordActiveWatches(watchPoints.size());
+        return true;
+    });
+    statuses = *results;
+}
+
 bool Server::unregisterPaths(const vector<u16string>& paths) {
     return executeOnRunLoop([this, paths]() {
         bool success = true;
         for (auto& path : paths) {
             success &= unregisterPath(path);
         }
+        recordActiveWatches(watchPoints.size());
         return success;
     });
 }
 
-void Server::registerPath(const u16string& path) {
+bool Server::registerPath(const u16string& path) {
     wstring registeredPath(path.begin(), path.end());
     auto it = watchPoints.find(registeredPath);
     if (it != watchPoints.end()) {
-        if (it->second.status == WatchPointStatus::FINISHED) {
-            watchPoints.erase(it);
-        } else {
-            throw FileWatcherException("Already watching path", path);
+        if (it->second.status == WatchPointStatus::LISTENING) {
+            // Registered again, keep the existing watch point until all registrations are gone
+            it->second.referenceCount++;
+            return false;
         }
+        // Replace the watch point that doesn't listen anymore, e.g. because it has been cancelled after the directory was moved
+        watchPoints.erase(it);
     }
     watchPoints.emplace(piecewise_construct,
         forward_as_tuple(registeredPath),
         forward_as_tuple(this, eventBufferSize, registeredPath));
+    return true;
 }
 
 bool Server::unregisterPath(const u16string& path) {
     wstring registeredPath(path.begin(), path.end());
-    if (watchPoints.erase(registeredPath) == 0) {
+    auto it = watchPoints.find(registeredPath);
+    if (it == watchPoints.end()) {
         logToJava(LogLevel::INFO_LEVEL, "Path is not watched: %s", wideToUtf8String(registeredPath).c_str());
         return false;
     }
+    if (--it->second.referenceCount == 0) {
+        watchPoints.erase(it);
+    }
     return true;
 }
 
@@ -63,6 +63,9 @@ public:
     WatchPoint(Server* server, dispatch_queue_t dispatchQueue, const u16string& path, long latencyInMillis);
     ~WatchPoint();
 
+    // How many times the path has been registered, the stream is only stopped when the last registration is gone
+    int referenceCount = 1;
+
 private:
     FSEventStreamRef watcherStream;
 };
@@ -87,6 +90,7 @@ public:
     virtual ~Server();
 
     virtual void registerPaths(const vector<u16string>& paths) override;
+    virtual void registerPaths(const vector<u16string>& paths, vector<RegistrationStatus>& statuses) override;
     virtual bool unregisterPaths(const vector<u16string>& paths) override;
 
 protected:
@@ -96,6 +100,11 @@ protected:
     void shutdownRunLoop() override;
 
 private:
+    /**
+     * Registers the given path, and returns whether a new stream has been started for it.
+     */
+    bool registerPath(const u16string& path);
+
     void handleEvent(JNIEnv* env, const char* path, FSEventStreamEventFlags flags, FSEventStreamEventId eventId);
     void handleEvents(
         size_t numEvents,
@@ -0,0 +1,92 @@
+#pragma once
+
+#include <cstdint>
+#include <cstdio>
+#include <memory>
+#include <string>
+#include <vector>
+
+using namespace std;
+
+// An event corpus captures what a watcher received from the kernel, so that it can be replayed
+// through the same decoding and dispatching logic deterministically, without a live kernel.
+//
+// Layout, in native byte order:
+//   header: uint32 magic, uint32 version, uint32 flags, uint32 latency in milliseconds
+//   records: uint32 type, int32 watch descriptor, int32 value, uint32 payload length, payload
+// Strings in payloads are UTF-8 and NUL-terminated.
+#define EVENT_CORPUS_MAGIC 0x56454647
+#define EVENT_CORPUS_VERSION 1
+
+#define EVENT_CORPUS_RECURSIVE 0x1
+#define EVENT_CORPUS_COLLAPSE_REMOVALS 0x2
+
+enum class CorpusRecordType : uint32_t {
+    // A watch has been added, the value is the root ID, the payload is the path followed by the path relative to the root
+    WATCH = 1,
+    // A watched root has been unregistered, the payload is its path
+    UNWATCH = 2,
+    // Raw bytes read from the kernel, always ending at an event boundary
+    EVENTS = 3,
+    // A change found without the kernel, like an entry in a new directory, the value is the change type, the payload the name
+    CHANGE = 4,
+    // The end of draining the kernel queue
+    DRAIN = 5,
+    // The coalescing window has passed
+    TIMEOUT = 6
+};
+
+struct CorpusRecord {
+    CorpusRecordType type;
+    int watchDescriptor;
+    int value;
+    vector<uint8_t> payload;
+};
+
+struct FileCloser {
+    void operator()(FILE* file) const {
+        fclose(file);
+    }
+};
+
+class EventCorpusWriter {
+public:
+    EventCorpusWriter(const string& path, uint32_t flags, uint32_t latencyInMillis);
+
+    void writeWatch(int watchDescriptor, int rootId, const string& path, const string& relativePath);
+    void writeUnwatch(int watchDescriptor, const string& path);
+    void writeEvents(const uint8_t* events, size_t length);
+    void writeChange(int watchDescriptor, int type, const char* name, size_t nameLength);
+    void writeMarker(CorpusRecordType type);
+
+private:
+    void writeRecord(CorpusRecordType type, int watchDescriptor, int value, const void* payload, size_t length);
+    void write(const void* data, size_t length);
+
+    const string path;
+    const unique_ptr<FILE, FileCloser> file;
+    // Payload of the current record, reused between records
+    string payload;
+};
+
+class EventCorpusReader {
+public:
+    EventCorpusReader(const string& path);
+
+    bool hasFlag(uint32_t flag) const;
+    uint32_t getLatencyInMillis() const;
+
+    /**
+     * Reads the next record, reusing the payload buffer of the given record.
+     * Returns false at the end of the corpus.
+     */
+    bool next(CorpusRecord& record);
+
+private:
+    bool read(void* data, size_t length);
+
+    const string path;
+    const unique_ptr<FILE, FileCloser> file;
+    uint32_t flags;
+    uint32_t latencyInMillis;
+};
@@ -0,0 +1,83 @@
+#pragma once
+
+#include <jni.h>
+#include <string>
+#include <vector>
+
+#include "jni_support.h"
+
+using namespace std;
+
+// Corresponds to the record types in OffHeapEventRing
+// The change types (CREATED, REMOVED, MODIFIED and INVALIDATED) come first
+// with the same values as ChangeType
+enum class RingRecordType : jint {
+    CREATED,
+    REMOVED,
+    MODIFIED,
+    INVALIDATED,
+    UNKNOWN,
+    OVERFLOW,
+    LOST,
+    ROOT,
+    PADDING
+};
+
+// int32 length, int32 type, int32 root ID, int32 reserved
+#define RING_RECORD_HEADER_SIZE 16
+#define RING_RECORD_ALIGNMENT 16
+
+/**
+ * Writes event records into a direct byte buffer shared with an OffHeapEventRing on the Java side.
+ *
+ * Records are only ever written by a single thread, and are made visible to the Java consumer
+ * by publish(). The consumer reports back how far it has read, so the ring never needs to
+ * allocate anything on the Java heap.
+ *
+ * When the ring is full, records are dropped, and a LOST record is written right away.
+ * Every record leaves room for it, so the consumer learns about the loss with the next publish().
+ * Records too large to fit into half of the ring are dropped the same way.
+ */
+class EventRing {
+public:
+    EventRing(JNIEnv* env, jobject javaRing, jobject javaBuffer);
+
+    /**
+     * Writes a record to the ring, announcing the root first if it has not been seen yet.
+     *
+     * Returns false if the record had to be dropped because the ring was full, or the record too large.
+     */
+    bool write(JNIEnv* env, RingRecordType type, int rootId, const u16string& rootPath, const char* name, size_t nameLength);
+
+    /**
+     * Makes all records written so far visible to the Java consumer.
+     */
+    void publish(JNIEnv* env);
+
+    /**
+     * Announces the root again with the next record written for it, so its ID can be reused for another root.
+     */
+    void forgetRoot(int rootId);
+
+private:
+    // Makes room for a record, so that at least the given number of bytes stays free after it
+    bool reserve(JNIEnv* env, size_t recordLength, size_t keepFree);
+    void writeRecord(RingRecordType type, int rootId, const char* name, size_t nameLength);
+    bool writeRootRecord(JNIEnv* env, int rootId, const u16string& rootPath);
+    // Drops a record, and writes a LOST record unless the last one still covers the loss
+    bool drop(JNIEnv* env);
+    // Publishes the records written so far, and learns how far the consumer has read
+    void exchangePositions(JNIEnv* env);
+
+    JniGlobalRef<jobject> javaRing;
+    jmethodID publishMethod;
+    uint8_t* buffer;
+    size_t capacity;
+    uint64_t writePosition = 0;
+    uint64_t publishedPosition = 0;
+    uint64_t cachedReadPosition = 0;
+    // Whether records have been dropped since the last one was written, and where the LOST record for them ends
+    bool lost = false;
+    uint64_t lostMarkerEnd = 0;
+    vector<bool> announcedRoots;
+};
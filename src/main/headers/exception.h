@@ -37,7 +37,8 @@ inline string createMessage(const string& message, const u16string& path, int er
 struct FileWatcherException : public runtime_error {
 public:
     FileWatcherException(const string& message, const u16string& path, int errorCode)
-        : runtime_error(createMessage(message, path, errorCode)) {
+        : runtime_error(createMessage(message, path, errorCode))
+        , errorCode(errorCode) {
     }
 
     FileWatcherException(const string& message, const u16string& path)
@@ -45,10 +46,14 @@ public:
     }
 
     FileWatcherException(const string& message, int errorCode)
-        : runtime_error(createMessage(message, errorCode)) {
+        : runtime_error(createMessage(message, errorCode))
+        , errorCode(errorCode) {
     }
 
     FileWatcherException(const string& message)
         : runtime_error(message) {
     }
+
+    // The errno or Windows error code behind the failure, or 0 if there is none
+    int errorCode = 0;
 };
@@ -0,0 +1,97 @@
+#pragma once
+
+#ifdef __linux__
+
+#include <fcntl.h>
+#include <map>
+#include <sys/fanotify.h>
+#include <unordered_map>
+
+#include "generic_fsnotifier.h"
+#include "linux_fsnotifier.h"
+#include "org_gradle_fileevents_internal_FanotifyFileEventFunctions.h"
+
+using namespace std;
+
+struct Fanotify {
+    Fanotify();
+    ~Fanotify();
+
+    const int fd;
+};
+
+/**
+ * A file system marked as a whole, shared by all the watched roots on it.
+ */
+struct MarkedFileSystem {
+    MarkedFileSystem(int mountFd);
+    MarkedFileSystem(const MarkedFileSystem&) = delete;
+    ~MarkedFileSystem();
+
+    // An open directory on the file system, used to resolve file handles
+    const int mountFd;
+    int rootCount = 1;
+};
+
+struct FanotifyWatchPoint {
+    FanotifyWatchPoint(const string& path, const string& canonicalPath, uint64_t fileSystemId, const string& handle);
+
+    // UTF-8 path of the root as registered
+    const string path;
+    // UTF-8 canonical path of the root, file handles resolve to paths under this
+    const string canonicalPath;
+    const uint64_t fileSystemId;
+    // Handle of the root directory, used to recognize when it is removed
+    const string handle;
+    // How many times the root has been registered
+    int referenceCount = 1;
+};
+
+class FanotifyServer : public AbstractServer {
+public:
+    FanotifyServer(JNIEnv* env, jobject watcherCallback);
+
+    virtual void registerPaths(const vector<u16string>& paths) override;
+    virtual void registerPaths(const vector<u16string>& paths, vector<RegistrationStatus>& statuses) override;
+    virtual bool unregisterPaths(const vector<u16string>& paths) override;
+
+protected:
+    void initializeRunLoop() override;
+    void runLoop() override;
+    void shutdownRunLoop() override;
+
+private:
+    typedef unordered_multimap<string, const FanotifyWatchPoint*> WatchPointIndex;
+    typedef pair<WatchPointIndex::const_iterator, WatchPointIndex::const_iterator> WatchPointRange;
+
+    void processQueues(int timeout);
+    void handleEvents();
+    void handleEvent(JNIEnv* env, const fanotify_event_metadata* event);
+    void reportRootRemoved(JNIEnv* env, uint64_t fileSystemId, const file_handle* handle);
+    bool resolveDirectory(uint64_t fileSystemId, const file_handle* handle, string& path);
+    void cacheDirectoryPath(const string& handleKey, const string& path);
+    // Forgets the cached paths of the directory and its descendants
+    void invalidateDirectoryPaths(const string& path);
+    // The roots the path is in, they all resolve to the same directory
+    WatchPointRange findWatchPoints(const string& path);
+
+    bool registerPath(const u16string& path);
+    bool unregisterPath(const u16string& path);
+
+    recursive_mutex mutationMutex;
+    unordered_map<u16string, FanotifyWatchPoint> watchPoints;
+    // The watch points keyed by their canonical paths and by their handles, multiple roots can resolve to the same directory
+    WatchPointIndex watchPointsByCanonicalPath;
+    WatchPointIndex watchPointsByHandle;
+    unordered_map<uint64_t, MarkedFileSystem> fileSystems;
+    // Resolved directory paths keyed by their file handles, and the other way around,
+    // ordered so the descendants of a directory can be found
+    unordered_map<string, string> directoryPaths;
+    map<string, string> directoryHandles;
+    const Fanotify fanotify;
+    const WakeUpEvent shutdownEvent;
+    bool shouldTerminate = false;
+    vector<uint8_t> buffer;
+};
+
+#endif
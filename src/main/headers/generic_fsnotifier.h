@@ -1,8 +1,10 @@
 #pragma once
 
+#include <atomic>
 #include <chrono>
 #include <condition_variable>
 #include <exception>
+#include <functional>
 #include <iostream>
 #include <memory>
 #include <mutex>
@@ -16,6 +18,7 @@
 #include "logging.h"
 #include "org_gradle_fileevents_internal_AbstractNativeFileEventFunctions.h"
 #include "org_gradle_fileevents_internal_AbstractNativeFileEventFunctions_NativeFileWatcher.h"
+#include "transcoding.h"
 
 using namespace std;
 
@@ -27,8 +30,61 @@ enum class ChangeType {
     INVALIDATED
 };
 
+// Corresponds to values of FileWatcher.RegistrationStatus
+enum class RegistrationStatus {
+    REGISTERED,
+    ALREADY_WATCHED,
+    MISSING,
+    NOT_A_DIRECTORY,
+    LIMIT_REACHED,
+    FAILED
+};
+
 #define IS_SET(flags, mask) (((flags) & (mask)) != 0)
 
+// Maximum number of change events reported to Java in a single call
+#define MAX_CHANGE_EVENT_BATCH_SIZE 1024
+
+// Number of buckets in a duration histogram, the last one also counts anything longer
+#define DURATION_HISTOGRAM_BUCKETS 38
+
+// Number of values reported by getStatistics0(), see WatcherStatistics::copyTo()
+#define WATCHER_STATISTICS_SIZE (2 + 3 * DURATION_HISTOGRAM_BUCKETS)
+
+/**
+ * Counts durations in buckets by powers of two: bucket i counts durations
+ * of at least 2^i and less than 2^(i+1) nanoseconds.
+ *
+ * Recording only increments a single counter, so it can be done for every event,
+ * while other threads take snapshots.
+ */
+class DurationHistogram {
+public:
+    void record(chrono::steady_clock::duration duration);
+    void copyTo(jlong* values) const;
+
+private:
+    atomic<uint64_t> buckets[DURATION_HISTOGRAM_BUCKETS] = {};
+};
+
+/**
+ * What the server has been doing, updated by the server and read by whoever polls the statistics.
+ */
+struct WatcherStatistics {
+    // Events read from the operating system
+    atomic<uint64_t> kernelEvents { 0 };
+    // Watches currently registered with the operating system
+    atomic<uint64_t> activeWatches { 0 };
+    // Time spent reading events from the operating system
+    DurationHistogram readTimes;
+    // Time spent decoding a batch of events, without the time spent calling back to Java
+    DurationHistogram decodeTimes;
+    // Time spent calling back to Java
+    DurationHistogram upcallTimes;
+
+    void copyTo(jlong* values) const;
+};
+
 struct InsufficientResourcesFileWatcherException : public FileWatcherException {
 public:
     InsufficientResourcesFileWatcherException(const string& message);
@@ -51,6 +107,12 @@ public:
      */
     virtual void registerPaths(const vector<u16string>& paths) = 0;
 
+    /**
+     * Registers new watch points for the given paths, and reports the outcome for each path
+     * in the given statuses, instead of stopping at the first path that cannot be registered.
+     */
+    virtual void registerPaths(const vector<u16string>& paths, vector<RegistrationStatus>& statuses) = 0;
+
     /**
      * Unregisters watch points with the server for the given paths.
      */
@@ -66,25 +128,97 @@ public:
      */
     bool awaitTermination(long timeoutInMillis);
 
+    /**
+     * Copies a snapshot of the statistics to the given array of WATCHER_STATISTICS_SIZE values.
+     */
+    void getStatistics(jlong* values) const;
+
 protected:
     virtual void runLoop() = 0;
 
+    /**
+     * Records a call back to Java that has been started at the given time.
+     */
+    void recordUpcall(chrono::steady_clock::time_point startTime);
+
+    /**
+     * Returns the total time spent calling back to Java so far, so that it can be subtracted
+     * from the time spent handling events. Only accurate on the thread handling the events.
+     */
+    chrono::steady_clock::duration getUpcallTime() const {
+        return upcallTime;
+    }
+
+    void recordActiveWatches(size_t count);
+
+    /**
+     * Registers a single path via the given function, which returns whether a new watch point has been added,
+     * as opposed to counting another registration of an existing one. Failures are logged, and turned into a status.
+     */
+    RegistrationStatus tryRegisterPath(const u16string& path, const function<bool()>& registerPath);
+
     void reportChangeEvent(JNIEnv* env, ChangeType type, const u16string& path);
+
+    /**
+     * Queues a change event to be reported to Java with the next batch.
+     *
+     * Queued events are reported with a single call by flushChangeEvents(), or when
+     * the batch is full. Reporting any other kind of event flushes the batch first,
+     * so the order of events is kept.
+     */
+    void queueChangeEvent(JNIEnv* env, ChangeType type, const u16string& path);
+
+    /**
+     * Queues a change event for a path given relative to a watched root.
+     *
+     * Java keeps a table of the root paths, so only the UTF-8 name relative to the root is
+     * converted to a Java string, and the absolute path is only built when it is needed.
+     * The root is announced to Java the first time an event is queued for it.
+     */
+    void queueRelativeChangeEvent(JNIEnv* env, ChangeType type, int rootId, const u16string& rootPath, const char* name, size_t nameLength);
+
+    /**
+     * Reports all queued change events to Java with a single call.
+     */
+    void flushChangeEvents(JNIEnv* env);
+
+    /**
+     * Announces the root again with the next event queued for it, so its ID can be reused for another root.
+     * No queued event may refer to the root anymore.
+     */
+    void forgetRoot(int rootId);
     void reportUnknownEvent(JNIEnv* env, const u16string& path);
     void reportOverflow(JNIEnv* env, const u16string& path);
     void reportFailure(JNIEnv* env, const char* message);
     void reportFailure(JNIEnv* env, const exception& ex);
 
+    WatcherStatistics statistics;
+
 private:
+    void flushRelativeChangeEvents(JNIEnv* env);
+    // Reports an overflow instead of a batch that couldn't be turned into Java objects
+    void reportDroppedChangeEvents(JNIEnv* env, jsize count);
+
     mutex terminationMutex;
     condition_variable terminationVariable;
     bool terminated = false;
 
     JniGlobalRef<jobject> watcherCallback;
     jmethodID watcherReportChangeEventMethod;
+    jmethodID watcherReportChangeEventsMethod;
+    jmethodID watcherReportRootMethod;
+    jmethodID watcherReportRelativeChangeEventsMethod;
     jmethodID watcherReportUnknownEventMethod;
     jmethodID watcherReportOverflowMethod;
     jmethodID watcherReportFailureMethod;
+
+    vector<jint> queuedChangeTypes;
+    vector<u16string> queuedChangePaths;
+    vector<jint> queuedChangeRootIds;
+    vector<string> queuedChangeNames;
+    vector<bool> announcedRoots;
+    u16string nameBuffer;
+    chrono::steady_clock::duration upcallTime = chrono::steady_clock::duration::zero();
 };
 
 class NativePlatformJniConstants : public JniSupport {
@@ -6,9 +6,15 @@
 #include <sys/eventfd.h>
 #include <sys/inotify.h>
 #include <sys/stat.h>
-#include <unordered_map>
+#include <sys/timerfd.h>
+#include <deque>
+#include <functional>
+#include <map>
 
+#include "event_corpus.h"
+#include "event_ring.h"
 #include "generic_fsnotifier.h"
+#include "watch_table.h"
 #include "org_gradle_fileevents_internal_LinuxFileEventFunctions.h"
 #include "org_gradle_fileevents_internal_LinuxFileEventFunctions_LinuxFileWatcher.h"
 
@@ -33,9 +39,12 @@ struct Inotify {
     const int fd;
 };
 
-struct ShutdownEvent {
-    ShutdownEvent();
-    ~ShutdownEvent();
+/**
+ * Wakes up the run loop, e.g. to shut down or to execute commands.
+ */
+struct WakeUpEvent {
+    WakeUpEvent();
+    ~WakeUpEvent();
 
     void trigger() const;
     void consume() const;
@@ -43,6 +52,73 @@ struct ShutdownEvent {
     const int fd;
 };
 
+struct CoalescingTimer {
+    CoalescingTimer();
+    ~CoalescingTimer();
+
+    void arm(long delayInMillis) const;
+    void consume() const;
+
+    const int fd;
+};
+
+/**
+ * The kernel resources the run loop listens to.
+ * A server replaying an event corpus doesn't have them, it only decodes and dispatches the recorded events.
+ */
+struct KernelResources {
+    const Inotify inotify;
+    const WakeUpEvent shutdownEvent;
+    const CoalescingTimer coalescingTimer;
+    const WakeUpEvent commandEvent;
+};
+
+/**
+ * A change waiting for the coalescing window to pass, or for the current batch of events to be processed.
+ */
+struct PendingChange {
+    ChangeType type;
+    // Dropped changes are not reported, e.g. when something is created and removed in the same window,
+    // or when an ancestor directory is removed later in the same batch
+    bool dropped;
+    int rootId;
+    shared_ptr<const u16string> rootPath;
+    // The name relative to the root, as reported to Java
+    string relativeName;
+};
+
+enum class DecodedEventType {
+    CHANGE,
+    UNKNOWN,
+    OVERFLOW,
+    FAILURE
+};
+
+/**
+ * An event decoded while holding the mutation mutex, to be reported after releasing it.
+ * It doesn't refer to any watch point, so the watch points can change while it is being reported.
+ */
+struct DecodedEvent {
+    DecodedEventType type;
+    ChangeType changeType;
+    int rootId;
+    // Shared with Server::rootPaths, stays valid even when the root is unregistered meanwhile
+    shared_ptr<const u16string> rootPath;
+    // The UTF-8 name relative to the root, or the failure message, in Server::decodedNames
+    size_t nameOffset;
+    size_t nameLength;
+};
+
+/**
+ * Registering or unregistering paths, submitted from Java to be executed by the run loop between batches of events.
+ */
+struct Command {
+    bool registering;
+    vector<u16string> paths;
+    // The CompletableFuture to complete with the outcome
+    unique_ptr<JniGlobalRef<jobject>> future;
+};
+
 enum class WatchPointStatus {
     /**
      * The watch point is listening, expect events to arrive.
@@ -52,7 +128,12 @@ enum class WatchPointStatus {
     /**
      * The watch point has been cancelled, expect IN_IGNORED event.
      */
-    CANCELLED
+    CANCELLED,
+
+    /**
+     * The watch point has been removed, its slot can be reused.
+     */
+    FREE
 };
 
 enum class CancelResult {
@@ -72,32 +153,62 @@ enum class CancelResult {
     ALREADY_CANCELLED
 };
 
-class WatchPoint {
-public:
-    WatchPoint(const u16string& path, const shared_ptr<Inotify> inotify, int watchDescriptor, ino_t inode);
-
-    CancelResult cancel();
+/**
+ * A watch, kept small so that hierarchies with hundreds of thousands of directories can be watched.
+ * It doesn't store its path: the path of the root is shared via Server::rootPaths,
+ * and descendants only keep their path relative to the root in Server::relativePaths.
+ */
+struct WatchPoint {
+    /**
+     * Whether this watch point has been registered from Java, as opposed to
+     * being added for a descendant directory when watching recursively.
+     */
+    bool isRoot() const {
+        return relativePathLength == 0;
+    }
 
-private:
     WatchPointStatus status;
-    const int watchDescriptor;
-    const shared_ptr<Inotify> inotify;
-    const u16string path;
-    const ino_t inode;
-
-    friend class Server;
+    int watchDescriptor;
+    int rootId;
+    // How many times the root has been registered, the watch is only removed when the last registration is
+    int referenceCount;
+    // The UTF-8 path relative to the root in the path arena, empty for the root itself
+    uint32_t relativePathOffset;
+    uint32_t relativePathLength;
+    // The hash of the absolute path, to remove the watch point from the path index
+    uint32_t pathHash;
+    // Only tracked for roots
+    ino_t inode;
 };
 
 class Server : public AbstractServer {
 public:
-    Server(JNIEnv* env, jobject watcherCallback);
+    Server(JNIEnv* env, jobject watcherCallback, jobject javaEventRing, jobject javaEventRingBuffer, bool recursive, long latencyInMillis, bool collapseRemovals, size_t bufferSize, size_t maxBufferSize, unique_ptr<EventCorpusWriter> corpusWriter);
+
+    /**
+     * Creates a server that can only replay the given corpus, without allocating any kernel resources.
+     */
+    Server(JNIEnv* env, jobject watcherCallback, const EventCorpusReader& reader);
 
     // List<String> absolutePathsToCheck, List<String> droppedPaths
     void stopWatchingMovedPaths(jobjectArray absolutePathsToCheck, jobject droppedPaths);
 
     virtual void registerPaths(const vector<u16string>& paths) override;
+    virtual void registerPaths(const vector<u16string>& paths, vector<RegistrationStatus>& statuses) override;
     virtual bool unregisterPaths(const vector<u16string>& paths) override;
 
+    /**
+     * Queues registering or unregistering the given paths, the run loop completes the given future with the outcome.
+     * Returns false when the run loop has finished already, and doesn't execute commands anymore.
+     */
+    bool submitCommand(JNIEnv* env, bool registering, const vector<u16string>& paths, jobject future);
+
+    /**
+     * Replays a recorded event corpus on the current thread, instead of listening to the kernel.
+     * Only supported by a server created for replaying. Returns the number of kernel events replayed.
+     */
+    long replay(JNIEnv* env, EventCorpusReader& reader);
+
 protected:
     void initializeRunLoop() override;
     void runLoop() override;
@@ -105,23 +216,137 @@ protected:
 
 private:
     void processQueues(int timeout);
+    void executeCommands(JNIEnv* env);
+    void executeCommand(JNIEnv* env, const Command& command);
+    // Stops accepting commands, and fails the ones that have not been executed
+    void closeCommands(JNIEnv* env);
+    void failCommand(JNIEnv* env, const Command& command, const char* message);
     void handleEvents();
-    void handleEvent(JNIEnv* env, const inotify_event* event);
+    int handleEventBuffer(JNIEnv* env, const uint8_t* events, size_t length);
+    void finishDrain(JNIEnv* env);
+    void handleCoalescingTimeout(JNIEnv* env);
+    void writeMarker(CorpusRecordType type);
+    void adaptBufferSize(size_t backlog);
+
+    // Decoding the events needs the watch points, and happens while holding the mutation mutex
+    int decodeEventBuffer(const uint8_t* events, size_t length);
+    void decodeEvent(const inotify_event* event);
+    void decodeChange(ChangeType type, const WatchPoint& watchPoint, const char* name, size_t nameLength);
+    void decodeUnknown(const WatchPoint& watchPoint, const char* name, size_t nameLength);
+    void decodeOverflow(const WatchPoint& watchPoint);
+    void decodeFailure(const exception& ex);
+    void addDecodedEvent(DecodedEventType type, ChangeType changeType, const WatchPoint& watchPoint, const char* name, size_t nameLength);
+
+    // Reporting the decoded events only happens on the thread handling events, and doesn't need the mutation mutex
+    void reportDecodedEvents(JNIEnv* env);
+    void reportChange(JNIEnv* env, ChangeType type, int rootId, const shared_ptr<const u16string>& rootPath, const char* name, size_t nameLength);
+    void reportUnknown(JNIEnv* env, int rootId, const u16string& rootPath, const char* name, size_t nameLength);
+    void reportOverflow(JNIEnv* env, int rootId, const u16string& rootPath);
+    using AbstractServer::reportOverflow;
+    const u16string& resolvePath(const u16string& rootPath, const char* name, size_t nameLength);
+    void coalesceChange(ChangeType type, int rootId, const shared_ptr<const u16string>& rootPath, const char* name, size_t nameLength);
+    void collapseDescendantChanges(const u16string& path);
+    void flushPendingChanges(JNIEnv* env);
+    void publishEvents(JNIEnv* env);
+
+    // Root IDs are shared by the watch points of a root, and released with the last one of them
+    int getRootId(const u16string& path);
+    void releaseRootId(int rootId);
+    // Makes the released root IDs available again once the events referring to them have been reported
+    void recycleRootIds();
 
-    void registerPath(const u16string& path);
+    /**
+     * Registers the given root, and returns whether a new watch has been added for it.
+     */
+    bool registerPath(const u16string& path);
+    void replayWatch(const CorpusRecord& record);
     bool unregisterPath(const u16string& path);
 
+    // Watch points are referred to by the index of their slot, which stays the same until they are removed
+    int findWatchPoint(const u16string& path);
+    int addWatchPoint(const u16string& path, const string& pathNarrow, int watchDescriptor, ino_t inode, int rootId, const string& relativePath);
+    void removeWatchPoint(int index);
+    CancelResult cancelWatchPoint(WatchPoint& watchPoint);
+    void addRecentlyUnregistered(int watchDescriptor);
+    // Compacts the watch point tables and records the number of watches after a batch of changes
+    void finishWatchPointChanges();
+    // The paths are built in a scratch buffer that is only valid until the next call
+    const u16string& watchPointPath(const WatchPoint& watchPoint, const char* name = "", size_t nameLength = 0);
+    const string& watchPointPathNarrow(const WatchPoint& watchPoint);
+    // Whether the watch point is the given path, or below it
+    bool isWithin(const WatchPoint& watchPoint, const u16string& path);
+
+    // Adds the missing watches below the directory, looking inside already watched subdirectories, too, if includeWatched is set
+    void watchDescendants(int directoryIndex, bool reportExisting, bool includeWatched);
+    int addDescendantWatchPoint(int parentIndex, const string& parentPathNarrow, const char* name);
+    void cancelDescendantWatchPoints(const function<bool(const WatchPoint&)>& predicate);
+
     void addToList(JNIEnv* env, jobject jList, jstring jString);
 
+    // Writes the part of the current event buffer that has been handled to the corpus,
+    // so that the records caused by handling the events come after them
+    void recordHandledEvents();
+
+    // Guards the watch points, but is not held while reporting events
     recursive_mutex mutationMutex;
-    unordered_map<u16string, WatchPoint> watchPoints;
-    unordered_map<int, u16string> watchRoots;
-    unordered_map<int, u16string> recentlyUnregisteredWatchRoots;
-    const shared_ptr<Inotify> inotify;
-    const ShutdownEvent shutdownEvent;
+    // Adding slots to the end of a deque doesn't move the existing ones, so references to them stay valid
+    deque<WatchPoint> watchPoints;
+    vector<int> freeWatchPoints;
+    size_t watchPointCount = 0;
+    OpenAddressingIndex watchPointsByDescriptor;
+    // Keyed by the hash of the absolute path
+    OpenAddressingIndex watchPointsByPath;
+    // Watches removed by us, for which events can still arrive until IN_IGNORED does
+    OpenAddressingIndex recentlyUnregisteredWatchDescriptors;
+    // Keyed by the hash of the path of the root
+    OpenAddressingIndex rootIdsByPath;
+    vector<shared_ptr<const u16string>> rootPaths;
+    // The number of watch points referring to each root ID
+    vector<uint32_t> rootReferenceCounts;
+    // Root IDs no watch point refers to anymore, that events waiting to be reported might still use
+    vector<int> releasedRootIds;
+    vector<int> freeRootIds;
+    // Maps the root IDs recorded in an event corpus to the ones used while replaying it
+    map<int, int> replayedRootIds;
+    PathArena relativePaths;
+    // Scratch buffers for the paths of watch points, only used while holding the mutation mutex
+    u16string watchPointPathBuffer;
+    string watchPointPathNarrowBuffer;
+    // Events decoded from the current buffer, with their names stored one after the other
+    vector<DecodedEvent> decodedEvents;
+    string decodedNames;
+    // Scratch buffer reused while handling events, so that typical paths don't need an allocation
+    u16string pathBuffer;
+    unique_ptr<EventRing> eventRing;
+    // Null when replaying
+    const unique_ptr<const KernelResources> kernel;
+    // Guards the commands submitted from Java, which are executed without holding the mutation mutex
+    mutex commandMutex;
+    vector<Command> commands;
+    bool commandsClosed = false;
+    jmethodID completeRegistrationMethod;
+    jmethodID completeUnregistrationMethod;
+    jmethodID failCommandMethod;
+    const bool recursive;
+    const long latencyInMillis;
+    const bool collapseRemovals;
+    vector<PendingChange> pendingChanges;
+    // Ordered so that the pending changes below a removed directory can be looked up by prefix
+    map<u16string, size_t> pendingChangeIndices;
     bool shouldTerminate = false;
     vector<uint8_t> buffer;
+    const size_t minBufferSize;
+    const size_t maxBufferSize;
+    // Number of drains in a row that used only a small part of the buffer
+    int idleDrains = 0;
     jmethodID listAddMethod;
+    const unique_ptr<EventCorpusWriter> corpusWriter;
+    // The event buffer being handled, and how much of it has been handled and recorded
+    const uint8_t* handledEvents = nullptr;
+    size_t handledEventsLength = 0;
+    size_t recordedEventsLength = 0;
+    // Watches and changes found without the kernel come from the corpus when replaying
+    const bool replaying;
 };
 
 class LinuxJniConstants : public JniSupport {
@@ -130,6 +355,7 @@ public:
 
     const JClass inotifyWatchesLimitTooLowExceptionClass;
     const JClass inotifyInstanceLimitTooLowExceptionClass;
+    const JClass linuxFileWatcherClass;
 };
 
 extern LinuxJniConstants* linuxJniConstants;
@@ -1,5 +1,6 @@
 #pragma once
 
+#include <atomic>
 #include <jni.h>
 
 #include "jni_support.h"
@@ -18,13 +19,38 @@ class Logging : public JniSupport {
 public:
     Logging(JavaVM* jvm);
 
+    /**
+     * Returns whether messages at the given level would be logged.
+     *
+     * The effective level of the Java logger is cached, and only refreshed
+     * every LOG_LEVEL_CHECK_INTERVAL_IN_MS milliseconds.
+     */
+    bool enabled(LogLevel level);
+
+    /**
+     * Forces the next call to enabled() to query the Java logger for its effective level.
+     */
+    void invalidateLogLevelCache();
+
     void send(LogLevel level, const char* fmt, ...);
 
 private:
+    void refreshLogLevel(long long now);
+
     const JClass clsLogger;
     const jmethodID logMethod;
+    const jmethodID getLevelMethod;
+    atomic<int> minimumLogLevel;
+    atomic<long long> lastLevelCheck;
 };
 
 extern Logging* logging;
 
-#define logToJava(level, message, ...) logging->send(level, message, __VA_ARGS__)
+// Check the level before evaluating the arguments, so disabled log statements don't cost
+// anything beyond reading the cached level.
+#define logToJava(level, message, ...)                   \
+    do {                                                 \
+        if (logging->enabled(level)) {                   \
+            logging->send(level, message, __VA_ARGS__);  \
+        }                                                \
+    } while (0)
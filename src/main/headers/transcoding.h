@@ -0,0 +1,38 @@
+#pragma once
+
+#include <cstddef>
+#include <string>
+
+using namespace std;
+
+// Conversions between UTF-8 and UTF-16 that append to a caller-owned buffer.
+// Reusing the buffer means no allocation happens once it has grown to fit the typical path.
+// Runs of ASCII are copied without decoding, which covers most file names.
+// Invalid input (malformed UTF-8 or unpaired surrogates) is replaced with U+FFFD instead of failing,
+// Linux file names are arbitrary bytes after all.
+
+/**
+ * Appends the UTF-16 representation of the given UTF-8 bytes to the buffer.
+ */
+void appendUtf8AsUtf16(const char* utf8, size_t length, u16string& utf16);
+
+/**
+ * Appends the UTF-8 representation of the given UTF-16 code units to the buffer.
+ */
+void appendUtf16AsUtf8(const char16_t* utf16, size_t length, string& utf8);
+
+/**
+ * Replaces the contents of the buffer with the UTF-16 representation of the given UTF-8 bytes.
+ */
+inline void utf8ToUtf16(const char* utf8, size_t length, u16string& utf16) {
+    utf16.clear();
+    appendUtf8AsUtf16(utf8, length, utf16);
+}
+
+/**
+ * Replaces the contents of the buffer with the UTF-8 representation of the given UTF-16 string.
+ */
+inline void utf16ToUtf8(const u16string& utf16, string& utf8) {
+    utf8.clear();
+    appendUtf16AsUtf8(utf16.data(), utf16.length(), utf8);
+}
@@ -0,0 +1,145 @@
+#pragma once
+
+#include <cstddef>
+#include <cstdint>
+#include <string>
+#include <vector>
+
+using namespace std;
+
+// Building blocks for tables with hundreds of thousands of entries, like the watch points of a large hierarchy.
+// They don't allocate per entry, and let the entries refer to their paths instead of each storing a copy.
+
+/**
+ * Returns the FNV-1a hash of the given UTF-16 path.
+ */
+uint32_t hashPath(const char16_t* path, size_t length);
+
+inline uint32_t hashPath(const u16string& path) {
+    return hashPath(path.data(), path.length());
+}
+
+/**
+ * Maps 32-bit keys to non-negative values, e.g. indices into a table, using open addressing with linear probing.
+ *
+ * A key can be mapped to multiple values, so hashes can be used as keys.
+ * Looking up a key then asks the caller which of the values is the one it is looking for.
+ * Keys are not checked for duplicates when inserting, the caller has to look them up first if it matters.
+ */
+class OpenAddressingIndex {
+public:
+    static const int NOT_FOUND = -1;
+
+    /**
+     * Returns the first value mapped to the key that the predicate accepts, or NOT_FOUND.
+     */
+    template <typename Predicate>
+    int find(uint32_t key, const Predicate& matches) const {
+        if (slots.empty()) {
+            return NOT_FOUND;
+        }
+        for (size_t i = slotOf(key);; i = nextSlot(i)) {
+            const Slot& slot = slots[i];
+            if (slot.value == EMPTY) {
+                return NOT_FOUND;
+            }
+            if (slot.value >= 0 && slot.key == key && matches(slot.value)) {
+                return slot.value;
+            }
+        }
+    }
+
+    /**
+     * Returns the first value mapped to the key, or NOT_FOUND.
+     */
+    int find(uint32_t key) const {
+        return find(key, [](int) {
+            return true;
+        });
+    }
+
+    void insert(uint32_t key, int value);
+
+    /**
+     * Removes the mapping of the key to the value, and returns whether there was one.
+     */
+    bool erase(uint32_t key, int value);
+
+    size_t size() const {
+        return count;
+    }
+
+private:
+    static const int EMPTY = -1;
+    static const int DELETED = -2;
+
+    struct Slot {
+        uint32_t key;
+        int32_t value;
+    };
+
+    // Fibonacci hashing spreads consecutive keys like watch descriptors, and uses the high bits of hashes
+    size_t slotOf(uint32_t key) const {
+        return (key * 2654435769u) >> shift;
+    }
+
+    size_t nextSlot(size_t slot) const {
+        return (slot + 1) & (slots.size() - 1);
+    }
+
+    // Resizes the slots to fit the given number of entries, and drops the deleted ones
+    void rehash(size_t entries);
+
+    // The number of slots is a power of two, at least a quarter of them are kept empty so probing stops
+    vector<Slot> slots;
+    int shift = 32;
+    // Mapped values, and slots that are not empty, including the deleted ones
+    size_t count = 0;
+    size_t used = 0;
+};
+
+/**
+ * Stores UTF-8 paths back to back in a single buffer, addressed by their offset.
+ *
+ * Removing a path leaves it behind as garbage, which is dropped when compacting.
+ * Compacting moves the paths, so the owner has to pass every path that is still used to keep(),
+ * and update its offset.
+ * Any pointer into the arena becomes invalid when adding paths or compacting.
+ */
+class PathArena {
+public:
+    uint32_t add(const char* path, size_t length);
+
+    void remove(size_t length) {
+        garbage += length;
+    }
+
+    const char* get(uint32_t offset) const {
+        return storage.data() + offset;
+    }
+
+    /**
+     * Whether enough garbage has piled up to be worth copying the rest of the paths.
+     */
+    bool needsCompaction() const;
+
+    void beginCompaction();
+
+    /**
+     * Keeps the path while compacting, and returns its new offset.
+     */
+    uint32_t keep(uint32_t offset, size_t length);
+
+    void endCompaction();
+
+    void clear();
+
+    size_t size() const {
+        return storage.size();
+    }
+
+private:
+    string storage;
+    string compacted;
+    size_t garbage = 0;
+};
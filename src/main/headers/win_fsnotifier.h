@@ -121,6 +121,12 @@ private:
      * Whether the watch point is watching, has been cancelled or fully closed.
      */
     WatchPointStatus status;
+
+    /**
+     * How many times the path has been registered. The watch point is only removed
+     * when the last registration is gone.
+     */
+    int referenceCount = 1;
 };
 
 class Server : public AbstractServer {
@@ -134,6 +140,7 @@ public:
     bool executeOnRunLoop(function<bool()> command);
 
     virtual void registerPaths(const vector<u16string>& paths) override;
+    virtual void registerPaths(const vector<u16string>& paths, vector<RegistrationStatus>& statuses) override;
     virtual bool unregisterPaths(const vector<u16string>& paths) override;
 
 protected:
@@ -144,7 +151,10 @@ protected:
 private:
     void handleEvent(JNIEnv* env, const wstring& watchedPath, FILE_NOTIFY_EXTENDED_INFORMATION* info);
 
-    void registerPath(const u16string& path);
+    /**
+     * Registers the given path, and returns whether a new watch point has been added for it.
+     */
+    bool registerPath(const u16string& path);
     bool unregisterPath(const u16string& path);
 
     void reportWatchPointDeleted(WatchPoint* watchPoint);
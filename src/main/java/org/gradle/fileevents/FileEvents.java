@@ -8,6 +8,7 @@ import net.rubygrapefruit.platform.internal.LibraryDef;
 import net.rubygrapefruit.platform.internal.NativeLibraryLocator;
 import net.rubygrapefruit.platform.internal.Platform;
 import org.gradle.fileevents.internal.AbstractNativeFileEventFunctions;
+import org.gradle.fileevents.internal.FanotifyFileEventFunctions;
 import org.gradle.fileevents.internal.FileEventsVersion;
 import org.gradle.fileevents.internal.LinuxFileEventFunctions;
 import org.gradle.fileevents.internal.OsxFileEventFunctions;
@@ -165,6 +166,11 @@ public class FileEvents {
         if (platform.isLinux() && type.equals(LinuxFileEventFunctions.class)) {
             return type.cast(new LinuxFileEventFunctions());
         }
+        if (platform.isLinux() && type.equals(FanotifyFileEventFunctions.class)) {
+            // Watch recursively with inotify where fanotify is not available
+            boolean usingInotify = FanotifyFileEventFunctions.getUnavailableReason() != null;
+            return type.cast(new FanotifyFileEventFunctions(usingInotify));
+        }
         if (platform.isMacOs() && type.equals(OsxFileEventFunctions.class)) {
             return type.cast(new OsxFileEventFunctions());
         }
@@ -6,6 +6,8 @@ import javax.annotation.CheckReturnValue;
 import javax.annotation.concurrent.NotThreadSafe;
 import java.io.File;
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -23,19 +25,65 @@ public interface FileWatcher {
 
     /**
      * Starts watching the given paths.
+     *
+     * Registrations are reference-counted: starting to watch a path that is watched already
+     * only counts the registration, and the path stays watched until it has been unregistered
+     * as many times as it has been registered.
+     *
      * @param paths the paths to watch.
      * @throws InsufficientResourcesForWatchingException if the system does not have enough resources to watch the given paths.
      */
     void startWatching(Collection<File> paths) throws InsufficientResourcesForWatchingException;
 
     /**
-     * Stops watching the given paths.
+     * Starts watching the given paths, and reports the outcome for each of them.
+     *
+     * Unlike {@link #startWatching(Collection)}, this registers as many of the paths as possible,
+     * and doesn't fail when some of them cannot be registered.
+     * The whole batch is registered in a single call to the native side.
+     *
+     * @param paths the paths to watch.
+     * @return the status for each of the paths, in iteration order.
+     */
+    List<RegistrationStatus> tryStartWatching(Collection<File> paths);
+
+    /**
+     * Starts watching the given paths like {@link #tryStartWatching(Collection)}, without waiting for it.
+     *
+     * Where supported, the paths are registered by the thread of the watcher in between handling batches of events,
+     * so the calling thread doesn't have to wait while a burst of events is being handled.
+     * Otherwise the paths are registered right away, and the returned future is already completed.
+     *
+     * Asynchronous registrations are executed in the order they have been submitted,
+     * but not necessarily in order with the blocking methods.
+     * Dependent actions that are not asynchronous themselves might run on the thread of the watcher,
+     * and hold back events like a slow handler would.
+     *
+     * @param paths the paths to watch.
+     * @return a future completed with the status for each of the paths, in iteration order,
+     * or completed exceptionally when the watcher shuts down before registering the paths.
+     */
+    CompletableFuture<List<RegistrationStatus>> startWatchingAsync(Collection<File> paths);
+
+    /**
+     * Stops watching the given paths, or drops one registration of those registered multiple times.
      * @param paths the paths to stop watching.
-     * @return {@code true} if the paths were being watched and are no longer being watched.
+     * @return {@code true} if all the paths were being watched, even if some of them are still watched
+     * because of other registrations.
      */
     @CheckReturnValue
     boolean stopWatching(Collection<File> paths);
 
+    /**
+     * Stops watching the given paths like {@link #stopWatching(Collection)}, without waiting for it.
+     * See {@link #startWatchingAsync(Collection)} for when and where the paths are unregistered.
+     *
+     * @param paths the paths to stop watching.
+     * @return a future completed with the result of {@link #stopWatching(Collection)},
+     * or completed exceptionally when the watcher shuts down before unregistering the paths.
+     */
+    CompletableFuture<Boolean> stopWatchingAsync(Collection<File> paths);
+
     /**
      * Initiates an orderly shutdown and release of any native resources.
      * No more events will arrive after this method returns.
@@ -55,4 +103,56 @@ public interface FileWatcher {
      */
     @CheckReturnValue
     boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException;
+
+    /**
+     * Returns a snapshot of what the watcher has been doing since it was started.
+     *
+     * Unlike the other methods, this method can be called from any thread.
+     * Taking a snapshot only reads counters that the watcher keeps updated anyway,
+     * so it is cheap enough to poll regularly, like every second.
+     */
+    FileWatcherStatistics getStatistics();
+
+    /**
+     * The outcome of registering a single path via {@link #tryStartWatching(Collection)}.
+     */
+    enum RegistrationStatus {
+        /**
+         * The path is watched now.
+         */
+        REGISTERED,
+
+        /**
+         * The path was watched already. The registration has been counted,
+         * so the path needs to be unregistered once more to stop watching it.
+         */
+        ALREADY_WATCHED,
+
+        /**
+         * The path doesn't exist.
+         */
+        MISSING,
+
+        /**
+         * The path is not a directory, and the platform can only watch directories.
+         */
+        NOT_A_DIRECTORY,
+
+        /**
+         * The operating system limit for watches has been reached.
+         */
+        LIMIT_REACHED,
+
+        /**
+         * The path cannot be watched for any other reason, see the logs for details.
+         */
+        FAILED;
+
+        /**
+         * Whether the path is watched after the registration.
+         */
+        public boolean isWatched() {
+            return this == REGISTERED || this == ALREADY_WATCHED;
+        }
+    }
 }
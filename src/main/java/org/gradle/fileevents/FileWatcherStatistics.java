@@ -0,0 +1,212 @@
+package org.gradle.fileevents;
+
+import javax.annotation.concurrent.Immutable;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A snapshot of what a {@link FileWatcher} has been doing since it was started.
+ *
+ * @see FileWatcher#getStatistics()
+ */
+@Immutable
+public final class FileWatcherStatistics {
+    private final long kernelEventCount;
+    private final long deliveredEventCount;
+    private final long droppedEventCount;
+    private final long operatingSystemOverflowCount;
+    private final long eventQueueOverflowCount;
+    private final long eventQueueHighWaterMark;
+    private final long activeWatchCount;
+    private final DurationHistogram readTimes;
+    private final DurationHistogram decodeTimes;
+    private final DurationHistogram upcallTimes;
+    private final DurationHistogram queueOfferTimes;
+
+    public FileWatcherStatistics(
+        long kernelEventCount,
+        long deliveredEventCount,
+        long droppedEventCount,
+        long operatingSystemOverflowCount,
+        long eventQueueOverflowCount,
+        long eventQueueHighWaterMark,
+        long activeWatchCount,
+        DurationHistogram readTimes,
+        DurationHistogram decodeTimes,
+        DurationHistogram upcallTimes,
+        DurationHistogram queueOfferTimes
+    ) {
+        this.kernelEventCount = kernelEventCount;
+        this.deliveredEventCount = deliveredEventCount;
+        this.droppedEventCount = droppedEventCount;
+        this.operatingSystemOverflowCount = operatingSystemOverflowCount;
+        this.eventQueueOverflowCount = eventQueueOverflowCount;
+        this.eventQueueHighWaterMark = eventQueueHighWaterMark;
+        this.activeWatchCount = activeWatchCount;
+        this.readTimes = readTimes;
+        this.decodeTimes = decodeTimes;
+        this.upcallTimes = upcallTimes;
+        this.queueOfferTimes = queueOfferTimes;
+    }
+
+    /**
+     * Returns how many raw events the watcher has read from the operating system.
+     */
+    public long getKernelEventCount() {
+        return kernelEventCount;
+    }
+
+    /**
+     * Returns how many events have been passed to the handler, or put on the event queue.
+     */
+    public long getDeliveredEventCount() {
+        return deliveredEventCount;
+    }
+
+    /**
+     * Returns how many events have been dropped because the event queue overflowed,
+     * including the events that were already queued at the time.
+     */
+    public long getDroppedEventCount() {
+        return droppedEventCount;
+    }
+
+    /**
+     * Returns how many {@link FileWatchEvent.OverflowType#OPERATING_SYSTEM} overflows have been reported.
+     */
+    public long getOperatingSystemOverflowCount() {
+        return operatingSystemOverflowCount;
+    }
+
+    /**
+     * Returns how many {@link FileWatchEvent.OverflowType#EVENT_QUEUE} overflows have been reported.
+     */
+    public long getEventQueueOverflowCount() {
+        return eventQueueOverflowCount;
+    }
+
+    /**
+     * Returns the largest number of events that have been waiting in the event queue at once.
+     * Always {@code 0} for watchers reporting events to a handler.
+     */
+    public long getEventQueueHighWaterMark() {
+        return eventQueueHighWaterMark;
+    }
+
+    /**
+     * Returns how many watches the watcher has currently registered with the operating system.
+     * When watching recursively on Linux, this includes a watch for each directory in the hierarchy.
+     */
+    public long getActiveWatchCount() {
+        return activeWatchCount;
+    }
+
+    /**
+     * Returns the time spent reading events from the operating system.
+     * Empty on platforms where the operating system pushes the events to the watcher.
+     */
+    public DurationHistogram getReadTimes() {
+        return readTimes;
+    }
+
+    /**
+     * Returns the time spent decoding batches of events read from the operating system,
+     * not including the time spent calling back to Java.
+     */
+    public DurationHistogram getDecodeTimes() {
+        return decodeTimes;
+    }
+
+    /**
+     * Returns the time spent calling back from the native code to Java, including handling the events there.
+     */
+    public DurationHistogram getUpcallTimes() {
+        return upcallTimes;
+    }
+
+    /**
+     * Returns the time spent putting events on the event queue, including waiting for room.
+     * Empty for watchers reporting events to a handler.
+     */
+    public DurationHistogram getQueueOfferTimes() {
+        return queueOfferTimes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d kernel events, %d delivered, %d dropped, %d OS overflows, %d queue overflows, queue high-water mark %d, %d active watches",
+            kernelEventCount, deliveredEventCount, droppedEventCount, operatingSystemOverflowCount, eventQueueOverflowCount, eventQueueHighWaterMark, activeWatchCount);
+    }
+
+    /**
+     * Counts durations in buckets by powers of two: bucket {@code i} counts durations
+     * of at least 2<sup>i</sup> and less than 2<sup>i+1</sup> nanoseconds.
+     * The last bucket also counts anything longer.
+     */
+    @Immutable
+    public static final class DurationHistogram {
+        private final long[] counts;
+
+        public DurationHistogram(long[] counts) {
+            this.counts = counts.clone();
+        }
+
+        /**
+         * Returns the number of buckets.
+         */
+        public int getBucketCount() {
+            return counts.length;
+        }
+
+        /**
+         * Returns the number of durations counted in the given bucket.
+         */
+        public long getCount(int bucket) {
+            return counts[bucket];
+        }
+
+        /**
+         * Returns the number of durations counted in total.
+         */
+        public long getCount() {
+            long count = 0;
+            for (long bucketCount : counts) {
+                count += bucketCount;
+            }
+            return count;
+        }
+
+        /**
+         * Returns the upper bound of the bucket that contains the given percentile of the durations,
+         * or {@code 0} if no durations have been counted.
+         *
+         * @param percentile the percentile between {@code 0} and {@code 100}.
+         * @param unit the time unit of the result.
+         */
+        public long getPercentile(double percentile, TimeUnit unit) {
+            if (percentile < 0 || percentile > 100) {
+                throw new IllegalArgumentException("Percentile must be between 0 and 100: " + percentile);
+            }
+            long total = getCount();
+            if (total == 0) {
+                return 0;
+            }
+            long threshold = Math.max(1, (long) Math.ceil(total * percentile / 100));
+            long count = 0;
+            int bucket = 0;
+            while (bucket < counts.length - 1) {
+                count += counts[bucket];
+                if (count >= threshold) {
+                    break;
+                }
+                bucket++;
+            }
+            return unit.convert(1L << (bucket + 1), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public String toString() {
+            return "DurationHistogram" + Arrays.toString(counts);
+        }
+    }
+}
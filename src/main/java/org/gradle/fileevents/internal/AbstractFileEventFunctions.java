@@ -3,26 +3,98 @@ package org.gradle.fileevents.internal;
 import net.rubygrapefruit.platform.NativeException;
 import net.rubygrapefruit.platform.NativeIntegration;
 import org.gradle.fileevents.FileWatchEvent;
+import org.gradle.fileevents.FileWatchEvent.ChangeType;
 import org.gradle.fileevents.FileWatchEvent.OverflowType;
 import org.gradle.fileevents.FileWatcher;
+import org.gradle.fileevents.FileWatcher.RegistrationStatus;
+import org.gradle.fileevents.FileWatcherStatistics;
 
 import javax.annotation.Nullable;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 public abstract class AbstractFileEventFunctions<W extends FileWatcher> implements NativeIntegration {
-    public abstract static class AbstractWatcherBuilder<T extends FileWatcher> {
+    /**
+     * Builds watchers of type {@code T}, with {@code B} being the type of the concrete builder,
+     * so that the shared options can be chained with the platform specific ones.
+     */
+    public abstract static class AbstractWatcherBuilder<T extends FileWatcher, B extends AbstractWatcherBuilder<T, B>> {
         public static final long DEFAULT_START_TIMEOUT_IN_SECONDS = 5;
 
+        @Nullable
         private final BlockingQueue<FileWatchEvent> eventQueue;
+        @Nullable
+        private final FileWatchEvent.Handler handler;
+        private long backpressureTimeoutInNanos;
+        private BackpressureStatistics backpressureStatistics = new BackpressureStatistics();
+        @Nullable
+        private SpillJournal spillJournal;
 
         public AbstractWatcherBuilder(BlockingQueue<FileWatchEvent> eventQueue) {
             this.eventQueue = eventQueue;
+            this.handler = null;
+        }
+
+        public AbstractWatcherBuilder(FileWatchEvent.Handler handler) {
+            this.eventQueue = null;
+            this.handler = handler;
+        }
+
+        /**
+         * Wait for the consumer to make room when the event queue is full, instead of
+         * dropping all queued events and reporting an {@link OverflowType#EVENT_QUEUE} overflow right away.
+         *
+         * While the watcher is waiting it doesn't read any further events, so the operating system
+         * buffers them in the meantime. The overflow is only reported when there is still no room
+         * in the queue after the timeout, or when the operating system buffer overflows first.
+         *
+         * The watcher waits on its background thread while reporting the event.
+         * Except for {@link LinuxFileEventFunctions}, it holds its native locks while doing so,
+         * and starting or stopping to watch paths blocks until the wait is over.
+         * Don't start or stop watching paths from the thread consuming the queue then:
+         * as it cannot make room in the meantime, every event would wait for the full timeout.
+         * On Linux, the futures returned by {@link FileWatcher#startWatchingAsync(Collection)}
+         * and its counterpart are only completed after the wait, too.
+         *
+         * @param timeout how long to wait for room for a single event, {@code 0} meaning not to wait.
+         * @param unit the time unit for {@code timeout}.
+         * @param statistics receives how long the watcher has been waiting.
+         */
+        public B withBackpressure(long timeout, TimeUnit unit, BackpressureStatistics statistics) {
+            if (eventQueue == null) {
+                throw new IllegalStateException("Backpressure is only supported when reporting events to a queue");
+            }
+            this.backpressureTimeoutInNanos = unit.toNanos(timeout);
+            this.backpressureStatistics = statistics;
+            return self();
+        }
+
+        /**
+         * Spill the events that don't fit into the event queue to the given journal on disk,
+         * instead of dropping all queued events and reporting an {@link OverflowType#EVENT_QUEUE} overflow.
+         * The spilled events are replayed into the queue in order as the consumer makes room.
+         *
+         * When combined with {@link #withBackpressure(long, TimeUnit, BackpressureStatistics)},
+         * events are only spilled once the backpressure timeout has passed.
+         *
+         * @see SpillJournal
+         */
+        public B withSpillJournal(SpillJournal journal) {
+            if (eventQueue == null) {
+                throw new IllegalStateException("Spill journal is only supported when reporting events to a queue");
+            }
+            this.spillJournal = journal;
+            return self();
         }
 
         /**
@@ -48,13 +120,109 @@ public abstract class AbstractFileEventFunctions<W extends FileWatcher> implemen
          * @see FileWatcher#startWatching(Collection)
          */
         public T start(long startTimeout, TimeUnit startTimeoutUnit) throws InterruptedException, InsufficientResourcesForWatchingException {
-            NativeFileWatcherCallback callback = new NativeFileWatcherCallback(eventQueue);
-            T watcher = createWatcher(callback);
+            WatcherCounters counters = new WatcherCounters();
+            NativeFileWatcherCallback callback = new NativeFileWatcherCallback(createHandler(counters), counters, eventQueue == null);
+            T watcher;
+            try {
+                watcher = createWatcher(callback);
+            } catch (RuntimeException e) {
+                // There won't be a termination to replay
+                finishReplaying();
+                throw e;
+            }
             watcher.initialize(startTimeout, startTimeoutUnit);
             return watcher;
         }
 
+        /**
+         * Starts the given number of watchers that report to the same event queue or handler.
+         * The calls to a handler given by the user are serialized, and the termination is only reported
+         * after all the watchers have terminated. The watchers share the Java side statistics.
+         *
+         * When a watcher can't be started, the ones started before are shut down again.
+         *
+         * @throws FileWatcherTimeoutException if a watcher did not start up in the given timeout.
+         * @throws InterruptedException if the current thread has been interrupted.
+         */
+        protected List<T> startShards(int shardCount, long startTimeout, TimeUnit startTimeoutUnit) throws InterruptedException {
+            WatcherCounters counters = new WatcherCounters();
+            FileWatchEvent.Handler handler = createHandler(counters);
+            if (eventQueue == null) {
+                handler = new SerializingHandler(handler);
+            }
+            ShardMergingHandler sharedHandler = new ShardMergingHandler(handler, shardCount);
+            List<T> shards = new ArrayList<T>(shardCount);
+            boolean started = false;
+            try {
+                for (int i = 0; i < shardCount; i++) {
+                    T shard = createWatcher(new NativeFileWatcherCallback(sharedHandler, counters, eventQueue == null));
+                    shard.initialize(startTimeout, startTimeoutUnit);
+                    shards.add(shard);
+                }
+                started = true;
+                return shards;
+            } finally {
+                if (!started) {
+                    sharedHandler.abandonShards(shardCount - shards.size());
+                    stopShards(shards, startTimeout, startTimeoutUnit);
+                    finishReplaying();
+                }
+            }
+        }
+
+        private static void stopShards(List<? extends FileWatcher> shards, long timeout, TimeUnit unit) {
+            for (FileWatcher shard : shards) {
+                shard.shutdown();
+            }
+            try {
+                long deadline = System.nanoTime() + unit.toNanos(timeout);
+                for (FileWatcher shard : shards) {
+                    long remainingTimeout = Math.max(0, deadline - System.nanoTime());
+                    if (!shard.awaitTermination(remainingTimeout, TimeUnit.NANOSECONDS)) {
+                        NativeLogger.LOGGER.warn("Couldn't stop file watcher shard after failing to start the others");
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Creates the handler that reports to the event queue or handler of this builder, recording into the given counters.
+         */
+        protected FileWatchEvent.Handler createHandler(WatcherCounters counters) {
+            if (eventQueue == null) {
+                return handler;
+            }
+            if (spillJournal != null) {
+                spillJournal.startReplaying(new ReplayingHandler(eventQueue));
+            }
+            return new QueueingHandler(eventQueue, backpressureTimeoutInNanos, backpressureStatistics, spillJournal, counters);
+        }
+
+        /**
+         * Lets the spill journal stop replaying when the watchers using the handler from {@link #createHandler(WatcherCounters)}
+         * couldn't be created.
+         */
+        protected void finishReplaying() {
+            if (spillJournal != null) {
+                spillJournal.finishReplaying();
+            }
+        }
+
+        /**
+         * Whether the events are reported to an event queue, and counted as delivered by the queueing handler.
+         */
+        protected boolean isReportingToQueue() {
+            return eventQueue != null;
+        }
+
         protected abstract T createWatcher(NativeFileWatcherCallback callback);
+
+        @SuppressWarnings("unchecked")
+        private B self() {
+            return (B) this;
+        }
     }
 
     /**
@@ -64,60 +232,287 @@ public abstract class AbstractFileEventFunctions<W extends FileWatcher> implemen
      * The queue must have a total capacity of at least 2 elements.
      * The caller should only consume events from the queue, and never add any of their own.
      */
-    public abstract AbstractWatcherBuilder<W> newWatcher(BlockingQueue<FileWatchEvent> queue);
+    public abstract AbstractWatcherBuilder<W, ?> newWatcher(BlockingQueue<FileWatchEvent> queue);
+
+    /**
+     * Configures a new watcher using a builder that reports events directly to the given handler.
+     * Call {@link AbstractWatcherBuilder#start()} to actually start the {@link FileWatcher}.
+     *
+     * No event objects are created: the handler is called on the background thread of the watcher
+     * as soon as the events arrive, and it never receives {@link OverflowType#EVENT_QUEUE} overflows.
+     * The handler should return quickly, as no further events are processed while it is running.
+     * Exceptions thrown by the handler are logged and otherwise ignored.
+     */
+    public abstract AbstractWatcherBuilder<W, ?> newWatcher(FileWatchEvent.Handler handler);
 
     protected static class NativeFileWatcherCallback {
+        private static final ChangeType[] CHANGE_TYPES = ChangeType.values();
 
-        private final BlockingQueue<FileWatchEvent> eventQueue;
+        private final FileWatchEvent.Handler handler;
+        @Nullable
+        private final RelativeChangeHandler relativeHandler;
+        private final WatcherCounters counters;
+        // The queueing handler counts the events it actually queues itself
+        private final boolean countDeliveredEvents;
+        // Watched root paths by their IDs, as announced by the native side
+        private String[] roots = new String[16];
 
         public NativeFileWatcherCallback(BlockingQueue<FileWatchEvent> eventQueue) {
-            this.eventQueue = eventQueue;
+            this(eventQueue, new WatcherCounters());
+        }
+
+        private NativeFileWatcherCallback(BlockingQueue<FileWatchEvent> eventQueue, WatcherCounters counters) {
+            this(new QueueingHandler(eventQueue, 0, new BackpressureStatistics(), null, counters), counters);
+        }
+
+        public NativeFileWatcherCallback(FileWatchEvent.Handler handler) {
+            this(handler, new WatcherCounters());
+        }
+
+        private NativeFileWatcherCallback(FileWatchEvent.Handler handler, WatcherCounters counters) {
+            this(handler, counters, !(handler instanceof QueueingHandler));
+        }
+
+        private NativeFileWatcherCallback(FileWatchEvent.Handler handler, WatcherCounters counters, boolean countDeliveredEvents) {
+            this.handler = handler;
+            this.relativeHandler = handler instanceof RelativeChangeHandler
+                ? (RelativeChangeHandler) handler
+                : null;
+            this.counters = counters;
+            this.countDeliveredEvents = countDeliveredEvents;
+        }
+
+        WatcherCounters getCounters() {
+            return counters;
+        }
+
+        private void recordDelivered(int count) {
+            if (countDeliveredEvents) {
+                counters.recordDelivered(count);
+            }
         }
 
         // Called from the native side
         @SuppressWarnings("unused")
         public void reportChangeEvent(int typeIndex, String path) {
-            FileWatchEvent.ChangeType type = FileWatchEvent.ChangeType.values()[typeIndex];
-            queueEvent(new ChangeEvent(type, path), false);
+            recordDelivered(1);
+            handler.handleChangeEvent(CHANGE_TYPES[typeIndex], path);
+        }
+
+        // Called from the native side
+        @SuppressWarnings("unused")
+        public void reportChangeEvents(int[] typeIndices, String[] paths) {
+            Object batchEvent = FlightRecorderEvents.beginEventBatch();
+            for (int i = 0; i < paths.length; i++) {
+                reportChangeEvent(typeIndices[i], paths[i]);
+            }
+            FlightRecorderEvents.endEventBatch(batchEvent, paths.length);
+        }
+
+        // Called from the native side
+        @SuppressWarnings("unused")
+        public void reportRoot(int rootId, String path) {
+            if (rootId >= roots.length) {
+                roots = Arrays.copyOf(roots, Math.max(rootId + 1, roots.length * 2));
+            }
+            roots[rootId] = path;
+        }
+
+        /**
+         * Reports changes to paths relative to the watched roots announced via {@link #reportRoot(int, String)}.
+         * An empty name stands for the root itself.
+         */
+        // Called from the native side
+        @SuppressWarnings("unused")
+        public void reportRelativeChangeEvents(int[] typeIndices, int[] rootIds, String[] names) {
+            recordDelivered(names.length);
+            Object batchEvent = FlightRecorderEvents.beginEventBatch();
+            for (int i = 0; i < names.length; i++) {
+                ChangeType type = CHANGE_TYPES[typeIndices[i]];
+                String root = roots[rootIds[i]];
+                String name = names[i];
+                if (relativeHandler != null) {
+                    relativeHandler.handleChangeEvent(type, root, name);
+                } else {
+                    handler.handleChangeEvent(type, resolvePath(root, name));
+                }
+            }
+            FlightRecorderEvents.endEventBatch(batchEvent, names.length);
         }
 
         // Called from the native side
         @SuppressWarnings("unused")
         public void reportUnknownEvent(String path) {
-            queueEvent(new UnknownEvent(path), false);
+            recordDelivered(1);
+            handler.handleUnknownEvent(path);
         }
 
         // Called from the native side
         @SuppressWarnings("unused")
         public void reportOverflow(@Nullable String path) {
-            signalOverflow(OverflowType.OPERATING_SYSTEM, path);
+            counters.recordOperatingSystemOverflow();
+            FlightRecorderEvents.overflow(OverflowType.OPERATING_SYSTEM, path);
+            recordDelivered(1);
+            handler.handleOverflow(OverflowType.OPERATING_SYSTEM, path);
         }
 
         // Called from the native side
         @SuppressWarnings("unused")
         public void reportFailure(Throwable ex) {
-            queueEvent(new FailureEvent(ex), true);
+            recordDelivered(1);
+            handler.handleFailure(ex);
         }
 
         // Called from the native side
         @SuppressWarnings("unused")
         public void reportTermination() {
+            handler.handleTerminated();
+        }
+    }
+
+    static String resolvePath(String root, String name) {
+        return name.isEmpty()
+            ? root
+            : root + '/' + name;
+    }
+
+    /**
+     * Handles changes to paths relative to a watched root, without building the absolute path first.
+     */
+    interface RelativeChangeHandler {
+        void handleChangeEvent(ChangeType type, String rootPath, String name);
+    }
+
+    /**
+     * Turns the reported events into {@link FileWatchEvent}s, and puts them on the event queue.
+     */
+    private static class QueueingHandler implements FileWatchEvent.Handler, RelativeChangeHandler {
+        private final BlockingQueue<FileWatchEvent> eventQueue;
+        private final long backpressureTimeoutInNanos;
+        private final BackpressureStatistics backpressureStatistics;
+        @Nullable
+        private final SpillJournal spillJournal;
+        private final WatcherCounters counters;
+
+        public QueueingHandler(BlockingQueue<FileWatchEvent> eventQueue, long backpressureTimeoutInNanos, BackpressureStatistics backpressureStatistics, @Nullable SpillJournal spillJournal, WatcherCounters counters) {
+            this.eventQueue = eventQueue;
+            this.backpressureTimeoutInNanos = backpressureTimeoutInNanos;
+            this.backpressureStatistics = backpressureStatistics;
+            this.spillJournal = spillJournal;
+            this.counters = counters;
+        }
+
+        @Override
+        public void handleChangeEvent(ChangeType type, String absolutePath) {
+            queueEvent(new ChangeEvent(type, absolutePath), false);
+        }
+
+        @Override
+        public void handleChangeEvent(ChangeType type, String rootPath, String name) {
+            // Share the root path between the events, the absolute path is only built when the event is handled
+            queueEvent(new RelativeChangeEvent(type, rootPath, name), false);
+        }
+
+        @Override
+        public void handleUnknownEvent(String absolutePath) {
+            queueEvent(new UnknownEvent(absolutePath), false);
+        }
+
+        @Override
+        public void handleOverflow(OverflowType type, @Nullable String absolutePath) {
+            OverflowEvent event = new OverflowEvent(type, absolutePath);
+            if (!spillIfNecessary(event)) {
+                signalOverflow(event);
+            }
+        }
+
+        @Override
+        public void handleFailure(Throwable failure) {
+            queueEvent(new FailureEvent(failure), true);
+        }
+
+        @Override
+        public void handleTerminated() {
             queueEvent(TerminationEvent.INSTANCE, true);
+            if (spillJournal != null) {
+                // Nothing more to spill, whether the termination has been spilled or not
+                spillJournal.finishReplaying();
+            }
         }
 
         private void queueEvent(FileWatchEvent event, boolean deliverOnOverflow) {
-            if (!eventQueue.offer(event)) {
+            if (spillIfNecessary(event)) {
+                return;
+            }
+            long startTime = System.nanoTime();
+            boolean queued = eventQueue.offer(event) || waitForRoom(event);
+            counters.recordQueueOffer(System.nanoTime() - startTime);
+            if (queued) {
+                recordQueued();
+            } else if (!spill(event)) {
                 NativeLogger.LOGGER.info("Event queue overflow, dropping all events");
-                signalOverflow(OverflowType.EVENT_QUEUE, null);
+                backpressureStatistics.recordOverflow();
+                counters.recordEventQueueOverflow();
+                FlightRecorderEvents.overflow(OverflowType.EVENT_QUEUE, null);
+                signalOverflow(new OverflowEvent(OverflowType.EVENT_QUEUE, null));
                 if (deliverOnOverflow) {
                     forceQueueEvent(event);
+                } else {
+                    counters.recordDropped(1);
                 }
             }
         }
 
-        private void signalOverflow(OverflowType type, @Nullable String path) {
+        private void recordQueued() {
+            counters.recordDelivered(1);
+            counters.recordQueueSize(eventQueue.size());
+        }
+
+        /**
+         * Wait for the consumer to make room in the queue, keeping the operating system buffering events in the meantime.
+         */
+        private boolean waitForRoom(FileWatchEvent event) {
+            if (backpressureTimeoutInNanos <= 0) {
+                return false;
+            }
+            long startTime = System.nanoTime();
+            Object stallEvent = FlightRecorderEvents.beginQueueStall();
+            boolean successful = false;
+            try {
+                successful = eventQueue.offer(event, backpressureTimeoutInNanos, TimeUnit.NANOSECONDS);
+                return successful;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                backpressureStatistics.recordBlocked(System.nanoTime() - startTime);
+                FlightRecorderEvents.endQueueStall(stallEvent, successful);
+            }
+        }
+
+        /**
+         * Keep spilling while there are spilled events left to replay, so events are delivered in order.
+         */
+        private boolean spillIfNecessary(FileWatchEvent event) {
+            return spillJournal != null
+                && spillJournal.hasPendingEvents()
+                && spill(event);
+        }
+
+        private boolean spill(FileWatchEvent event) {
+            // When the journal fails, we fall back to an overflow.
+            // Spilled events replayed after it only cause the consumer to do some extra work.
+            if (spillJournal != null && spillJournal.append(event)) {
+                counters.recordDelivered(1);
+                return true;
+            }
+            return false;
+        }
+
+        private void signalOverflow(OverflowEvent event) {
+            counters.recordDropped(eventQueue.size());
             eventQueue.clear();
-            forceQueueEvent(new OverflowEvent(type, path));
+            forceQueueEvent(event);
         }
 
         /**
@@ -133,18 +528,178 @@ public abstract class AbstractFileEventFunctions<W extends FileWatcher> implemen
          */
         private void forceQueueEvent(FileWatchEvent event) {
             boolean eventPublished = eventQueue.offer(event);
-            if (!eventPublished) {
+            if (eventPublished) {
+                recordQueued();
+            } else {
+                counters.recordDropped(1);
                 NativeLogger.LOGGER.error("Couldn't queue event: " + event);
             }
         }
     }
 
+    /**
+     * Merges the events of multiple watchers into a single handler.
+     *
+     * The watchers report events from their own threads, without waiting for each other.
+     * The queueing handler is thread-safe, and a handler given by the user is wrapped in a {@link SerializingHandler}.
+     */
+    private static class ShardMergingHandler implements FileWatchEvent.Handler, RelativeChangeHandler {
+        private final FileWatchEvent.Handler delegate;
+        @Nullable
+        private final RelativeChangeHandler relativeDelegate;
+        private final AtomicInteger runningShards;
+
+        public ShardMergingHandler(FileWatchEvent.Handler delegate, int shardCount) {
+            this.delegate = delegate;
+            this.relativeDelegate = delegate instanceof RelativeChangeHandler
+                ? (RelativeChangeHandler) delegate
+                : null;
+            this.runningShards = new AtomicInteger(shardCount);
+        }
+
+        /**
+         * Stops waiting for the termination of shards that have never been started.
+         * The termination is not reported when none of the shards have been started.
+         */
+        void abandonShards(int count) {
+            runningShards.addAndGet(-count);
+        }
+
+        @Override
+        public void handleChangeEvent(ChangeType type, String absolutePath) {
+            delegate.handleChangeEvent(type, absolutePath);
+        }
+
+        @Override
+        public void handleChangeEvent(ChangeType type, String rootPath, String name) {
+            if (relativeDelegate != null) {
+                relativeDelegate.handleChangeEvent(type, rootPath, name);
+            } else {
+                delegate.handleChangeEvent(type, resolvePath(rootPath, name));
+            }
+        }
+
+        @Override
+        public void handleUnknownEvent(String absolutePath) {
+            delegate.handleUnknownEvent(absolutePath);
+        }
+
+        @Override
+        public void handleOverflow(OverflowType type, @Nullable String absolutePath) {
+            delegate.handleOverflow(type, absolutePath);
+        }
+
+        @Override
+        public void handleFailure(Throwable failure) {
+            delegate.handleFailure(failure);
+        }
+
+        @Override
+        public void handleTerminated() {
+            if (runningShards.decrementAndGet() == 0) {
+                delegate.handleTerminated();
+            }
+        }
+    }
+
+    /**
+     * Serializes the calls to a handler given by the user, which isn't expected to be thread-safe.
+     */
+    private static class SerializingHandler implements FileWatchEvent.Handler {
+        private final FileWatchEvent.Handler delegate;
+
+        public SerializingHandler(FileWatchEvent.Handler delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public synchronized void handleChangeEvent(ChangeType type, String absolutePath) {
+            delegate.handleChangeEvent(type, absolutePath);
+        }
+
+        @Override
+        public synchronized void handleUnknownEvent(String absolutePath) {
+            delegate.handleUnknownEvent(absolutePath);
+        }
+
+        @Override
+        public synchronized void handleOverflow(OverflowType type, @Nullable String absolutePath) {
+            delegate.handleOverflow(type, absolutePath);
+        }
+
+        @Override
+        public synchronized void handleFailure(Throwable failure) {
+            delegate.handleFailure(failure);
+        }
+
+        @Override
+        public synchronized void handleTerminated() {
+            delegate.handleTerminated();
+        }
+    }
+
+    /**
+     * Puts the events replayed from a {@link SpillJournal} on the event queue, waiting for room as necessary.
+     */
+    private static class ReplayingHandler implements FileWatchEvent.Handler {
+        private final BlockingQueue<FileWatchEvent> eventQueue;
+
+        public ReplayingHandler(BlockingQueue<FileWatchEvent> eventQueue) {
+            this.eventQueue = eventQueue;
+        }
+
+        @Override
+        public void handleChangeEvent(ChangeType type, String absolutePath) {
+            putEvent(new ChangeEvent(type, absolutePath));
+        }
+
+        @Override
+        public void handleUnknownEvent(String absolutePath) {
+            putEvent(new UnknownEvent(absolutePath));
+        }
+
+        @Override
+        public void handleOverflow(OverflowType type, @Nullable String absolutePath) {
+            putEvent(new OverflowEvent(type, absolutePath));
+        }
+
+        @Override
+        public void handleFailure(Throwable failure) {
+            putEvent(new FailureEvent(failure));
+        }
+
+        @Override
+        public void handleTerminated() {
+            putEvent(TerminationEvent.INSTANCE);
+        }
+
+        private void putEvent(FileWatchEvent event) {
+            try {
+                eventQueue.put(event);
+            } catch (InterruptedException e) {
+                // The journal has been closed, it checks the flag after each event
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
     protected static abstract class AbstractFileWatcher implements FileWatcher {
         private final CountDownLatch runLoopInitialized = new CountDownLatch(1);
+        // Counted down once the final native statistics have been read, the native resources can be released afterwards
+        private final CountDownLatch runLoopFinished = new CountDownLatch(1);
         private final Thread processorThread;
+        private final WatcherCounters counters;
+        // Guards reading the native statistics against the final snapshot being taken
+        private final Object nativeStatisticsLock = new Object();
+        private final long[] nativeStatistics = new long[WatcherCounters.NATIVE_STATISTICS_SIZE];
+        private boolean nativeStatisticsFinal;
+        // Makes sure the native resources are released only once
+        private final Object terminationLock = new Object();
+        private boolean terminated;
         private boolean shutdown;
 
         public AbstractFileWatcher(final NativeFileWatcherCallback callback) {
+            this.counters = callback.getCounters();
             this.processorThread = new Thread("File watcher server") {
                 @Override
                 public void run() {
@@ -158,6 +713,8 @@ public abstract class AbstractFileEventFunctions<W extends FileWatcher> implemen
                     } catch (Throwable e) {
                         callback.reportFailure(e);
                     } finally {
+                        readFinalNativeStatistics();
+                        runLoopFinished.countDown();
                         callback.reportTermination();
                     }
                 }
@@ -178,13 +735,46 @@ public abstract class AbstractFileEventFunctions<W extends FileWatcher> implemen
         @Override
         public void startWatching(Collection<File> paths) {
             ensureOpen();
-            doStartWatching(paths);
+            Object registrationEvent = FlightRecorderEvents.beginRegistration();
+            try {
+                doStartWatching(paths);
+            } finally {
+                FlightRecorderEvents.endRegistration(registrationEvent, "startWatching", paths.size());
+            }
+        }
+
+        @Override
+        public List<RegistrationStatus> tryStartWatching(Collection<File> paths) {
+            ensureOpen();
+            Object registrationEvent = FlightRecorderEvents.beginRegistration();
+            try {
+                return doTryStartWatching(paths);
+            } finally {
+                FlightRecorderEvents.endRegistration(registrationEvent, "tryStartWatching", paths.size());
+            }
+        }
+
+        @Override
+        public CompletableFuture<List<RegistrationStatus>> startWatchingAsync(Collection<File> paths) {
+            ensureOpen();
+            return doStartWatchingAsync(paths);
         }
 
         @Override
         public boolean stopWatching(Collection<File> paths) {
             ensureOpen();
-            return doStopWatching(paths);
+            Object registrationEvent = FlightRecorderEvents.beginRegistration();
+            try {
+                return doStopWatching(paths);
+            } finally {
+                FlightRecorderEvents.endRegistration(registrationEvent, "stopWatching", paths.size());
+            }
+        }
+
+        @Override
+        public CompletableFuture<Boolean> stopWatchingAsync(Collection<File> paths) {
+            ensureOpen();
+            return doStopWatchingAsync(paths);
         }
 
         @Override
@@ -198,10 +788,20 @@ public abstract class AbstractFileEventFunctions<W extends FileWatcher> implemen
         public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
             long timeoutInMillis = unit.toMillis(timeout);
             long startTime = System.currentTimeMillis();
-            boolean successful = awaitTermination(timeoutInMillis);
+            // Wait without holding any lock, so the statistics can still be read in the meantime
+            if (!runLoopFinished.await(timeoutInMillis, TimeUnit.MILLISECONDS)) {
+                return false;
+            }
+            boolean successful;
+            synchronized (terminationLock) {
+                if (!terminated) {
+                    // The run loop has finished already, so this does not block
+                    terminated = awaitTermination(Math.max(remainingTimeout(timeoutInMillis, startTime), 0));
+                }
+                successful = terminated;
+            }
             if (successful) {
-                long endTime = System.currentTimeMillis();
-                long remainingTimeout = timeoutInMillis - (endTime - startTime);
+                long remainingTimeout = remainingTimeout(timeoutInMillis, startTime);
                 if (remainingTimeout > 0) {
                     processorThread.join(remainingTimeout);
                 }
@@ -211,14 +811,78 @@ public abstract class AbstractFileEventFunctions<W extends FileWatcher> implemen
             }
         }
 
+        private static long remainingTimeout(long timeoutInMillis, long startTime) {
+            return timeoutInMillis - (System.currentTimeMillis() - startTime);
+        }
+
+        /**
+         * Returns a snapshot of the statistics. This can be called from any thread,
+         * and is cheap enough to be called regularly. After the watcher terminated,
+         * the statistics from right before the termination are returned.
+         */
+        @Override
+        public FileWatcherStatistics getStatistics() {
+            return counters.snapshot(getNativeStatistics());
+        }
+
+        /**
+         * Returns a copy of the statistics kept on the native side,
+         * or the ones from the end of the run loop after it has finished.
+         */
+        long[] getNativeStatistics() {
+            synchronized (nativeStatisticsLock) {
+                if (!nativeStatisticsFinal) {
+                    readNativeStatistics(nativeStatistics);
+                }
+                return nativeStatistics.clone();
+            }
+        }
+
+        /**
+         * Keeps the native statistics from the end of the run loop around,
+         * the native side releases them once the watcher has terminated.
+         */
+        private void readFinalNativeStatistics() {
+            synchronized (nativeStatisticsLock) {
+                try {
+                    readNativeStatistics(nativeStatistics);
+                } finally {
+                    nativeStatisticsFinal = true;
+                }
+            }
+        }
+
+        /**
+         * Reads the statistics kept on the native side into the given array
+         * of {@link WatcherCounters#NATIVE_STATISTICS_SIZE} values.
+         */
+        protected void readNativeStatistics(long[] values) {
+        }
+
         protected abstract void initializeRunLoop();
 
         protected abstract void executeRunLoop();
 
         protected abstract void doStartWatching(Collection<File> paths);
 
+        protected abstract List<RegistrationStatus> doTryStartWatching(Collection<File> paths);
+
         protected abstract boolean doStopWatching(Collection<File> paths);
 
+        /**
+         * Registers the paths right away, for backends that cannot execute commands on their run loop.
+         */
+        protected CompletableFuture<List<RegistrationStatus>> doStartWatchingAsync(Collection<File> paths) {
+            return CompletableFuture.completedFuture(tryStartWatching(paths));
+        }
+
+        /**
+         * Unregisters the paths right away, for backends that cannot execute commands on their run loop.
+         */
+        protected CompletableFuture<Boolean> doStopWatchingAsync(Collection<File> paths) {
+            return CompletableFuture.completedFuture(stopWatching(paths));
+        }
+
         protected abstract void doShutdown();
 
         protected abstract boolean awaitTermination(long timeoutInMillis);
@@ -230,7 +894,7 @@ public abstract class AbstractFileEventFunctions<W extends FileWatcher> implemen
         }
     }
 
-    private static class ChangeEvent implements FileWatchEvent {
+    static class ChangeEvent implements FileWatchEvent {
         private final ChangeType type;
         private final String path;
 
@@ -250,7 +914,36 @@ public abstract class AbstractFileEventFunctions<W extends FileWatcher> implemen
         }
     }
 
-    private static class OverflowEvent implements FileWatchEvent {
+    static class RelativeChangeEvent implements FileWatchEvent {
+        private final ChangeType type;
+        private final String rootPath;
+        private final String name;
+
+        public RelativeChangeEvent(ChangeType type, String rootPath, String name) {
+            this.type = type;
+            this.rootPath = rootPath;
+            this.name = name;
+        }
+
+        @Override
+        public void handleEvent(Handler handler) {
+            handler.handleChangeEvent(type, resolvePath(rootPath, name));
+        }
+
+        /**
+         * Hands the event to the given handler without building the absolute path.
+         */
+        void handleEvent(RelativeChangeHandler handler) {
+            handler.handleChangeEvent(type, rootPath, name);
+        }
+
+        @Override
+        public String toString() {
+            return type + " " + resolvePath(rootPath, name);
+        }
+    }
+
+    static class OverflowEvent implements FileWatchEvent {
         private final OverflowType type;
         private final String path;
 
@@ -270,7 +963,7 @@ public abstract class AbstractFileEventFunctions<W extends FileWatcher> implemen
         }
     }
 
-    private static class UnknownEvent implements FileWatchEvent {
+    static class UnknownEvent implements FileWatchEvent {
         private final String path;
 
         public UnknownEvent(String path) {
@@ -288,7 +981,7 @@ public abstract class AbstractFileEventFunctions<W extends FileWatcher> implemen
         }
     }
 
-    private static class FailureEvent implements FileWatchEvent {
+    static class FailureEvent implements FileWatchEvent {
         private final Throwable failure;
 
         public FailureEvent(Throwable failure) {
@@ -306,7 +999,7 @@ public abstract class AbstractFileEventFunctions<W extends FileWatcher> implemen
         }
     }
 
-    private static class TerminationEvent implements FileWatchEvent {
+    static class TerminationEvent implements FileWatchEvent {
         public final static TerminationEvent INSTANCE = new TerminationEvent();
 
         private TerminationEvent() {}
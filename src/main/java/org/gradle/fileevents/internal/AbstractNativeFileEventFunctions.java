@@ -1,9 +1,12 @@
 package org.gradle.fileevents.internal;
 
 import org.gradle.fileevents.FileWatcher;
+import org.gradle.fileevents.FileWatcher.RegistrationStatus;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 
 public abstract class AbstractNativeFileEventFunctions<W extends FileWatcher> extends AbstractFileEventFunctions<W> {
     public static String getVersion() {
@@ -12,7 +15,21 @@ public abstract class AbstractNativeFileEventFunctions<W extends FileWatcher> ex
 
     private static native String getVersion0();
 
+    /**
+     * Forces the native side to re-read the effective log level of {@link NativeLogger}.
+     *
+     * The native side only checks the log level periodically, so changes to it
+     * might take a while to take effect otherwise.
+     */
+    public void invalidateLogLevelCache() {
+        invalidateLogLevelCache0();
+    }
+
+    private static native void invalidateLogLevelCache0();
+
     protected static abstract class NativeFileWatcher extends AbstractFileWatcher {
+        private static final RegistrationStatus[] REGISTRATION_STATUSES = RegistrationStatus.values();
+
         protected final Object server;
 
         public NativeFileWatcher(Object server, NativeFileWatcherCallback callback) {
@@ -41,6 +58,23 @@ public abstract class AbstractNativeFileEventFunctions<W extends FileWatcher> ex
 
         private native void startWatching0(Object server, String[] absolutePaths);
 
+        @Override
+        protected List<RegistrationStatus> doTryStartWatching(Collection<File> paths) {
+            int[] statusIndices = new int[paths.size()];
+            tryStartWatching0(server, toAbsolutePaths(paths), statusIndices);
+            return toRegistrationStatuses(statusIndices);
+        }
+
+        private native void tryStartWatching0(Object server, String[] absolutePaths, int[] statuses);
+
+        protected static List<RegistrationStatus> toRegistrationStatuses(int[] statusIndices) {
+            List<RegistrationStatus> statuses = new ArrayList<RegistrationStatus>(statusIndices.length);
+            for (int statusIndex : statusIndices) {
+                statuses.add(REGISTRATION_STATUSES[statusIndex]);
+            }
+            return statuses;
+        }
+
         @Override
         protected boolean doStopWatching(Collection<File> paths) {
             return stopWatching0(server, toAbsolutePaths(paths));
@@ -70,5 +104,12 @@ public abstract class AbstractNativeFileEventFunctions<W extends FileWatcher> ex
         }
 
         private native boolean awaitTermination0(Object server, long timeoutInMillis);
+
+        @Override
+        protected void readNativeStatistics(long[] values) {
+            getStatistics0(server, values);
+        }
+
+        private native void getStatistics0(Object server, long[] values);
     }
 }
@@ -0,0 +1,66 @@
+package org.gradle.fileevents.internal;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of how long the watcher has been blocked waiting for the consumer
+ * to make room in the event queue.
+ *
+ * @see AbstractFileEventFunctions.AbstractWatcherBuilder#withBackpressure(long, TimeUnit, BackpressureStatistics)
+ */
+@ThreadSafe
+public class BackpressureStatistics {
+    private final AtomicLong blockedCount = new AtomicLong();
+    private final AtomicLong blockedTimeInNanos = new AtomicLong();
+    private final AtomicLong maxBlockedTimeInNanos = new AtomicLong();
+    private final AtomicLong overflowCount = new AtomicLong();
+
+    void recordBlocked(long timeInNanos) {
+        blockedCount.incrementAndGet();
+        blockedTimeInNanos.addAndGet(timeInNanos);
+        long max = maxBlockedTimeInNanos.get();
+        while (timeInNanos > max && !maxBlockedTimeInNanos.compareAndSet(max, timeInNanos)) {
+            max = maxBlockedTimeInNanos.get();
+        }
+    }
+
+    void recordOverflow() {
+        overflowCount.incrementAndGet();
+    }
+
+    /**
+     * Returns how many times the watcher had to wait for room in the queue.
+     */
+    public long getBlockedCount() {
+        return blockedCount.get();
+    }
+
+    /**
+     * Returns the total time the watcher spent waiting for room in the queue.
+     */
+    public long getBlockedTime(TimeUnit unit) {
+        return unit.convert(blockedTimeInNanos.get(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the longest time the watcher spent waiting for room in the queue for a single event.
+     */
+    public long getMaxBlockedTime(TimeUnit unit) {
+        return unit.convert(maxBlockedTimeInNanos.get(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns how many times the queue overflowed because the consumer didn't catch up in time.
+     */
+    public long getOverflowCount() {
+        return overflowCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("blocked %d times for %d ms in total (max %d ms), overflowed %d times",
+            getBlockedCount(), getBlockedTime(TimeUnit.MILLISECONDS), getMaxBlockedTime(TimeUnit.MILLISECONDS), getOverflowCount());
+    }
+}
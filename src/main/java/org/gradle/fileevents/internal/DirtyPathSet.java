@@ -0,0 +1,332 @@
+package org.gradle.fileevents.internal;
+
+import org.gradle.fileevents.FileWatchEvent;
+import org.gradle.fileevents.FileWatchEvent.ChangeType;
+import org.gradle.fileevents.FileWatchEvent.OverflowType;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * A handler that accumulates the changed paths in a deduplicated set with a bounded size,
+ * instead of queueing every event.
+ *
+ * When the estimated memory used by the paths exceeds the budget, the deepest paths are coarsened into their
+ * parent directories, which are then reported as {@link ChangeType#INVALIDATED INVALIDATED}.
+ * Coarsening never goes above a watched root registered via {@link #addWatchedRoot(String)}.
+ * This way the consumer only needs to rescan a few subtrees instead of everything.
+ *
+ * <h3>Remarks:</h3>
+ *
+ * <ul>
+ *     <li>Paths are reported in order, with the last change received for them.
+ *     Paths below an invalidated directory are not reported separately.</li>
+ *
+ *     <li>Unknown events and overflows for a given path invalidate the path.</li>
+ *
+ *     <li>The set only overflows when the watched roots with changes alone exceed the budget,
+ *     or when receiving an overflow that doesn't specify the affected path.
+ *     The consumer then receives an {@link OverflowType#EVENT_QUEUE EVENT_QUEUE} overflow
+ *     and must discard all information.</li>
+ *
+ *     <li>Failures and termination are reported to the consumer after the accumulated paths.</li>
+ * </ul>
+ */
+@ThreadSafe
+public class DirtyPathSet implements FileWatchEvent.Handler {
+    // Roughly what a map entry, a String and its character array take up besides the characters
+    private static final int PATH_OVERHEAD_IN_BYTES = 96;
+
+    private final long maxBytes;
+    private final Set<String> watchedRoots = new HashSet<String>();
+    // Ordered so that the descendants of a path are next to each other
+    private final NavigableMap<String, ChangeType> paths = new TreeMap<String, ChangeType>();
+    private final NavigableMap<Integer, Set<String>> pathsByDepth = new TreeMap<Integer, Set<String>>();
+    private final List<Throwable> failures = new ArrayList<Throwable>();
+    private long bytes;
+    private int invalidatedPaths;
+    private boolean overflowed;
+    private boolean terminated;
+
+    /**
+     * Creates a new set.
+     *
+     * @param maxBytes the estimated memory the paths can take up, see {@link #estimateSize(String)}.
+     */
+    public DirtyPathSet(long maxBytes) {
+        if (maxBytes < 1) {
+            throw new IllegalArgumentException("Dirty path set budget must be positive, was " + maxBytes);
+        }
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the estimated memory a path takes up in the set.
+     */
+    public static long estimateSize(String absolutePath) {
+        return PATH_OVERHEAD_IN_BYTES + 2L * absolutePath.length();
+    }
+
+    /**
+     * Registers a watched root, paths are not coarsened beyond it.
+     */
+    public synchronized void addWatchedRoot(String absolutePath) {
+        watchedRoots.add(absolutePath);
+    }
+
+    /**
+     * Unregisters a watched root.
+     */
+    public synchronized void removeWatchedRoot(String absolutePath) {
+        watchedRoots.remove(absolutePath);
+    }
+
+    /**
+     * Returns the number of paths currently in the set.
+     */
+    public synchronized int size() {
+        return paths.size();
+    }
+
+    /**
+     * Returns the estimated memory the paths currently in the set take up.
+     */
+    public synchronized long getEstimatedBytes() {
+        return bytes;
+    }
+
+    /**
+     * Reports everything accumulated so far to the given handler, and clears the set.
+     *
+     * @return the number of events reported.
+     */
+    public int drain(FileWatchEvent.Handler handler) {
+        Map<String, ChangeType> drainedPaths;
+        List<Throwable> drainedFailures;
+        boolean drainedOverflow;
+        boolean drainedTermination;
+        synchronized (this) {
+            drainedPaths = new TreeMap<String, ChangeType>(paths);
+            drainedFailures = new ArrayList<Throwable>(failures);
+            drainedOverflow = overflowed;
+            drainedTermination = terminated;
+            clearPaths();
+            failures.clear();
+            overflowed = false;
+            terminated = false;
+        }
+        int events = 0;
+        if (drainedOverflow) {
+            handler.handleOverflow(OverflowType.EVENT_QUEUE, null);
+            events++;
+        }
+        for (Map.Entry<String, ChangeType> entry : drainedPaths.entrySet()) {
+            handler.handleChangeEvent(entry.getValue(), entry.getKey());
+            events++;
+        }
+        for (Throwable failure : drainedFailures) {
+            handler.handleFailure(failure);
+            events++;
+        }
+        if (drainedTermination) {
+            handler.handleTerminated();
+            events++;
+        }
+        return events;
+    }
+
+    @Override
+    public synchronized void handleChangeEvent(ChangeType type, String absolutePath) {
+        if (type == ChangeType.INVALIDATED) {
+            invalidate(absolutePath);
+        } else if (!overflowed && !isCoveredByInvalidatedAncestor(absolutePath)) {
+            ChangeType previousType = paths.get(absolutePath);
+            if (previousType == null) {
+                addPath(absolutePath, type);
+            } else if (previousType != ChangeType.INVALIDATED) {
+                // Nothing can be more dirty than invalidated, otherwise the last change wins
+                paths.put(absolutePath, type);
+            }
+        }
+        coarsenIfNecessary();
+    }
+
+    @Override
+    public synchronized void handleUnknownEvent(String absolutePath) {
+        invalidate(absolutePath);
+        coarsenIfNecessary();
+    }
+
+    @Override
+    public synchronized void handleOverflow(OverflowType type, @Nullable String absolutePath) {
+        if (absolutePath == null) {
+            overflow();
+        } else {
+            invalidate(absolutePath);
+            coarsenIfNecessary();
+        }
+    }
+
+    @Override
+    public synchronized void handleFailure(Throwable failure) {
+        failures.add(failure);
+    }
+
+    @Override
+    public synchronized void handleTerminated() {
+        terminated = true;
+    }
+
+    private void invalidate(String absolutePath) {
+        if (overflowed || isCoveredByInvalidatedAncestor(absolutePath)) {
+            return;
+        }
+        ChangeType previousType = paths.get(absolutePath);
+        if (previousType == ChangeType.INVALIDATED) {
+            return;
+        }
+        if (previousType == null) {
+            addPath(absolutePath, ChangeType.INVALIDATED);
+        } else {
+            paths.put(absolutePath, ChangeType.INVALIDATED);
+        }
+        invalidatedPaths++;
+        removeDescendants(absolutePath);
+    }
+
+    private boolean isCoveredByInvalidatedAncestor(String absolutePath) {
+        if (invalidatedPaths == 0) {
+            return false;
+        }
+        for (String ancestor = getParent(absolutePath); ancestor != null; ancestor = getParent(ancestor)) {
+            if (paths.get(ancestor) == ChangeType.INVALIDATED) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void removeDescendants(String absolutePath) {
+        // Every descendant starts with the path and a separator, and sorts before the path followed by the next character
+        char separator = File.separatorChar;
+        Iterator<Map.Entry<String, ChangeType>> iterator = paths
+            .subMap(absolutePath + separator, true, absolutePath + (char) (separator + 1), false)
+            .entrySet()
+            .iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, ChangeType> entry = iterator.next();
+            untrackPath(entry.getKey(), entry.getValue());
+            iterator.remove();
+        }
+    }
+
+    private void coarsenIfNecessary() {
+        if (bytes <= maxBytes) {
+            return;
+        }
+        // Leave some room so we don't need to coarsen again on the next change
+        long targetBytes = maxBytes / 2;
+        while (bytes > targetBytes) {
+            List<String> deepestPaths = findDeepestPathsToCoarsen();
+            if (deepestPaths.isEmpty()) {
+                break;
+            }
+            for (String path : deepestPaths) {
+                ChangeType type = paths.remove(path);
+                if (type != null) {
+                    untrackPath(path, type);
+                }
+            }
+            for (String path : deepestPaths) {
+                invalidate(getParent(path));
+            }
+        }
+        if (bytes > maxBytes) {
+            overflow();
+        }
+    }
+
+    private List<String> findDeepestPathsToCoarsen() {
+        List<String> deepestPaths = new ArrayList<String>();
+        for (Set<String> pathsAtDepth : pathsByDepth.descendingMap().values()) {
+            for (String path : pathsAtDepth) {
+                if (canCoarsen(path)) {
+                    deepestPaths.add(path);
+                }
+            }
+            if (!deepestPaths.isEmpty()) {
+                break;
+            }
+        }
+        return deepestPaths;
+    }
+
+    private boolean canCoarsen(String path) {
+        return !watchedRoots.contains(path) && getParent(path) != null;
+    }
+
+    private void addPath(String path, ChangeType type) {
+        paths.put(path, type);
+        int depth = getDepth(path);
+        Set<String> pathsAtDepth = pathsByDepth.get(depth);
+        if (pathsAtDepth == null) {
+            pathsAtDepth = new HashSet<String>();
+            pathsByDepth.put(depth, pathsAtDepth);
+        }
+        pathsAtDepth.add(path);
+        bytes += estimateSize(path);
+    }
+
+    // Forgets about a path that has been removed from the paths already
+    private void untrackPath(String path, ChangeType type) {
+        int depth = getDepth(path);
+        Set<String> pathsAtDepth = pathsByDepth.get(depth);
+        pathsAtDepth.remove(path);
+        if (pathsAtDepth.isEmpty()) {
+            pathsByDepth.remove(depth);
+        }
+        bytes -= estimateSize(path);
+        if (type == ChangeType.INVALIDATED) {
+            invalidatedPaths--;
+        }
+    }
+
+    private void clearPaths() {
+        paths.clear();
+        pathsByDepth.clear();
+        bytes = 0;
+        invalidatedPaths = 0;
+    }
+
+    private void overflow() {
+        overflowed = true;
+        clearPaths();
+    }
+    @Nullable
+    private static String getParent(String path) {
+        int separator = path.lastIndexOf(File.separatorChar);
+        if (separator <= 0) {
+            return null;
+        }
+        return path.substring(0, separator);
+    }
+
+    private static int getDepth(String path) {
+        int depth = 0;
+        for (int i = 0; i < path.length(); i++) {
+            if (path.charAt(i) == File.separatorChar) {
+                depth++;
+            }
+        }
+        return depth;
+    }
+}
@@ -0,0 +1,107 @@
+package org.gradle.fileevents.internal;
+
+import org.gradle.fileevents.FileWatchEvent;
+import org.gradle.fileevents.FileWatcher;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * File watcher for Linux based on fanotify. Reports changes to the watched paths and any of their descendants.
+ *
+ * Instead of adding a watch for every directory like {@link LinuxFileEventFunctions},
+ * the watcher marks each file system containing a watched path once, and filters
+ * the events of the whole file system down to the watched hierarchies.
+ * This avoids running into the inotify watches limit with large hierarchies.
+ *
+ * <h3>Remarks:</h3>
+ *
+ * <ul>
+ *     <li>Requires Linux 5.9 or later and {@code CAP_SYS_ADMIN}.
+ *     When these are not available, the watchers fall back to inotify,
+ *     see {@link LinuxFileEventFunctions.WatcherBuilder#withRecursiveWatching()},
+ *     and the inotify watches limit applies again. See {@link #isUsingInotify()}.</li>
+ *
+ *     <li>Some file systems cannot be marked, e.g. ones that don't support file handles.
+ *     Watching paths on those file systems fails.</li>
+ *
+ *     <li>Events are reported against the directory paths at the time the events are processed.
+ *     Events racing with the directory being renamed can be reported at the new location,
+ *     and events in directories that have been removed since are dropped in favor of
+ *     the removal of the directory.</li>
+ *
+ *     <li>Changes to the watched paths themselves are only reported when they are removed or moved away.</li>
+ *
+ *     <li>Events arrive from a single background thread unique to the {@link FileWatcher}.
+ *     Calling methods from the {@link FileWatcher} inside the callback method is undefined
+ *     behavior and can lead to a deadlock.</li>
+ * </ul>
+ */
+public class FanotifyFileEventFunctions extends AbstractNativeFileEventFunctions<FanotifyFileEventFunctions.FanotifyFileWatcher> {
+    private final boolean usingInotify;
+
+    public FanotifyFileEventFunctions(boolean usingInotify) {
+        this.usingInotify = usingInotify;
+    }
+
+    /**
+     * Returns why the fanotify based watcher cannot be used on this machine,
+     * or {@code null} if it can be used.
+     */
+    @Nullable
+    public static String getUnavailableReason() {
+        return getUnavailableReason0();
+    }
+
+    /**
+     * Whether the watchers watch recursively with inotify, since fanotify is not available.
+     *
+     * @see #getUnavailableReason()
+     */
+    public boolean isUsingInotify() {
+        return usingInotify;
+    }
+
+    @Override
+    public WatcherBuilder newWatcher(BlockingQueue<FileWatchEvent> eventQueue) {
+        return new WatcherBuilder(usingInotify, eventQueue);
+    }
+
+    @Override
+    public WatcherBuilder newWatcher(FileWatchEvent.Handler handler) {
+        return new WatcherBuilder(usingInotify, handler);
+    }
+
+    public static class FanotifyFileWatcher extends AbstractNativeFileEventFunctions.NativeFileWatcher {
+        public FanotifyFileWatcher(Object server, NativeFileWatcherCallback callback) {
+            super(server, callback);
+        }
+    }
+
+    public static class WatcherBuilder extends AbstractWatcherBuilder<FanotifyFileWatcher, WatcherBuilder> {
+        private final boolean usingInotify;
+
+        WatcherBuilder(boolean usingInotify, BlockingQueue<FileWatchEvent> eventQueue) {
+            super(eventQueue);
+            this.usingInotify = usingInotify;
+        }
+
+        WatcherBuilder(boolean usingInotify, FileWatchEvent.Handler handler) {
+            super(handler);
+            this.usingInotify = usingInotify;
+        }
+
+        @Override
+        protected FanotifyFileWatcher createWatcher(NativeFileWatcherCallback callback) {
+            Object server = usingInotify
+                ? LinuxFileEventFunctions.startRecursiveWatcher(callback)
+                : startWatcher0(callback);
+            return new FanotifyFileWatcher(server, callback);
+        }
+    }
+
+    @Nullable
+    private static native String getUnavailableReason0();
+
+    private static native Object startWatcher0(NativeFileWatcherCallback callback);
+}
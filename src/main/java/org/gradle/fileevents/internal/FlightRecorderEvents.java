@@ -0,0 +1,61 @@
+package org.gradle.fileevents.internal;
+
+import org.gradle.fileevents.FileWatchEvent.OverflowType;
+
+import javax.annotation.Nullable;
+
+/**
+ * Emits JDK Flight Recorder events about what the watchers are doing.
+ *
+ * JFR is not available on Java 8, so this implementation does nothing.
+ * On Java 11 and later the multi-release JAR replaces it with the one in the {@code java11} source set
+ * at {@code src/main/java11/org/gradle/fileevents/internal},
+ * which has to keep the same signatures.
+ *
+ * The events that take time are started by a {@code begin...()} method, which returns
+ * a handle to pass to the matching {@code end...()} method. The handle is {@code null}
+ * when the event is disabled.
+ */
+final class FlightRecorderEvents {
+    private FlightRecorderEvents() {
+    }
+
+    /**
+     * Begins handling a batch of change events reported by the native side.
+     */
+    @Nullable
+    static Object beginEventBatch() {
+        return null;
+    }
+
+    static void endEventBatch(@Nullable Object event, int eventCount) {
+    }
+
+    /**
+     * Records an overflow reported to the consumer.
+     */
+    static void overflow(OverflowType type, @Nullable String absolutePath) {
+    }
+
+    /**
+     * Begins starting or stopping to watch some paths.
+     */
+    @Nullable
+    static Object beginRegistration() {
+        return null;
+    }
+
+    static void endRegistration(@Nullable Object event, String operation, int pathCount) {
+    }
+
+    /**
+     * Begins waiting for the consumer to make room in the full event queue.
+     */
+    @Nullable
+    static Object beginQueueStall() {
+        return null;
+    }
+
+    static void endQueueStall(@Nullable Object event, boolean successful) {
+    }
+}
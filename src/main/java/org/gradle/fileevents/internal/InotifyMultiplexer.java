@@ -0,0 +1,326 @@
+package org.gradle.fileevents.internal;
+
+import org.gradle.fileevents.FileWatchEvent;
+import org.gradle.fileevents.FileWatchEvent.ChangeType;
+import org.gradle.fileevents.FileWatchEvent.OverflowType;
+import org.gradle.fileevents.FileWatcher.RegistrationStatus;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shares a single Linux watcher, and with it a single inotify instance and thread, between multiple clients.
+ *
+ * The watched roots are reference-counted: a root is registered with inotify when the first client starts watching it,
+ * and unregistered when the last client stops watching it. Each client counts its own registrations of a root, too.
+ * Each event is routed to the clients watching the root it belongs to. Overflows without a path and failures go to all clients.
+ * The clients only queue the events on the shared thread, and hand them to their handlers on their own threads.
+ *
+ * The routing tables are copied on write. Routing an event never takes the lock that is held while
+ * registering paths, as the native side holds its own lock while reporting events.
+ *
+ * @see LinuxFileEventFunctions.WatcherBuilder#startMultiplexed()
+ */
+@ThreadSafe
+class InotifyMultiplexer implements FileWatchEvent.Handler, AbstractFileEventFunctions.RelativeChangeHandler {
+    private static final MultiplexedFileWatcher[] NO_CLIENTS = new MultiplexedFileWatcher[0];
+
+    // Guards attaching and detaching clients, and registering paths
+    private final Object lock = new Object();
+    private volatile Map<String, MultiplexedFileWatcher[]> clientsByRoot = Collections.emptyMap();
+    private volatile MultiplexedFileWatcher[] clients = NO_CLIENTS;
+    private volatile boolean closed;
+    private LinuxFileEventFunctions.LinuxFileWatcher watcher;
+
+    private InotifyMultiplexer() {
+    }
+
+    static InotifyMultiplexer start(LinuxFileEventFunctions functions) throws InterruptedException {
+        InotifyMultiplexer multiplexer = new InotifyMultiplexer();
+        multiplexer.watcher = functions.newWatcher(multiplexer).start();
+        return multiplexer;
+    }
+
+    /**
+     * Attaches a new client, or returns {@code null} when the shared watcher has been shut down already.
+     */
+    @Nullable
+    MultiplexedFileWatcher attach(FileWatchEvent.Handler handler, WatcherCounters counters, boolean countDeliveredEvents) {
+        synchronized (lock) {
+            if (closed) {
+                return null;
+            }
+            MultiplexedFileWatcher client = new MultiplexedFileWatcher(this, handler, counters, countDeliveredEvents);
+            client.startDispatching();
+            MultiplexedFileWatcher[] newClients = Arrays.copyOf(clients, clients.length + 1);
+            newClients[clients.length] = client;
+            clients = newClients;
+            return client;
+        }
+    }
+
+    /**
+     * Stops watching the roots of the given client, and detaches it.
+     * Shuts down the shared watcher when the last client detaches.
+     *
+     * @return the shared watcher if it has been shut down, so the caller can wait for its termination.
+     */
+    @Nullable
+    LinuxFileEventFunctions.LinuxFileWatcher detach(MultiplexedFileWatcher client) {
+        synchronized (lock) {
+            stopWatching(client, client.getRegisteredRoots(), false);
+            List<MultiplexedFileWatcher> remainingClients = new ArrayList<MultiplexedFileWatcher>(Arrays.asList(clients));
+            remainingClients.remove(client);
+            clients = remainingClients.toArray(NO_CLIENTS);
+            if (!remainingClients.isEmpty()) {
+                return null;
+            }
+            closed = true;
+            watcher.shutdown();
+            return watcher;
+        }
+    }
+
+    void startWatching(MultiplexedFileWatcher client, Collection<File> paths) {
+        synchronized (lock) {
+            ensureOpen();
+            List<String> absolutePaths = toAbsolutePaths(paths);
+            List<File> rootsToRegister = new ArrayList<File>();
+            // Route the events before the roots are registered, so no event is lost
+            Map<String, MultiplexedFileWatcher[]> previousClientsByRoot = clientsByRoot;
+            clientsByRoot = withRoutes(client, paths, rootsToRegister);
+            // Register the new roots one by one, so we know which ones to roll back on failure
+            List<File> registeredRoots = new ArrayList<File>(rootsToRegister.size());
+            try {
+                for (File root : rootsToRegister) {
+                    watcher.startWatching(Collections.singletonList(root));
+                    registeredRoots.add(root);
+                }
+            } catch (RuntimeException e) {
+                clientsByRoot = previousClientsByRoot;
+                if (!registeredRoots.isEmpty() && !watcher.stopWatching(registeredRoots)) {
+                    NativeLogger.LOGGER.info("Couldn't stop watching " + registeredRoots + " after failing to start watching " + paths);
+                }
+                throw e;
+            }
+            client.addRoots(absolutePaths);
+        }
+    }
+
+    List<RegistrationStatus> tryStartWatching(MultiplexedFileWatcher client, Collection<File> paths) {
+        synchronized (lock) {
+            ensureOpen();
+            List<String> absolutePaths = toAbsolutePaths(paths);
+            List<File> rootsToRegister = new ArrayList<File>();
+            Map<String, MultiplexedFileWatcher[]> previousClientsByRoot = clientsByRoot;
+            clientsByRoot = withRoutes(client, paths, rootsToRegister);
+            Map<String, RegistrationStatus> statusesByRoot = new HashMap<String, RegistrationStatus>();
+            if (!rootsToRegister.isEmpty()) {
+                List<RegistrationStatus> registrationStatuses;
+                try {
+                    registrationStatuses = watcher.tryStartWatching(rootsToRegister);
+                } catch (RuntimeException e) {
+                    clientsByRoot = previousClientsByRoot;
+                    throw e;
+                }
+                Map<String, MultiplexedFileWatcher[]> newClientsByRoot = null;
+                for (int i = 0; i < rootsToRegister.size(); i++) {
+                    String absolutePath = rootsToRegister.get(i).getAbsolutePath();
+                    RegistrationStatus status = registrationStatuses.get(i);
+                    statusesByRoot.put(absolutePath, status);
+                    if (!status.isWatched()) {
+                        // Nobody else routes events for a root registered for the first time
+                        if (newClientsByRoot == null) {
+                            newClientsByRoot = new HashMap<String, MultiplexedFileWatcher[]>(clientsByRoot);
+                        }
+                        newClientsByRoot.remove(absolutePath);
+                    }
+                }
+                if (newClientsByRoot != null) {
+                    clientsByRoot = newClientsByRoot;
+                }
+            }
+            List<RegistrationStatus> statuses = new ArrayList<RegistrationStatus>(absolutePaths.size());
+            for (String absolutePath : absolutePaths) {
+                RegistrationStatus status;
+                if (client.isWatching(absolutePath)) {
+                    // Also when the path came up earlier in the same batch
+                    status = RegistrationStatus.ALREADY_WATCHED;
+                } else {
+                    RegistrationStatus registrationStatus = statusesByRoot.get(absolutePath);
+                    // Roots watched by other clients only need to be routed to this client, too
+                    status = registrationStatus == null ? RegistrationStatus.REGISTERED : registrationStatus;
+                }
+                if (status.isWatched()) {
+                    client.addRoots(Collections.singletonList(absolutePath));
+                }
+                statuses.add(status);
+            }
+            return statuses;
+        }
+    }
+
+    /**
+     * Returns a copy of the routing table that routes the events for the given roots to the given client, too.
+     * Collects the roots that nobody has been watching before in {@code rootsToRegister}.
+     */
+    private Map<String, MultiplexedFileWatcher[]> withRoutes(MultiplexedFileWatcher client, Collection<File> roots, List<File> rootsToRegister) {
+        Map<String, File> rootsToAdd = new LinkedHashMap<String, File>();
+        for (File root : roots) {
+            String absolutePath = root.getAbsolutePath();
+            if (!client.isWatching(absolutePath)) {
+                rootsToAdd.put(absolutePath, root);
+            }
+        }
+        Map<String, MultiplexedFileWatcher[]> newClientsByRoot = new HashMap<String, MultiplexedFileWatcher[]>(clientsByRoot);
+        for (Map.Entry<String, File> entry : rootsToAdd.entrySet()) {
+            MultiplexedFileWatcher[] rootClients = newClientsByRoot.get(entry.getKey());
+            if (rootClients == null) {
+                rootClients = NO_CLIENTS;
+                rootsToRegister.add(entry.getValue());
+            }
+            MultiplexedFileWatcher[] newRootClients = Arrays.copyOf(rootClients, rootClients.length + 1);
+            newRootClients[rootClients.length] = client;
+            newClientsByRoot.put(entry.getKey(), newRootClients);
+        }
+        return newClientsByRoot;
+    }
+
+    private static List<String> toAbsolutePaths(Collection<File> paths) {
+        List<String> absolutePaths = new ArrayList<String>(paths.size());
+        for (File path : paths) {
+            absolutePaths.add(path.getAbsolutePath());
+        }
+        return absolutePaths;
+    }
+
+    boolean stopWatching(MultiplexedFileWatcher client, Collection<File> paths) {
+        List<String> absolutePaths = toAbsolutePaths(paths);
+        synchronized (lock) {
+            ensureOpen();
+            return stopWatching(client, absolutePaths, true);
+        }
+    }
+
+    private boolean stopWatching(MultiplexedFileWatcher client, Collection<String> absolutePaths, boolean logUnwatched) {
+        boolean success = true;
+        List<File> rootsToUnregister = new ArrayList<File>();
+        Map<String, MultiplexedFileWatcher[]> newClientsByRoot = new HashMap<String, MultiplexedFileWatcher[]>(clientsByRoot);
+        for (String absolutePath : absolutePaths) {
+            if (!client.isWatching(absolutePath)) {
+                if (logUnwatched) {
+                    NativeLogger.LOGGER.info("Path is not watched: " + absolutePath);
+                }
+                success = false;
+                continue;
+            }
+            if (!client.removeRoot(absolutePath)) {
+                // Still registered by the client
+                continue;
+            }
+            List<MultiplexedFileWatcher> rootClients = new ArrayList<MultiplexedFileWatcher>(Arrays.asList(newClientsByRoot.get(absolutePath)));
+            rootClients.remove(client);
+            if (rootClients.isEmpty()) {
+                newClientsByRoot.remove(absolutePath);
+                rootsToUnregister.add(new File(absolutePath));
+            } else {
+                newClientsByRoot.put(absolutePath, rootClients.toArray(NO_CLIENTS));
+            }
+        }
+        clientsByRoot = newClientsByRoot;
+        if (!rootsToUnregister.isEmpty() && !closed) {
+            success &= watcher.stopWatching(rootsToUnregister);
+        }
+        return success;
+    }
+
+    /**
+     * Reads the statistics of the shared watcher, see {@link AbstractFileEventFunctions.AbstractFileWatcher#getNativeStatistics()}.
+     */
+    long[] getNativeStatistics() {
+        return watcher.getNativeStatistics();
+    }
+
+    private void ensureOpen() {
+        if (closed) {
+            throw new IllegalStateException("Shared watcher already terminated");
+        }
+    }
+
+    @Override
+    public void handleChangeEvent(ChangeType type, String rootPath, String name) {
+        MultiplexedFileWatcher[] rootClients = clientsByRoot.get(rootPath);
+        if (rootClients != null) {
+            for (MultiplexedFileWatcher client : rootClients) {
+                client.deliverChangeEvent(type, rootPath, name);
+            }
+        }
+    }
+
+    @Override
+    public void handleChangeEvent(ChangeType type, String absolutePath) {
+        for (MultiplexedFileWatcher client : clientsWatching(absolutePath)) {
+            client.deliverChangeEvent(type, absolutePath);
+        }
+    }
+
+    @Override
+    public void handleUnknownEvent(String absolutePath) {
+        for (MultiplexedFileWatcher client : clientsWatching(absolutePath)) {
+            client.deliverUnknownEvent(absolutePath);
+        }
+    }
+
+    @Override
+    public void handleOverflow(OverflowType type, @Nullable String absolutePath) {
+        MultiplexedFileWatcher[] targets = absolutePath == null
+            ? clients
+            : clientsWatching(absolutePath);
+        for (MultiplexedFileWatcher client : targets) {
+            client.deliverOverflow(type, absolutePath);
+        }
+    }
+
+    @Override
+    public void handleFailure(Throwable failure) {
+        for (MultiplexedFileWatcher client : clients) {
+            client.deliverFailure(failure);
+        }
+    }
+
+    @Override
+    public void handleTerminated() {
+        closed = true;
+        for (MultiplexedFileWatcher client : clients) {
+            client.deliverTermination();
+        }
+    }
+
+    /**
+     * Returns the clients watching the root the given path belongs to, looking at the path itself and then its ancestors.
+     */
+    private MultiplexedFileWatcher[] clientsWatching(String absolutePath) {
+        Map<String, MultiplexedFileWatcher[]> currentClientsByRoot = clientsByRoot;
+        String path = absolutePath;
+        while (true) {
+            MultiplexedFileWatcher[] rootClients = currentClientsByRoot.get(path);
+            if (rootClients != null) {
+                return rootClients;
+            }
+            int separator = path.lastIndexOf('/');
+            if (separator <= 0) {
+                return NO_CLIENTS;
+            }
+            path = path.substring(0, separator);
+        }
+    }
+}
@@ -18,16 +18,23 @@ package org.gradle.fileevents.internal;
 
 import org.gradle.fileevents.FileWatchEvent;
 import org.gradle.fileevents.FileWatcher;
+import org.gradle.fileevents.FileWatcher.RegistrationStatus;
 
+import javax.annotation.Nullable;
 import java.io.File;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * File watcher for Linux. Reports changes to the watched paths and their immediate children.
- * Changes to deeper descendants are not reported.
+ * Changes to deeper descendants are only reported when watching recursively,
+ * see {@link WatcherBuilder#withRecursiveWatching()}.
+ * Watchers can share a single inotify instance, see {@link WatcherBuilder#startMultiplexed()}.
  *
  * <h3>Remarks:</h3>
  *
@@ -38,10 +45,59 @@ import java.util.concurrent.BlockingQueue;
  * </ul>
  */
 public class LinuxFileEventFunctions extends AbstractNativeFileEventFunctions<LinuxFileEventFunctions.LinuxFileWatcher> {
+    private static final long DEFAULT_LATENCY_IN_MS = 0;
+    private static final int DEFAULT_EVENT_BUFFER_SIZE = 16 * 1024;
+    // Large enough to hold an event for a name of maximum length
+    private static final int MINIMUM_EVENT_BUFFER_SIZE = 4 * 1024;
+
+    private final Object multiplexerLock = new Object();
+    @Nullable
+    private InotifyMultiplexer multiplexer;
 
     @Override
     public WatcherBuilder newWatcher(BlockingQueue<FileWatchEvent> eventQueue) {
-        return new WatcherBuilder(eventQueue);
+        return new WatcherBuilder(this, eventQueue);
+    }
+
+    @Override
+    public WatcherBuilder newWatcher(FileWatchEvent.Handler handler) {
+        return new WatcherBuilder(this, handler);
+    }
+
+    private MultiplexedFileWatcher attachMultiplexedWatcher(FileWatchEvent.Handler handler, WatcherCounters counters, boolean countDeliveredEvents) throws InterruptedException {
+        synchronized (multiplexerLock) {
+            while (true) {
+                if (multiplexer == null) {
+                    multiplexer = InotifyMultiplexer.start(this);
+                }
+                MultiplexedFileWatcher client = multiplexer.attach(handler, counters, countDeliveredEvents);
+                if (client != null) {
+                    return client;
+                }
+                // The last client has shut down the shared watcher, start a new one
+                multiplexer = null;
+            }
+        }
+    }
+
+    /**
+     * Replays an event corpus recorded via {@link WatcherBuilder#withEventRecording(File)} to the given handler.
+     *
+     * The recorded events go through the same decoding and dispatching as when they arrived from the kernel,
+     * using the options the corpus has been recorded with, but on the current thread and as fast as possible.
+     * No termination is reported at the end.
+     *
+     * @return the number of replayed inotify events.
+     */
+    public long replayRecordedEvents(File corpus, FileWatchEvent.Handler handler) {
+        return replayRecordedEvents(corpus, new NativeFileWatcherCallback(handler));
+    }
+
+    /**
+     * Replays an event corpus to the given callback, e.g. to observe the calls the native side makes.
+     */
+    long replayRecordedEvents(File corpus, NativeFileWatcherCallback callback) {
+        return replayEvents0(callback, corpus.getAbsolutePath());
     }
 
     public static class LinuxFileWatcher extends AbstractNativeFileEventFunctions.NativeFileWatcher {
@@ -65,19 +121,263 @@ public class LinuxFileEventFunctions extends AbstractNativeFileEventFunctions<Li
         }
 
         private native void stopWatchingMovedPaths0(Object server, String[] absolutePathsToCheck, List<String> droppedPaths);
+
+        /**
+         * Queues registering the paths, the watcher thread registers them in between handling batches of events.
+         */
+        @Override
+        protected CompletableFuture<List<RegistrationStatus>> doStartWatchingAsync(Collection<File> paths) {
+            CompletableFuture<List<RegistrationStatus>> future = new CompletableFuture<List<RegistrationStatus>>();
+            submitCommand(future, true, paths);
+            return future;
+        }
+
+        /**
+         * Queues unregistering the paths, the watcher thread unregisters them in between handling batches of events.
+         */
+        @Override
+        protected CompletableFuture<Boolean> doStopWatchingAsync(Collection<File> paths) {
+            CompletableFuture<Boolean> future = new CompletableFuture<Boolean>();
+            submitCommand(future, false, paths);
+            return future;
+        }
+
+        private void submitCommand(CompletableFuture<?> future, boolean registering, Collection<File> paths) {
+            if (!submitCommand0(server, future, registering, toAbsolutePaths(paths))) {
+                future.completeExceptionally(new FileWatcherException("Watcher already terminated"));
+            }
+        }
+
+        private native boolean submitCommand0(Object server, CompletableFuture<?> future, boolean registering, String[] absolutePaths);
+
+        // Called from the native side
+        @SuppressWarnings("unused")
+        private static void completeRegistration(CompletableFuture<List<RegistrationStatus>> future, int[] statusIndices) {
+            future.complete(toRegistrationStatuses(statusIndices));
+        }
+
+        // Called from the native side
+        @SuppressWarnings("unused")
+        private static void completeUnregistration(CompletableFuture<Boolean> future, boolean success) {
+            future.complete(success);
+        }
+
+        // Called from the native side
+        @SuppressWarnings("unused")
+        private static void failCommand(CompletableFuture<?> future, String message) {
+            future.completeExceptionally(new FileWatcherException(message));
+        }
     }
 
-    public static class WatcherBuilder extends AbstractWatcherBuilder<LinuxFileWatcher> {
-        WatcherBuilder(BlockingQueue<FileWatchEvent> eventQueue) {
+    public static class WatcherBuilder extends AbstractWatcherBuilder<LinuxFileWatcher, WatcherBuilder> {
+        private final LinuxFileEventFunctions functions;
+        private OffHeapEventRing eventRing;
+        private boolean recursive;
+        private long latencyInMillis = DEFAULT_LATENCY_IN_MS;
+        private boolean collapseRemovals;
+        private int eventBufferSize = DEFAULT_EVENT_BUFFER_SIZE;
+        // Zero meaning the buffer doesn't grow
+        private int maxEventBufferSize;
+        @Nullable
+        private File eventCorpus;
+
+        WatcherBuilder(LinuxFileEventFunctions functions, BlockingQueue<FileWatchEvent> eventQueue) {
             super(eventQueue);
+            this.functions = functions;
+        }
+
+        WatcherBuilder(LinuxFileEventFunctions functions, FileWatchEvent.Handler handler) {
+            super(handler);
+            this.functions = functions;
+        }
+
+        /**
+         * Report change, unknown and overflow events into the given ring instead of the event queue.
+         * Failures and termination are still reported via the event queue.
+         *
+         * @see OffHeapEventRing
+         */
+        public WatcherBuilder withEventRing(OffHeapEventRing eventRing) {
+            this.eventRing = eventRing;
+            return this;
+        }
+
+        /**
+         * Report changes to all descendants of the watched paths, not only to their immediate children.
+         *
+         * The watcher adds watches for the existing subdirectories when a path is registered,
+         * and for new subdirectories as they appear. Anything created in a new subdirectory
+         * before its watch is in place is reported as created, too.
+         * After an overflow the watcher adds watches for the subdirectories whose creation has been lost,
+         * without reporting their contents, as the overflow already tells the consumer to rescan.
+         * Symlinks to directories are not followed.
+         *
+         * Only the registered paths can be unregistered, and the watched hierarchies should not overlap.
+         * Each subdirectory uses up an inotify watch, so the watches limit applies
+         * to the total number of watched directories.
+         */
+        public WatcherBuilder withRecursiveWatching() {
+            this.recursive = true;
+            return this;
+        }
+
+        /**
+         * Set the latency for handling events.
+         * The default is {@value DEFAULT_LATENCY_IN_MS} ms.
+         *
+         * Changes to the same path within the latency window are coalesced into a single event:
+         * a path that is created and then modified is reported as created,
+         * a path that is created and then removed is not reported at all,
+         * otherwise the last change wins.
+         * Unknown and overflow events flush the changes received before them.
+         *
+         * @param latency coalesce events for the given amount of time, {@code 0} meaning no coalescing.
+         * @param unit the time unit for {@code latency}.
+         */
+        public WatcherBuilder withLatency(long latency, TimeUnit unit) {
+            latencyInMillis = unit.toMillis(latency);
+            return this;
+        }
+
+        /**
+         * Report the removal of a directory hierarchy as a single event for its topmost removed directory,
+         * instead of one event for each removed descendant.
+         *
+         * Removals are collapsed when the removed descendants are reported in the same batch of events
+         * as the directory itself, or within the latency window when using {@link #withLatency(long, TimeUnit)}.
+         * Changes are reported at the end of each batch, so other changes within the batch are coalesced
+         * the same way as within a latency window.
+         * Batches are usually small as the watcher keeps up with the file system,
+         * so use a short latency, too, to reliably collapse large removals like {@code rm -rf}.
+         */
+        public WatcherBuilder withCollapsedRemovals() {
+            this.collapseRemovals = true;
+            return this;
+        }
+
+        /**
+         * Set the size of the buffer used to read events from inotify.
+         * The default is {@value DEFAULT_EVENT_BUFFER_SIZE} bytes.
+         *
+         * @param sizeInBytes the size of the buffer, at least {@value MINIMUM_EVENT_BUFFER_SIZE} bytes.
+         */
+        public WatcherBuilder withEventBufferSize(int sizeInBytes) {
+            checkEventBufferSize(sizeInBytes);
+            this.eventBufferSize = sizeInBytes;
+            return this;
+        }
+
+        /**
+         * Let the buffer used to read events from inotify grow up to the given size when a backlog of events builds up.
+         *
+         * The buffer grows towards the size of the backlog, so large bursts of events are drained with fewer reads,
+         * making it less likely for the inotify queue to overflow.
+         * After a while of only small backlogs, the buffer shrinks back to the size set
+         * via {@link #withEventBufferSize(int)}.
+         *
+         * @param maxSizeInBytes the maximum size of the buffer, at least the size set via {@link #withEventBufferSize(int)}.
+         * Starting the watcher fails with an {@link IllegalArgumentException} otherwise.
+         */
+        public WatcherBuilder withAdaptiveEventBufferSize(int maxSizeInBytes) {
+            checkEventBufferSize(maxSizeInBytes);
+            this.maxEventBufferSize = maxSizeInBytes;
+            return this;
+        }
+
+        /**
+         * Record everything the watcher receives from the kernel to the given corpus file,
+         * so it can be replayed later via {@link LinuxFileEventFunctions#replayRecordedEvents(File, FileWatchEvent.Handler)}.
+         *
+         * The corpus contains the raw inotify events and the watches they refer to, and is written in native byte order.
+         * It is overwritten when it exists already.
+         */
+        public WatcherBuilder withEventRecording(File corpus) {
+            this.eventCorpus = corpus;
+            return this;
+        }
+
+        /**
+         * Start a watcher that spreads the watched paths across the given number of Linux watchers,
+         * each with its own inotify instance and thread.
+         *
+         * The shards are configured the same way, and report to the event queue or handler of this builder.
+         * A handler is never called concurrently.
+         *
+         * @param shardCount the number of shards, at least {@code 1}.
+         * @param selector selects the shard for each watched path,
+         * like {@link ShardedFileWatcher#HASHING} or {@link ShardedFileWatcher#withRootAffinity(java.util.Map)}.
+         *
+         * @throws FileWatcherTimeoutException if a shard did not start up
+         * in {@value DEFAULT_START_TIMEOUT_IN_SECONDS} seconds.
+         * The shards started before are shut down then, as when a shard cannot be created.
+         * @throws InterruptedException if the current thread has been interrupted.
+         */
+        public ShardedFileWatcher startSharded(int shardCount, ShardedFileWatcher.ShardSelector selector) throws InterruptedException {
+            if (shardCount < 1) {
+                throw new IllegalArgumentException("Shard count must be at least 1, was " + shardCount);
+            }
+            if (eventRing != null) {
+                throw new IllegalStateException("Sharding is not supported when reporting events to a ring");
+            }
+            if (eventCorpus != null) {
+                throw new IllegalStateException("Sharding is not supported when recording events");
+            }
+            return new ShardedFileWatcher(startShards(shardCount, DEFAULT_START_TIMEOUT_IN_SECONDS, TimeUnit.SECONDS), selector);
+        }
+
+        /**
+         * Start a watcher that shares a single inotify instance and thread with all other multiplexed watchers
+         * started from the same {@link LinuxFileEventFunctions}, instead of using up an inotify instance of its own.
+         *
+         * The watcher only receives events for the roots it watches itself, via the event queue or handler of this builder.
+         * Roots watched by multiple watchers are only registered with inotify once.
+         * Each watcher hands the events to its event queue or handler on a thread of its own, so a slow consumer
+         * doesn't hold back the events for everyone. When a consumer falls too far behind,
+         * the events it hasn't received yet are dropped, and an {@link FileWatchEvent.OverflowType#EVENT_QUEUE} overflow is reported to it.
+         *
+         * The shared instance always uses the default options, so none of the inotify specific options can be set.
+         *
+         * @throws FileWatcherTimeoutException if the shared watcher had to be started, and did not start up
+         * in {@value DEFAULT_START_TIMEOUT_IN_SECONDS} seconds.
+         * @throws InterruptedException if the current thread has been interrupted.
+         */
+        public MultiplexedFileWatcher startMultiplexed() throws InterruptedException {
+            if (eventRing != null || recursive || latencyInMillis != DEFAULT_LATENCY_IN_MS || collapseRemovals
+                || eventBufferSize != DEFAULT_EVENT_BUFFER_SIZE || maxEventBufferSize != 0 || eventCorpus != null) {
+                throw new IllegalStateException("Multiplexed watchers share the default options, and don't support inotify specific options");
+            }
+            WatcherCounters counters = new WatcherCounters();
+            return functions.attachMultiplexedWatcher(createHandler(counters), counters, !isReportingToQueue());
+        }
+
+        private static void checkEventBufferSize(int sizeInBytes) {
+            if (sizeInBytes < MINIMUM_EVENT_BUFFER_SIZE) {
+                throw new IllegalArgumentException("Event buffer size must be at least " + MINIMUM_EVENT_BUFFER_SIZE + " bytes, was " + sizeInBytes);
+            }
         }
 
         @Override
         protected LinuxFileWatcher createWatcher(NativeFileWatcherCallback callback) {
-            Object server = startWatcher0(callback);
+            if (maxEventBufferSize != 0 && maxEventBufferSize < eventBufferSize) {
+                throw new IllegalArgumentException("Maximum event buffer size must be at least the event buffer size of " + eventBufferSize + " bytes, was " + maxEventBufferSize);
+            }
+            int maxBufferSize = maxEventBufferSize == 0 ? eventBufferSize : maxEventBufferSize;
+            String corpusPath = eventCorpus == null ? null : eventCorpus.getAbsolutePath();
+            Object server = eventRing == null
+                ? startWatcher0(callback, null, null, recursive, latencyInMillis, collapseRemovals, eventBufferSize, maxBufferSize, corpusPath)
+                : startWatcher0(callback, eventRing, eventRing.getBuffer(), recursive, latencyInMillis, collapseRemovals, eventBufferSize, maxBufferSize, corpusPath);
             return new LinuxFileWatcher(server, callback);
         }
     }
 
-    private static native Object startWatcher0(NativeFileWatcherCallback callback);
+    /**
+     * Starts a recursive watcher with the default options, for {@link FanotifyFileEventFunctions} to fall back to.
+     */
+    static Object startRecursiveWatcher(NativeFileWatcherCallback callback) {
+        return startWatcher0(callback, null, null, true, DEFAULT_LATENCY_IN_MS, false, DEFAULT_EVENT_BUFFER_SIZE, DEFAULT_EVENT_BUFFER_SIZE, null);
+    }
+
+    private static native Object startWatcher0(NativeFileWatcherCallback callback, @Nullable OffHeapEventRing eventRing, @Nullable ByteBuffer eventRingBuffer, boolean recursive, long latencyInMillis, boolean collapseRemovals, int eventBufferSize, int maxEventBufferSize, @Nullable String eventCorpusPath);
+
+    private static native long replayEvents0(NativeFileWatcherCallback callback, String eventCorpusPath);
 }
@@ -0,0 +1,305 @@
+package org.gradle.fileevents.internal;
+
+import org.gradle.fileevents.FileWatchEvent;
+import org.gradle.fileevents.FileWatchEvent.ChangeType;
+import org.gradle.fileevents.FileWatchEvent.OverflowType;
+import org.gradle.fileevents.FileWatcher;
+import org.gradle.fileevents.FileWatcher.RegistrationStatus;
+import org.gradle.fileevents.FileWatcherStatistics;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A client of the Linux watcher shared by all multiplexed watchers created from the same {@link LinuxFileEventFunctions}.
+ *
+ * The client only receives the events for the roots it watches itself, even when other clients watch
+ * the same roots. Overflows without a path and failures of the shared watcher are reported to all clients.
+ * Shutting down the client stops watching its roots; the shared watcher is shut down with the last client.
+ *
+ * The shared thread only queues the events for the client, and each client hands them to its handler
+ * on a thread of its own, so a slow client doesn't hold back the others. When more than
+ * {@value #MAX_PENDING_EVENTS} events are waiting for the client's handler, they are dropped,
+ * and an {@link OverflowType#EVENT_QUEUE} overflow is reported to the client instead.
+ *
+ * The statistics about the native side are the ones of the shared watcher,
+ * the ones about delivering events are the client's own.
+ *
+ * @see LinuxFileEventFunctions.WatcherBuilder#startMultiplexed()
+ */
+@NotThreadSafe
+public class MultiplexedFileWatcher implements FileWatcher {
+    static final int MAX_PENDING_EVENTS = 8192;
+
+    private final InotifyMultiplexer multiplexer;
+    private final FileWatchEvent.Handler handler;
+    @Nullable
+    private final AbstractFileEventFunctions.RelativeChangeHandler relativeHandler;
+    private final WatcherCounters counters;
+    // The queueing handler counts the events it actually queues itself
+    private final boolean countDeliveredEvents;
+    // How many times this client registered each root by absolute path, guarded by the multiplexer
+    private final Map<String, Integer> registrationCounts = new HashMap<String, Integer>();
+    // Events queued by the shared thread, waiting to be handed to the handler by the dispatcher thread
+    private final BlockingQueue<FileWatchEvent> pendingEvents = new LinkedBlockingQueue<FileWatchEvent>();
+    private final Thread dispatcherThread;
+    // Guards queueing events against the client terminating
+    private final Object deliveryLock = new Object();
+    private boolean terminated;
+    private boolean shutdown;
+    @Nullable
+    private LinuxFileEventFunctions.LinuxFileWatcher sharedWatcherToAwait;
+    @Nullable
+    private long[] lastNativeStatistics;
+
+    MultiplexedFileWatcher(InotifyMultiplexer multiplexer, FileWatchEvent.Handler handler, WatcherCounters counters, boolean countDeliveredEvents) {
+        this.multiplexer = multiplexer;
+        this.handler = handler;
+        this.relativeHandler = handler instanceof AbstractFileEventFunctions.RelativeChangeHandler
+            ? (AbstractFileEventFunctions.RelativeChangeHandler) handler
+            : null;
+        this.counters = counters;
+        this.countDeliveredEvents = countDeliveredEvents;
+        this.dispatcherThread = new Thread("File watcher multiplexed client") {
+            @Override
+            public void run() {
+                try {
+                    dispatchEvents();
+                } catch (InterruptedException e) {
+                    // Nothing to wait for anymore
+                }
+            }
+        };
+        this.dispatcherThread.setDaemon(true);
+    }
+
+    void startDispatching() {
+        dispatcherThread.start();
+    }
+
+    /**
+     * Does nothing, the shared watcher is running already.
+     */
+    @Override
+    public void initialize(long startTimeout, TimeUnit startTimeoutUnit) {
+    }
+
+    /**
+     * Starts watching the given roots. Roots already watched by other clients are not registered with inotify again.
+     */
+    @Override
+    public void startWatching(Collection<File> paths) {
+        ensureOpen();
+        multiplexer.startWatching(this, paths);
+    }
+
+    /**
+     * Starts watching the given roots, see {@link #startWatching(Collection)}.
+     * Roots already watched by other clients are reported as {@link RegistrationStatus#REGISTERED} for this client.
+     */
+    @Override
+    public List<RegistrationStatus> tryStartWatching(Collection<File> paths) {
+        ensureOpen();
+        return multiplexer.tryStartWatching(this, paths);
+    }
+
+    /**
+     * Starts watching the given roots right away, see {@link #tryStartWatching(Collection)}.
+     * The routes of the events have to be updated together with the registrations of the shared watcher,
+     * so the returned future is already completed.
+     */
+    @Override
+    public CompletableFuture<List<RegistrationStatus>> startWatchingAsync(Collection<File> paths) {
+        return CompletableFuture.completedFuture(tryStartWatching(paths));
+    }
+
+    /**
+     * Stops watching the given roots. Roots still watched by other clients stay registered with inotify.
+     */
+    @Override
+    public boolean stopWatching(Collection<File> paths) {
+        ensureOpen();
+        return multiplexer.stopWatching(this, paths);
+    }
+
+    /**
+     * Stops watching the given roots right away, see {@link #startWatchingAsync(Collection)}.
+     */
+    @Override
+    public CompletableFuture<Boolean> stopWatchingAsync(Collection<File> paths) {
+        return CompletableFuture.completedFuture(stopWatching(paths));
+    }
+
+    @Override
+    public void shutdown() {
+        ensureOpen();
+        shutdown = true;
+        lastNativeStatistics = multiplexer.getNativeStatistics();
+        sharedWatcherToAwait = multiplexer.detach(this);
+        deliverTermination();
+    }
+
+    /**
+     * Waits for the handler to receive the termination, and for the shared watcher to terminate when this was the last client.
+     */
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        if (!shutdown) {
+            return false;
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        TimeUnit.NANOSECONDS.timedJoin(dispatcherThread, deadline - System.nanoTime());
+        if (dispatcherThread.isAlive()) {
+            return false;
+        }
+        return sharedWatcherToAwait == null || sharedWatcherToAwait.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public FileWatcherStatistics getStatistics() {
+        long[] nativeStatistics = lastNativeStatistics;
+        if (nativeStatistics == null) {
+            nativeStatistics = multiplexer.getNativeStatistics();
+        }
+        return counters.snapshot(nativeStatistics);
+    }
+
+    private void ensureOpen() {
+        if (shutdown) {
+            throw new IllegalStateException("Watcher already closed");
+        }
+    }
+
+    boolean isWatching(String absolutePath) {
+        return registrationCounts.containsKey(absolutePath);
+    }
+
+    void addRoots(Collection<String> absolutePaths) {
+        for (String absolutePath : absolutePaths) {
+            Integer count = registrationCounts.get(absolutePath);
+            registrationCounts.put(absolutePath, count == null ? 1 : count + 1);
+        }
+    }
+
+    /**
+     * Drops a registration of the given root, and returns whether it was the last one.
+     */
+    boolean removeRoot(String absolutePath) {
+        int count = registrationCounts.get(absolutePath);
+        if (count > 1) {
+            registrationCounts.put(absolutePath, count - 1);
+            return false;
+        }
+        registrationCounts.remove(absolutePath);
+        return true;
+    }
+
+    /**
+     * Returns each registration of the roots, so that removing all of them stops watching the roots.
+     */
+    List<String> getRegisteredRoots() {
+        List<String> registeredRoots = new ArrayList<String>();
+        for (Map.Entry<String, Integer> entry : registrationCounts.entrySet()) {
+            for (int i = 0; i < entry.getValue(); i++) {
+                registeredRoots.add(entry.getKey());
+            }
+        }
+        return registeredRoots;
+    }
+
+    void deliverChangeEvent(ChangeType type, String rootPath, String name) {
+        deliver(new AbstractFileEventFunctions.RelativeChangeEvent(type, rootPath, name), false);
+    }
+
+    void deliverChangeEvent(ChangeType type, String absolutePath) {
+        deliver(new AbstractFileEventFunctions.ChangeEvent(type, absolutePath), false);
+    }
+
+    void deliverUnknownEvent(String absolutePath) {
+        deliver(new AbstractFileEventFunctions.UnknownEvent(absolutePath), false);
+    }
+
+    void deliverOverflow(OverflowType type, @Nullable String absolutePath) {
+        if (type == OverflowType.OPERATING_SYSTEM) {
+            counters.recordOperatingSystemOverflow();
+        }
+        deliver(new AbstractFileEventFunctions.OverflowEvent(type, absolutePath), false);
+    }
+
+    void deliverFailure(Throwable failure) {
+        deliver(new AbstractFileEventFunctions.FailureEvent(failure), true);
+    }
+
+    void deliverTermination() {
+        synchronized (deliveryLock) {
+            if (terminated) {
+                return;
+            }
+            terminated = true;
+            pendingEvents.add(AbstractFileEventFunctions.TerminationEvent.INSTANCE);
+        }
+    }
+
+    private void deliver(FileWatchEvent event, boolean deliverOnOverflow) {
+        synchronized (deliveryLock) {
+            if (terminated) {
+                return;
+            }
+            if (pendingEvents.size() >= MAX_PENDING_EVENTS) {
+                signalOverflow();
+                if (!deliverOnOverflow) {
+                    counters.recordDropped(1);
+                    return;
+                }
+            }
+            pendingEvents.add(event);
+        }
+    }
+
+    /**
+     * Drops the events the handler hasn't received yet, instead of holding back the shared thread until it catches up.
+     */
+    private void signalOverflow() {
+        NativeLogger.LOGGER.info("Multiplexed watcher queue overflow, dropping all events");
+        int droppedEvents = 0;
+        while (pendingEvents.poll() != null) {
+            droppedEvents++;
+        }
+        counters.recordDropped(droppedEvents);
+        counters.recordEventQueueOverflow();
+        FlightRecorderEvents.overflow(OverflowType.EVENT_QUEUE, null);
+        pendingEvents.add(new AbstractFileEventFunctions.OverflowEvent(OverflowType.EVENT_QUEUE, null));
+    }
+
+    private void dispatchEvents() throws InterruptedException {
+        while (true) {
+            FileWatchEvent event = pendingEvents.take();
+            if (event == AbstractFileEventFunctions.TerminationEvent.INSTANCE) {
+                handler.handleTerminated();
+                return;
+            }
+            recordDelivered();
+            if (relativeHandler != null && event instanceof AbstractFileEventFunctions.RelativeChangeEvent) {
+                ((AbstractFileEventFunctions.RelativeChangeEvent) event).handleEvent(relativeHandler);
+            } else {
+                event.handleEvent(handler);
+            }
+        }
+    }
+
+    private void recordDelivered() {
+        if (countDeliveredEvents) {
+            counters.recordDelivered(1);
+        }
+    }
+}
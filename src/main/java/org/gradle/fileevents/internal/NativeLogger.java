@@ -5,6 +5,7 @@ import org.slf4j.LoggerFactory;
 
 import java.util.Arrays;
 import java.util.List;
+import java.util.function.BooleanSupplier;
 import java.util.function.Consumer;
 
 // Used from native
@@ -13,21 +14,27 @@ public class NativeLogger {
     static final Logger LOGGER = LoggerFactory.getLogger(NativeLogger.class);
 
     enum LogLevel {
-        TRACE(LOGGER::trace),
-        DEBUG(LOGGER::debug),
-        INFO(LOGGER::info),
-        WARN(LOGGER::warn),
-        ERROR(LOGGER::error);
+        TRACE(LOGGER::trace, LOGGER::isTraceEnabled),
+        DEBUG(LOGGER::debug, LOGGER::isDebugEnabled),
+        INFO(LOGGER::info, LOGGER::isInfoEnabled),
+        WARN(LOGGER::warn, LOGGER::isWarnEnabled),
+        ERROR(LOGGER::error, LOGGER::isErrorEnabled);
 
         private final Consumer<String> logger;
+        private final BooleanSupplier enabled;
 
-        LogLevel(Consumer<String> logger) {
+        LogLevel(Consumer<String> logger, BooleanSupplier enabled) {
             this.logger = logger;
+            this.enabled = enabled;
         }
 
         Consumer<String> getLogger() {
             return logger;
         }
+
+        boolean isEnabled() {
+            return enabled.getAsBoolean();
+        }
     }
 
     private static final List<LogLevel> logLevels = Arrays.asList(LogLevel.values());
@@ -35,4 +42,17 @@ public class NativeLogger {
     public static void log(int level, String message) {
         logLevels.get(level).getLogger().accept(message);
     }
+
+    /**
+     * Returns the ordinal of the lowest enabled log level,
+     * or the number of log levels if logging is disabled completely.
+     */
+    public static int getLogLevel() {
+        for (LogLevel level : logLevels) {
+            if (level.isEnabled()) {
+                return level.ordinal();
+            }
+        }
+        return logLevels.size();
+    }
 }
@@ -0,0 +1,237 @@
+package org.gradle.fileevents.internal;
+
+import org.gradle.fileevents.FileWatchEvent;
+import org.gradle.fileevents.FileWatchEvent.ChangeType;
+import org.gradle.fileevents.FileWatchEvent.OverflowType;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A ring of event records in off-heap memory, written directly by the native watcher.
+ *
+ * Records consist of a change type, the ID of the watched root and the UTF-8 encoded
+ * name relative to the root. The watcher thread never allocates on the Java heap to
+ * report events into the ring, names are only decoded when the consumer asks for them.
+ *
+ * <h3>Remarks:</h3>
+ *
+ * <ul>
+ *     <li>Only change, unknown and overflow events are written to the ring.
+ *     Failures and termination are still reported via the event queue of the watcher.
+ *     After receiving the termination event, drain the ring one more time to receive
+ *     any remaining events.</li>
+ *
+ *     <li>When the ring is full, events are dropped, and the consumer receives an
+ *     {@link OverflowType#EVENT_QUEUE EVENT_QUEUE} overflow right after the events that still fit.
+ *     Events with names too long to fit into half of the ring are dropped the same way.</li>
+ *
+ *     <li>The ring must only be consumed from a single thread.</li>
+ * </ul>
+ */
+@NotThreadSafe
+public class OffHeapEventRing {
+    public static final int MINIMUM_CAPACITY = 64 * 1024;
+
+    // Corresponds to RingRecordType on the native side
+    private static final int UNKNOWN = 4;
+    private static final int OVERFLOW = 5;
+    private static final int LOST = 6;
+    private static final int ROOT = 7;
+    private static final int PADDING = 8;
+
+    private static final int HEADER_SIZE = 16;
+    private static final int ALIGNMENT = 16;
+
+    private static final ChangeType[] CHANGE_TYPES = ChangeType.values();
+
+    private final ByteBuffer buffer;
+    private final int mask;
+    private final Object lock = new Object();
+    private final List<String> roots = new ArrayList<String>();
+    private byte[] nameBuffer = new byte[256];
+
+    private volatile long writePosition;
+    private volatile long readPosition;
+
+    /**
+     * Creates a new ring with the given capacity.
+     *
+     * @param capacityInBytes the capacity of the ring, must be a power of two and at least {@value MINIMUM_CAPACITY} bytes.
+     */
+    public OffHeapEventRing(int capacityInBytes) {
+        if (capacityInBytes < MINIMUM_CAPACITY || Integer.bitCount(capacityInBytes) != 1) {
+            throw new IllegalArgumentException("Event ring capacity must be a power of two and at least " + MINIMUM_CAPACITY + " bytes, was " + capacityInBytes);
+        }
+        this.buffer = ByteBuffer.allocateDirect(capacityInBytes).order(ByteOrder.nativeOrder());
+        this.mask = capacityInBytes - 1;
+    }
+
+    ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Makes records up to the given position visible to the consumer.
+     *
+     * @return the position up to which the consumer has read the ring.
+     */
+    // Called from the native side
+    @SuppressWarnings("unused")
+    long publish(long writePosition) {
+        this.writePosition = writePosition;
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+        return readPosition;
+    }
+
+    /**
+     * Returns whether there are records available to drain.
+     */
+    public boolean hasEvents() {
+        return readPosition != writePosition;
+    }
+
+    /**
+     * Waits until records are available to drain, or the timeout elapses.
+     *
+     * @return {@code true} if there are records available.
+     */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (lock) {
+            while (!hasEvents()) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Reports all available records to the given handler, materializing the absolute paths.
+     *
+     * @return the number of events reported.
+     */
+    public int drain(FileWatchEvent.Handler handler) {
+        long position = readPosition;
+        long limit = writePosition;
+        int events = 0;
+        while (position < limit) {
+            int offset = (int) (position & mask);
+            int length = buffer.getInt(offset);
+            int type = buffer.getInt(offset + 4);
+            int rootId = buffer.getInt(offset + 8);
+            switch (type) {
+                case PADDING:
+                    break;
+                case ROOT:
+                    registerRoot(rootId, decodeName(offset, length));
+                    break;
+                case LOST:
+                    handler.handleOverflow(OverflowType.EVENT_QUEUE, null);
+                    events++;
+                    break;
+                case OVERFLOW:
+                    handler.handleOverflow(OverflowType.OPERATING_SYSTEM, roots.get(rootId));
+                    events++;
+                    break;
+                case UNKNOWN:
+                    handler.handleUnknownEvent(resolvePath(rootId, offset, length));
+                    events++;
+                    break;
+                default:
+                    handler.handleChangeEvent(CHANGE_TYPES[type], resolvePath(rootId, offset, length));
+                    events++;
+                    break;
+            }
+            position += align(length);
+        }
+        readPosition = position;
+        return events;
+    }
+
+    /**
+     * Adds the watched roots that had any events to the given collection, without decoding
+     * the names of the changed entries.
+     *
+     * When events have been lost, all roots seen so far are added,
+     * including the ones that might not be watched anymore.
+     *
+     * @return the number of events consumed.
+     */
+    public int drainDirtyRoots(Collection<? super String> dirtyRoots) {
+        long position = readPosition;
+        long limit = writePosition;
+        int events = 0;
+        while (position < limit) {
+            int offset = (int) (position & mask);
+            int length = buffer.getInt(offset);
+            int type = buffer.getInt(offset + 4);
+            int rootId = buffer.getInt(offset + 8);
+            switch (type) {
+                case PADDING:
+                    break;
+                case ROOT:
+                    registerRoot(rootId, decodeName(offset, length));
+                    break;
+                case LOST:
+                    for (String root : roots) {
+                        // Root IDs don't have to be announced in order
+                        if (root != null) {
+                            dirtyRoots.add(root);
+                        }
+                    }
+                    events++;
+                    break;
+                default:
+                    dirtyRoots.add(roots.get(rootId));
+                    events++;
+                    break;
+            }
+            position += align(length);
+        }
+        readPosition = position;
+        return events;
+    }
+
+    private void registerRoot(int rootId, String path) {
+        while (roots.size() <= rootId) {
+            roots.add(null);
+        }
+        roots.set(rootId, path);
+    }
+
+    private String resolvePath(int rootId, int offset, int length) {
+        String root = roots.get(rootId);
+        if (length == HEADER_SIZE) {
+            return root;
+        }
+        return root + '/' + decodeName(offset, length);
+    }
+
+    private String decodeName(int offset, int length) {
+        int nameLength = length - HEADER_SIZE;
+        if (nameBuffer.length < nameLength) {
+            nameBuffer = new byte[Math.max(nameLength, nameBuffer.length * 2)];
+        }
+        for (int i = 0; i < nameLength; i++) {
+            nameBuffer[i] = buffer.get(offset + HEADER_SIZE + i);
+        }
+        return new String(nameBuffer, 0, nameLength, StandardCharsets.UTF_8);
+    }
+
+    private static int align(int length) {
+        return (length + ALIGNMENT - 1) & -ALIGNMENT;
+    }
+}
@@ -49,19 +49,28 @@ public class OsxFileEventFunctions extends AbstractNativeFileEventFunctions<OsxF
         return new WatcherBuilder(eventQueue);
     }
 
+    @Override
+    public WatcherBuilder newWatcher(FileWatchEvent.Handler handler) {
+        return new WatcherBuilder(handler);
+    }
+
     public static class OsxFileWatcher extends AbstractNativeFileEventFunctions.NativeFileWatcher {
         public OsxFileWatcher(Object server, NativeFileWatcherCallback callback) {
             super(server, callback);
         }
     }
 
-    public static class WatcherBuilder extends AbstractWatcherBuilder<OsxFileWatcher> {
+    public static class WatcherBuilder extends AbstractWatcherBuilder<OsxFileWatcher, WatcherBuilder> {
         private long latencyInMillis = DEFAULT_LATENCY_IN_MS;
 
         WatcherBuilder(BlockingQueue<FileWatchEvent> eventQueue) {
             super(eventQueue);
         }
 
+        WatcherBuilder(FileWatchEvent.Handler handler) {
+            super(handler);
+        }
+
         /**
          * Set the latency for handling events.
          * The default is {@value DEFAULT_LATENCY_IN_MS} ms.
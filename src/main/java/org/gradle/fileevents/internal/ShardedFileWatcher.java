@@ -0,0 +1,293 @@
+package org.gradle.fileevents.internal;
+
+import org.gradle.fileevents.FileWatcher;
+import org.gradle.fileevents.FileWatcher.RegistrationStatus;
+import org.gradle.fileevents.FileWatcherStatistics;
+import org.gradle.fileevents.FileWatcherStatistics.DurationHistogram;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Spreads the watched paths across multiple Linux watchers, each with its own inotify instance and thread,
+ * so that reading, decoding and reporting events happens in parallel, and a busy hierarchy
+ * doesn't hold back the events for the paths watched by the other shards.
+ *
+ * The events of all shards are merged into the event queue or handler the watcher has been built with.
+ * Events from the same shard keep their order, but there is no order between events from different shards.
+ * The termination is reported once all shards have terminated.
+ *
+ * @see LinuxFileEventFunctions.WatcherBuilder#startSharded(int, ShardSelector)
+ */
+@NotThreadSafe
+public class ShardedFileWatcher implements FileWatcher {
+    /**
+     * Selects the shard to watch a path with by the hash of its absolute path.
+     */
+    public static final ShardSelector HASHING = new ShardSelector() {
+        @Override
+        public int selectShard(File path, int shardCount) {
+            return Math.abs(path.getAbsolutePath().hashCode() % shardCount);
+        }
+    };
+
+    private final List<LinuxFileEventFunctions.LinuxFileWatcher> shards;
+    private final ShardSelector selector;
+
+    ShardedFileWatcher(List<LinuxFileEventFunctions.LinuxFileWatcher> shards, ShardSelector selector) {
+        this.shards = shards;
+        this.selector = selector;
+    }
+
+    /**
+     * Returns a selector that watches paths in the given roots with the given shards,
+     * and selects the shard for any other path by {@link #HASHING}.
+     * A path is in a root when it is the root itself or one of its descendants.
+     * The most specific root wins when the roots overlap.
+     */
+    public static ShardSelector withRootAffinity(Map<File, Integer> shardsByRoot) {
+        final Map<String, Integer> shardsByRootPath = new HashMap<String, Integer>();
+        for (Map.Entry<File, Integer> entry : shardsByRoot.entrySet()) {
+            shardsByRootPath.put(entry.getKey().getAbsolutePath(), entry.getValue());
+        }
+        return new ShardSelector() {
+            @Override
+            public int selectShard(File path, int shardCount) {
+                File current = path.getAbsoluteFile();
+                while (current != null) {
+                    Integer shard = shardsByRootPath.get(current.getPath());
+                    if (shard != null) {
+                        return shard;
+                    }
+                    current = current.getParentFile();
+                }
+                return HASHING.selectShard(path, shardCount);
+            }
+        };
+    }
+
+    /**
+     * Returns the number of shards.
+     */
+    public int getShardCount() {
+        return shards.size();
+    }
+
+    /**
+     * Does nothing, the builder starts the shards one by one, so it can shut down the ones already started
+     * when starting another one fails.
+     */
+    @Override
+    public void initialize(long startTimeout, TimeUnit startTimeoutUnit) {
+    }
+
+    @Override
+    public void startWatching(Collection<File> paths) {
+        List<List<File>> pathsByShard = groupByShard(paths);
+        for (int i = 0; i < shards.size(); i++) {
+            List<File> shardPaths = pathsByShard.get(i);
+            if (!shardPaths.isEmpty()) {
+                shards.get(i).startWatching(shardPaths);
+            }
+        }
+    }
+
+    @Override
+    public List<RegistrationStatus> tryStartWatching(Collection<File> paths) {
+        List<List<File>> pathsByShard = groupByShard(paths);
+        List<Iterator<RegistrationStatus>> statusesByShard = new ArrayList<Iterator<RegistrationStatus>>(shards.size());
+        for (int i = 0; i < shards.size(); i++) {
+            List<File> shardPaths = pathsByShard.get(i);
+            statusesByShard.add(shardPaths.isEmpty()
+                ? Collections.<RegistrationStatus>emptyIterator()
+                : shards.get(i).tryStartWatching(shardPaths).iterator());
+        }
+        return inPathOrder(paths, statusesByShard);
+    }
+
+    @Override
+    public CompletableFuture<List<RegistrationStatus>> startWatchingAsync(Collection<File> paths) {
+        final List<File> pathsInOrder = new ArrayList<File>(paths);
+        List<List<File>> pathsByShard = groupByShard(pathsInOrder);
+        final List<CompletableFuture<List<RegistrationStatus>>> futuresByShard = new ArrayList<CompletableFuture<List<RegistrationStatus>>>(shards.size());
+        for (int i = 0; i < shards.size(); i++) {
+            List<File> shardPaths = pathsByShard.get(i);
+            futuresByShard.add(shardPaths.isEmpty()
+                ? CompletableFuture.completedFuture(Collections.<RegistrationStatus>emptyList())
+                : shards.get(i).startWatchingAsync(shardPaths));
+        }
+        return allOf(futuresByShard).thenApply(new Function<Void, List<RegistrationStatus>>() {
+            @Override
+            public List<RegistrationStatus> apply(Void ignored) {
+                List<Iterator<RegistrationStatus>> statusesByShard = new ArrayList<Iterator<RegistrationStatus>>(futuresByShard.size());
+                for (CompletableFuture<List<RegistrationStatus>> future : futuresByShard) {
+                    statusesByShard.add(future.join().iterator());
+                }
+                return inPathOrder(pathsInOrder, statusesByShard);
+            }
+        });
+    }
+
+    private List<RegistrationStatus> inPathOrder(Collection<File> paths, List<Iterator<RegistrationStatus>> statusesByShard) {
+        // The statuses of each shard are in the order of its paths
+        List<RegistrationStatus> statuses = new ArrayList<RegistrationStatus>(paths.size());
+        for (File path : paths) {
+            statuses.add(statusesByShard.get(selector.selectShard(path, shards.size())).next());
+        }
+        return statuses;
+    }
+
+    @Override
+    public boolean stopWatching(Collection<File> paths) {
+        List<List<File>> pathsByShard = groupByShard(paths);
+        boolean success = true;
+        for (int i = 0; i < shards.size(); i++) {
+            List<File> shardPaths = pathsByShard.get(i);
+            if (!shardPaths.isEmpty()) {
+                success &= shards.get(i).stopWatching(shardPaths);
+            }
+        }
+        return success;
+    }
+
+    @Override
+    public CompletableFuture<Boolean> stopWatchingAsync(Collection<File> paths) {
+        List<List<File>> pathsByShard = groupByShard(paths);
+        final List<CompletableFuture<Boolean>> futuresByShard = new ArrayList<CompletableFuture<Boolean>>(shards.size());
+        for (int i = 0; i < shards.size(); i++) {
+            List<File> shardPaths = pathsByShard.get(i);
+            if (!shardPaths.isEmpty()) {
+                futuresByShard.add(shards.get(i).stopWatchingAsync(shardPaths));
+            }
+        }
+        return allOf(futuresByShard).thenApply(new Function<Void, Boolean>() {
+            @Override
+            public Boolean apply(Void ignored) {
+                boolean success = true;
+                for (CompletableFuture<Boolean> future : futuresByShard) {
+                    success &= future.join();
+                }
+                return success;
+            }
+        });
+    }
+
+    private static CompletableFuture<Void> allOf(List<? extends CompletableFuture<?>> futures) {
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]));
+    }
+
+    /**
+     * Stops watching any directories that have been moved to a different path since registration,
+     * and returns the list of the registered paths that have been dropped.
+     *
+     * @see LinuxFileEventFunctions.LinuxFileWatcher#stopWatchingMovedPaths(Collection)
+     */
+    public List<File> stopWatchingMovedPaths(Collection<File> pathsToCheck) {
+        List<List<File>> pathsByShard = groupByShard(pathsToCheck);
+        List<File> droppedPaths = new ArrayList<File>();
+        for (int i = 0; i < shards.size(); i++) {
+            List<File> shardPaths = pathsByShard.get(i);
+            if (!shardPaths.isEmpty()) {
+                droppedPaths.addAll(shards.get(i).stopWatchingMovedPaths(shardPaths));
+            }
+        }
+        return droppedPaths;
+    }
+
+    @Override
+    public void shutdown() {
+        for (LinuxFileEventFunctions.LinuxFileWatcher shard : shards) {
+            shard.shutdown();
+        }
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        boolean terminated = true;
+        for (LinuxFileEventFunctions.LinuxFileWatcher shard : shards) {
+            long remainingTimeout = Math.max(0, deadline - System.nanoTime());
+            terminated &= shard.awaitTermination(remainingTimeout, TimeUnit.NANOSECONDS);
+        }
+        return terminated;
+    }
+
+    /**
+     * Returns the statistics of all shards combined.
+     */
+    @Override
+    public FileWatcherStatistics getStatistics() {
+        FileWatcherStatistics shared = null;
+        long kernelEventCount = 0;
+        long activeWatchCount = 0;
+        long[] readTimes = new long[WatcherCounters.HISTOGRAM_BUCKET_COUNT];
+        long[] decodeTimes = new long[WatcherCounters.HISTOGRAM_BUCKET_COUNT];
+        long[] upcallTimes = new long[WatcherCounters.HISTOGRAM_BUCKET_COUNT];
+        for (LinuxFileEventFunctions.LinuxFileWatcher shard : shards) {
+            FileWatcherStatistics statistics = shard.getStatistics();
+            // The Java side counters are shared between the shards
+            shared = statistics;
+            kernelEventCount += statistics.getKernelEventCount();
+            activeWatchCount += statistics.getActiveWatchCount();
+            addCounts(readTimes, statistics.getReadTimes());
+            addCounts(decodeTimes, statistics.getDecodeTimes());
+            addCounts(upcallTimes, statistics.getUpcallTimes());
+        }
+        assert shared != null;
+        return new FileWatcherStatistics(
+            kernelEventCount,
+            shared.getDeliveredEventCount(),
+            shared.getDroppedEventCount(),
+            shared.getOperatingSystemOverflowCount(),
+            shared.getEventQueueOverflowCount(),
+            shared.getEventQueueHighWaterMark(),
+            activeWatchCount,
+            new DurationHistogram(readTimes),
+            new DurationHistogram(decodeTimes),
+            new DurationHistogram(upcallTimes),
+            shared.getQueueOfferTimes()
+        );
+    }
+
+    private static void addCounts(long[] counts, DurationHistogram histogram) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += histogram.getCount(i);
+        }
+    }
+
+    private List<List<File>> groupByShard(Collection<File> paths) {
+        List<List<File>> pathsByShard = new ArrayList<List<File>>(shards.size());
+        for (int i = 0; i < shards.size(); i++) {
+            pathsByShard.add(new ArrayList<File>());
+        }
+        for (File path : paths) {
+            int shard = selector.selectShard(path, shards.size());
+            if (shard < 0 || shard >= shards.size()) {
+                throw new IllegalArgumentException("Invalid shard " + shard + " selected for " + path);
+            }
+            pathsByShard.get(shard).add(path);
+        }
+        return pathsByShard;
+    }
+
+    /**
+     * Selects the shard to watch a path with.
+     * Has to select the same shard for the same path every time, so the path can be unregistered again.
+     */
+    public interface ShardSelector {
+        /**
+         * Returns the index of the shard to watch the given path with, between {@code 0} and {@code shardCount - 1}.
+         */
+        int selectShard(File path, int shardCount);
+    }
+}
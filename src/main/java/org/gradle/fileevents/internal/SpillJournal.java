@@ -0,0 +1,419 @@
+package org.gradle.fileevents.internal;
+
+import org.gradle.fileevents.FileWatchEvent;
+import org.gradle.fileevents.FileWatchEvent.ChangeType;
+import org.gradle.fileevents.FileWatchEvent.OverflowType;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A journal of events on disk that takes the events that don't fit into the event queue of a watcher.
+ *
+ * Events are appended to memory-mapped segment files in the given directory, and a background thread
+ * replays them into the event queue in order as the consumer makes room. Once some events have been
+ * spilled, all further events go through the journal until it has been replayed completely, so
+ * the consumer still receives every event in the order it happened.
+ * Segment files are deleted as soon as they have been replayed.
+ *
+ * <h3>Remarks:</h3>
+ *
+ * <ul>
+ *     <li>A journal can only be used by a single watcher.</li>
+ *
+ *     <li>When an event can't be written to the journal, e.g. because the disk is full,
+ *     the watcher falls back to reporting an {@link OverflowType#EVENT_QUEUE EVENT_QUEUE} overflow.</li>
+ *
+ *     <li>The journal stops replaying once the watcher has terminated and everything spilled before
+ *     has been replayed, or when it is closed.</li>
+ * </ul>
+ *
+ * @see AbstractFileEventFunctions.AbstractWatcherBuilder#withSpillJournal(SpillJournal)
+ */
+public class SpillJournal implements Closeable {
+    public static final int MINIMUM_SEGMENT_SIZE = 64 * 1024;
+
+    private static final int CHANGE = 0;
+    private static final int UNKNOWN = 1;
+    private static final int OVERFLOW = 2;
+    private static final int FAILURE = 3;
+    private static final int TERMINATION = 4;
+
+    // Record length, kind, type and whether there is a path
+    private static final int HEADER_SIZE = 8;
+
+    private static final ChangeType[] CHANGE_TYPES = ChangeType.values();
+    private static final OverflowType[] OVERFLOW_TYPES = OverflowType.values();
+
+    private final File directory;
+    private final int segmentSize;
+    private final Queue<Segment> segments = new ConcurrentLinkedQueue<Segment>();
+    // Failures are kept in memory, they are rare and can't be written to disk faithfully
+    private final Queue<Throwable> failures = new ConcurrentLinkedQueue<Throwable>();
+    // Events appended but not yet replayed, including the one currently being replayed
+    private final AtomicLong pendingEvents = new AtomicLong();
+    private final AtomicLong spilledEvents = new AtomicLong();
+    private final Object signal = new Object();
+    // The shards of a sharded watcher spill concurrently
+    private final Object appendLock = new Object();
+    private final Encoder encoder = new Encoder();
+
+    private Segment writeSegment;
+    private int segmentIndex;
+    private Thread replayThread;
+    private volatile boolean closed;
+    // Set once the watcher won't spill any more events
+    private volatile boolean finishing;
+
+    /**
+     * Creates a new journal writing segments to the given directory.
+     *
+     * @param segmentSizeInBytes the size of a single segment file, must be at least {@value MINIMUM_SEGMENT_SIZE} bytes.
+     */
+    public SpillJournal(File directory, int segmentSizeInBytes) {
+        if (segmentSizeInBytes < MINIMUM_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("Spill journal segment size must be at least " + MINIMUM_SEGMENT_SIZE + " bytes, was " + segmentSizeInBytes);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSizeInBytes;
+    }
+
+    /**
+     * Returns whether there are spilled events that haven't been replayed yet.
+     */
+    public boolean hasPendingEvents() {
+        return pendingEvents.get() > 0;
+    }
+
+    /**
+     * Returns the number of events spilled to the journal so far.
+     */
+    public long getSpilledEventCount() {
+        return spilledEvents.get();
+    }
+
+    /**
+     * Starts replaying the journal to the given handler on a background thread.
+     */
+    synchronized void startReplaying(final FileWatchEvent.Handler handler) {
+        if (replayThread != null) {
+            throw new IllegalStateException("Spill journal is already in use");
+        }
+        replayThread = new Thread("File watcher spill journal") {
+            @Override
+            public void run() {
+                try {
+                    replay(handler);
+                } catch (InterruptedException e) {
+                    // Closed
+                } finally {
+                    deleteSegments();
+                }
+            }
+        };
+        replayThread.setDaemon(true);
+        replayThread.start();
+    }
+
+    /**
+     * Stops replaying once everything spilled so far has been replayed, as the watcher has terminated.
+     */
+    void finishReplaying() {
+        finishing = true;
+        synchronized (signal) {
+            signal.notifyAll();
+        }
+    }
+
+    /**
+     * Waits for the replaying to stop.
+     *
+     * @return whether the replaying stopped in time, or never started.
+     */
+    boolean awaitReplayFinished(long timeout, TimeUnit unit) throws InterruptedException {
+        Thread thread;
+        synchronized (this) {
+            thread = replayThread;
+        }
+        if (thread != null) {
+            thread.join(unit.toMillis(timeout));
+            return !thread.isAlive();
+        }
+        return true;
+    }
+
+    /**
+     * Appends an event to the journal.
+     *
+     * @return {@code false} if the event couldn't be written.
+     */
+    boolean append(FileWatchEvent event) {
+        if (closed) {
+            return false;
+        }
+        synchronized (appendLock) {
+            encoder.encode(event);
+            try {
+                if (writeSegment == null || !writeSegment.fits(encoder.length())) {
+                    rotateSegment();
+                }
+            } catch (IOException e) {
+                NativeLogger.LOGGER.error("Couldn't create spill journal segment in " + directory, e);
+                return false;
+            }
+            if (!writeSegment.fits(encoder.length())) {
+                NativeLogger.LOGGER.error("Event too large for spill journal: " + event);
+                return false;
+            }
+            // Nothing can fail anymore, so the failure is only kept when its record is written
+            encoder.keepFailure();
+            pendingEvents.incrementAndGet();
+            encoder.writeTo(writeSegment);
+            spilledEvents.incrementAndGet();
+        }
+        synchronized (signal) {
+            signal.notifyAll();
+        }
+        return true;
+    }
+
+    private void rotateSegment() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Couldn't create directory " + directory);
+        }
+        Segment segment = new Segment(new File(directory, String.format("events-%08d.journal", segmentIndex++)), segmentSize);
+        if (writeSegment != null) {
+            writeSegment.seal();
+        }
+        writeSegment = segment;
+        segments.add(segment);
+    }
+
+    private void replay(FileWatchEvent.Handler handler) throws InterruptedException {
+        int readPosition = 0;
+        while (!closed) {
+            long observedEvents = spilledEvents.get();
+            Segment segment = segments.peek();
+            if (segment == null) {
+                if (finishing && !hasPendingEvents()) {
+                    return;
+                }
+                awaitSignal(observedEvents);
+                continue;
+            }
+            boolean sealed = segment.sealed;
+            if (readPosition < segment.writePosition) {
+                int length = segment.buffer.getInt(readPosition);
+                int kind = segment.buffer.get(readPosition + 4);
+                boolean terminated = kind == TERMINATION;
+                replayRecord(handler, segment, readPosition, length, kind);
+                readPosition += length;
+                pendingEvents.decrementAndGet();
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                if (terminated) {
+                    return;
+                }
+            } else if (sealed) {
+                segments.poll();
+                segment.delete();
+                readPosition = 0;
+            } else if (finishing && !hasPendingEvents()) {
+                return;
+            } else {
+                awaitSignal(observedEvents);
+            }
+        }
+    }
+
+    private void replayRecord(FileWatchEvent.Handler handler, Segment segment, int position, int length, int kind) {
+        int type = segment.buffer.get(position + 5);
+        boolean hasPath = segment.buffer.get(position + 6) != 0;
+        String path = hasPath ? decodePath(segment, position, length) : null;
+        switch (kind) {
+            case CHANGE:
+                handler.handleChangeEvent(CHANGE_TYPES[type], path);
+                break;
+            case UNKNOWN:
+                handler.handleUnknownEvent(path);
+                break;
+            case OVERFLOW:
+                handler.handleOverflow(OVERFLOW_TYPES[type], path);
+                break;
+            case FAILURE:
+                handler.handleFailure(failures.poll());
+                break;
+            case TERMINATION:
+                handler.handleTerminated();
+                break;
+            default:
+                throw new IllegalStateException("Unknown spill journal record " + kind);
+        }
+    }
+
+    private static String decodePath(Segment segment, int position, int length) {
+        byte[] bytes = new byte[length - HEADER_SIZE];
+        segment.readBuffer.position(position + HEADER_SIZE);
+        segment.readBuffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void awaitSignal(long observedEvents) throws InterruptedException {
+        synchronized (signal) {
+            // Don't wait when something has been appended since we last looked, or the watcher has terminated
+            if (spilledEvents.get() == observedEvents && !finishing) {
+                signal.wait();
+            }
+        }
+    }
+
+    private void deleteSegments() {
+        Segment segment;
+        while ((segment = segments.poll()) != null) {
+            segment.delete();
+        }
+    }
+
+    /**
+     * Stops replaying, and deletes all segments.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        Thread thread;
+        synchronized (this) {
+            thread = replayThread;
+        }
+        if (thread != null) {
+            thread.interrupt();
+        } else {
+            deleteSegments();
+        }
+    }
+
+    private class Encoder implements FileWatchEvent.Handler {
+        private int kind;
+        private int type;
+        private byte[] path;
+        private Throwable failure;
+
+        void encode(FileWatchEvent event) {
+            path = null;
+            type = 0;
+            failure = null;
+            event.handleEvent(this);
+        }
+
+        void keepFailure() {
+            if (failure != null) {
+                failures.add(failure);
+            }
+        }
+
+        int length() {
+            return HEADER_SIZE + (path == null ? 0 : path.length);
+        }
+
+        void writeTo(Segment segment) {
+            segment.write(kind, type, path, length());
+        }
+
+        @Override
+        public void handleChangeEvent(ChangeType type, String absolutePath) {
+            set(CHANGE, type.ordinal(), absolutePath);
+        }
+
+        @Override
+        public void handleUnknownEvent(String absolutePath) {
+            set(UNKNOWN, 0, absolutePath);
+        }
+
+        @Override
+        public void handleOverflow(OverflowType type, @Nullable String absolutePath) {
+            set(OVERFLOW, type.ordinal(), absolutePath);
+        }
+
+        @Override
+        public void handleFailure(Throwable failure) {
+            this.failure = failure;
+            set(FAILURE, 0, null);
+        }
+
+        @Override
+        public void handleTerminated() {
+            set(TERMINATION, 0, null);
+        }
+
+        private void set(int kind, int type, @Nullable String path) {
+            this.kind = kind;
+            this.type = type;
+            this.path = path == null ? null : path.getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    private static class Segment {
+        private final File file;
+        private final MappedByteBuffer buffer;
+        // Separate views for the writer and the replay thread, so they don't share a position
+        private final ByteBuffer writeBuffer;
+        private final ByteBuffer readBuffer;
+        private volatile int writePosition;
+        private volatile boolean sealed;
+
+        Segment(File file, int size) throws IOException {
+            this.file = file;
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+            try {
+                randomAccessFile.setLength(size);
+                // The mapping stays valid after the file has been closed
+                this.buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            } finally {
+                randomAccessFile.close();
+            }
+            this.writeBuffer = buffer.duplicate();
+            this.readBuffer = buffer.duplicate();
+        }
+
+        boolean fits(int length) {
+            return writePosition + length <= buffer.capacity();
+        }
+
+        void write(int kind, int type, @Nullable byte[] path, int length) {
+            int position = writePosition;
+            buffer.putInt(position, length);
+            buffer.put(position + 4, (byte) kind);
+            buffer.put(position + 5, (byte) type);
+            buffer.put(position + 6, (byte) (path == null ? 0 : 1));
+            buffer.put(position + 7, (byte) 0);
+            if (path != null) {
+                writeBuffer.position(position + HEADER_SIZE);
+                writeBuffer.put(path);
+            }
+            // Publish the record to the replay thread
+            writePosition = position + length;
+        }
+
+        void seal() {
+            sealed = true;
+        }
+
+        void delete() {
+            if (!file.delete()) {
+                // On Windows a file can't be deleted while it is mapped
+                file.deleteOnExit();
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package org.gradle.fileevents.internal;
+
+import org.gradle.fileevents.FileWatcherStatistics;
+import org.gradle.fileevents.FileWatcherStatistics.DurationHistogram;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The counters kept on the Java side of a watcher.
+ *
+ * The counters are updated by the threads reporting the events, like the shards of a sharded watcher
+ * sharing the same counters, and are read by whoever takes a snapshot of the statistics.
+ */
+@ThreadSafe
+class WatcherCounters {
+    /**
+     * Number of buckets in a duration histogram, must match {@code DURATION_HISTOGRAM_BUCKETS} on the native side.
+     */
+    static final int HISTOGRAM_BUCKET_COUNT = 38;
+
+    /**
+     * Number of values reported by the native side: the kernel event count,
+     * the active watch count, and the read, decode and upcall histograms.
+     */
+    static final int NATIVE_STATISTICS_SIZE = 2 + 3 * HISTOGRAM_BUCKET_COUNT;
+
+    private final AtomicLong deliveredEventCount = new AtomicLong();
+    private final AtomicLong droppedEventCount = new AtomicLong();
+    private final AtomicLong operatingSystemOverflowCount = new AtomicLong();
+    private final AtomicLong eventQueueOverflowCount = new AtomicLong();
+    private final AtomicLong eventQueueHighWaterMark = new AtomicLong();
+    private final AtomicLongArray queueOfferTimes = new AtomicLongArray(HISTOGRAM_BUCKET_COUNT);
+
+    void recordDelivered(int count) {
+        deliveredEventCount.addAndGet(count);
+    }
+
+    void recordDropped(int count) {
+        droppedEventCount.addAndGet(count);
+    }
+
+    void recordOperatingSystemOverflow() {
+        operatingSystemOverflowCount.incrementAndGet();
+    }
+
+    void recordEventQueueOverflow() {
+        eventQueueOverflowCount.incrementAndGet();
+    }
+
+    void recordQueueSize(int size) {
+        long highWaterMark = eventQueueHighWaterMark.get();
+        while (size > highWaterMark && !eventQueueHighWaterMark.compareAndSet(highWaterMark, size)) {
+            highWaterMark = eventQueueHighWaterMark.get();
+        }
+    }
+
+    void recordQueueOffer(long timeInNanos) {
+        queueOfferTimes.incrementAndGet(bucketFor(timeInNanos));
+    }
+
+    static int bucketFor(long timeInNanos) {
+        if (timeInNanos <= 1) {
+            return 0;
+        }
+        return Math.min(63 - Long.numberOfLeadingZeros(timeInNanos), HISTOGRAM_BUCKET_COUNT - 1);
+    }
+
+    /**
+     * Combines the counters with the given values from the native side.
+     */
+    FileWatcherStatistics snapshot(long[] nativeValues) {
+        long[] offerCounts = new long[HISTOGRAM_BUCKET_COUNT];
+        for (int i = 0; i < offerCounts.length; i++) {
+            offerCounts[i] = queueOfferTimes.get(i);
+        }
+        return new FileWatcherStatistics(
+            nativeValues[0],
+            deliveredEventCount.get(),
+            droppedEventCount.get(),
+            operatingSystemOverflowCount.get(),
+            eventQueueOverflowCount.get(),
+            eventQueueHighWaterMark.get(),
+            nativeValues[1],
+            nativeHistogram(nativeValues, 0),
+            nativeHistogram(nativeValues, 1),
+            nativeHistogram(nativeValues, 2),
+            new DurationHistogram(offerCounts)
+        );
+    }
+
+    private static DurationHistogram nativeHistogram(long[] nativeValues, int index) {
+        int start = 2 + index * HISTOGRAM_BUCKET_COUNT;
+        return new DurationHistogram(Arrays.copyOfRange(nativeValues, start, start + HISTOGRAM_BUCKET_COUNT));
+    }
+}
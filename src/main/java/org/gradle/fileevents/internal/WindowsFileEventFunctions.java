@@ -56,6 +56,11 @@ public class WindowsFileEventFunctions extends AbstractNativeFileEventFunctions<
         return new WatcherBuilder(eventQueue);
     }
 
+    @Override
+    public WatcherBuilder newWatcher(FileWatchEvent.Handler handler) {
+        return new WatcherBuilder(handler);
+    }
+
     public static class WindowsFileWatcher extends AbstractNativeFileEventFunctions.NativeFileWatcher {
         public WindowsFileWatcher(Object server, NativeFileWatcherCallback callback) {
             super(server, callback);
@@ -78,7 +83,7 @@ public class WindowsFileEventFunctions extends AbstractNativeFileEventFunctions<
         private native void stopWatchingMovedPaths0(Object server, List<String> droppedPaths);
     }
 
-    public static class WatcherBuilder extends AbstractWatcherBuilder<WindowsFileWatcher> {
+    public static class WatcherBuilder extends AbstractWatcherBuilder<WindowsFileWatcher, WatcherBuilder> {
         private int bufferSize = DEFAULT_BUFFER_SIZE;
         private long commandTimeoutInMillis = TimeUnit.SECONDS.toMillis(DEFAULT_COMMAND_TIMEOUT_IN_SECONDS);
 
@@ -86,6 +91,10 @@ public class WindowsFileEventFunctions extends AbstractNativeFileEventFunctions<
             super(eventQueue);
         }
 
+        private WatcherBuilder(FileWatchEvent.Handler handler) {
+            super(handler);
+        }
+
         /**
          * Set the buffer size used to collect events.
          * Default value is {@value DEFAULT_BUFFER_SIZE} bytes.
@@ -0,0 +1,140 @@
+package org.gradle.fileevents.internal;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import org.gradle.fileevents.FileWatchEvent.OverflowType;
+
+import javax.annotation.Nullable;
+
+/**
+ * Emits JDK Flight Recorder events about what the watchers are doing.
+ *
+ * This replaces the no-op implementation for Java 8 in the multi-release JAR, and has to keep the same signatures.
+ *
+ * Disabled events cost close to nothing: the JIT folds {@link Event#isEnabled()} to a constant,
+ * and removes the allocation of the event that doesn't escape.
+ */
+final class FlightRecorderEvents {
+    private FlightRecorderEvents() {
+    }
+
+    @Nullable
+    static Object beginEventBatch() {
+        return begin(new EventBatchEvent());
+    }
+
+    static void endEventBatch(@Nullable Object event, int eventCount) {
+        if (event != null) {
+            EventBatchEvent batch = (EventBatchEvent) event;
+            batch.end();
+            if (batch.shouldCommit()) {
+                batch.eventCount = eventCount;
+                batch.commit();
+            }
+        }
+    }
+
+    static void overflow(OverflowType type, @Nullable String absolutePath) {
+        OverflowEvent event = new OverflowEvent();
+        if (event.shouldCommit()) {
+            event.overflowType = type.name();
+            event.path = absolutePath;
+            event.commit();
+        }
+    }
+
+    @Nullable
+    static Object beginRegistration() {
+        return begin(new RegistrationEvent());
+    }
+
+    static void endRegistration(@Nullable Object event, String operation, int pathCount) {
+        if (event != null) {
+            RegistrationEvent registration = (RegistrationEvent) event;
+            registration.end();
+            if (registration.shouldCommit()) {
+                registration.operation = operation;
+                registration.pathCount = pathCount;
+                registration.commit();
+            }
+        }
+    }
+
+    @Nullable
+    static Object beginQueueStall() {
+        return begin(new QueueStallEvent());
+    }
+
+    static void endQueueStall(@Nullable Object event, boolean successful) {
+        if (event != null) {
+            QueueStallEvent stall = (QueueStallEvent) event;
+            stall.end();
+            if (stall.shouldCommit()) {
+                stall.successful = successful;
+                stall.commit();
+            }
+        }
+    }
+
+    @Nullable
+    private static Event begin(Event event) {
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    @Name("org.gradle.fileevents.EventBatch")
+    @Label("File Watcher Event Batch")
+    @Description("A batch of change events reported by the native watcher, and the time it took to handle them in Java")
+    @Category({"Gradle", "File Events"})
+    @StackTrace(false)
+    // Only the slow batches by default, there can be lots of them
+    @Threshold("1 ms")
+    static class EventBatchEvent extends Event {
+        @Label("Event Count")
+        int eventCount;
+    }
+
+    @Name("org.gradle.fileevents.Overflow")
+    @Label("File Watcher Overflow")
+    @Description("The operating system or the event queue overflowed, and changes have been lost")
+    @Category({"Gradle", "File Events"})
+    @StackTrace(false)
+    static class OverflowEvent extends Event {
+        @Label("Overflow Type")
+        String overflowType;
+
+        @Label("Path")
+        String path;
+    }
+
+    @Name("org.gradle.fileevents.Registration")
+    @Label("File Watcher Registration")
+    @Description("Starting or stopping to watch paths")
+    @Category({"Gradle", "File Events"})
+    static class RegistrationEvent extends Event {
+        @Label("Operation")
+        String operation;
+
+        @Label("Path Count")
+        int pathCount;
+    }
+
+    @Name("org.gradle.fileevents.QueueStall")
+    @Label("File Watcher Queue Stall")
+    @Description("The watcher waited for the consumer to make room in the full event queue")
+    @Category({"Gradle", "File Events"})
+    @StackTrace(false)
+    static class QueueStallEvent extends Event {
+        @Label("Successful")
+        @Description("Whether the consumer made room before the backpressure timeout")
+        boolean successful;
+    }
+}
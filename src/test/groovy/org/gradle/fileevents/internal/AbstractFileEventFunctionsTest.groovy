@@ -91,6 +91,8 @@ abstract class AbstractFileEventFunctionsTest extends Specification {
 //        assumeFalse("testJni doesn't seem to work on Amazon Linux", isJniTest && isAmazonLinux)
 
         watcherFixture = FileWatcherFixture.of(Platform.current())
+        // Make sure the native side picks up the log level set by the logging capture
+        service.invalidateLogLevelCache()
         LOGGER.info(">>> Running '${testName}'")
         testDir = new File(tmpDir.getCanonicalFile(), testName)
         assert testDir.mkdirs()
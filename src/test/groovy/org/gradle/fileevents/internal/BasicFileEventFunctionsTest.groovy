@@ -25,12 +25,17 @@ import spock.lang.Requires
 import spock.lang.Unroll
 
 import java.util.concurrent.BlockingQueue
+import java.util.concurrent.LinkedBlockingQueue
 import java.util.concurrent.TimeUnit
 import java.util.regex.Pattern
 
 import static org.gradle.fileevents.FileWatchEvent.ChangeType.CREATED
 import static org.gradle.fileevents.FileWatchEvent.ChangeType.MODIFIED
 import static org.gradle.fileevents.FileWatchEvent.ChangeType.REMOVED
+import static org.gradle.fileevents.FileWatcher.RegistrationStatus.ALREADY_WATCHED
+import static org.gradle.fileevents.FileWatcher.RegistrationStatus.MISSING
+import static org.gradle.fileevents.FileWatcher.RegistrationStatus.NOT_A_DIRECTORY
+import static org.gradle.fileevents.FileWatcher.RegistrationStatus.REGISTERED
 import static org.gradle.fileevents.internal.AbstractFileEventFunctionsTest.PlatformType.OTHERWISE
 import static org.gradle.fileevents.internal.AbstractFileEventFunctionsTest.PlatformType.WINDOWS
 import static org.slf4j.event.Level.ERROR
@@ -440,18 +445,136 @@ class BasicFileEventFunctionsTest extends AbstractFileEventFunctionsTest {
         expectLogMessage(ERROR, Pattern.compile("Caught exception: Couldn't add watch.*: ${Pattern.quote(file.absolutePath)}"))
     }
 
-    def "fails when watching directory twice"() {
+    // Apparently on macOS we can watch non-existent directories
+    @IgnoreIf({ Platform.current().macOs })
+    def "reports status for each path when registering in bulk"() {
         given:
-        startWatcher(rootDir)
+        def watchedDir = new File(rootDir, "watched")
+        assert watchedDir.mkdirs()
+        def missingDirectory = new File(rootDir, "missing")
+        def createdFile = new File(watchedDir, "created.txt")
+        startWatcher()
 
         when:
+        def statuses = watcher.tryStartWatching([watchedDir, missingDirectory, watchedDir])
+
+        then:
+        statuses == [REGISTERED, MISSING, ALREADY_WATCHED]
+        watcher.statistics.activeWatchCount == 1
+
+        when:
+        createNewFile(createdFile)
+
+        then:
+        expectEvents change(CREATED, createdFile)
+        stopWatching(watchedDir, watchedDir)
+    }
+
+    // Apparently on macOS and Windows we can watch files
+    @Requires({ Platform.current().linux })
+    def "reports file as not a directory when registering in bulk"() {
+        given:
+        def file = new File(rootDir, "file.txt")
+        assert file.createNewFile()
+        startWatcher()
+
+        expect:
+        watcher.tryStartWatching([file, rootDir]) == [NOT_A_DIRECTORY, REGISTERED]
+    }
+
+    def "can start and stop watching asynchronously"() {
+        given:
+        def createdFile = new File(rootDir, "created.txt")
+        startWatcher()
+
+        when:
+        def statuses = watcher.startWatchingAsync([rootDir]).get(5, TimeUnit.SECONDS)
+        createNewFile(createdFile)
+
+        then:
+        statuses == [REGISTERED]
+        expectEvents change(CREATED, createdFile)
+
+        when:
+        def stopped = watcher.stopWatchingAsync([rootDir]).get(5, TimeUnit.SECONDS)
+
+        then:
+        stopped
+        watcher.statistics.activeWatchCount == 0
+    }
+
+    def "keeps watching directory watched twice until both registrations are gone"() {
+        given:
+        def createdFile = new File(rootDir, "created.txt")
+        startWatcher(rootDir)
         startWatching(rootDir)
 
+        expect:
+        watcher.statistics.activeWatchCount == 1
+
+        when:
+        def stoppedOnce = stopWatching(rootDir)
+        createNewFile(createdFile)
+
         then:
-        def ex = thrown NativeException
-        ex.message == "Already watching path: ${rootDir.absolutePath}"
+        stoppedOnce
+        expectEvents change(CREATED, createdFile)
+        watcher.statistics.activeWatchCount == 1
 
-        expectLogMessage(ERROR, "Caught exception: Already watching path: ${rootDir.absolutePath}")
+        when:
+        def stoppedTwice = stopWatching(rootDir)
+
+        then:
+        stoppedTwice
+        watcher.statistics.activeWatchCount == 0
+        !stopWatching(rootDir)
+
+        expectLogMessage(INFO, "Path is not watched: ${rootDir.absolutePath}")
+    }
+
+    def "reports statistics"() {
+        given:
+        def createdFile = new File(rootDir, "created.txt")
+        startWatcher(rootDir)
+
+        expect:
+        watcher.statistics.activeWatchCount == 1
+
+        when:
+        createNewFile(createdFile)
+
+        then:
+        expectEvents change(CREATED, createdFile)
+        def statistics = watcher.statistics
+        statistics.kernelEventCount >= 1
+        statistics.deliveredEventCount >= 1
+        statistics.droppedEventCount == 0
+        statistics.operatingSystemOverflowCount == 0
+        statistics.eventQueueOverflowCount == 0
+        statistics.eventQueueHighWaterMark >= 1
+        statistics.upcallTimes.count >= 1
+        statistics.queueOfferTimes.count >= 1
+
+        when:
+        stopWatching(rootDir)
+
+        then:
+        watcher.statistics.activeWatchCount == 0
+    }
+
+    def "keeps statistics after termination"() {
+        given:
+        def createdFile = new File(rootDir, "created.txt")
+        def watcher = startNewWatcher(rootDir)
+        createNewFile(createdFile)
+        expectEvents change(CREATED, createdFile)
+
+        when:
+        shutdownWatcher(watcher)
+
+        then:
+        expectEvents termination()
+        watcher.statistics.kernelEventCount >= 1
     }
 
     def "can un-watch path that was not watched"() {
@@ -616,6 +739,38 @@ class BasicFileEventFunctionsTest extends AbstractFileEventFunctionsTest {
         shutdownWatcher(secondWatcher)
     }
 
+    def "can report events directly to a handler"() {
+        given:
+        def createdFile = new File(rootDir, "created.txt")
+        def receivedEvents = new LinkedBlockingQueue<String>()
+        def handler = new TestHandler() {
+            @Override
+            void handleChangeEvent(FileWatchEvent.ChangeType type, String absolutePath) {
+                receivedEvents.put("${type} ${absolutePath}".toString())
+            }
+
+            @Override
+            void handleTerminated() {
+                receivedEvents.put("TERMINATE")
+            }
+        }
+        watcher = service.newWatcher(handler).start()
+        startWatching(rootDir)
+
+        when:
+        createNewFile(createdFile)
+
+        then:
+        receivedEvents.poll(1, TimeUnit.SECONDS) == "CREATED ${createdFile.absolutePath}".toString()
+
+        when:
+        shutdownWatcher()
+
+        then:
+        receivedEvents.poll(1, TimeUnit.SECONDS) == "TERMINATE"
+        receivedEvents.empty
+    }
+
     @Requires({ !Platform.current().linux })
     def "can receive event about a non-direct descendant change"() {
         given:
@@ -700,6 +855,7 @@ class BasicFileEventFunctionsTest extends AbstractFileEventFunctionsTest {
         when:
         logging.clear()
         nativeLogger.level = ch.qos.logback.classic.Level.TRACE
+        service.invalidateLogLevelCache()
         startWatcher(rootDir)
         fileChanged << "changed"
         waitForChangeEventLatency()
@@ -711,6 +867,7 @@ class BasicFileEventFunctionsTest extends AbstractFileEventFunctionsTest {
         shutdownWatcher()
         logging.clear()
         nativeLogger.level = ch.qos.logback.classic.Level.WARN
+        service.invalidateLogLevelCache()
         startWatcher()
         fileChanged << "changed again"
         waitForChangeEventLatency()
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gradle.fileevents.internal
+
+import org.gradle.fileevents.FileWatchEvent
+import org.gradle.fileevents.FileWatchEvent.ChangeType
+import org.gradle.fileevents.FileWatchEvent.OverflowType
+import spock.lang.Specification
+
+import javax.annotation.Nullable
+
+import static org.gradle.fileevents.FileWatchEvent.ChangeType.CREATED
+import static org.gradle.fileevents.FileWatchEvent.ChangeType.MODIFIED
+import static org.gradle.fileevents.FileWatchEvent.ChangeType.REMOVED
+
+class DirtyPathSetTest extends Specification {
+    def root = path("root")
+    // Room for four of the paths used below
+    def set = new DirtyPathSet(4 * DirtyPathSet.estimateSize(path("root", "b", "c", "second")))
+
+    def setup() {
+        set.addWatchedRoot(root)
+    }
+
+    def "reports last change for each path"() {
+        when:
+        set.handleChangeEvent(CREATED, path("root", "a"))
+        set.handleChangeEvent(MODIFIED, path("root", "b"))
+        set.handleChangeEvent(MODIFIED, path("root", "a"))
+        set.handleChangeEvent(REMOVED, path("root", "b"))
+
+        then:
+        drain() == [
+            "MODIFIED ${path("root", "a")}".toString(),
+            "REMOVED ${path("root", "b")}".toString(),
+        ]
+        drain() == []
+    }
+
+    def "coarsens deepest paths into invalidated parents when over budget"() {
+        when:
+        3.times { set.handleChangeEvent(CREATED, path("root", "a", "file-${it}")) }
+        set.handleChangeEvent(CREATED, path("root", "b", "c", "first"))
+        set.handleChangeEvent(CREATED, path("root", "b", "c", "second"))
+
+        then:
+        set.size() == 2
+        set.estimatedBytes == DirtyPathSet.estimateSize(path("root", "a")) + DirtyPathSet.estimateSize(path("root", "b"))
+
+        when:
+        set.handleChangeEvent(CREATED, path("root", "a", "d", "covered"))
+
+        then:
+        drain() == [
+            "INVALIDATED ${path("root", "a")}".toString(),
+            "INVALIDATED ${path("root", "b")}".toString(),
+        ]
+    }
+
+    def "does not coarsen beyond watched root"() {
+        when:
+        5.times { set.handleChangeEvent(CREATED, path("root", "file-${it}")) }
+
+        then:
+        drain() == ["INVALIDATED ${root}".toString()]
+    }
+
+    def "counts long paths against the budget by their size"() {
+        when:
+        set.handleChangeEvent(CREATED, path("root", "a", "short"))
+        set.handleChangeEvent(CREATED, path("root", "a", "long-name-" * 20))
+
+        then:
+        drain() == ["INVALIDATED ${path("root", "a")}".toString()]
+    }
+
+    def "invalidating a directory drops its descendants only"() {
+        when:
+        set.handleChangeEvent(CREATED, path("root", "a", "b", "file"))
+        set.handleChangeEvent(CREATED, path("root", "a-sibling"))
+        set.handleChangeEvent(CREATED, path("root", "a.txt"))
+        set.handleUnknownEvent(path("root", "a"))
+
+        then:
+        drain() == [
+            "INVALIDATED ${path("root", "a")}".toString(),
+            "CREATED ${path("root", "a-sibling")}".toString(),
+            "CREATED ${path("root", "a.txt")}".toString(),
+        ]
+    }
+
+    def "unknown events and overflows invalidate the path"() {
+        when:
+        set.handleChangeEvent(CREATED, path("root", "a", "file"))
+        set.handleUnknownEvent(path("root", "a"))
+        set.handleOverflow(OverflowType.OPERATING_SYSTEM, path("root", "b"))
+
+        then:
+        drain() == [
+            "INVALIDATED ${path("root", "a")}".toString(),
+            "INVALIDATED ${path("root", "b")}".toString(),
+        ]
+    }
+
+    def "overflows when too many watched roots have changes"() {
+        def set = new DirtyPathSet(DirtyPathSet.estimateSize(path("second")))
+        set.addWatchedRoot(path("first"))
+        set.addWatchedRoot(path("second"))
+
+        when:
+        set.handleChangeEvent(CREATED, path("first"))
+        set.handleChangeEvent(CREATED, path("second"))
+        set.handleChangeEvent(CREATED, path("first", "ignored"))
+
+        then:
+        drain(set) == ["OVERFLOW EVENT_QUEUE null"]
+    }
+
+    def "reports failures and termination after changes"() {
+        when:
+        set.handleTerminated()
+        set.handleFailure(new RuntimeException("Error"))
+        set.handleChangeEvent(CREATED, path("root", "a"))
+
+        then:
+        drain() == [
+            "CREATED ${path("root", "a")}".toString(),
+            "FAILURE Error",
+            "TERMINATE",
+        ]
+    }
+
+    def "rejects invalid budget"() {
+        when:
+        new DirtyPathSet(0)
+
+        then:
+        def ex = thrown IllegalArgumentException
+        ex.message == "Dirty path set budget must be positive, was 0"
+    }
+
+    private static String path(String... segments) {
+        return File.separator + segments.join(File.separator)
+    }
+
+    private List<String> drain(DirtyPathSet set = this.set) {
+        def events = []
+        set.drain(new FileWatchEvent.Handler() {
+            @Override
+            void handleChangeEvent(ChangeType type, String absolutePath) {
+                events << "${type} ${absolutePath}".toString()
+            }
+
+            @Override
+            void handleUnknownEvent(String absolutePath) {
+                events << "UNKNOWN ${absolutePath}".toString()
+            }
+
+            @Override
+            void handleOverflow(OverflowType type, @Nullable String absolutePath) {
+                events << "OVERFLOW ${type} ${absolutePath}".toString()
+            }
+
+            @Override
+            void handleFailure(Throwable failure) {
+                events << "FAILURE ${failure.message}".toString()
+            }
+
+            @Override
+            void handleTerminated() {
+                events << "TERMINATE"
+            }
+        })
+        return events
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gradle.fileevents.internal
+
+import net.rubygrapefruit.platform.internal.Platform
+import org.gradle.fileevents.FileWatchEvent.ChangeType
+import org.gradle.fileevents.FileWatchEvent.OverflowType
+import spock.lang.Requires
+
+import static java.util.concurrent.TimeUnit.SECONDS
+
+@Requires({ Platform.current().linux })
+class EventRingFileEventFunctionsTest extends AbstractFileEventFunctionsTest {
+
+    def ring = new OffHeapEventRing(OffHeapEventRing.MINIMUM_CAPACITY)
+
+    def "reports change events via the event ring"() {
+        given:
+        def createdFile = new File(rootDir, "created.txt")
+        def removedFile = new File(rootDir, "removed.txt")
+        assert removedFile.createNewFile()
+        startRingWatcher(rootDir)
+
+        when:
+        createNewFile(createdFile)
+        assert removedFile.delete()
+        waitForChangeEventLatency()
+
+        then:
+        ring.await(1, SECONDS)
+        drainEvents() == [
+            "CREATED ${createdFile.absolutePath}".toString(),
+            "REMOVED ${removedFile.absolutePath}".toString(),
+        ]
+        !ring.hasEvents()
+        expectNoEvents()
+    }
+
+    def "reports non-ASCII names via the event ring"() {
+        given:
+        def createdFile = new File(rootDir, "été-文件.txt")
+        startRingWatcher(rootDir)
+
+        when:
+        createNewFile(createdFile)
+        waitForChangeEventLatency()
+
+        then:
+        ring.await(1, SECONDS)
+        drainEvents() == ["CREATED ${createdFile.absolutePath}".toString()]
+    }
+
+    def "reports dirty roots without decoding names"() {
+        given:
+        def firstRoot = new File(rootDir, "first")
+        def secondRoot = new File(rootDir, "second")
+        def unchangedRoot = new File(rootDir, "unchanged")
+        [firstRoot, secondRoot, unchangedRoot].each { assert it.mkdirs() }
+        startRingWatcher(firstRoot, secondRoot, unchangedRoot)
+
+        when:
+        createNewFile(new File(firstRoot, "a.txt"))
+        createNewFile(new File(firstRoot, "b.txt"))
+        createNewFile(new File(secondRoot, "c.txt"))
+        waitForChangeEventLatency()
+
+        then:
+        ring.await(1, SECONDS)
+        def dirtyRoots = new LinkedHashSet<String>()
+        ring.drainDirtyRoots(dirtyRoots) == 3
+        dirtyRoots == [firstRoot.absolutePath, secondRoot.absolutePath] as Set
+    }
+
+    def "reports overflow when the ring is full"() {
+        given:
+        startRingWatcher(rootDir)
+
+        when:
+        fillRing("first")
+
+        then:
+        ring.await(1, SECONDS)
+        def events = drainEvents()
+        events.size() < 5000
+        events.last() == "OVERFLOW EVENT_QUEUE null"
+        events.count("OVERFLOW EVENT_QUEUE null") == 1
+
+        when:
+        fillRing("second")
+
+        then:
+        ring.await(1, SECONDS)
+        def refilledEvents = drainEvents()
+        refilledEvents.any { it.startsWith("CREATED ${new File(rootDir, "second").absolutePath}") }
+        refilledEvents.last() == "OVERFLOW EVENT_QUEUE null"
+    }
+
+    def "reports only announced roots as dirty when events have been lost"() {
+        given:
+        def unchangedRoot = new File(rootDir, "unchanged")
+        def changedRoot = new File(rootDir, "changed")
+        [unchangedRoot, changedRoot].each { assert it.mkdirs() }
+        startRingWatcher(unchangedRoot, changedRoot)
+
+        when:
+        fillRing(changedRoot, "lost")
+
+        then:
+        ring.await(1, SECONDS)
+        def dirtyRoots = new TreeSet<String>()
+        ring.drainDirtyRoots(dirtyRoots) > 0
+        dirtyRoots == [changedRoot.absolutePath] as Set
+    }
+
+    def "rejects invalid ring capacity"() {
+        when:
+        new OffHeapEventRing(capacity)
+
+        then:
+        def ex = thrown IllegalArgumentException
+        ex.message == "Event ring capacity must be a power of two and at least ${OffHeapEventRing.MINIMUM_CAPACITY} bytes, was ${capacity}"
+
+        where:
+        capacity << [1024, OffHeapEventRing.MINIMUM_CAPACITY + 1]
+    }
+
+    private void startRingWatcher(File... roots) {
+        watcher = fileEvents.get(LinuxFileEventFunctions)
+            .newWatcher(eventQueue)
+            .withEventRing(ring)
+            .start()
+        watcher.startWatching(roots as List)
+    }
+
+    private void fillRing(String prefix) {
+        fillRing(rootDir, prefix)
+    }
+
+    private void fillRing(File directory, String prefix) {
+        5000.times { index ->
+            new File(directory, "${prefix}-file-with-a-reasonably-long-name-${index}.txt").createNewFile()
+        }
+        waitForChangeEventLatency()
+    }
+
+    private List<String> drainEvents() {
+        def events = []
+        ring.drain(new TestHandler() {
+            @Override
+            void handleChangeEvent(ChangeType type, String absolutePath) {
+                events << "${type} ${absolutePath}".toString()
+            }
+
+            @Override
+            void handleOverflow(OverflowType type, String absolutePath) {
+                events << "OVERFLOW ${type} ${absolutePath}".toString()
+            }
+        })
+        return events
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gradle.fileevents.internal
+
+import net.rubygrapefruit.platform.NativeException
+import net.rubygrapefruit.platform.internal.Platform
+import spock.lang.Requires
+
+import java.nio.file.Files
+
+import static org.gradle.fileevents.FileWatchEvent.ChangeType.CREATED
+import static org.gradle.fileevents.FileWatchEvent.ChangeType.MODIFIED
+import static org.gradle.fileevents.FileWatchEvent.ChangeType.REMOVED
+import static org.slf4j.event.Level.ERROR
+
+@Requires({ Platform.current().linux && FanotifyFileEventFunctionsTest.fanotifyAvailable })
+class FanotifyFileEventFunctionsTest extends AbstractFileEventFunctionsTest {
+
+    static boolean isFanotifyAvailable() {
+        // Make sure the native library is loaded
+        getFileEvents()
+        return FanotifyFileEventFunctions.unavailableReason == null
+    }
+
+    def "can detect changes in descendants"() {
+        given:
+        def subDir = new File(rootDir, "a/b")
+        assert subDir.mkdirs()
+        def createdFile = new File(subDir, "created.txt")
+        def modifiedFile = new File(rootDir, "a/modified.txt")
+        assert modifiedFile.createNewFile()
+        startFanotifyWatcher(rootDir)
+
+        when:
+        createNewFile(createdFile)
+
+        then:
+        expectEvents change(CREATED, createdFile)
+
+        when:
+        modifiedFile << "change"
+
+        then:
+        expectEvents change(MODIFIED, modifiedFile)
+    }
+
+    def "can detect directory hierarchy created and removed"() {
+        given:
+        def createdDir = new File(rootDir, "created")
+        def nestedDir = new File(createdDir, "nested")
+        def createdFile = new File(nestedDir, "created.txt")
+        startFanotifyWatcher(rootDir)
+
+        when:
+        Files.createDirectories(nestedDir.toPath())
+        createNewFile(createdFile)
+
+        then:
+        expectEvents(
+            change(CREATED, createdDir),
+            change(CREATED, nestedDir),
+            change(CREATED, createdFile)
+        )
+
+        when:
+        assert createdDir.deleteDir()
+
+        then:
+        expectEvents(
+            change(REMOVED, createdFile),
+            change(REMOVED, nestedDir),
+            change(REMOVED, createdDir)
+        )
+    }
+
+    def "does not receive events from unwatched directory"() {
+        given:
+        def watchedDir = new File(rootDir, "watched")
+        assert watchedDir.mkdirs()
+        def unwatchedDir = new File(rootDir, "unwatched")
+        assert unwatchedDir.mkdirs()
+        startFanotifyWatcher(watchedDir)
+
+        when:
+        createNewFile(new File(unwatchedDir, "created.txt"))
+
+        then:
+        expectNoEvents()
+    }
+
+    def "can detect watched directory removed"() {
+        given:
+        def watchedDir = new File(rootDir, "watched")
+        assert watchedDir.mkdirs()
+        startFanotifyWatcher(watchedDir)
+
+        when:
+        assert watchedDir.delete()
+
+        then:
+        expectEvents change(REMOVED, watchedDir)
+    }
+
+    def "can detect watched directory moved away"() {
+        given:
+        def watchedDir = new File(rootDir, "watched")
+        assert watchedDir.mkdirs()
+        startFanotifyWatcher(watchedDir)
+
+        when:
+        Files.move(watchedDir.toPath(), new File(rootDir, "moved").toPath())
+
+        then:
+        expectEvents change(REMOVED, watchedDir)
+    }
+
+    def "reports changes in moved directory at its new location"() {
+        given:
+        def movedDir = new File(rootDir, "moved")
+        def nestedDir = new File(movedDir, "nested")
+        assert nestedDir.mkdirs()
+        // Shares a prefix with the moved directory, but is not inside it
+        def siblingDir = new File(rootDir, "moved-sibling")
+        assert siblingDir.mkdirs()
+        startFanotifyWatcher(rootDir)
+
+        when:
+        createNewFile(new File(nestedDir, "before.txt"))
+        createNewFile(new File(siblingDir, "before.txt"))
+
+        then:
+        expectEvents(
+            change(CREATED, new File(nestedDir, "before.txt")),
+            change(CREATED, new File(siblingDir, "before.txt"))
+        )
+
+        when:
+        def targetDir = new File(rootDir, "target")
+        Files.move(movedDir.toPath(), targetDir.toPath())
+
+        then:
+        expectEvents(
+            change(REMOVED, movedDir),
+            change(CREATED, targetDir)
+        )
+
+        when:
+        createNewFile(new File(targetDir, "nested/after.txt"))
+        createNewFile(new File(siblingDir, "after.txt"))
+
+        then:
+        expectEvents(
+            change(CREATED, new File(targetDir, "nested/after.txt")),
+            change(CREATED, new File(siblingDir, "after.txt"))
+        )
+    }
+
+    def "reports changes to each root watching the same directory"() {
+        given:
+        def linkedDir = new File(testDir, "linked")
+        Files.createSymbolicLink(linkedDir.toPath(), rootDir.toPath())
+        def createdFile = new File(rootDir, "a/created.txt")
+        assert createdFile.parentFile.mkdirs()
+        startFanotifyWatcher(rootDir, linkedDir)
+
+        when:
+        createNewFile(createdFile)
+
+        then:
+        expectEvents(
+            change(CREATED, createdFile),
+            change(CREATED, new File(linkedDir, "a/created.txt"))
+        )
+    }
+
+    def "does not receive events after directory is unwatched"() {
+        given:
+        startFanotifyWatcher(rootDir)
+
+        when:
+        def unwatched = stopWatching(rootDir)
+
+        then:
+        unwatched
+
+        when:
+        createNewFile(new File(rootDir, "created.txt"))
+
+        then:
+        expectNoEvents()
+    }
+
+    def "fails when watching file"() {
+        given:
+        def file = new File(rootDir, "file.txt")
+        assert file.createNewFile()
+        startFanotifyWatcher()
+
+        when:
+        startWatching(file)
+
+        then:
+        def ex = thrown NativeException
+        ex.message == "Couldn't add watch, not a directory, error = 20: ${file.absolutePath}"
+        expectLogMessage(ERROR, "Caught exception: Couldn't add watch, not a directory, error = 20: ${file.absolutePath}")
+    }
+
+    private void startFanotifyWatcher(File... roots) {
+        // Avoid setup operations to be reported
+        waitForChangeEventLatency()
+        watcher = fileEvents.get(FanotifyFileEventFunctions)
+            .newWatcher(eventQueue)
+            .start()
+        watcher.startWatching(roots as List)
+    }
+}
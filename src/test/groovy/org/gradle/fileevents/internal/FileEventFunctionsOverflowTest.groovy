@@ -117,10 +117,124 @@ class FileEventFunctionsOverflowTest extends AbstractFileEventFunctionsTest {
 
         then:
         singleElementQueue.empty
+        def statistics = watcher.statistics
+        statistics.eventQueueOverflowCount == 1
+        statistics.eventQueueHighWaterMark == 1
+        // The first event in the queue and the second one that didn't fit
+        statistics.droppedEventCount >= 2
 
         expectLogMessage(INFO, "Event queue overflow, dropping all events")
     }
 
+    def "waits for consumer to make room in the event queue with backpressure"() {
+        given:
+        def singleElementQueue = new ArrayBlockingQueue<FileWatchEvent>(1)
+        def statistics = new BackpressureStatistics()
+        def firstFile = new File(rootDir, "first.txt")
+        def secondFile = new File(rootDir, "second.txt")
+        waitForChangeEventLatency()
+        watcher = service.newWatcher(singleElementQueue)
+            .withBackpressure(5, SECONDS, statistics)
+            .start()
+        watcher.startWatching([rootDir])
+
+        when:
+        createNewFile(firstFile)
+        createNewFile(secondFile)
+        waitForChangeEventLatency()
+
+        then:
+        expectEvents(singleElementQueue, change(CREATED, firstFile), change(CREATED, secondFile))
+        statistics.blockedCount > 0
+        statistics.overflowCount == 0
+    }
+
+    def "reports overflow when consumer does not make room before backpressure timeout"() {
+        given:
+        def singleElementQueue = new ArrayBlockingQueue<FileWatchEvent>(1)
+        def statistics = new BackpressureStatistics()
+        def firstFile = new File(rootDir, "first.txt")
+        def secondFile = new File(rootDir, "second.txt")
+        waitForChangeEventLatency()
+        watcher = service.newWatcher(singleElementQueue)
+            .withBackpressure(50, TimeUnit.MILLISECONDS, statistics)
+            .start()
+        watcher.startWatching([rootDir])
+
+        when:
+        createNewFile(firstFile)
+        createNewFile(secondFile)
+        waitForChangeEventLatency()
+
+        then:
+        expectOverflow(singleElementQueue, 1, SECONDS)
+        statistics.overflowCount == 1
+        statistics.getBlockedTime(TimeUnit.MILLISECONDS) >= 50
+
+        expectLogMessage(INFO, "Event queue overflow, dropping all events")
+    }
+
+    def "spills events that don't fit into the event queue to the journal"() {
+        given:
+        def smallQueue = new ArrayBlockingQueue<FileWatchEvent>(4)
+        def journalDir = new File(testDir, "journal")
+        def journal = new SpillJournal(journalDir, SpillJournal.MINIMUM_SEGMENT_SIZE)
+        def createdFiles = (0..<2000).collect { new File(rootDir, "created-${it}.txt") }
+        waitForChangeEventLatency()
+        watcher = service.newWatcher(smallQueue)
+            .withSpillJournal(journal)
+            .start()
+        watcher.startWatching([rootDir])
+
+        when:
+        createdFiles.each { it.createNewFile() }
+        waitForChangeEventLatency()
+
+        then:
+        journal.spilledEventCount > 0
+        expectEvents(smallQueue, createdFiles.collect { change(CREATED, it) })
+
+        when:
+        shutdownWatcher()
+
+        then:
+        expectEvents(smallQueue, termination())
+        !journal.hasPendingEvents()
+        journal.awaitReplayFinished(1, SECONDS)
+
+        cleanup:
+        journal.close()
+    }
+
+    def "stops replaying when the watcher terminates without spilling"() {
+        given:
+        def journal = new SpillJournal(new File(testDir, "journal"), SpillJournal.MINIMUM_SEGMENT_SIZE)
+        watcher = service.newWatcher(eventQueue)
+            .withSpillJournal(journal)
+            .start()
+
+        when:
+        shutdownWatcher()
+
+        then:
+        expectEvents(termination())
+        journal.spilledEventCount == 0
+        journal.awaitReplayFinished(1, SECONDS)
+
+        cleanup:
+        journal.close()
+    }
+
+    def "backpressure is not supported when reporting to a handler"() {
+        when:
+        service.newWatcher(new AbstractFileEventFunctionsTest.TestHandler())
+            .withBackpressure(1, SECONDS, new BackpressureStatistics())
+
+        then:
+        def ex = thrown IllegalStateException
+        ex.message == "Backpressure is only supported when reporting events to a queue"
+    }
+
     private boolean expectOverflow(BlockingQueue<FileWatchEvent> eventQueue = this.eventQueue, int timeoutValue, TimeUnit timeoutUnit) {
         boolean overflow = false
         expectEvents(eventQueue, timeoutValue, timeoutUnit, { -> true }, { event ->
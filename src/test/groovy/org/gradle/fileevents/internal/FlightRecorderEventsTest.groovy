@@ -0,0 +1,80 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gradle.fileevents.internal
+
+import jdk.jfr.Recording
+import jdk.jfr.consumer.RecordedEvent
+import jdk.jfr.consumer.RecordingFile
+import net.rubygrapefruit.platform.internal.Platform
+import spock.lang.Requires
+
+import java.time.Duration
+
+import static org.gradle.fileevents.FileWatchEvent.ChangeType.CREATED
+
+// Flight Recorder events are only emitted on Java 11 and later
+@Requires({ jvm.java11Compatible && (Platform.current().macOs || Platform.current().linux || Platform.current().windows) })
+class FlightRecorderEventsTest extends AbstractFileEventFunctionsTest {
+    Recording recording
+
+    def setup() {
+        recording = new Recording()
+        ["EventBatch", "Overflow", "Registration", "QueueStall"].each {
+            recording.enable("org.gradle.fileevents." + it).withThreshold(Duration.ZERO)
+        }
+        recording.start()
+    }
+
+    def cleanup() {
+        recording.close()
+    }
+
+    def "emits events when registering paths"() {
+        when:
+        startWatcher(rootDir)
+        stopWatching(rootDir)
+
+        then:
+        def registrations = recordedEvents("Registration")
+        registrations*.getString("operation") == ["startWatching", "stopWatching"]
+        registrations*.getInt("pathCount") == [1, 1]
+    }
+
+    // On macOS change events are reported one by one
+    @Requires({ !Platform.current().macOs })
+    def "emits events for batches of change events"() {
+        given:
+        def createdFile = new File(rootDir, "created.txt")
+        startWatcher(rootDir)
+
+        when:
+        createNewFile(createdFile)
+
+        then:
+        expectEvents change(CREATED, createdFile)
+        recordedEvents("EventBatch")*.getInt("eventCount").sum() >= 1
+    }
+
+    private List<RecordedEvent> recordedEvents(String name) {
+        recording.stop()
+        def recordingFile = new File(testDir, "recording.jfr")
+        recording.dump(recordingFile.toPath())
+        RecordingFile.readAllEvents(recordingFile.toPath())
+            .findAll { it.eventType.name == "org.gradle.fileevents." + name }
+            .sort { it.startTime }
+    }
+}
@@ -0,0 +1,527 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gradle.fileevents.internal
+
+import net.rubygrapefruit.platform.NativeException
+import net.rubygrapefruit.platform.internal.Platform
+import org.gradle.fileevents.FileWatchEvent.ChangeType
+import spock.lang.Requires
+
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.file.Files
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit
+
+import static org.gradle.fileevents.FileWatchEvent.ChangeType.CREATED
+import static org.gradle.fileevents.FileWatcher.RegistrationStatus.REGISTERED
+import static org.slf4j.event.Level.ERROR
+import static org.slf4j.event.Level.INFO
+
+@Requires({ Platform.current().linux })
+class LinuxFileEventFunctionsTest extends AbstractFileEventFunctionsTest {
+
+    def "can detect changes with minimal event buffer"() {
+        given:
+        def createdFile = new File(rootDir, "x" * 255)
+        waitForChangeEventLatency()
+        watcher = fileEvents.get(LinuxFileEventFunctions)
+            .newWatcher(eventQueue)
+            .withEventBufferSize(4 * 1024)
+            .start()
+        watcher.startWatching([rootDir])
+
+        when:
+        createNewFile(createdFile)
+
+        then:
+        expectEvents change(CREATED, createdFile)
+    }
+
+    def "drains backlog with adaptive event buffer"() {
+        given:
+        def blockingFile = new File(rootDir, "blocking.txt")
+        def createdFiles = (0..<2000).collect { new File(rootDir, "created-${it}.txt") }
+        def release = new CountDownLatch(1)
+        def receivedPaths = [].asSynchronized()
+        waitForChangeEventLatency()
+        watcher = fileEvents.get(LinuxFileEventFunctions)
+            .newWatcher(new TestHandler() {
+                @Override
+                void handleChangeEvent(ChangeType type, String absolutePath) {
+                    if (absolutePath == blockingFile.absolutePath) {
+                        // Let a backlog build up in the kernel
+                        release.await()
+                    }
+                    receivedPaths << absolutePath
+                }
+            })
+            .withEventBufferSize(4 * 1024)
+            .withAdaptiveEventBufferSize(1024 * 1024)
+            .start()
+        watcher.startWatching([rootDir])
+
+        when:
+        createNewFile(blockingFile)
+        createdFiles.each { it.createNewFile() }
+        release.countDown()
+        waitForChangeEventLatency()
+
+        then:
+        receivedPaths == [blockingFile, *createdFiles]*.absolutePath
+    }
+
+    def "completes asynchronous registration after the events reported before it have been handled"() {
+        given:
+        def blockingFile = new File(rootDir, "blocking.txt")
+        def otherDir = new File(testDir, "other")
+        assert otherDir.mkdirs()
+        def createdFile = new File(otherDir, "created.txt")
+        def blocked = new CountDownLatch(1)
+        def release = new CountDownLatch(1)
+        def receivedPaths = [].asSynchronized()
+        waitForChangeEventLatency()
+        watcher = fileEvents.get(LinuxFileEventFunctions)
+            .newWatcher(new TestHandler() {
+                @Override
+                void handleChangeEvent(ChangeType type, String absolutePath) {
+                    receivedPaths << absolutePath
+                    if (absolutePath == blockingFile.absolutePath) {
+                        blocked.countDown()
+                        release.await()
+                    }
+                }
+            })
+            .start()
+        watcher.startWatching([rootDir])
+        createNewFile(blockingFile)
+        blocked.await()
+
+        when:
+        def registration = watcher.startWatchingAsync([otherDir])
+
+        then:
+        !registration.done
+
+        when:
+        release.countDown()
+
+        then:
+        registration.get(5, TimeUnit.SECONDS) == [REGISTERED]
+
+        when:
+        createNewFile(createdFile)
+        waitForChangeEventLatency()
+
+        then:
+        receivedPaths == [blockingFile, createdFile]*.absolutePath
+    }
+
+    def "registers paths while events are being handled"() {
+        given:
+        def blockingFile = new File(rootDir, "blocking.txt")
+        def otherDir = new File(testDir, "other")
+        assert otherDir.mkdirs()
+        def blocked = new CountDownLatch(1)
+        def release = new CountDownLatch(1)
+        waitForChangeEventLatency()
+        watcher = fileEvents.get(LinuxFileEventFunctions)
+            .newWatcher(new TestHandler() {
+                @Override
+                void handleChangeEvent(ChangeType type, String absolutePath) {
+                    blocked.countDown()
+                    release.await()
+                }
+            })
+            .start()
+        watcher.startWatching([rootDir])
+        createNewFile(blockingFile)
+        blocked.await()
+
+        when:
+        watcher.startWatching([otherDir])
+        def stopped = watcher.stopWatching([otherDir])
+
+        then:
+        stopped
+
+        cleanup:
+        release.countDown()
+    }
+
+    def "reports events for the right roots after unwatched roots have been replaced"() {
+        given:
+        def replacedDirs = (0..<10).collect { new File(testDir, "replaced-${it}") }
+        replacedDirs.each { assert it.mkdirs() }
+        startWatcher(rootDir)
+
+        expect:
+        replacedDirs.each { replacedDir ->
+            watcher.startWatching([replacedDir])
+            def createdFile = new File(replacedDir, "created.txt")
+            def keptFile = new File(rootDir, "kept-${replacedDir.name}.txt")
+            createNewFile(createdFile)
+            createNewFile(keptFile)
+            expectEvents(
+                change(CREATED, createdFile),
+                change(CREATED, keptFile)
+            )
+            assert watcher.stopWatching([replacedDir])
+        }
+    }
+
+    def "fails asynchronous registrations still pending on shutdown"() {
+        given:
+        def blockingFile = new File(rootDir, "blocking.txt")
+        def blocked = new CountDownLatch(1)
+        def release = new CountDownLatch(1)
+        waitForChangeEventLatency()
+        def linuxWatcher = fileEvents.get(LinuxFileEventFunctions)
+            .newWatcher(new TestHandler() {
+                @Override
+                void handleChangeEvent(ChangeType type, String absolutePath) {
+                    blocked.countDown()
+                    release.await()
+                }
+
+                @Override
+                void handleTerminated() {
+                }
+            })
+            .start()
+        linuxWatcher.startWatching([rootDir])
+        createNewFile(blockingFile)
+        blocked.await()
+
+        when:
+        def registration = linuxWatcher.startWatchingAsync([testDir])
+        linuxWatcher.shutdown()
+        release.countDown()
+        registration.get(5, TimeUnit.SECONDS)
+
+        then:
+        def ex = thrown ExecutionException
+        ex.cause.message == "Watcher has been shut down"
+        linuxWatcher.awaitTermination(5, TimeUnit.SECONDS)
+    }
+
+    def "replays recorded events"() {
+        given:
+        def corpus = new File(testDir, "events.corpus")
+        def subDir = new File(rootDir, "sub")
+        def createdFile = new File(subDir, "created.txt")
+        def receivedEvents = [].asSynchronized()
+        def replayedEvents = []
+        def functions = fileEvents.get(LinuxFileEventFunctions)
+        waitForChangeEventLatency()
+        watcher = functions
+            .newWatcher(new RecordingHandler(receivedEvents))
+            .withRecursiveWatching()
+            .withEventRecording(corpus)
+            .start()
+        watcher.startWatching([rootDir])
+
+        when:
+        assert subDir.mkdir()
+        waitForChangeEventLatency()
+        createNewFile(createdFile)
+        new File(rootDir, "modified.txt").text = "modified"
+        waitForChangeEventLatency()
+        shutdownWatcher()
+        def replayedCount = functions.replayRecordedEvents(corpus, new RecordingHandler(replayedEvents))
+
+        then:
+        replayedCount > 0
+        receivedEvents.contains("CREATED ${createdFile.absolutePath}".toString())
+        replayedEvents == receivedEvents
+    }
+
+    def "rejects replaying something that is not an event corpus"() {
+        given:
+        def notACorpus = new File(testDir, "not-a-corpus.txt")
+        notACorpus.text = "Some text, but no events"
+
+        when:
+        fileEvents.get(LinuxFileEventFunctions).replayRecordedEvents(notACorpus, new TestHandler())
+
+        then:
+        def ex = thrown NativeException
+        ex.message == "Not an event corpus: ${notACorpus.absolutePath}"
+        expectLogMessage(ERROR, "Caught exception: Not an event corpus: ${notACorpus.absolutePath}")
+    }
+
+    def "rejects replaying a truncated event record"() {
+        given:
+        def corpus = new File(testDir, "truncated.corpus")
+        def buffer = ByteBuffer.allocate(52).order(ByteOrder.nativeOrder())
+        // Corpus header: magic, version, flags and latency
+        buffer.putInt(0x56454647).putInt(1).putInt(0).putInt(0)
+        // Record header: events, watch descriptor, value and payload length
+        buffer.putInt(3).putInt(0).putInt(0).putInt(20)
+        // An inotify event announcing a 16 byte name, followed by only 4 bytes of it
+        buffer.putInt(1).putInt(0x100).putInt(0).putInt(16)
+        buffer.put("name".bytes)
+        corpus.bytes = buffer.array()
+
+        when:
+        fileEvents.get(LinuxFileEventFunctions).replayRecordedEvents(corpus, new TestHandler())
+
+        then:
+        def ex = thrown NativeException
+        ex.message == "Corrupt event corpus"
+        expectLogMessage(ERROR, "Caught exception: Corrupt event corpus")
+    }
+
+    def "rejects too small event buffer"() {
+        when:
+        fileEvents.get(LinuxFileEventFunctions)
+            .newWatcher(eventQueue)
+            .withEventBufferSize(1024)
+
+        then:
+        def ex = thrown IllegalArgumentException
+        ex.message == "Event buffer size must be at least 4096 bytes, was 1024"
+    }
+
+    def "rejects maximum event buffer size smaller than the event buffer size"() {
+        when:
+        watcher = fileEvents.get(LinuxFileEventFunctions)
+            .newWatcher(eventQueue)
+            .withEventBufferSize(64 * 1024)
+            .withAdaptiveEventBufferSize(16 * 1024)
+            .start()
+
+        then:
+        def ex = thrown IllegalArgumentException
+        ex.message == "Maximum event buffer size must be at least the event buffer size of 65536 bytes, was 16384"
+    }
+
+    def "sharded watcher merges events from all shards"() {
+        given:
+        def parentDirs = (0..<4).collect { new File(rootDir, "parent-${it}") }
+        def watchedDirs = parentDirs.collect { new File(it, "watched") }
+        watchedDirs.each { assert it.mkdirs() }
+        def createdFiles = watchedDirs.collect { new File(it, "created.txt") }
+        def shardsByRoot = parentDirs.withIndex().collectEntries { dir, index -> [dir, index % 2] }
+        waitForChangeEventLatency()
+        def shardedWatcher = fileEvents.get(LinuxFileEventFunctions)
+            .newWatcher(eventQueue)
+            .startSharded(2, ShardedFileWatcher.withRootAffinity(shardsByRoot))
+        watcher = shardedWatcher
+        watcher.startWatching(watchedDirs)
+
+        when:
+        createdFiles.each { createNewFile(it) }
+
+        then:
+        expectEvents createdFiles.collect { change(CREATED, it) }
+        shardedWatcher.statistics.activeWatchCount == 4
+
+        when:
+        Files.move(parentDirs[1].toPath(), new File(rootDir, "renamed").toPath())
+        def droppedPaths = shardedWatcher.stopWatchingMovedPaths(watchedDirs)
+
+        then:
+        droppedPaths == [watchedDirs[1]]
+        stopWatching(watchedDirs[0], watchedDirs[2], watchedDirs[3])
+
+        when:
+        shutdownWatcher()
+
+        then:
+        expectEvents termination()
+    }
+
+    def "sharded watcher spreads paths by hash"() {
+        given:
+        def watchedDirs = (0..<8).collect { new File(rootDir, "dir-${it}") }
+        watchedDirs.each { assert it.mkdirs() }
+        def createdFiles = watchedDirs.collect { new File(it, "created.txt") }
+        waitForChangeEventLatency()
+        watcher = fileEvents.get(LinuxFileEventFunctions)
+            .newWatcher(eventQueue)
+            .startSharded(3, ShardedFileWatcher.HASHING)
+        watcher.startWatching(watchedDirs)
+
+        when:
+        createdFiles.each { createNewFile(it) }
+
+        then:
+        expectEvents createdFiles.collect { change(CREATED, it) }
+        stopWatching(*watchedDirs)
+    }
+
+    def "multiplexed watchers only receive events for their own roots"() {
+        given:
+        def firstDir = new File(rootDir, "first")
+        def secondDir = new File(rootDir, "second")
+        def sharedDir = new File(rootDir, "shared")
+        [firstDir, secondDir, sharedDir].each { assert it.mkdirs() }
+        def firstFile = new File(firstDir, "first.txt")
+        def secondFile = new File(secondDir, "second.txt")
+        def sharedFile = new File(sharedDir, "shared.txt")
+        def otherEventQueue = newEventQueue()
+        waitForChangeEventLatency()
+        def functions = fileEvents.get(LinuxFileEventFunctions)
+        watcher = functions.newWatcher(eventQueue).startMultiplexed()
+        def otherWatcher = functions.newWatcher(otherEventQueue).startMultiplexed()
+        watcher.startWatching([firstDir, sharedDir])
+        otherWatcher.startWatching([secondDir, sharedDir])
+
+        when:
+        createNewFile(firstFile)
+        createNewFile(secondFile)
+        createNewFile(sharedFile)
+
+        then:
+        expectEvents change(CREATED, firstFile), change(CREATED, sharedFile)
+        expectEvents otherEventQueue, change(CREATED, secondFile), change(CREATED, sharedFile)
+        watcher.statistics.activeWatchCount == 3
+
+        when:
+        shutdownWatcher(otherWatcher)
+
+        then:
+        expectEvents otherEventQueue, termination()
+        watcher.statistics.activeWatchCount == 2
+    }
+
+    def "slow multiplexed watcher does not hold back the others"() {
+        given:
+        def slowDir = new File(rootDir, "slow")
+        def fastDir = new File(rootDir, "fast")
+        [slowDir, fastDir].each { assert it.mkdirs() }
+        def slowFile = new File(slowDir, "slow.txt")
+        def fastFile = new File(fastDir, "fast.txt")
+        def blocked = new CountDownLatch(1)
+        def release = new CountDownLatch(1)
+        def receivedPaths = [].asSynchronized()
+        waitForChangeEventLatency()
+        def functions = fileEvents.get(LinuxFileEventFunctions)
+        def slowWatcher = functions.newWatcher(new TestHandler() {
+            @Override
+            void handleChangeEvent(ChangeType type, String absolutePath) {
+                blocked.countDown()
+                release.await()
+                receivedPaths << absolutePath
+            }
+
+            @Override
+            void handleTerminated() {}
+        }).startMultiplexed()
+        watcher = functions.newWatcher(eventQueue).startMultiplexed()
+        slowWatcher.startWatching([slowDir])
+        watcher.startWatching([fastDir])
+
+        when:
+        createNewFile(slowFile)
+        blocked.await()
+        createNewFile(fastFile)
+
+        then:
+        expectEvents change(CREATED, fastFile)
+
+        when:
+        release.countDown()
+        shutdownWatcher(slowWatcher)
+
+        then:
+        receivedPaths == [slowFile.absolutePath]
+    }
+
+    def "multiplexed watchers keep watching shared roots until the last one stops"() {
+        given:
+        def sharedFile = new File(rootDir, "shared.txt")
+        def otherEventQueue = newEventQueue()
+        def functions = fileEvents.get(LinuxFileEventFunctions)
+        watcher = functions.newWatcher(eventQueue).startMultiplexed()
+        def otherWatcher = functions.newWatcher(otherEventQueue).startMultiplexed()
+        watcher.startWatching([rootDir])
+        otherWatcher.startWatching([rootDir])
+
+        when:
+        watcher.stopWatching([rootDir])
+        createNewFile(sharedFile)
+
+        then:
+        expectEvents otherEventQueue, change(CREATED, sharedFile)
+        expectNoEvents()
+
+        when:
+        def stoppedUnwatchedPath = otherWatcher.stopWatching([rootDir, sharedFile])
+
+        then:
+        !stoppedUnwatchedPath
+        expectLogMessage(INFO, "Path is not watched: ${sharedFile.absolutePath}")
+        otherWatcher.statistics.activeWatchCount == 0
+
+        cleanup:
+        shutdownWatcher(otherWatcher)
+    }
+
+    def "multiplexed watcher counts its own registrations"() {
+        given:
+        def createdFile = new File(rootDir, "created.txt")
+        watcher = fileEvents.get(LinuxFileEventFunctions).newWatcher(eventQueue).startMultiplexed()
+        watcher.startWatching([rootDir])
+        watcher.startWatching([rootDir])
+
+        when:
+        def stoppedOnce = stopWatching(rootDir)
+        createNewFile(createdFile)
+
+        then:
+        stoppedOnce
+        expectEvents change(CREATED, createdFile)
+
+        when:
+        def stoppedTwice = stopWatching(rootDir)
+
+        then:
+        stoppedTwice
+        watcher.statistics.activeWatchCount == 0
+    }
+
+    def "rejects inotify specific options for multiplexed watchers"() {
+        when:
+        fileEvents.get(LinuxFileEventFunctions)
+            .newWatcher(eventQueue)
+            .withRecursiveWatching()
+            .startMultiplexed()
+
+        then:
+        thrown IllegalStateException
+    }
+
+    private static class RecordingHandler extends TestHandler {
+        private final List<String> events
+
+        RecordingHandler(List<String> events) {
+            this.events = events
+        }
+
+        @Override
+        void handleChangeEvent(ChangeType type, String absolutePath) {
+            events << "${type} ${absolutePath}".toString()
+        }
+
+        @Override
+        void handleTerminated() {
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gradle.fileevents.internal
+
+import net.rubygrapefruit.platform.internal.Platform
+import spock.lang.Requires
+
+import java.util.concurrent.TimeUnit
+
+import static org.gradle.fileevents.FileWatchEvent.ChangeType.CREATED
+import static org.gradle.fileevents.FileWatchEvent.ChangeType.MODIFIED
+import static org.gradle.fileevents.FileWatchEvent.ChangeType.REMOVED
+
+@Requires({ Platform.current().linux })
+class LinuxLatencyFileEventFunctionsTest extends AbstractFileEventFunctionsTest {
+
+    private static final long LATENCY_IN_MILLIS = 200
+
+    def "reports created and modified file as created"() {
+        given:
+        def createdFile = new File(rootDir, "created.txt")
+        startLatencyWatcher(rootDir)
+
+        when:
+        createNewFile(createdFile)
+        createdFile << "change"
+
+        then:
+        expectEvents change(CREATED, createdFile)
+        expectNoEvents()
+    }
+
+    def "does not report file created and removed within the latency window"() {
+        given:
+        def createdFile = new File(rootDir, "created.txt")
+        startLatencyWatcher(rootDir)
+
+        when:
+        createNewFile(createdFile)
+        assert createdFile.delete()
+        Thread.sleep(2 * LATENCY_IN_MILLIS)
+
+        then:
+        expectNoEvents()
+    }
+
+    def "reports file replaced by an editor as created"() {
+        given:
+        def savedFile = new File(rootDir, "saved.txt")
+        def temporaryFile = new File(rootDir, "saved.txt~")
+        savedFile << "original"
+        startLatencyWatcher(rootDir)
+
+        when:
+        temporaryFile << "saved"
+        assert savedFile.delete()
+        assert temporaryFile.renameTo(savedFile)
+
+        then:
+        expectEvents change(CREATED, savedFile)
+        expectNoEvents()
+    }
+
+    def "reports the last change for repeatedly changed file"() {
+        given:
+        def modifiedFile = new File(rootDir, "modified.txt")
+        def removedFile = new File(rootDir, "removed.txt")
+        modifiedFile << "original"
+        removedFile << "original"
+        startLatencyWatcher(rootDir)
+
+        when:
+        3.times { modifiedFile << "change" }
+        removedFile << "change"
+        assert removedFile.delete()
+
+        then:
+        expectEvents change(MODIFIED, modifiedFile), change(REMOVED, removedFile)
+        expectNoEvents()
+    }
+
+    def "reports pending changes when shutting down"() {
+        given:
+        def createdFile = new File(rootDir, "created.txt")
+        waitForChangeEventLatency()
+        watcher = fileEvents.get(LinuxFileEventFunctions)
+            .newWatcher(eventQueue)
+            .withLatency(1, TimeUnit.HOURS)
+            .start()
+        watcher.startWatching([rootDir])
+
+        when:
+        createNewFile(createdFile)
+        Thread.sleep(100)
+        shutdownWatcher()
+
+        then:
+        expectEvents change(CREATED, createdFile), termination()
+    }
+
+    def "reports removed hierarchy as a single event when collapsing removals"() {
+        given:
+        def removedDir = new File(rootDir, "removed")
+        def removedSubSubDir = new File(removedDir, "sub-dir/sub-sub-dir")
+        assert removedSubSubDir.mkdirs()
+        createNewFile(new File(removedSubSubDir, "file.txt"))
+        createNewFile(new File(removedDir, "file.txt"))
+        waitForChangeEventLatency()
+        watcher = fileEvents.get(LinuxFileEventFunctions)
+            .newWatcher(eventQueue)
+            .withRecursiveWatching()
+            .withCollapsedRemovals()
+            .withLatency(LATENCY_IN_MILLIS, TimeUnit.MILLISECONDS)
+            .start()
+        watcher.startWatching([rootDir])
+
+        when:
+        removedDir.deleteDir()
+
+        then:
+        expectEvents change(REMOVED, removedDir)
+        expectNoEvents()
+    }
+
+    private void startLatencyWatcher(File... roots) {
+        // Avoid setup operations to be reported
+        waitForChangeEventLatency()
+        watcher = fileEvents.get(LinuxFileEventFunctions)
+            .newWatcher(eventQueue)
+            .withLatency(LATENCY_IN_MILLIS, TimeUnit.MILLISECONDS)
+            .start()
+        watcher.startWatching(roots as List)
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gradle.fileevents.internal
+
+import net.rubygrapefruit.platform.internal.Platform
+import org.gradle.fileevents.FileWatchEvent
+import org.spockframework.util.Nullable
+import spock.lang.Requires
+
+import java.nio.file.Files
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+import static org.gradle.fileevents.FileWatchEvent.ChangeType.CREATED
+import static org.gradle.fileevents.FileWatchEvent.ChangeType.MODIFIED
+import static org.gradle.fileevents.FileWatchEvent.ChangeType.REMOVED
+import static org.slf4j.event.Level.INFO
+
+@Requires({ Platform.current().linux })
+class RecursiveWatchingFileEventFunctionsTest extends AbstractFileEventFunctionsTest {
+
+    def "can detect changes in existing subdirectories"() {
+        given:
+        def subDir = new File(rootDir, "a/b/c")
+        assert subDir.mkdirs()
+        def modifiedFile = new File(rootDir, "a/modified.txt")
+        assert modifiedFile.createNewFile()
+        def createdFile = new File(subDir, "created.txt")
+        startRecursiveWatcher(rootDir)
+
+        when:
+        createNewFile(createdFile)
+
+        then:
+        expectEvents change(CREATED, createdFile)
+
+        when:
+        modifiedFile << "change"
+
+        then:
+        expectEvents change(MODIFIED, modifiedFile)
+    }
+
+    def "reports contents of new directory hierarchy"() {
+        given:
+        def createdDir = new File(rootDir, "created")
+        def intermediateDir = new File(createdDir, "intermediate")
+        def nestedDir = new File(intermediateDir, "nested")
+        def createdFile = new File(nestedDir, "created.txt")
+        startRecursiveWatcher(rootDir)
+
+        when:
+        Files.createDirectories(nestedDir.toPath())
+        createNewFile(createdFile)
+
+        then:
+        // Entries created right after the watch has been added can be reported twice
+        expectEvents(
+            change(CREATED, createdDir),
+            change(CREATED, intermediateDir),
+            change(CREATED, nestedDir),
+            change(CREATED, createdFile),
+            optionalChange(CREATED, intermediateDir),
+            optionalChange(CREATED, nestedDir),
+            optionalChange(CREATED, createdFile)
+        )
+
+        when:
+        def laterFile = new File(nestedDir, "later.txt")
+        createNewFile(laterFile)
+
+        then:
+        expectEvents change(CREATED, laterFile)
+    }
+
+    def "reports contents of directory moved in"() {
+        given:
+        def sourceDir = new File(testDir, "source")
+        def sourceFile = new File(sourceDir, "nested/file.txt")
+        assert sourceFile.parentFile.mkdirs()
+        assert sourceFile.createNewFile()
+        def movedDir = new File(rootDir, "moved")
+        startRecursiveWatcher(rootDir)
+
+        when:
+        Files.move(sourceDir.toPath(), movedDir.toPath())
+
+        then:
+        expectEvents(
+            change(CREATED, movedDir),
+            change(CREATED, new File(movedDir, "nested")),
+            change(CREATED, new File(movedDir, "nested/file.txt"))
+        )
+
+        when:
+        def createdFile = new File(movedDir, "nested/created.txt")
+        createNewFile(createdFile)
+
+        then:
+        expectEvents change(CREATED, createdFile)
+    }
+
+    def "stops watching directory moved out"() {
+        given:
+        def watchedDir = new File(rootDir, "watched")
+        assert new File(watchedDir, "nested").mkdirs()
+        def targetDir = new File(testDir, "target")
+        startRecursiveWatcher(rootDir)
+
+        when:
+        Files.move(watchedDir.toPath(), targetDir.toPath())
+
+        then:
+        expectEvents change(REMOVED, watchedDir)
+
+        when:
+        createNewFile(new File(targetDir, "nested/created.txt"))
+
+        then:
+        expectNoEvents()
+    }
+
+    def "reports removal of directory hierarchy once"() {
+        given:
+        def removedDir = new File(rootDir, "removed")
+        def nestedDir = new File(removedDir, "nested")
+        def removedFile = new File(nestedDir, "removed.txt")
+        assert nestedDir.mkdirs()
+        assert removedFile.createNewFile()
+        startRecursiveWatcher(rootDir)
+
+        when:
+        assert removedDir.deleteDir()
+
+        then:
+        expectEvents(
+            change(REMOVED, removedFile),
+            change(REMOVED, nestedDir),
+            change(REMOVED, removedDir)
+        )
+    }
+
+    def "keeps reporting changes after most of a large hierarchy has been removed"() {
+        given:
+        def removedDir = new File(rootDir, "removed")
+        def removedDirs = (0..<1000).collect { new File(removedDir, "directory-with-a-name-long-enough-to-take-up-some-space-${it}") }
+        removedDirs.each { assert new File(it, "nested").mkdirs() }
+        def keptDir = new File(rootDir, "kept/nested")
+        assert keptDir.mkdirs()
+        startRecursiveWatcher(rootDir)
+
+        when:
+        assert removedDir.deleteDir()
+
+        then:
+        expectEvents(eventQueue, 5, TimeUnit.SECONDS, removedDirs.collectMany {
+            [change(REMOVED, new File(it, "nested")), change(REMOVED, it)]
+        } + change(REMOVED, removedDir))
+
+        when:
+        def createdDir = new File(keptDir, "created")
+        assert createdDir.mkdir()
+        waitForChangeEventLatency()
+        def createdFile = new File(createdDir, "created.txt")
+        createNewFile(createdFile)
+
+        then:
+        expectEvents(
+            change(CREATED, createdDir),
+            change(CREATED, createdFile)
+        )
+    }
+
+    def "watches subdirectories created while the inotify queue overflowed"() {
+        given:
+        // We don't want to fail when overflow is logged
+        ignoreLogMessages()
+        def blockingFile = new File(rootDir, "blocking.txt")
+        def existingDir = new File(rootDir, "existing")
+        assert existingDir.mkdirs()
+        def missedDir = new File(rootDir, "missed/nested")
+        def missedBelowExistingDir = new File(existingDir, "missed/nested")
+        def maxQueuedEvents = new File("/proc/sys/fs/inotify/max_queued_events").text.trim() as int
+        def blocked = new CountDownLatch(1)
+        def release = new CountDownLatch(1)
+        def overflowed = new CountDownLatch(1)
+        def receivedPaths = [].asSynchronized()
+        waitForChangeEventLatency()
+        watcher = fileEvents.get(LinuxFileEventFunctions)
+            .newWatcher(new TestHandler() {
+                @Override
+                void handleChangeEvent(FileWatchEvent.ChangeType type, String absolutePath) {
+                    receivedPaths << absolutePath
+                    if (absolutePath == blockingFile.absolutePath) {
+                        blocked.countDown()
+                        release.await()
+                    }
+                }
+
+                @Override
+                void handleOverflow(FileWatchEvent.OverflowType type, @Nullable String absolutePath) {
+                    overflowed.countDown()
+                }
+            })
+            .withRecursiveWatching()
+            .start()
+        watcher.startWatching([rootDir])
+        createNewFile(blockingFile)
+        blocked.await()
+
+        when:
+        // Fill up the inotify queue while the watcher is blocked, so the creation of the directories gets lost
+        maxQueuedEvents.times {
+            def churnedFile = new File(rootDir, "churned-${it}.txt")
+            assert churnedFile.createNewFile()
+            assert churnedFile.delete()
+        }
+        assert missedDir.mkdirs()
+        assert missedBelowExistingDir.mkdirs()
+        release.countDown()
+
+        then:
+        overflowed.await(5, TimeUnit.SECONDS)
+
+        when:
+        receivedPaths.clear()
+        def createdFile = new File(missedDir, "created.txt")
+        def createdBelowExistingFile = new File(missedBelowExistingDir, "created.txt")
+        createNewFile(createdFile)
+        createNewFile(createdBelowExistingFile)
+        waitForChangeEventLatency()
+
+        then:
+        receivedPaths == [createdFile, createdBelowExistingFile]*.absolutePath
+    }
+
+    def "does not receive events after hierarchy is unwatched"() {
+        given:
+        def subDir = new File(rootDir, "sub-dir")
+        assert subDir.mkdirs()
+        startRecursiveWatcher(rootDir)
+
+        when:
+        def unwatched = stopWatching(rootDir)
+
+        then:
+        unwatched
+
+        when:
+        createNewFile(new File(subDir, "created.txt"))
+
+        then:
+        expectNoEvents()
+    }
+
+    def "cannot unwatch descendant of watched hierarchy"() {
+        given:
+        def subDir = new File(rootDir, "sub-dir")
+        assert subDir.mkdirs()
+        startRecursiveWatcher(rootDir)
+
+        when:
+        def unwatched = stopWatching(subDir)
+
+        then:
+        !unwatched
+        expectLogMessage(INFO, "Path is not watched directly: ${subDir.absolutePath}")
+    }
+
+    def "fanotify watchers fall back to watching recursively with inotify"() {
+        given:
+        def subDir = new File(rootDir, "a/b")
+        assert subDir.mkdirs()
+        def createdFile = new File(subDir, "created.txt")
+        waitForChangeEventLatency()
+        def functions = new FanotifyFileEventFunctions(true)
+        watcher = functions.newWatcher(eventQueue).start()
+        watcher.startWatching([rootDir])
+
+        when:
+        createNewFile(createdFile)
+
+        then:
+        functions.usingInotify
+        expectEvents change(CREATED, createdFile)
+    }
+
+    private void startRecursiveWatcher(File... roots) {
+        // Avoid setup operations to be reported
+        waitForChangeEventLatency()
+        watcher = fileEvents.get(LinuxFileEventFunctions)
+            .newWatcher(eventQueue)
+            .withRecursiveWatching()
+            .start()
+        watcher.startWatching(roots as List)
+    }
+}
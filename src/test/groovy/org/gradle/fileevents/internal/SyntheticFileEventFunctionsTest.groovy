@@ -1,8 +1,12 @@
 package org.gradle.fileevents.internal
 
+import com.sun.management.ThreadMXBean
+import groovy.transform.CompileStatic
+import org.gradle.fileevents.FileWatchEvent
 import org.gradle.fileevents.testfixtures.TestFileEventFunctions
 import spock.lang.Specification
 
+import java.lang.management.ManagementFactory
 import java.util.concurrent.LinkedBlockingDeque
 
 import static java.util.concurrent.TimeUnit.MILLISECONDS
@@ -39,6 +43,57 @@ class SyntheticFileEventFunctionsTest extends Specification {
         eventQueue*.toString() == ["FAILURE Error", "TERMINATE"]
     }
 
+    def "reports batched change events in order"() {
+        def callback = new AbstractFileEventFunctions.NativeFileWatcherCallback(eventQueue)
+
+        when:
+        callback.reportChangeEvents([0, 2, 1] as int[], ["created", "modified", "removed"] as String[])
+
+        then:
+        eventQueue*.toString() == ["CREATED created", "MODIFIED modified", "REMOVED removed"]
+    }
+
+    def "reports change events relative to watched roots"() {
+        def callback = new AbstractFileEventFunctions.NativeFileWatcherCallback(eventQueue)
+
+        when:
+        callback.reportRoot(0, "/first")
+        callback.reportRoot(20, "/second")
+        callback.reportRelativeChangeEvents([0, 2, 1] as int[], [0, 20, 0] as int[], ["created", "", "sub/removed"] as String[])
+
+        then:
+        eventQueue*.toString() == ["CREATED /first/created", "MODIFIED /second", "REMOVED /first/sub/removed"]
+    }
+
+    def "materializes relative change events for handlers"() {
+        def handler = Mock(FileWatchEvent.Handler)
+        def callback = new AbstractFileEventFunctions.NativeFileWatcherCallback(handler)
+
+        when:
+        callback.reportRoot(0, "/root")
+        callback.reportRelativeChangeEvents([0] as int[], [0] as int[], ["a/b"] as String[])
+
+        then:
+        1 * handler.handleChangeEvent(FileWatchEvent.ChangeType.CREATED, "/root/a/b")
+        0 * _
+    }
+
+    def "reports events to handler without allocating"() {
+        def handler = new CountingHandler()
+        def callback = new AbstractFileEventFunctions.NativeFileWatcherCallback(handler)
+        def paths = (0..<16).collect { "/path/to/file-${it}.txt".toString() } as String[]
+        // Warm up, so we don't measure class loading and compilation
+        reportChangeEvents(callback, paths, 100_000)
+
+        when:
+        def allocatedBytes = measureAllocatedBytes { reportChangeEvents(callback, paths, 1_000_000) }
+
+        then:
+        handler.changeEvents == 1_100_000
+        // Allow for some noise from the measurement itself
+        allocatedBytes / 1_000_000 < 0.01
+    }
+
     def "can handle watcher start timing out"() {
         def service = new TestFileEventFunctions({
             Thread.sleep(200)
@@ -51,4 +106,69 @@ class SyntheticFileEventFunctionsTest extends Specification {
         def ex = thrown AbstractFileEventFunctions.FileWatcherTimeoutException
         ex.message == "Starting the watcher timed out"
     }
+
+    def "shuts down started shards when a shard cannot be created"() {
+        def service = new TestFileEventFunctions()
+        service.watcherLimit = 2
+
+        when:
+        service.newWatcher(eventQueue).startShards(3, 1, SECONDS)
+
+        then:
+        def ex = thrown RuntimeException
+        ex.message == "Too many watchers"
+        service.createdWatchers.size() == 2
+        service.createdWatchers.every { it.awaitTermination(0, SECONDS) }
+        eventQueue*.toString() == ["TERMINATE"]
+    }
+
+    def "does not report termination when no shard could be created"() {
+        def service = new TestFileEventFunctions()
+        service.watcherLimit = 0
+
+        when:
+        service.newWatcher(eventQueue).startShards(2, 1, SECONDS)
+
+        then:
+        def ex = thrown RuntimeException
+        ex.message == "Too many watchers"
+        eventQueue.empty
+    }
+
+    @CompileStatic
+    private static void reportChangeEvents(AbstractFileEventFunctions.NativeFileWatcherCallback callback, String[] paths, int count) {
+        for (int i = 0; i < count; i++) {
+            callback.reportChangeEvent(i % 3, paths[i % paths.length])
+        }
+    }
+
+    private static long measureAllocatedBytes(Closure action) {
+        def threadBean = (ThreadMXBean) ManagementFactory.threadMXBean
+        def threadId = Thread.currentThread().id
+        def before = threadBean.getThreadAllocatedBytes(threadId)
+        action.call()
+        return threadBean.getThreadAllocatedBytes(threadId) - before
+    }
+
+    @CompileStatic
+    private static class CountingHandler implements FileWatchEvent.Handler {
+        int changeEvents
+
+        @Override
+        void handleChangeEvent(FileWatchEvent.ChangeType type, String absolutePath) {
+            changeEvents++
+        }
+
+        @Override
+        void handleUnknownEvent(String absolutePath) {}
+
+        @Override
+        void handleOverflow(FileWatchEvent.OverflowType type, String absolutePath) {}
+
+        @Override
+        void handleFailure(Throwable failure) {}
+
+        @Override
+        void handleTerminated() {}
+    }
 }
@@ -50,6 +50,28 @@ class WindowsFileEventFunctionsTest extends AbstractFileEventFunctionsTest {
         expectNoEvents()
     }
 
+    def "can watch directory again after it has been dropped as moved"() {
+        given:
+        def watchedDir = new File(rootDir, "watched")
+        assert watchedDir.mkdirs()
+        def renamedDir = new File(rootDir, "renamed")
+        def createdFile = new File(watchedDir, "created.txt")
+        startWatcher(watchedDir)
+
+        when:
+        assert watchedDir.renameTo(renamedDir)
+        def droppedPaths = watcher.stopWatchingMovedPaths()
+        then:
+        droppedPaths == [watchedDir]
+
+        when:
+        assert renamedDir.renameTo(watchedDir)
+        watcher.startWatching([watchedDir])
+        createNewFile(createdFile)
+        then:
+        expectEvents change(CREATED, createdFile)
+    }
+
     def "reports changes on subst drive"() {
         given:
         subst("G:", rootDir)
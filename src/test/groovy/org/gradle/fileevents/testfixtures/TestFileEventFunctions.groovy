@@ -16,6 +16,7 @@
 package org.gradle.fileevents.testfixtures
 
 import org.gradle.fileevents.FileWatchEvent
+import org.gradle.fileevents.FileWatcher
 import org.gradle.fileevents.internal.AbstractFileEventFunctions
 
 import java.util.concurrent.BlockingQueue
@@ -24,6 +25,8 @@ import java.util.concurrent.LinkedBlockingQueue
 class TestFileEventFunctions extends AbstractFileEventFunctions<TestFileWatcher> {
 
     private final Closure initRunLoop
+    final List<TestFileWatcher> createdWatchers = []
+    int watcherLimit = Integer.MAX_VALUE
 
     TestFileEventFunctions(Closure initRunLoop = {}) {
         this.initRunLoop = initRunLoop
@@ -34,6 +37,11 @@ class TestFileEventFunctions extends AbstractFileEventFunctions<TestFileWatcher>
         new WatcherBuilder(eventQueue)
     }
 
+    @Override
+    WatcherBuilder newWatcher(FileWatchEvent.Handler handler) {
+        new WatcherBuilder(handler)
+    }
+
     class TestFileWatcher extends AbstractFileEventFunctions.AbstractFileWatcher {
         enum Command {
             FAIL, TERMINATE
@@ -81,20 +89,34 @@ class TestFileEventFunctions extends AbstractFileEventFunctions<TestFileWatcher>
             throw new UnsupportedOperationException()
         }
 
+        @Override
+        protected List<FileWatcher.RegistrationStatus> doTryStartWatching(Collection<File> paths) {
+            throw new UnsupportedOperationException()
+        }
+
         @Override
         protected boolean doStopWatching(Collection<File> paths) {
             throw new UnsupportedOperationException()
         }
     }
 
-    class WatcherBuilder extends AbstractFileEventFunctions.AbstractWatcherBuilder<TestFileWatcher> {
+    class WatcherBuilder extends AbstractFileEventFunctions.AbstractWatcherBuilder<TestFileWatcher, WatcherBuilder> {
         WatcherBuilder(BlockingQueue<FileWatchEvent> eventQueue) {
             super(eventQueue)
         }
 
+        WatcherBuilder(FileWatchEvent.Handler handler) {
+            super(handler)
+        }
+
         @Override
         protected TestFileWatcher createWatcher(AbstractFileEventFunctions.NativeFileWatcherCallback callback) {
-            new TestFileWatcher(callback)
+            if (createdWatchers.size() >= watcherLimit) {
+                throw new RuntimeException("Too many watchers")
+            }
+            def watcher = new TestFileWatcher(callback)
+            createdWatchers << watcher
+            watcher
         }
     }
 }